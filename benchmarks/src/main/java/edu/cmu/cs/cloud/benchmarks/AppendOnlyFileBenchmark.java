@@ -0,0 +1,158 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.AppendOnlyFile;
+import edu.cmu.cs.cloud.StripedRedis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar AppendOnlyFileBenchmark.set -t 4
+ * java -jar target/benchmarks.jar AppendOnlyFileBenchmark.replay
+ *
+ * The cost of the {@link AppendOnlyFile}: the SETs of the clients logged
+ * under each appendfsync policy, and the replay of a file at startup, by
+ * a single thread as the server does.
+ */
+@Fork(1)
+public class AppendOnlyFileBenchmark {
+
+    /**
+     * The number of keys written by every thread.
+     */
+    private static final int KEYS = 1 << 16;
+
+    /**
+     * Deletes a file and its directory.
+     */
+    private static void delete(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.getParent());
+    }
+
+    /**
+     * A keyspace logged to a file, shared by the threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Logged {
+
+        @Param({"NO", "EVERYSEC", "ALWAYS"})
+        public AppendOnlyFile.Fsync fsync;
+
+        StripedRedis redis;
+        AppendOnlyFile aof;
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            file = Files.createTempDirectory("aof-benchmark").resolve("appendonly.aof");
+            redis = new StripedRedis();
+            aof = AppendOnlyFile.open(redis, file, fsync);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            aof.close();
+            delete(file);
+        }
+    }
+
+    /**
+     * The keys of a thread.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        String[] keys;
+        int next;
+
+        @Setup
+        public void setUp() {
+            keys = new String[KEYS];
+            String prefix = "key:" + Thread.currentThread().getId() + ":";
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = prefix + i;
+            }
+        }
+
+        String key() {
+            return keys[next++ & (KEYS - 1)];
+        }
+    }
+
+    /**
+     * A file of SETs of 100 byte values, overwriting a quarter as many keys.
+     */
+    @State(Scope.Benchmark)
+    public static class Written {
+
+        /**
+         * The number of commands in the file; 800000 is about 100 MB.
+         */
+        @Param({"200000", "800000"})
+        public int commands;
+
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            file = Files.createTempDirectory("aof-benchmark").resolve("appendonly.aof");
+            char[] value = new char[100];
+            Arrays.fill(value, 'v');
+            String v = new String(value);
+            StripedRedis redis = new StripedRedis();
+            try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file, AppendOnlyFile.Fsync.NO)) {
+                aof.setAutoRewrite(0, 0);
+                for (int i = 0; i < commands; i++) {
+                    redis.set("key:" + (i % (commands / 4)), v);
+                }
+            }
+            System.out.printf("%nappendonly.aof: %d MB%n", Files.size(file) >> 20);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(file);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public String set(Logged logged, Writer writer) {
+        return logged.redis.set(writer.key(), "value");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Threads(1)
+    public long replay(Written written) throws IOException {
+        StripedRedis restarted = new StripedRedis();
+        try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, written.file,
+                AppendOnlyFile.Fsync.NO)) {
+            return aof.replayedCommands();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Usage:
+ * java -cp target/benchmarks.jar edu.cmu.cs.cloud.benchmarks.BenchmarkMain [regex] [threads...]
+ *
+ * Runs the benchmarks matching the regex, all by default, once per thread
+ * count, 1 and the number of cores by default, with the GC profiler, so
+ * that the allocation rate of every operation is reported next to its
+ * throughput.
+ *
+ * The results of every thread count are written as JSON to
+ * target/jmh-&lt;threads&gt;t.json, to compare them before and after a change,
+ * e.g. with https://jmh.morethan.io.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        int[] threads;
+        if (args.length > 1) {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threads[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            threads = new int[]{1, Runtime.getRuntime().availableProcessors()};
+        }
+        for (int t : threads) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(t)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-" + t + "t.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Dict;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar DictBenchmark
+ *
+ * The latency of the puts into a growing {@link Dict}, which rehashes
+ * incrementally, and into a {@link HashMap}, which resizes in one step.
+ * Sampled, so that JMH reports the tail percentiles, where the resizes
+ * show. The map grows from empty to 2M keys, then starts empty again.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class DictBenchmark {
+
+    private static final int KEYS = 2_000_000;
+
+    @Param({"Dict", "HashMap"})
+    public String map;
+
+    private Integer[] keys;
+    private Map<Integer, Integer> target;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpKeys() {
+        keys = new Integer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        empty();
+    }
+
+    private void empty() {
+        target = map.equals("Dict") ? new Dict<>() : new HashMap<>();
+        next = 0;
+    }
+
+    @Benchmark
+    public Integer put() {
+        if (next == KEYS) {
+            empty();
+        }
+        Integer k = keys[next++];
+        return target.put(k, k);
+    }
+}
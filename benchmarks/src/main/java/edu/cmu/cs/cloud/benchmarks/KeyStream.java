@@ -0,0 +1,43 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.SplittableRandom;
+
+/**
+ * The keys accessed by one thread, drawn before the measurement so that
+ * the random numbers and the Zipfian draws are not measured.
+ *
+ * Every thread has its own seed, so the threads do not access the keys in
+ * lockstep.
+ */
+@State(Scope.Thread)
+public class KeyStream {
+
+    /**
+     * The number of draws, a power of two, cycled through.
+     */
+    private static final int DRAWS = 1 << 16;
+
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp(Workload workload, ThreadParams thread) {
+        SplittableRandom random = new SplittableRandom(42 + thread.getThreadIndex());
+        keys = new String[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            keys[i] = workload.names[workload.draw(random)];
+        }
+    }
+
+    /**
+     * @return the next key
+     */
+    String next() {
+        return keys[next++ & (DRAWS - 1)];
+    }
+}
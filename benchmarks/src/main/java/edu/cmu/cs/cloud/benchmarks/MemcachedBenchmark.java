@@ -0,0 +1,76 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Memcached;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar MemcachedBenchmark -t 4 -prof gc
+ *
+ * The commands of the {@link Memcached} engine, shared by all the threads
+ * as by the event loops of a server.
+ *
+ * The memory limit fits every key twice over, so nothing is evicted and
+ * every get hits.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-XX:MaxDirectMemorySize=32g"})
+public class MemcachedBenchmark {
+
+    /**
+     * The estimated overhead of an item in the slab, its header and key.
+     */
+    private static final int ITEM_OVERHEAD = 64;
+
+    /**
+     * The cache, filled with every key.
+     */
+    @State(Scope.Benchmark)
+    public static class Cache {
+        Memcached memcached;
+
+        @Setup
+        public void setUp(Workload workload) {
+            long limit = 2L * workload.keys * (workload.valueSize + ITEM_OVERHEAD);
+            memcached = new Memcached(Math.max(limit, 64L * 1024 * 1024));
+            for (String k : workload.names) {
+                memcached.set(k, workload.value);
+            }
+        }
+    }
+
+    @Benchmark
+    public String set(Cache c, Workload workload, KeyStream keys) {
+        return c.memcached.set(keys.next(), workload.value);
+    }
+
+    @Benchmark
+    public byte[] get(Cache c, KeyStream keys) {
+        return c.memcached.getBytes(keys.next());
+    }
+
+    /**
+     * Deletes then sets back, so the keys keep existing.
+     */
+    @Benchmark
+    public void delete(Cache c, Workload workload, KeyStream keys, Blackhole bh) {
+        String k = keys.next();
+        bh.consume(c.memcached.delete(k));
+        bh.consume(c.memcached.set(k, workload.value));
+    }
+}
@@ -0,0 +1,113 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Memcached;
+import edu.cmu.cs.cloud.Redis;
+import edu.cmu.cs.cloud.StripedRedis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar MixedBenchmark -t 8 -p readPercent=90
+ *
+ * A mix of gets and sets on the thread-safe engines, {@link StripedRedis}
+ * and {@link Memcached}, shared by all the threads, to compare how they
+ * scale with the threads and the share of writes. A single {@link Redis}
+ * behind one global lock is the baseline of the striping.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-XX:MaxDirectMemorySize=32g"})
+public class MixedBenchmark {
+
+    /**
+     * The engines, filled with every key.
+     */
+    @State(Scope.Benchmark)
+    public static class Engines {
+        StripedRedis redis;
+        Memcached memcached;
+        Redis global;
+
+        @Setup
+        public void setUp(Workload workload) {
+            redis = new StripedRedis();
+            global = new Redis();
+            long limit = 2L * workload.keys * (workload.valueSize + 64);
+            memcached = new Memcached(Math.max(limit, 64L * 1024 * 1024));
+            for (String k : workload.names) {
+                redis.set(k, workload.value);
+                memcached.set(k, workload.value);
+                global.set(k, workload.value);
+            }
+        }
+    }
+
+    /**
+     * Whether each operation of a thread reads or writes, drawn before the
+     * measurement as the keys.
+     */
+    @State(Scope.Thread)
+    public static class Operations {
+
+        /**
+         * The share of gets, in percent.
+         */
+        @Param({"50", "90", "100"})
+        public int readPercent;
+
+        private static final int DRAWS = 1 << 16;
+
+        private boolean[] reads;
+        private int next;
+
+        @Setup
+        public void setUp(ThreadParams thread) {
+            SplittableRandom random = new SplittableRandom(7 + thread.getThreadIndex());
+            reads = new boolean[DRAWS];
+            for (int i = 0; i < DRAWS; i++) {
+                reads[i] = random.nextInt(100) < readPercent;
+            }
+        }
+
+        boolean read() {
+            return reads[next++ & (DRAWS - 1)];
+        }
+    }
+
+    @Benchmark
+    public Object stripedRedis(Engines e, Workload workload, KeyStream keys, Operations ops) {
+        String k = keys.next();
+        return ops.read() ? e.redis.getBytes(k) : e.redis.set(k, workload.value);
+    }
+
+    @Benchmark
+    public Object globalLock(Engines e, Workload workload, KeyStream keys, Operations ops) {
+        String k = keys.next();
+        boolean read = ops.read();
+        synchronized (e.global) {
+            return read ? e.global.getBytes(k) : e.global.set(k, workload.value);
+        }
+    }
+
+    @Benchmark
+    public Object memcached(Engines e, Workload workload, KeyStream keys, Operations ops) {
+        String k = keys.next();
+        return ops.read() ? e.memcached.getBytes(k) : e.memcached.set(k, workload.value);
+    }
+}
@@ -0,0 +1,135 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.NioServer;
+import edu.cmu.cs.cloud.RespHandler;
+import edu.cmu.cs.cloud.StripedRedis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar PubSubBenchmark -p subscribers=1000
+ *
+ * The fan-out of PUBLISH by the RESP server: one publisher and many
+ * subscribers connected on loopback. A message counts once all the
+ * subscribers received it, so the score is in messages per second, and
+ * the deliveries per second are the score times the subscribers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class PubSubBenchmark {
+
+    /**
+     * The messages published by every invocation.
+     */
+    private static final int MESSAGES = 1000;
+
+    private static final String CHANNEL = "bench";
+    private static final String PAYLOAD = "invalidate:user:000000";
+
+    @Param({"10", "1000"})
+    public int subscribers;
+
+    private StripedRedis redis;
+    private NioServer server;
+    private List<SocketChannel> channels;
+    private Selector selector;
+    private ByteBuffer buf;
+
+    /**
+     * The bytes of a batch of messages received by all the subscribers.
+     */
+    private long batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        redis = new StripedRedis();
+        server = new NioServer("resp-benchmark", new RespHandler(redis),
+                new InetSocketAddress("127.0.0.1", 0), 4);
+        server.start();
+        selector = Selector.open();
+        buf = ByteBuffer.allocateDirect(64 * 1024);
+        channels = new ArrayList<>();
+        byte[] subscribe = ("SUBSCRIBE " + CHANNEL + "\r\n").getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < subscribers; i++) {
+            SocketChannel ch = SocketChannel.open(
+                    new InetSocketAddress("127.0.0.1", server.port()));
+            channels.add(ch);
+            ch.write(ByteBuffer.wrap(subscribe));
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+        }
+        // every subscriber is subscribed once its reply is read
+        long subscribed = ("*3\r\n$9\r\nsubscribe\r\n$" + CHANNEL.length() + "\r\n"
+                + CHANNEL + "\r\n:1\r\n").length();
+        read(subscribers * subscribed);
+        long frame = ("*3\r\n$7\r\nmessage\r\n$" + CHANNEL.length() + "\r\n" + CHANNEL
+                + "\r\n$" + PAYLOAD.length() + "\r\n" + PAYLOAD + "\r\n").length();
+        batch = (long) subscribers * MESSAGES * frame;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (SocketChannel ch : channels) {
+            ch.close();
+        }
+        selector.close();
+        server.close();
+    }
+
+    /**
+     * Reads the subscribers until they received the bytes.
+     */
+    private void read(long expected) throws IOException {
+        long received = 0;
+        while (received < expected) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                int n;
+                while ((n = ((SocketChannel) key.channel()).read(buf)) > 0) {
+                    received += n;
+                    buf.clear();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void publish() throws IOException {
+        for (int i = 0; i < MESSAGES; i++) {
+            redis.publish(CHANNEL, PAYLOAD);
+        }
+        read(batch);
+    }
+}
@@ -0,0 +1,165 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Redis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar RedisBenchmark -prof gc
+ *
+ * The commands of the single-threaded {@link Redis} engine.
+ *
+ * {@link Redis} is not thread-safe, so every thread has its own keyspace,
+ * as every stripe of a {@link edu.cmu.cs.cloud.StripedRedis} has, and more
+ * threads measure how the engine scales when nothing is shared. Each type
+ * has its own state, so a benchmark only fills the keyspace it reads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisBenchmark {
+
+    /**
+     * The number of fields of every hash.
+     */
+    private static final int FIELDS = 8;
+
+    /**
+     * A keyspace of strings.
+     */
+    @State(Scope.Thread)
+    public static class Strings {
+        Redis redis;
+
+        @Setup
+        public void setUp(Workload workload) {
+            redis = new Redis();
+            for (String k : workload.names) {
+                redis.set(k, workload.value);
+            }
+        }
+    }
+
+    /**
+     * A keyspace of hashes of {@link #FIELDS} fields.
+     */
+    @State(Scope.Thread)
+    public static class Hashes {
+
+        /**
+         * The hash-max-listpack-entries: hashes are listpacks with the
+         * default, 128, and hash tables with 0. Run with -prof gc to
+         * compare the allocations of the two encodings.
+         */
+        @Param({"128", "0"})
+        public int hashMaxListpackEntries;
+
+        Redis redis;
+        String[] fields;
+        String value;
+        int next;
+
+        /**
+         * @return the next field, round robin
+         */
+        String field() {
+            return fields[next++ & (FIELDS - 1)];
+        }
+
+        @Setup
+        public void setUp(Workload workload) {
+            redis = new Redis();
+            redis.setHashMaxListpackEntries(hashMaxListpackEntries);
+            fields = new String[FIELDS];
+            for (int f = 0; f < FIELDS; f++) {
+                fields[f] = "field:" + f;
+            }
+            value = new String(workload.value, StandardCharsets.US_ASCII);
+            for (String k : workload.names) {
+                for (String f : fields) {
+                    redis.hset(k, f, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * A keyspace of lists of a few elements.
+     */
+    @State(Scope.Thread)
+    public static class Lists {
+        Redis redis;
+        String value;
+
+        @Setup
+        public void setUp(Workload workload) {
+            redis = new Redis();
+            value = new String(workload.value, StandardCharsets.US_ASCII);
+            for (String k : workload.names) {
+                redis.rpush(k, value, value, value, value);
+            }
+        }
+    }
+
+    @Benchmark
+    public String set(Strings s, Workload workload, KeyStream keys) {
+        return s.redis.set(keys.next(), workload.value);
+    }
+
+    @Benchmark
+    public byte[] get(Strings s, KeyStream keys) {
+        return s.redis.getBytes(keys.next());
+    }
+
+    @Benchmark
+    public int hset(Hashes h, KeyStream keys) {
+        return h.redis.hset(keys.next(), h.field(), h.value);
+    }
+
+    @Benchmark
+    public String hget(Hashes h, KeyStream keys) {
+        return h.redis.hget(keys.next(), h.field());
+    }
+
+    @Benchmark
+    public List<String> hgetall(Hashes h, KeyStream keys) {
+        return h.redis.hgetall(keys.next());
+    }
+
+    /**
+     * Pushes then pops, so the lists keep their length.
+     */
+    @Benchmark
+    public void rpush(Lists l, KeyStream keys, Blackhole bh) {
+        String k = keys.next();
+        bh.consume(l.redis.rpush(k, l.value));
+        bh.consume(l.redis.lpop(k));
+    }
+
+    /**
+     * Pops then pushes back, so the lists never drain.
+     */
+    @Benchmark
+    public void rpop(Lists l, KeyStream keys, Blackhole bh) {
+        String k = keys.next();
+        String v = l.redis.rpop(k);
+        bh.consume(l.redis.rpush(k, v));
+    }
+}
@@ -0,0 +1,100 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.NioServer;
+import edu.cmu.cs.cloud.Replica;
+import edu.cmu.cs.cloud.Replication;
+import edu.cmu.cs.cloud.RespHandler;
+import edu.cmu.cs.cloud.StripedRedis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar ReplicationBenchmark
+ *
+ * The replication lag: the time from a burst of SETs on the primary until
+ * a replica on loopback has applied all of them. Sampled, so that JMH
+ * reports the percentiles of the lag.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class ReplicationBenchmark {
+
+    /**
+     * The number of distinct keys written.
+     */
+    private static final int KEYS = 1024;
+
+    /**
+     * The SETs of a burst.
+     */
+    @Param({"1", "1000"})
+    public int burst;
+
+    private StripedRedis primary;
+    private Replication replication;
+    private NioServer server;
+    private Replica replica;
+    private String[] keys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        primary = new StripedRedis();
+        replication = new Replication(primary);
+        RespHandler handler = new RespHandler(primary);
+        handler.setReplication(replication);
+        server = new NioServer("primary", handler, new InetSocketAddress("127.0.0.1", 0), 2);
+        server.start();
+        replica = Replica.start(new StripedRedis(), "127.0.0.1", server.port(), 0);
+        while (replica.state() != Replica.State.CONNECTED) {
+            Thread.sleep(10);
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key:" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        replica.close();
+        replication.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long lag() {
+        for (int i = 0; i < burst; i++) {
+            primary.set(keys[next++ & (KEYS - 1)], "value");
+        }
+        long target = replication.offset();
+        long offset;
+        while ((offset = replica.offset()) < target) {
+            // the replica may need the core of this thread
+            Thread.yield();
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,105 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Memcached;
+import edu.cmu.cs.cloud.ShardedCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar ShardedCacheBenchmark
+ *
+ * The {@link ShardedCache} over in-process {@link Memcached} nodes: a
+ * single get, a getMulti of a batch spread over all the nodes, and the
+ * rebuild of the ring when a node joins and leaves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedCacheBenchmark {
+
+    private static final int KEYS = 100_000;
+
+    /**
+     * The keys of a getMulti.
+     */
+    private static final int BATCH = 100;
+
+    @Param({"10"})
+    public int nodes;
+
+    private ShardedCache cache;
+    private ShardedCache.Node joining;
+    private String[] keys;
+    private List<List<String>> batches;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new ShardedCache();
+        for (int n = 0; n < nodes; n++) {
+            cache.addNode("node" + n, ShardedCache.memcached(new Memcached()));
+        }
+        keys = new String[KEYS];
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key:" + i;
+            entries.put(keys[i], "value" + i);
+        }
+        cache.setMulti(entries);
+        joining = ShardedCache.memcached(new Memcached());
+        batches = new ArrayList<>();
+        for (int i = 0; i + BATCH <= KEYS; i += BATCH) {
+            List<String> batch = new ArrayList<>(BATCH);
+            for (int j = 0; j < BATCH; j++) {
+                batch.add(keys[i + j]);
+            }
+            batches.add(batch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    public String get() {
+        return cache.get(keys[(next++ & Integer.MAX_VALUE) % KEYS]);
+    }
+
+    @Benchmark
+    public List<String> getMulti() {
+        return cache.getMulti(batches.get((next++ & Integer.MAX_VALUE) % batches.size()));
+    }
+
+    /**
+     * Adds a node and removes it, rebuilding the ring twice.
+     */
+    @Benchmark
+    public ShardedCache.Node rebuild() {
+        cache.addNode("joining", joining);
+        cache.removeNode("joining");
+        return cache.nodeOf(keys[0]);
+    }
+}
@@ -0,0 +1,92 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Snapshot;
+import edu.cmu.cs.cloud.StripedRedis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar SnapshotBenchmark -p keys=1000000
+ *
+ * Saving and loading a binary {@link Snapshot} of strings and lists of 100
+ * byte values. The size of the file is printed at setup, to turn the time
+ * into a speed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    /**
+     * The number of strings. There are a thousandth as many lists of 300
+     * elements.
+     */
+    @Param({"100000", "1000000"})
+    public int keys;
+
+    private StripedRedis redis;
+    private Path dir;
+    private Path saved;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        char[] value = new char[100];
+        Arrays.fill(value, 'v');
+        String v = new String(value);
+        redis = new StripedRedis();
+        for (int i = 0; i < keys; i++) {
+            redis.set("key:" + i, v);
+        }
+        for (int i = 0; i < keys / 1000; i++) {
+            for (int j = 0; j < 300; j++) {
+                redis.rpush("list:" + i, v);
+            }
+        }
+        dir = Files.createTempDirectory("snapshot-benchmark");
+        saved = dir.resolve("saved.rdb");
+        file = dir.resolve("dump.rdb");
+        Snapshot.save(redis, saved);
+        System.out.printf("%nsnapshot: %d MB%n", Files.size(saved) >> 20);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(saved);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        return Snapshot.save(redis, file);
+    }
+
+    @Benchmark
+    public StripedRedis load() throws IOException {
+        StripedRedis restarted = new StripedRedis();
+        Snapshot.load(restarted, saved);
+        return restarted;
+    }
+}
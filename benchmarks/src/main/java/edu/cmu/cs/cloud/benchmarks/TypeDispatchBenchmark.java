@@ -0,0 +1,113 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import edu.cmu.cs.cloud.Redis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage:
+ * java -jar target/benchmarks.jar TypeDispatch
+ *
+ * The cost of the type check of the typed commands of {@link Redis}.
+ *
+ * A typed command looks its key up once: the entry of the key holds the
+ * type of the value and its access data for eviction. Before, it called TYPE twice, with a containsKey and a get each, and
+ * then got the value again: five lookups of the key per HGET, plus a string
+ * comparison of the type names. With expires set, every TYPE also looked
+ * the key up in the expire table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TypeDispatchBenchmark {
+
+    private static final int KEYS = 1024;
+
+    /**
+     * Whether some keys have an expire time, so that every lookup checks the
+     * expire table too.
+     */
+    @Param({"false", "true"})
+    public boolean expires;
+
+    /**
+     * The memory limit, 0 for none, so that every lookup records the access
+     * for LRU too.
+     */
+    @Param({"0", "1073741824"})
+    public long maxmemory;
+
+    private Redis redis;
+    private String[] hashes;
+    private String[] lists;
+    private String[] zsets;
+    private String[] strings;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        redis = new Redis();
+        redis.setMaxmemory(maxmemory);
+        redis.setMaxmemoryPolicy("allkeys-lru");
+        hashes = new String[KEYS];
+        lists = new String[KEYS];
+        zsets = new String[KEYS];
+        strings = new String[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            hashes[k] = "hash:" + k;
+            lists[k] = "list:" + k;
+            zsets[k] = "zset:" + k;
+            strings[k] = "string:" + k;
+            redis.hset(hashes[k], "field", "value");
+            redis.rpush(lists[k], "a", "b", "c");
+            redis.zadd(zsets[k], k, "member");
+            redis.set(strings[k], "value");
+        }
+        if (expires) {
+            redis.setex("volatile", 3600, "value");
+        }
+    }
+
+    private int next() {
+        return i++ & (KEYS - 1);
+    }
+
+    @Benchmark
+    public String hget() {
+        return redis.hget(hashes[next()], "field");
+    }
+
+    @Benchmark
+    public long llen() {
+        return redis.llen(lists[next()]);
+    }
+
+    @Benchmark
+    public Double zscore() {
+        return redis.zscore(zsets[next()], "member");
+    }
+
+    @Benchmark
+    public String get() {
+        return redis.get(strings[next()]);
+    }
+
+    @Benchmark
+    public String type() {
+        return redis.type(hashes[next()]);
+    }
+}
@@ -0,0 +1,81 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The keys and values of a benchmark, shared by its threads, and the
+ * parameters of the workload.
+ *
+ * The key counts go from 1K, which fits in the CPU caches, to 10M, which
+ * needs a heap of several GB, e.g. {@code -jvmArgs -Xmx16g}.
+ */
+@State(Scope.Benchmark)
+public class Workload {
+
+    /**
+     * The number of keys.
+     */
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int keys;
+
+    /**
+     * The size of the values in bytes.
+     */
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    /**
+     * How the keys are drawn: uniform or zipfian.
+     */
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    /**
+     * The names of the keys, also the instances stored by the engines, so
+     * they are not duplicated.
+     */
+    String[] names;
+
+    /**
+     * A value of {@link #valueSize} bytes.
+     */
+    byte[] value;
+
+    ZipfianGenerator zipfian;
+
+    @Setup
+    public void setUp() {
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key:" + i;
+        }
+        value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        switch (distribution) {
+            case "uniform":
+                zipfian = null;
+                break;
+            case "zipfian":
+                zipfian = new ZipfianGenerator(keys);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+    }
+
+    /**
+     * Draws a key index.
+     *
+     * @param random the random numbers of the thread
+     * @return the index of the key
+     */
+    int draw(SplittableRandom random) {
+        return zipfian == null ? random.nextInt(keys) : (int) zipfian.next(random.nextDouble());
+    }
+}
@@ -0,0 +1,67 @@
+package edu.cmu.cs.cloud.benchmarks;
+
+/**
+ * Draws item indexes with a Zipfian distribution: item 0 is the most
+ * popular, and the popularity of item i is proportional to 1 / (i + 1)^theta.
+ *
+ * With the theta of 0.99 used by YCSB, a few hot keys take most of the
+ * accesses, as in a cache in front of a real workload, while a uniform
+ * distribution touches the whole keyspace and defeats the CPU caches.
+ *
+ * The constants are computed once, in O(items), and a draw is O(1).
+ *
+ * @see <a href="https://dl.acm.org/doi/10.1145/191843.191886">Gray et al.,
+ * Quickly generating billion-record synthetic databases</a>
+ */
+final class ZipfianGenerator {
+
+    /**
+     * The skew of YCSB.
+     */
+    static final double THETA = 0.99;
+
+    private final long items;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    /**
+     * @param items the number of items, at least 2
+     */
+    ZipfianGenerator(long items) {
+        if (items < 2) {
+            throw new IllegalArgumentException("items must be at least 2");
+        }
+        this.items = items;
+        this.zetan = zeta(items);
+        this.alpha = 1 / (1 - THETA);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta(2) / zetan);
+        this.halfPowTheta = 1 + Math.pow(0.5, THETA);
+    }
+
+    private static double zeta(long n) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, THETA);
+        }
+        return sum;
+    }
+
+    /**
+     * Draws an item.
+     *
+     * @param u a uniform random number in [0, 1)
+     * @return the index of the item, in [0, items)
+     */
+    long next(double u) {
+        double uz = u * zetan;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < halfPowTheta) {
+            return 1;
+        }
+        return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
@@ -0,0 +1,603 @@
+package edu.cmu.cs.cloud;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only file (AOF) persistence of a {@link StripedRedis}.
+ *
+ * Every write of the keyspace is appended to the file as the RESP command
+ * that redoes it, see {@link CommandFeed}, and the file is replayed by
+ * {@link #open(StripedRedis, Path, Fsync)} to rebuild the keyspace after a
+ * restart. Only SET, DEL, HSET, RPUSH, RPOP, LPUSH, LPOP, ZADD, ZREM,
+ * PEXPIREAT and PERSIST are ever written.
+ *
+ * The commands are encoded into an in-memory buffer and written to the
+ * {@link FileChannel} in batches. When they reach the disk depends on the
+ * {@link Fsync} policy.
+ *
+ * The file grows with every write, so {@link #rewrite()} replaces it with
+ * the shortest commands that rebuild the current keyspace. The keyspace is
+ * snapshotted one stripe at a time, so writes to the other stripes go on
+ * during the rewrite, and the writes that happen after a stripe was
+ * snapshotted are appended to the new file before it replaces the old one.
+ * A rewrite starts by itself once the file has grown by
+ * {@link #AUTO_REWRITE_PERCENTAGE}% since the last one.
+ *
+ * The feed is attached to {@link StripedRedis} rather than {@link Redis}
+ * because the periodic fsync and the rewrite run in background threads.
+ * A single-threaded keyspace is {@code new StripedRedis(1)}.
+ *
+ * @see <a href="https://redis.io/docs/management/persistence/">
+ * Redis persistence</a>
+ */
+public final class AppendOnlyFile implements CommandFeed, Closeable {
+
+    /**
+     * When the written commands are flushed to the disk, as appendfsync of
+     * Redis.
+     */
+    public enum Fsync {
+        /**
+         * Write and fsync before the write command returns. Concurrent
+         * writers share one fsync (group commit), so the cost of an fsync is
+         * amortized over all the commands waiting for it. A writer waits
+         * for the fsync once it released the lock of its stripe, see
+         * {@link CommandFeed#released()}, as Redis fsyncs before it replies,
+         * so the other commands of the stripe do not wait on the disk.
+         */
+        ALWAYS,
+        /**
+         * Write and fsync once per second in the background. Up to one
+         * second of writes can be lost.
+         */
+        EVERYSEC,
+        /**
+         * Write once per second and let the operating system decide when to
+         * flush.
+         */
+        NO
+    }
+
+    /**
+     * The buffered bytes written to the file right away by the writer,
+     * rather than by the next background flush.
+     */
+    static final int WRITE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The period of the background flush, in milliseconds.
+     */
+    static final long FLUSH_PERIOD_MILLIS = 1000;
+
+    /**
+     * The default growth since the last rewrite that starts a rewrite, as
+     * auto-aof-rewrite-percentage of Redis.
+     */
+    static final int AUTO_REWRITE_PERCENTAGE = 100;
+
+    /**
+     * The default size below which the file is never rewritten by itself,
+     * as auto-aof-rewrite-min-size of Redis.
+     */
+    static final long AUTO_REWRITE_MIN_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The size of the region of the file mapped at once by the replay.
+     */
+    static final int REPLAY_WINDOW = 64 * 1024 * 1024;
+
+    private final StripedRedis redis;
+    private final Path path;
+    private final Fsync fsync;
+    private final long replayed;
+
+    /**
+     * Taken before the monitor of this object when both are needed. Held
+     * while forcing the file, so that writers keep appending meanwhile.
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * Held for the whole rewrite, only one runs at a time.
+     */
+    private final ReentrantLock rewriteLock = new ReentrantLock();
+
+    private final ScheduledExecutorService flusher;
+
+    // guarded by this
+    private FileChannel channel;
+    private final OutputBuffer buffer = new OutputBuffer();
+    private long appended;
+    private long fileSize;
+    private long rewriteBaseSize;
+    private int autoRewritePercentage = AUTO_REWRITE_PERCENTAGE;
+    private long autoRewriteMinSize = AUTO_REWRITE_MIN_SIZE;
+    private IOException failure;
+
+    /**
+     * The writes to the stripes already snapshotted by a running rewrite,
+     * null when no rewrite runs.
+     */
+    private OutputBuffer rewriteBuffer;
+    private boolean[] snapshotted;
+
+    // guarded by syncLock
+    private long synced;
+
+    /**
+     * The last write of the thread not yet forced with {@link Fsync#ALWAYS},
+     * or 0.
+     */
+    private final ThreadLocal<long[]> unsynced = ThreadLocal.withInitial(() -> new long[1]);
+
+    private AppendOnlyFile(StripedRedis redis, Path path, Fsync fsync,
+                           long replayed) throws IOException {
+        this.redis = redis;
+        this.path = path;
+        this.fsync = fsync;
+        this.replayed = replayed;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        rewriteBaseSize = fileSize;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "redis-aof-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushInBackground,
+                FLUSH_PERIOD_MILLIS, FLUSH_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        redis.addFeed(this);
+    }
+
+    /**
+     * Replays the file into the keyspace, if it exists, then appends every
+     * write of the keyspace to it.
+     *
+     * A command cut short at the end of the file, as left by a crash in the
+     * middle of a write, is truncated away like aof-load-truncated of Redis
+     * does.
+     *
+     * @param redis the keyspace, expected to be empty
+     * @param path  the file
+     * @param fsync when the writes are flushed to the disk
+     * @return the append-only file, to be closed on shutdown
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static AppendOnlyFile open(StripedRedis redis, Path path, Fsync fsync)
+            throws IOException {
+        long replayed = Files.exists(path) ? replay(redis, path) : 0;
+        return new AppendOnlyFile(redis, path, fsync, replayed);
+    }
+
+    /**
+     * Returns the number of commands replayed by {@link #open}.
+     *
+     * @return the number of commands
+     */
+    public long replayedCommands() {
+        return replayed;
+    }
+
+    /**
+     * Returns the size of the file, including the commands not written yet.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long size() {
+        return fileSize + buffer.readable();
+    }
+
+    /**
+     * Sets when a rewrite starts by itself.
+     *
+     * @param percentage the growth since the last rewrite, in percent of the
+     *                   size after it, 0 disables automatic rewrites
+     * @param minSize    the size below which no rewrite starts
+     */
+    public synchronized void setAutoRewrite(int percentage, long minSize) {
+        if (percentage < 0 || minSize < 0) {
+            throw new IllegalArgumentException("must not be negative");
+        }
+        autoRewritePercentage = percentage;
+        autoRewriteMinSize = minSize;
+    }
+
+    /**
+     * Maps the file one window at a time and executes the commands.
+     *
+     * @return the number of commands executed
+     */
+    private static long replay(StripedRedis redis, Path path) throws IOException {
+        long commands = 0;
+        try (FileChannel ch = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long pos = 0;
+            int window = REPLAY_WINDOW;
+            while (pos < size) {
+                int len = (int) Math.min(window, size - pos);
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                int consumed = 0;
+                while (map.hasRemaining()) {
+                    if (map.get(map.position()) != '*') {
+                        throw corrupted(pos + map.position());
+                    }
+                    byte[][] argv;
+                    try {
+                        argv = RespHandler.parse(map);
+                    } catch (RespHandler.ProtocolException e) {
+                        throw corrupted(pos + consumed);
+                    }
+                    if (argv == null) {
+                        break;
+                    }
+                    apply(redis, argv);
+                    consumed = map.position();
+                    commands++;
+                }
+                if (consumed == 0) {
+                    if (pos + len == size) {
+                        break;
+                    }
+                    if (window > Integer.MAX_VALUE / 2) {
+                        throw corrupted(pos);
+                    }
+                    // a command larger than the window
+                    window *= 2;
+                    continue;
+                }
+                pos += consumed;
+            }
+            if (pos < size) {
+                ch.truncate(pos);
+            }
+        }
+        return commands;
+    }
+
+    private static IOException corrupted(long offset) {
+        return new IOException(
+                "Bad file format reading the append only file at offset " + offset);
+    }
+
+    /**
+     * Executes one command written by a {@link CommandFeed}, read from the
+     * file or from a replication stream.
+     */
+    static void apply(StripedRedis redis, byte[][] args) throws IOException {
+        String cmd = RespHandler.string(args[0]).toUpperCase(Locale.ROOT);
+        if ("SET".equals(cmd) && args.length == 3) {
+            // the value stays binary
+            redis.set(RespHandler.string(args[1]), args[2]);
+            return;
+        }
+        String[] argv = RespHandler.strings(args);
+        if (argv.length < 2) {
+            throw new IOException("Bad command reading the append only file: "
+                    + Arrays.toString(argv));
+        }
+        String k = argv[1];
+        switch (cmd) {
+            case "DEL":
+                for (int i = 1; i < argv.length; i++) {
+                    redis.del(argv[i]);
+                }
+                break;
+            case "HSET":
+                for (int i = 2; i + 1 < argv.length; i += 2) {
+                    redis.hset(k, argv[i], argv[i + 1]);
+                }
+                break;
+            case "RPUSH":
+                redis.rpush(k, Arrays.copyOfRange(argv, 2, argv.length));
+                break;
+            case "RPOP":
+                redis.rpop(k);
+                break;
+            case "LPUSH":
+                redis.lpush(k, Arrays.copyOfRange(argv, 2, argv.length));
+                break;
+            case "LPOP":
+                redis.lpop(k);
+                break;
+            case "ZADD": {
+                Map<String, Double> scores = new LinkedHashMap<>();
+                for (int i = 2; i + 1 < argv.length; i += 2) {
+                    scores.put(argv[i + 1], SortedSet.parseScore(argv[i]));
+                }
+                redis.zadd(k, scores);
+                break;
+            }
+            case "ZREM":
+                redis.zrem(k, Arrays.copyOfRange(argv, 2, argv.length));
+                break;
+            case "PEXPIREAT":
+                redis.pexpireat(k, Long.parseLong(argv[2]));
+                break;
+            case "PERSIST":
+                redis.persist(k);
+                break;
+            default:
+                throw new IOException("Unknown command '" + argv[0]
+                        + "' reading the append only file");
+        }
+    }
+
+    /**
+     * Appends one write. With {@link Fsync#ALWAYS} the write is on the disk
+     * once {@link #released()} returns.
+     *
+     * Throws {@link IllegalStateException} once writing the file has failed,
+     * the write is then applied in memory but not persisted.
+     *
+     * @param argv the command name followed by its arguments
+     */
+    @Override
+    public void feed(Object... argv) {
+        long seq;
+        synchronized (this) {
+            checkFailure();
+            encode(buffer, argv);
+            if (rewriteBuffer != null && snapshotted[redis.stripeOf((String) argv[1])]) {
+                encode(rewriteBuffer, argv);
+            }
+            seq = ++appended;
+            if (fsync != Fsync.ALWAYS && buffer.readable() >= WRITE_THRESHOLD) {
+                try {
+                    writeBuffer();
+                } catch (IOException e) {
+                    failure = e;
+                    checkFailure();
+                }
+            }
+        }
+        if (fsync == Fsync.ALWAYS) {
+            unsynced.get()[0] = seq;
+        }
+    }
+
+    /**
+     * With {@link Fsync#ALWAYS}, waits until the writes of the thread are on
+     * the disk.
+     *
+     * Throws {@link IllegalStateException} once writing the file has failed.
+     */
+    @Override
+    public void released() {
+        if (fsync != Fsync.ALWAYS) {
+            return;
+        }
+        long[] last = unsynced.get();
+        long seq = last[0];
+        if (seq != 0) {
+            last[0] = 0;
+            sync(seq);
+        }
+    }
+
+    static void encode(OutputBuffer out, Object[] argv) {
+        RespHandler.arrayHeader(out, argv.length);
+        for (Object a : argv) {
+            if (a instanceof byte[]) {
+                RespHandler.bulk(out, (byte[]) a);
+            } else {
+                RespHandler.bulk(out, (String) a);
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException(
+                    "MISCONF Errors writing to the AOF file: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Writes the buffer to the file, the caller holds the monitor.
+     */
+    private void writeBuffer() throws IOException {
+        fileSize += buffer.writeTo(channel);
+    }
+
+    /**
+     * Waits until the write seq is on the disk, forcing the file unless a
+     * concurrent writer has already done it.
+     *
+     * Writers arriving while the file is being forced queue up on
+     * {@link #syncLock}, and the first of them forces all their writes at
+     * once.
+     */
+    private void sync(long seq) {
+        synchronized (syncLock) {
+            if (synced >= seq) {
+                return;
+            }
+            long target;
+            FileChannel ch;
+            try {
+                synchronized (this) {
+                    checkFailure();
+                    target = appended;
+                    writeBuffer();
+                    ch = channel;
+                }
+                ch.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    checkFailure();
+                }
+                return;
+            }
+            synced = target;
+        }
+    }
+
+    /**
+     * The periodic task: writes the buffer, forces the file with
+     * {@link Fsync#EVERYSEC}, and starts a rewrite if the file grew enough.
+     */
+    private void flushInBackground() {
+        try {
+            synchronized (syncLock) {
+                long target;
+                FileChannel ch;
+                synchronized (this) {
+                    if (failure != null) {
+                        return;
+                    }
+                    target = appended;
+                    writeBuffer();
+                    ch = channel;
+                }
+                if (fsync == Fsync.EVERYSEC && synced < target) {
+                    ch.force(false);
+                    synced = target;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            return;
+        }
+        boolean grown;
+        synchronized (this) {
+            grown = autoRewritePercentage > 0 && fileSize >= autoRewriteMinSize
+                    && fileSize >= rewriteBaseSize * (100 + autoRewritePercentage) / 100;
+        }
+        if (grown) {
+            rewriteInBackground();
+        }
+    }
+
+    /**
+     * Starts {@link #rewrite()} in a new thread, unless one is running.
+     *
+     * @return false if a rewrite is already running
+     */
+    public boolean rewriteInBackground() {
+        if (rewriteLock.isLocked()) {
+            return false;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                rewrite();
+            } catch (IOException | IllegalStateException e) {
+                // the old file is still complete, the next flush retries
+            }
+        }, "redis-aof-rewrite");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    /**
+     * Replaces the file with the shortest commands that rebuild the current
+     * keyspace.
+     *
+     * Each stripe is written to a temporary file while its lock is held, the
+     * writes to a stripe after its snapshot are kept aside and appended to
+     * the temporary file, which finally replaces the file atomically.
+     *
+     * Throws {@link IllegalStateException} if a rewrite is already running.
+     *
+     * @throws IOException if the new file cannot be written, the old file
+     *                     is then left untouched
+     * @see <a href="https://redis.io/commands/bgrewriteaof">BGREWRITEAOF - Redis</a>
+     */
+    public void rewrite() throws IOException {
+        if (!rewriteLock.tryLock()) {
+            throw new IllegalStateException(
+                    "ERR Background append only file rewriting already in progress");
+        }
+        Path tmp = path.resolveSibling("temp-rewriteaof-" + path.getFileName());
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            synchronized (this) {
+                checkFailure();
+                rewriteBuffer = new OutputBuffer();
+                snapshotted = new boolean[redis.stripes()];
+            }
+            OutputBuffer snapshot = new OutputBuffer();
+            for (int i = 0; i < redis.stripes(); i++) {
+                int stripe = i;
+                redis.forStripe(i, r -> {
+                    r.rewrite(argv -> encode(snapshot, argv));
+                    synchronized (this) {
+                        snapshotted[stripe] = true;
+                    }
+                });
+                snapshot.writeTo(out);
+            }
+            synchronized (syncLock) {
+                synchronized (this) {
+                    rewriteBuffer.writeTo(out);
+                    out.force(true);
+                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    channel.close();
+                    channel = FileChannel.open(path,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    // everything buffered is in the new file already
+                    buffer.consume(buffer.readable());
+                    fileSize = channel.size();
+                    rewriteBaseSize = fileSize;
+                    synced = appended;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                rewriteBuffer = null;
+                snapshotted = null;
+            }
+            Files.deleteIfExists(tmp);
+            rewriteLock.unlock();
+        }
+    }
+
+    /**
+     * Detaches from the keyspace, waits for a running rewrite, then writes
+     * and forces the remaining commands and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdownNow();
+        redis.removeFeed(this);
+        rewriteLock.lock();
+        try {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                    try {
+                        writeBuffer();
+                        channel.force(false);
+                    } finally {
+                        channel.close();
+                    }
+                }
+            }
+        } finally {
+            rewriteLock.unlock();
+        }
+    }
+}
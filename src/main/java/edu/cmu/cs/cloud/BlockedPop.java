@@ -0,0 +1,124 @@
+package edu.cmu.cs.cloud;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * A client blocked by BLPOP or BRPOP on one or more keys of a
+ * {@link StripedRedis}, see {@link StripedRedis#blpop(long, String...)}.
+ *
+ * The client is queued on every key it waits for, and served at most once:
+ * by the first push to one of the keys, which pops the element for it, or
+ * by its timeout, whichever claims it first.
+ *
+ * This class is thread-safe.
+ */
+final class BlockedPop {
+
+    private static final int WAITING = 0;
+    private static final int SERVED = 1;
+    private static final int CANCELLED = 2;
+
+    private final String[] keys;
+    private final boolean left;
+    private final BiConsumer<String, String> callback;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+
+    /**
+     * The key served and its element, set once served.
+     */
+    private volatile String key;
+    private volatile String value;
+
+    /**
+     * The timeout of a client blocked without a thread, or null.
+     */
+    volatile ScheduledFuture<?> timeout;
+
+    /**
+     * @param keys     the distinct keys waited for, in the order they are
+     *                 checked
+     * @param left     whether to pop the head of the list, else the tail
+     * @param callback called once with the key and the element popped, or
+     *                 with null and null on timeout
+     */
+    BlockedPop(String[] keys, boolean left, BiConsumer<String, String> callback) {
+        this.keys = keys;
+        this.left = left;
+        this.callback = callback;
+    }
+
+    String[] keys() {
+        return keys;
+    }
+
+    /**
+     * Returns whether the head of the list is popped, as BLPOP, rather than
+     * the tail, as BRPOP.
+     *
+     * @return true for BLPOP
+     */
+    boolean left() {
+        return left;
+    }
+
+    /**
+     * Returns the key served.
+     *
+     * @return the key, or null if not served yet
+     */
+    String key() {
+        return key;
+    }
+
+    /**
+     * Returns the element popped for the client.
+     *
+     * @return the element, or null if not served yet
+     */
+    String value() {
+        return value;
+    }
+
+    /**
+     * Claims the client to pop an element for it, before
+     * {@link #serve(String, String)}.
+     *
+     * @return false if it was served or cancelled already
+     */
+    boolean claim() {
+        return state.compareAndSet(WAITING, SERVED);
+    }
+
+    /**
+     * Claims the client to cancel it, on timeout or disconnection.
+     *
+     * @return false if it was served or cancelled already
+     */
+    boolean cancel() {
+        return state.compareAndSet(WAITING, CANCELLED);
+    }
+
+    /**
+     * Records the element popped for a claimed client.
+     *
+     * @param k the key
+     * @param v the element
+     */
+    void serve(String k, String v) {
+        value = v;
+        key = k;
+    }
+
+    /**
+     * Calls the callback with the outcome, once the client is claimed.
+     */
+    void complete() {
+        ScheduledFuture<?> t = timeout;
+        if (t != null) {
+            t.cancel(false);
+        }
+        callback.accept(key, value);
+    }
+}
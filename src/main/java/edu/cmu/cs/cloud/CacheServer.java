@@ -0,0 +1,153 @@
+package edu.cmu.cs.cloud;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Serves a {@link StripedRedis} over RESP2 and a {@link Memcached} over the
+ * Memcached text protocol on localhost.
+ *
+ * Usage:
+ * java -cp target/database_tasks.jar edu.cmu.cs.cloud.CacheServer
+ * [--redis-port 6379] [--memcached-port 11211] [--threads 4]
+ * [--appendonly appendonly.aof] [--appendfsync always|everysec|no]
+ * [--dbfilename dump.rdb] [--offheap-threshold 1024] [--memcached-memory 64]
+ * [--replicaof host:port] [--repl-backlog-size 1048576]
+ *
+ * A port of 0 disables the corresponding listener. With --appendonly, the
+ * Redis keyspace is persisted to an {@link AppendOnlyFile}, replayed on
+ * startup. With --dbfilename, a {@link Snapshot} is loaded on startup,
+ * unless the append-only file exists, and saved on shutdown. With
+ * --offheap-threshold, Redis values of at least that many bytes are stored
+ * off the heap. --memcached-memory is the memory limit of the Memcached
+ * values in megabytes, 64 by default. Replicas connect to the Redis port
+ * and are sent every write, see {@link Replication}. With --replicaof, the
+ * Redis keyspace is a read-only {@link Replica} of the given primary.
+ */
+public class CacheServer {
+
+    /**
+     * The default number of event loop threads per listener.
+     */
+    static final int DEFAULT_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Main entry.
+     *
+     * @param args the options
+     * @throws IOException if a port cannot be bound
+     */
+    public static void main(final String[] args) throws IOException {
+        int redisPort = 6379;
+        int memcachedPort = 11211;
+        int threads = DEFAULT_THREADS;
+        String appendonly = null;
+        String dbfilename = null;
+        int offheapThreshold = 0;
+        long memcachedMemory = Memcached.DEFAULT_MEMORY_LIMIT;
+        AppendOnlyFile.Fsync appendfsync = AppendOnlyFile.Fsync.EVERYSEC;
+        String replicaof = null;
+        int backlogSize = Replication.DEFAULT_BACKLOG_SIZE;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--redis-port":
+                    redisPort = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--memcached-port":
+                    memcachedPort = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--appendonly":
+                    appendonly = args[i + 1];
+                    break;
+                case "--appendfsync":
+                    appendfsync = AppendOnlyFile.Fsync.valueOf(
+                            args[i + 1].toUpperCase(Locale.ROOT));
+                    break;
+                case "--dbfilename":
+                    dbfilename = args[i + 1];
+                    break;
+                case "--offheap-threshold":
+                    offheapThreshold = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--memcached-memory":
+                    memcachedMemory = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                    break;
+                case "--replicaof":
+                    replicaof = args[i + 1];
+                    break;
+                case "--repl-backlog-size":
+                    backlogSize = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (redisPort > 0) {
+            StripedRedis redis = new StripedRedis();
+            redis.setOffHeapThreshold(offheapThreshold);
+            if (dbfilename != null) {
+                Path dump = Paths.get(dbfilename);
+                if (Files.exists(dump)
+                        && (appendonly == null || !Files.exists(Paths.get(appendonly)))) {
+                    System.out.println("Loaded " + Snapshot.load(redis, dump)
+                            + " keys from " + dbfilename);
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Snapshot.save(redis, dump);
+                    } catch (IOException e) {
+                        System.err.println("Failed to save the snapshot: " + e);
+                    }
+                }));
+            }
+            if (appendonly != null) {
+                AppendOnlyFile aof = AppendOnlyFile.open(redis,
+                        Paths.get(appendonly), appendfsync);
+                System.out.println("Replayed " + aof.replayedCommands()
+                        + " commands from " + appendonly);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        aof.close();
+                    } catch (IOException e) {
+                        System.err.println("Failed to close the append only file: " + e);
+                    }
+                }));
+            }
+            RespHandler handler = new RespHandler(redis);
+            handler.setReplication(new Replication(redis, backlogSize));
+            if (replicaof != null) {
+                int colon = replicaof.lastIndexOf(':');
+                handler.setReplica(Replica.start(redis, replicaof.substring(0, colon),
+                        Integer.parseInt(replicaof.substring(colon + 1)), redisPort));
+            }
+            NioServer server = new NioServer("resp", handler,
+                    new InetSocketAddress("127.0.0.1", redisPort), threads);
+            server.start();
+            System.out.println("Redis listening on port " + server.port()
+                    + (replicaof == null ? "" : ", replica of " + replicaof));
+        }
+        if (memcachedPort > 0) {
+            Memcached memcached = new Memcached(memcachedMemory);
+            NioServer server = new NioServer("memcached",
+                    new MemcachedTextHandler(memcached),
+                    new InetSocketAddress("127.0.0.1", memcachedPort), threads);
+            server.start();
+            System.out.println("Memcached listening on port " + server.port());
+        }
+        // the event loops are daemon threads
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
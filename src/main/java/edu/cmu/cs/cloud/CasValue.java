@@ -0,0 +1,67 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A value of a {@link Memcached} item with its flags and CAS unique, the
+ * reply of {@link Memcached#gets(String)}.
+ */
+public final class CasValue {
+
+    private final byte[] value;
+    private final int flags;
+    private final long cas;
+
+    /**
+     * @param value the value
+     * @param flags the client flags stored with it
+     * @param cas   the CAS unique of the item
+     */
+    public CasValue(byte[] value, int flags, long cas) {
+        this.value = value;
+        this.flags = flags;
+        this.cas = cas;
+    }
+
+    /**
+     * Returns the value.
+     *
+     * @return the bytes of the value
+     */
+    public byte[] value() {
+        return value;
+    }
+
+    /**
+     * Returns the value decoded as UTF-8.
+     *
+     * @return the value as a string
+     */
+    public String string() {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the client flags, opaque to the cache.
+     *
+     * @return the flags
+     */
+    public int flags() {
+        return flags;
+    }
+
+    /**
+     * Returns the CAS unique, to pass to
+     * {@link Memcached#cas(String, byte[], int, int, long)}.
+     *
+     * @return the unique of this version of the item
+     */
+    public long cas() {
+        return cas;
+    }
+
+    @Override
+    public String toString() {
+        return string() + " (flags " + flags + ", cas " + cas + ")";
+    }
+}
@@ -0,0 +1,30 @@
+package edu.cmu.cs.cloud;
+
+/**
+ * Receives the writes of a {@link Redis} as the commands that redo them,
+ * see {@link Redis#setFeed(CommandFeed)}.
+ *
+ * It is called by the thread executing the write, while the keyspace is
+ * locked, so the commands of a key arrive in the order they were executed.
+ */
+interface CommandFeed {
+
+    /**
+     * Receives one write.
+     *
+     * @param argv the command name followed by its arguments, the key is
+     *             always the first argument and DEL has exactly one key.
+     *             Arguments are Strings, except the value of SET which is
+     *             a byte array, not to be modified
+     */
+    void feed(Object... argv);
+
+    /**
+     * Called by the thread that reported writes once it released the locks
+     * of the keyspace, before the command returns, e.g. to wait until its
+     * writes are on the disk without making the other commands of the
+     * locked keys wait as well.
+     */
+    default void released() {
+    }
+}
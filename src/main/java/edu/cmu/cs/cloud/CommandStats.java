@@ -0,0 +1,547 @@
+package edu.cmu.cs.cloud;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The per-command instrumentation of a server: calls, time spent and
+ * latency histograms of every command, the throughput, and a SLOWLOG of the
+ * commands slower than a threshold.
+ *
+ * Recording is cheap enough to stay on in production and allocates nothing
+ * once a thread has run a command: the counters are {@link LongAdder}s,
+ * striped across cores, and every thread records latencies into histograms
+ * of its own with plain writes, merged only when they are read. Reading
+ * while commands run gives approximate figures, as INFO of Redis does.
+ *
+ * The histograms are log-linear as in HdrHistogram: every power of two of
+ * nanoseconds is split into {@link #SUB_BUCKETS} buckets, so a percentile is
+ * reported within 1/16 of its value, from 1 ns up to about 2 minutes.
+ *
+ * This class is thread-safe.
+ *
+ * @see <a href="https://redis.io/commands/info">INFO - Redis</a>
+ * @see <a href="https://redis.io/commands/slowlog">SLOWLOG - Redis</a>
+ */
+public final class CommandStats {
+
+    /**
+     * The default threshold of the slowlog, in microseconds, as
+     * slowlog-log-slower-than of Redis.
+     */
+    static final long DEFAULT_SLOWLOG_SLOWER_THAN = 10_000;
+
+    /**
+     * The default number of entries the slowlog keeps, as slowlog-max-len.
+     */
+    static final int DEFAULT_SLOWLOG_MAX_LEN = 128;
+
+    /**
+     * The most arguments and characters per argument a slowlog entry keeps.
+     */
+    static final int SLOWLOG_MAX_ARGS = 32;
+    static final int SLOWLOG_MAX_ARG_LENGTH = 128;
+
+    /**
+     * The most distinct commands tracked, so that unknown commands cannot
+     * grow the statistics without bound.
+     */
+    static final int MAX_COMMANDS = 256;
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * The number of buckets per power of two.
+     */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest latency told apart, 2^37 - 1 ns, longer ones are counted
+     * in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 36;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    /**
+     * The number of buckets of a histogram.
+     */
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * The percentiles reported by the latencystats section of INFO.
+     */
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p99.9"};
+
+    /**
+     * The attributes and operations of the instrumentation of a server over
+     * JMX, see {@link #registerMBean(String, InfoMBean)}.
+     */
+    public interface InfoMBean {
+
+        /**
+         * @return the INFO text of the server
+         */
+        String getInfo();
+
+        /**
+         * @return the number of commands run
+         */
+        long getTotalCommandsProcessed();
+
+        /**
+         * @return the commands per second since the previous sample
+         */
+        double getInstantaneousOpsPerSec();
+
+        /**
+         * @return the number of lookups that found the key
+         */
+        long getKeyspaceHits();
+
+        /**
+         * @return the number of lookups that did not find the key
+         */
+        long getKeyspaceMisses();
+
+        /**
+         * @return the estimated memory used by the data
+         */
+        long getUsedMemory();
+
+        /**
+         * @return the number of entries of the slowlog
+         */
+        int getSlowlogLength();
+
+        /**
+         * @param count the most entries returned, negative for all
+         * @return the newest entries of the slowlog first
+         */
+        String[] slowlog(int count);
+
+        /**
+         * @param command    the command
+         * @param percentile the percentile, from 0 to 100
+         * @return the latency in microseconds
+         */
+        double latencyPercentileMicros(String command, double percentile);
+    }
+
+    /**
+     * A command slower than the threshold of the slowlog.
+     */
+    public static final class SlowlogEntry {
+        private final long id;
+        private final long timestamp;
+        private final long durationMicros;
+        private final List<String> args;
+
+        private SlowlogEntry(long id, long timestamp, long durationMicros, List<String> args) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.durationMicros = durationMicros;
+            this.args = args;
+        }
+
+        /**
+         * @return the unique, increasing id of the entry
+         */
+        public long id() {
+            return id;
+        }
+
+        /**
+         * @return when the command ran, in Unix seconds
+         */
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return how long the command ran, in microseconds
+         */
+        public long durationMicros() {
+            return durationMicros;
+        }
+
+        /**
+         * @return the command and its arguments, possibly shortened
+         */
+        public List<String> args() {
+            return args;
+        }
+
+        @Override
+        public String toString() {
+            return id + " " + timestamp + " " + durationMicros + "us " + String.join(" ", args);
+        }
+    }
+
+    /**
+     * The counters of one command, indexed in the histograms of every
+     * thread.
+     */
+    private static final class Command {
+        private final String name;
+        private final int index;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private Command(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The histograms of one thread, one per command index, written by the
+     * thread only.
+     */
+    private static final class Recorder {
+        private volatile long[][] histograms = new long[16][];
+    }
+
+    private final ConcurrentHashMap<String, Command> commands = new ConcurrentHashMap<>();
+    private final LongAdder total = new LongAdder();
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+        Recorder r = new Recorder();
+        recorders.add(r);
+        return r;
+    });
+
+    private volatile long slowlogSlowerThanNanos =
+            TimeUnit.MICROSECONDS.toNanos(DEFAULT_SLOWLOG_SLOWER_THAN);
+    private volatile int slowlogMaxLen = DEFAULT_SLOWLOG_MAX_LEN;
+
+    /**
+     * The slowlog, newest entry first, guarded by this.
+     */
+    private final ArrayDeque<SlowlogEntry> slowlog = new ArrayDeque<>();
+    private long slowlogIds;
+
+    /**
+     * The last throughput sample, guarded by this.
+     */
+    private long sampleTime = System.nanoTime();
+    private long sampleOps;
+    private double opsPerSec;
+
+    /**
+     * Records one run of a command.
+     *
+     * @param command the name of the command, in lower case
+     * @param nanos   how long it ran
+     * @param argv    the command and its arguments, only read if the command
+     *                goes to the slowlog
+     */
+    public void record(String command, long nanos, String[] argv) {
+        Command c = commands.get(command);
+        if (c == null) {
+            c = register(command);
+            if (c == null) {
+                return;
+            }
+        }
+        total.increment();
+        c.calls.increment();
+        c.nanos.add(nanos);
+        Recorder r = recorder.get();
+        long[][] histograms = r.histograms;
+        if (c.index >= histograms.length) {
+            histograms = Arrays.copyOf(histograms, Math.max(c.index + 1, histograms.length * 2));
+            r.histograms = histograms;
+        }
+        long[] h = histograms[c.index];
+        if (h == null) {
+            h = new long[BUCKETS];
+            histograms[c.index] = h;
+        }
+        h[bucket(nanos)]++;
+        if (logs(nanos)) {
+            slow(argv, nanos);
+        }
+    }
+
+    /**
+     * Returns whether a command that ran for the given time goes to the
+     * slowlog, so a caller decodes its arguments only then.
+     *
+     * @param nanos how long the command ran
+     * @return true if {@link #record(String, long, String[])} logs it
+     */
+    public boolean logs(long nanos) {
+        long threshold = slowlogSlowerThanNanos;
+        return threshold >= 0 && nanos >= threshold;
+    }
+
+    private synchronized Command register(String command) {
+        Command c = commands.get(command);
+        if (c == null && commands.size() < MAX_COMMANDS) {
+            c = new Command(command, commands.size());
+            commands.put(command, c);
+        }
+        return c;
+    }
+
+    /**
+     * Returns the bucket of a latency.
+     *
+     * @param nanos the latency
+     * @return the index of the bucket
+     */
+    static int bucket(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the highest latency counted in a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the latency in nanoseconds
+     */
+    static long highestValue(int bucket) {
+        if (bucket + 1 >= BUCKETS) {
+            return MAX_VALUE;
+        }
+        int next = bucket + 1;
+        if (next < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = next / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + next % SUB_BUCKETS) << shift) - 1;
+    }
+
+    /**
+     * Returns the number of commands run.
+     *
+     * @return total_commands_processed of INFO
+     */
+    public long totalCommands() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the throughput since the previous sample, taken at most every
+     * 100 ms by this method.
+     *
+     * @return instantaneous_ops_per_sec of INFO
+     */
+    public synchronized double opsPerSec() {
+        long now = System.nanoTime();
+        if (now - sampleTime >= TimeUnit.MILLISECONDS.toNanos(100)) {
+            long ops = total.sum();
+            opsPerSec = (ops - sampleOps) * 1e9 / (now - sampleTime);
+            sampleTime = now;
+            sampleOps = ops;
+        }
+        return opsPerSec;
+    }
+
+    /**
+     * Returns the number of runs of a command.
+     *
+     * @param command the command
+     * @return the number of calls
+     */
+    public long calls(String command) {
+        Command c = commands.get(command);
+        return c == null ? 0 : c.calls.sum();
+    }
+
+    /**
+     * Returns a percentile of the latency of a command.
+     *
+     * @param command    the command
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency in nanoseconds, overestimated by at most 1/16, or
+     * 0 if the command never ran
+     */
+    public long percentile(String command, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        Command c = commands.get(command);
+        return c == null ? 0 : percentile(merged(c), percentile);
+    }
+
+    private static long percentile(long[] h, double percentile) {
+        long count = 0;
+        for (long n : h) {
+            count += n;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int b = 0; b < h.length; b++) {
+            seen += h[b];
+            if (seen >= rank) {
+                return highestValue(b);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * Sums the histograms of a command of every thread.
+     */
+    private long[] merged(Command c) {
+        long[] sum = new long[BUCKETS];
+        for (Recorder r : recorders) {
+            long[][] histograms = r.histograms;
+            long[] h = c.index < histograms.length ? histograms[c.index] : null;
+            if (h != null) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    sum[b] += h[b];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the threshold of the slowlog.
+     *
+     * @param micros the threshold in microseconds, 0 logs every command
+     *               and a negative value none
+     */
+    public void setSlowlogLogSlowerThan(long micros) {
+        slowlogSlowerThanNanos = micros < 0 ? -1 : TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * Sets the number of entries the slowlog keeps, the oldest are dropped.
+     *
+     * @param entries the number of entries
+     */
+    public synchronized void setSlowlogMaxLen(int entries) {
+        if (entries < 0) {
+            throw new IllegalArgumentException("ERR slowlog-max-len must be positive");
+        }
+        slowlogMaxLen = entries;
+        while (slowlog.size() > entries) {
+            slowlog.removeLast();
+        }
+    }
+
+    private synchronized void slow(String[] argv, long nanos) {
+        int n = Math.min(argv.length, SLOWLOG_MAX_ARGS);
+        List<String> args = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String a = argv[i];
+            if (i == SLOWLOG_MAX_ARGS - 1 && argv.length > SLOWLOG_MAX_ARGS) {
+                a = "... (" + (argv.length - SLOWLOG_MAX_ARGS + 1) + " more arguments)";
+            } else if (a.length() > SLOWLOG_MAX_ARG_LENGTH) {
+                a = a.substring(0, SLOWLOG_MAX_ARG_LENGTH) + "... ("
+                        + (a.length() - SLOWLOG_MAX_ARG_LENGTH) + " more bytes)";
+            }
+            args.add(a);
+        }
+        slowlog.addFirst(new SlowlogEntry(slowlogIds++,
+                TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()),
+                TimeUnit.NANOSECONDS.toMicros(nanos), Collections.unmodifiableList(args)));
+        while (slowlog.size() > slowlogMaxLen) {
+            slowlog.removeLast();
+        }
+    }
+
+    /**
+     * Returns the newest entries of the slowlog.
+     *
+     * @param count the most entries returned, negative for all
+     * @return the entries, newest first
+     * @see <a href="https://redis.io/commands/slowlog-get">SLOWLOG GET - Redis</a>
+     */
+    public synchronized List<SlowlogEntry> slowlog(int count) {
+        List<SlowlogEntry> entries = new ArrayList<>();
+        for (SlowlogEntry e : slowlog) {
+            if (count >= 0 && entries.size() == count) {
+                break;
+            }
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of entries of the slowlog
+     */
+    public synchronized int slowlogLen() {
+        return slowlog.size();
+    }
+
+    /**
+     * Empties the slowlog.
+     */
+    public synchronized void slowlogReset() {
+        slowlog.clear();
+    }
+
+    /**
+     * Appends the commandstats and latencystats sections of INFO.
+     *
+     * @param info the INFO text
+     */
+    void appendInfo(StringBuilder info) {
+        List<Command> all = new ArrayList<>(commands.values());
+        all.sort((a, b) -> a.name.compareTo(b.name));
+        info.append("# Commandstats\r\n");
+        for (Command c : all) {
+            long calls = c.calls.sum();
+            long usec = TimeUnit.NANOSECONDS.toMicros(c.nanos.sum());
+            info.append("cmdstat_").append(c.name).append(":calls=").append(calls)
+                    .append(",usec=").append(usec)
+                    .append(",usec_per_call=").append(String.format(Locale.ROOT, "%.2f",
+                            calls == 0 ? 0.0 : (double) usec / calls))
+                    .append("\r\n");
+        }
+        info.append("\r\n# Latencystats\r\n");
+        for (Command c : all) {
+            long[] h = merged(c);
+            info.append("latency_percentiles_usec_").append(c.name).append(':');
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                info.append(i == 0 ? "" : ",").append(PERCENTILE_NAMES[i]).append('=')
+                        .append(String.format(Locale.ROOT, "%.3f",
+                                percentile(h, PERCENTILES[i]) / 1000.0));
+            }
+            info.append("\r\n");
+        }
+    }
+
+    /**
+     * Registers the instrumentation of a server in the platform MBean
+     * server, e.g. to watch it with JConsole.
+     *
+     * @param type the type of server, e.g. Redis
+     * @param bean the instrumentation
+     * @return the name of the MBean, to unregister it
+     * @throws JMException if the MBean cannot be registered
+     */
+    static ObjectName registerMBean(String type, InfoMBean bean) throws JMException {
+        ObjectName name = new ObjectName("edu.cmu.cs.cloud:type=" + type
+                + ",id=" + Integer.toHexString(System.identityHashCode(bean)));
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new StandardMBean(bean, InfoMBean.class), name);
+        return name;
+    }
+}
@@ -0,0 +1,409 @@
+package edu.cmu.cs.cloud;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A simplified version of the Redis dict, the hash table of the keyspace
+ * and of the Redis Hashes too large for a {@link ListPack}.
+ *
+ * It is a chained hash table whose number of buckets is a power of two. It
+ * doubles when it holds as many entries as buckets, and halves when less
+ * than {@link #MIN_FILL_PERCENT}% of the buckets would be used.
+ *
+ * A resize does not move every entry at once, which would stall the write
+ * that triggers it for as long as the table is large. As in Redis, the old
+ * and the new table coexist and every write moves one bucket of the old
+ * table to the new one, lookups search both. Reads do not move buckets, so
+ * they never modify the dict.
+ *
+ * Unlike {@link java.util.HashMap}, it can be iterated incrementally with
+ * {@link #scan(long, BiConsumer)}, which visits one bucket per call and
+ * returns a cursor for the next call. The cursor increments the reversed
+ * bits of the bucket index, so the buckets already visited stay visited
+ * when the table is resized between two calls: every entry present for
+ * the whole iteration is returned at least once.
+ *
+ * The iterators of the {@link Map} views do not support removal, and the
+ * dict must not be modified while they are in use. {@link #scan} has no
+ * such restriction between calls.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @see <a href="https://github.com/redis/redis/blob/unstable/src/dict.c">
+ * dict.c - Redis</a>
+ */
+public class Dict<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * The number of buckets of a new dict, and the minimum.
+     */
+    static final int INITIAL_SIZE = 4;
+
+    /**
+     * The dict halves when fewer entries than this share of the buckets are
+     * left, as HASHTABLE_MIN_FILL of Redis.
+     */
+    static final int MIN_FILL_PERCENT = 10;
+
+    /**
+     * The number of empty buckets a rehash step may skip, as the
+     * empty_visits of Redis.
+     */
+    static final int REHASH_EMPTY_VISITS = 10;
+
+    /**
+     * An entry, chained in its bucket.
+     */
+    static final class Node<K, V> implements Map.Entry<K, V> {
+        private final int hash;
+        private final K key;
+        private V value;
+        private Node<K, V> next;
+
+        private Node(int hash, K key, V value, Node<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V old = this.value;
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private Node<K, V>[] table = newTable(INITIAL_SIZE);
+
+    /**
+     * The table the entries are moving to, or null when not rehashing.
+     */
+    private Node<K, V>[] rehashTable;
+
+    /**
+     * The next bucket of {@link #table} to move while rehashing, the
+     * buckets before it are empty.
+     */
+    private int rehashIndex;
+
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newTable(int n) {
+        return (Node<K, V>[]) new Node[n];
+    }
+
+    /**
+     * Spreads the high bits of the hash code to the low bits, which pick the
+     * bucket.
+     */
+    private static int hash(Object k) {
+        int h = k.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of buckets, the size being moved to while
+     * rehashing.
+     *
+     * @return the number of buckets
+     */
+    int buckets() {
+        return rehashTable == null ? table.length : rehashTable.length;
+    }
+
+    /**
+     * Returns whether entries are still moving to a resized table.
+     *
+     * @return true while rehashing
+     */
+    boolean isRehashing() {
+        return rehashTable != null;
+    }
+
+    private Node<K, V> find(int h, Object k) {
+        for (Node<K, V> n = table[h & (table.length - 1)]; n != null; n = n.next) {
+            if (n.hash == h && n.key.equals(k)) {
+                return n;
+            }
+        }
+        if (rehashTable != null) {
+            for (Node<K, V> n = rehashTable[h & (rehashTable.length - 1)]; n != null; n = n.next) {
+                if (n.hash == h && n.key.equals(k)) {
+                    return n;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public V get(Object k) {
+        Node<K, V> n = find(hash(k), k);
+        return n == null ? null : n.value;
+    }
+
+    @Override
+    public boolean containsKey(Object k) {
+        return find(hash(k), k) != null;
+    }
+
+    @Override
+    public V put(K k, V v) {
+        if (rehashTable != null) {
+            rehashStep();
+        }
+        int h = hash(k);
+        Node<K, V> n = find(h, k);
+        if (n != null) {
+            V old = n.value;
+            n.value = v;
+            return old;
+        }
+        // new entries go to the new table, so the old one only drains
+        Node<K, V>[] t = rehashTable == null ? table : rehashTable;
+        int i = h & (t.length - 1);
+        t[i] = new Node<>(h, k, v, t[i]);
+        if (++size >= table.length && rehashTable == null) {
+            startRehash(table.length * 2);
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object k) {
+        if (rehashTable != null) {
+            rehashStep();
+        }
+        int h = hash(k);
+        V v = remove(table, h, k);
+        if (v == null && rehashTable != null) {
+            v = remove(rehashTable, h, k);
+        }
+        if (v != null && rehashTable == null && table.length > INITIAL_SIZE
+                && (long) size * 100 < (long) table.length * MIN_FILL_PERCENT) {
+            startRehash(Math.max(INITIAL_SIZE, Integer.highestOneBit(size) * 2));
+        }
+        return v;
+    }
+
+    private V remove(Node<K, V>[] t, int h, Object k) {
+        int i = h & (t.length - 1);
+        Node<K, V> prev = null;
+        for (Node<K, V> n = t[i]; n != null; prev = n, n = n.next) {
+            if (n.hash == h && n.key.equals(k)) {
+                if (prev == null) {
+                    t[i] = n.next;
+                } else {
+                    prev.next = n.next;
+                }
+                size--;
+                return n.value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        table = newTable(INITIAL_SIZE);
+        rehashTable = null;
+        size = 0;
+    }
+
+    /**
+     * Starts moving the entries to a table of n buckets.
+     */
+    private void startRehash(int n) {
+        rehashTable = newTable(n);
+        rehashIndex = 0;
+    }
+
+    /**
+     * Moves the entries of one bucket to the new table, as _dictRehashStep
+     * of Redis, and switches to the new table once the old one is empty.
+     *
+     * Every write calls it, and a doubled table takes as many writes to fill
+     * as the old one has buckets, so the rehash is over before the next one
+     * is due. It gives up after {@link #REHASH_EMPTY_VISITS} empty buckets
+     * so that a sparse table does not make one write slow.
+     */
+    private void rehashStep() {
+        int emptyVisits = REHASH_EMPTY_VISITS;
+        while (rehashIndex < table.length) {
+            Node<K, V> e = table[rehashIndex];
+            table[rehashIndex++] = null;
+            if (e != null) {
+                int mask = rehashTable.length - 1;
+                while (e != null) {
+                    Node<K, V> next = e.next;
+                    int i = e.hash & mask;
+                    e.next = rehashTable[i];
+                    rehashTable[i] = e;
+                    e = next;
+                }
+                break;
+            }
+            if (--emptyVisits == 0) {
+                break;
+            }
+        }
+        if (rehashIndex == table.length) {
+            table = rehashTable;
+            rehashTable = null;
+        }
+    }
+
+    /**
+     * Visits the entries of the bucket the cursor points to, and returns the
+     * cursor of the next bucket.
+     *
+     * Start with cursor 0 and call again with the returned cursor until it
+     * is 0. Every entry present from the first call to the last is visited
+     * at least once, entries may be visited twice if the dict shrinks
+     * between calls. The dict may be modified between calls but not by the
+     * visitor.
+     *
+     * While rehashing, the bucket of the smaller table and all the buckets
+     * of the larger table it expands to are visited together, as dictScan
+     * of Redis does.
+     *
+     * @param cursor  the cursor, 0 to start
+     * @param visitor the visitor of the entries
+     * @return the next cursor, 0 once every bucket was visited
+     * @see <a href="https://redis.io/commands/scan">SCAN - Redis</a>
+     */
+    public long scan(long cursor, BiConsumer<? super K, ? super V> visitor) {
+        if (rehashTable == null) {
+            long mask = table.length - 1;
+            visit(table[(int) (cursor & mask)], visitor);
+            // increment the reversed bits of the cursor, masked to the table
+            cursor |= ~mask;
+            cursor = Long.reverse(cursor);
+            cursor++;
+            return Long.reverse(cursor);
+        }
+        Node<K, V>[] small = table;
+        Node<K, V>[] large = rehashTable;
+        if (small.length > large.length) {
+            small = rehashTable;
+            large = table;
+        }
+        long m0 = small.length - 1;
+        long m1 = large.length - 1;
+        visit(small[(int) (cursor & m0)], visitor);
+        do {
+            visit(large[(int) (cursor & m1)], visitor);
+            // increment the reversed bits not covered by the smaller mask
+            cursor |= ~m1;
+            cursor = Long.reverse(cursor);
+            cursor++;
+            cursor = Long.reverse(cursor);
+        } while ((cursor & (m0 ^ m1)) != 0);
+        return cursor;
+    }
+
+    private static <K, V> void visit(Node<K, V> n, BiConsumer<? super K, ? super V> visitor) {
+        for (; n != null; n = n.next) {
+            visitor.accept(n.key, n.value);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new Iterator<Map.Entry<K, V>>() {
+                    private Node<K, V>[] current = table;
+                    private int bucket;
+                    private Node<K, V> next = advance(null);
+
+                    private Node<K, V> advance(Node<K, V> n) {
+                        if (n != null && n.next != null) {
+                            return n.next;
+                        }
+                        while (true) {
+                            while (bucket < current.length) {
+                                Node<K, V> head = current[bucket++];
+                                if (head != null) {
+                                    return head;
+                                }
+                            }
+                            if (current != table || rehashTable == null) {
+                                return null;
+                            }
+                            current = rehashTable;
+                            bucket = 0;
+                        }
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Node<K, V> n = next;
+                        next = advance(n);
+                        return n;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
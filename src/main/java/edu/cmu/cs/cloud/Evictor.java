@@ -0,0 +1,561 @@
+package edu.cmu.cs.cloud;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory accounting and the key eviction of {@link Redis}, a simplified
+ * version of evict.c.
+ *
+ * Every key is stored as an {@link Entry}, which holds its value next to its
+ * type, its estimated size, an access time for LRU and a logarithmic access
+ * counter for LFU, so that one lookup of the key finds all of them. Victims are found the way Redis does it: a few
+ * random keys are sampled and merged into a small pool ordered by idle
+ * score, and the key with the highest score in the pool is evicted. Nothing
+ * is ordered on access, so reads only update two fields of the key.
+ *
+ * The sizes are estimates for a 64-bit JVM with compressed oops, good enough
+ * to bound the heap, not an exact measure.
+ *
+ * This class is not thread-safe.
+ *
+ * @see <a href="https://redis.io/docs/reference/eviction/">
+ * Key eviction - Redis</a>
+ */
+final class Evictor {
+
+    /**
+     * The node and table slot of a key in the keyspace plus its metadata.
+     */
+    static final long KEY_OVERHEAD = 96;
+
+    /**
+     * The node and table slot of a field in a {@link Dict}.
+     */
+    static final long HASH_FIELD_OVERHEAD = 48;
+
+    /**
+     * A {@link Dict} without fields.
+     */
+    static final long HASH_TABLE_OVERHEAD = 64;
+
+    /**
+     * The {@link OffHeapSlab.Chunk} handle of a string stored off the heap.
+     */
+    static final long CHUNK_OVERHEAD = 24;
+
+    /**
+     * A {@link ListPack} without entries.
+     */
+    static final long LISTPACK_OVERHEAD = 48;
+
+    /**
+     * The slot of an element in a {@link QuickList} segment, plus the
+     * segment header amortized over its elements.
+     */
+    static final long LIST_ELEMENT_OVERHEAD = 8;
+
+    /**
+     * A {@link QuickList} without elements.
+     */
+    static final long LIST_OVERHEAD = 32;
+
+    /**
+     * The skip list node of a member of a {@link SortedSet} with its
+     * levels, plus its slot in the member index.
+     */
+    static final long ZSET_ELEMENT_OVERHEAD = 96;
+
+    /**
+     * A {@link SortedSet} without members, whose skip list header has
+     * all the levels.
+     */
+    static final long ZSET_OVERHEAD = 64 + 32 * 16;
+
+    /**
+     * The size of the eviction pool, as in Redis.
+     */
+    static final int POOL_SIZE = 16;
+
+    /**
+     * The initial LFU counter of a new key, so it is not evicted right away.
+     */
+    static final int LFU_INIT_VAL = 5;
+
+    /**
+     * The lfu-log-factor of Redis, the higher the more accesses it takes to
+     * saturate the counter.
+     */
+    static final int LFU_LOG_FACTOR = 10;
+
+    /**
+     * The lfu-decay-time of Redis, the counter is decremented once per
+     * period of this many minutes without access.
+     */
+    static final long LFU_DECAY_MINUTES = 1;
+
+    /**
+     * The types of values counted by {@link #keys(int)} and
+     * {@link #used(int)}, in the order of {@link #TYPE_NAMES}.
+     */
+    static final int STRING = 0;
+    static final int HASH = 1;
+    static final int LIST = 2;
+    static final int ZSET = 3;
+
+    /**
+     * The type of a value of no known class, never stored by the engine.
+     */
+    static final int UNKNOWN = -1;
+
+    /**
+     * The names of the types, as TYPE replies them.
+     */
+    static final String[] TYPE_NAMES = {"string", "hash", "list", "zset"};
+
+    /**
+     * A key in the keyspace: its value and its metadata.
+     *
+     * The value is set by the keyspace, which must call
+     * {@link #resize(Entry)} when it replaces the value.
+     */
+    static final class Entry {
+        final String key;
+        Object value;
+        private int type;
+        private long size;
+        private long atime;
+        private long ldt;
+        private int counter;
+        private int slot;
+
+        Entry(String key, Object value, int slot, long now) {
+            this.key = key;
+            this.value = value;
+            this.type = typeOf(value);
+            this.slot = slot;
+            this.atime = now;
+            this.ldt = now / 60_000;
+            this.counter = LFU_INIT_VAL;
+        }
+
+        /**
+         * Returns the type of the value, as of its creation or the last
+         * {@link Evictor#resize(Entry)}.
+         *
+         * @return {@link #STRING}, {@link #HASH}, {@link #LIST}, {@link #ZSET},
+         * or {@link #UNKNOWN}
+         */
+        int type() {
+            return type;
+        }
+    }
+
+    /**
+     * The entries of all the keys, in no order, for sampling.
+     */
+    private Entry[] dense = new Entry[16];
+    private int size;
+
+    /**
+     * The eviction pool, the best candidates found so far, ordered by
+     * ascending idle score. Only {@code pool[0, poolSize)} is meaningful.
+     */
+    private final String[] poolKeys = new String[POOL_SIZE];
+    private final long[] poolIdle = new long[POOL_SIZE];
+    private int poolSize;
+
+    private long maxmemory;
+    private MaxMemoryPolicy policy = MaxMemoryPolicy.NOEVICTION;
+    private int samples = 5;
+    private long used;
+
+    /**
+     * The memory used by all the evictors sharing the limit, e.g. the
+     * stripes of a {@link StripedRedis}, or null when the limit only
+     * bounds the keys of this one.
+     */
+    private AtomicLong shared;
+
+    /**
+     * The number of keys and their estimated size, by type.
+     */
+    private final long[] typeKeys = new long[TYPE_NAMES.length];
+    private final long[] typeUsed = new long[TYPE_NAMES.length];
+
+    /**
+     * Returns the estimated size of a String.
+     *
+     * @param s the string
+     * @return the object header and fields plus the aligned char array
+     */
+    static long stringSize(String s) {
+        return 24 + ((16 + 2L * s.length() + 7) & ~7L);
+    }
+
+    /**
+     * Returns the estimated size of a byte array.
+     *
+     * @param b the bytes
+     * @return the array header plus the aligned bytes
+     */
+    static long bytesSize(byte[] b) {
+        return (16 + b.length + 7) & ~7L;
+    }
+
+    /**
+     * Returns the estimated size of a key and its value.
+     *
+     * A string stored off the heap counts its whole slab chunk, so that
+     * maxmemory bounds the memory of the process and not only the heap.
+     *
+     * It walks hashes and lists, so it is only used when the size cannot be
+     * maintained incrementally.
+     *
+     * @param k key
+     * @param v value
+     * @return the estimated size in bytes
+     */
+    static long entrySize(String k, Object v) {
+        long n = KEY_OVERHEAD + stringSize(k);
+        if (v instanceof byte[]) {
+            n += bytesSize((byte[]) v);
+        } else if (v instanceof OffHeapSlab.Chunk) {
+            n += CHUNK_OVERHEAD + OffHeapSlab.chunkSize(((OffHeapSlab.Chunk) v).length());
+        } else if (v instanceof ListPack) {
+            n += LISTPACK_OVERHEAD + ((ListPack) v).bytes();
+        } else if (v instanceof Dict) {
+            n += HASH_TABLE_OVERHEAD;
+            for (Map.Entry<?, ?> e : ((Dict<?, ?>) v).entrySet()) {
+                n += HASH_FIELD_OVERHEAD + stringSize((String) e.getKey())
+                        + stringSize((String) e.getValue());
+            }
+        } else if (v instanceof QuickList) {
+            n += LIST_OVERHEAD;
+            for (Object e : (QuickList<?>) v) {
+                n += LIST_ELEMENT_OVERHEAD + stringSize((String) e);
+            }
+        } else if (v instanceof SortedSet) {
+            n += ZSET_OVERHEAD;
+            for (SortedSet.Node e : (SortedSet) v) {
+                n += ZSET_ELEMENT_OVERHEAD + stringSize(e.member());
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the type of a value.
+     *
+     * It is only called when a value is stored, the type of a stored value
+     * is read from its {@link Entry}. The strings come first because they
+     * are the most common.
+     *
+     * @param v value
+     * @return {@link #STRING}, {@link #HASH}, {@link #LIST}, {@link #ZSET},
+     * or {@link #UNKNOWN}
+     */
+    static int typeOf(Object v) {
+        if (v instanceof byte[] || v instanceof OffHeapSlab.Chunk) {
+            return STRING;
+        } else if (v instanceof ListPack || v instanceof Dict) {
+            return HASH;
+        } else if (v instanceof QuickList) {
+            return LIST;
+        } else if (v instanceof SortedSet) {
+            return ZSET;
+        }
+        return UNKNOWN;
+    }
+
+    long maxmemory() {
+        return maxmemory;
+    }
+
+    void setMaxmemory(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("maxmemory must not be negative");
+        }
+        maxmemory = bytes;
+    }
+
+    MaxMemoryPolicy policy() {
+        return policy;
+    }
+
+    void setPolicy(MaxMemoryPolicy policy) {
+        this.policy = policy;
+        poolSize = 0;
+    }
+
+    void setSamples(int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException(
+                    "maxmemory-samples must be positive");
+        }
+        this.samples = samples;
+    }
+
+    /**
+     * Returns the estimated memory used by all the keys.
+     *
+     * @return the estimated size in bytes
+     */
+    long used() {
+        return used;
+    }
+
+    /**
+     * Shares the memory limit with other evictors: the limit then bounds
+     * the memory used by all of them.
+     *
+     * @param total the memory used by the evictors sharing the limit, this
+     *              one is added to it, or null to stop sharing
+     */
+    void share(AtomicLong total) {
+        if (shared != null) {
+            shared.addAndGet(-used);
+        }
+        shared = total;
+        if (total != null) {
+            total.addAndGet(used);
+        }
+    }
+
+    /**
+     * Returns whether the memory limit is set and exceeded.
+     *
+     * @return true if keys should be evicted
+     */
+    boolean overLimit() {
+        return maxmemory > 0 && (shared == null ? used : shared.get()) > maxmemory;
+    }
+
+    /**
+     * Adds to the estimated memory used by all the keys.
+     */
+    private void account(long delta) {
+        used += delta;
+        if (shared != null) {
+            shared.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Returns the number of keys holding a type.
+     *
+     * @param type the type, see {@link #typeOf(Object)}
+     * @return the number of keys
+     */
+    long keys(int type) {
+        return typeKeys[type];
+    }
+
+    /**
+     * Returns the estimated memory used by the keys holding a type.
+     *
+     * @param type the type, see {@link #typeOf(Object)}
+     * @return the number of bytes
+     */
+    long used(int type) {
+        return typeUsed[type];
+    }
+
+    /**
+     * Creates the entry of a new key, which the keyspace then stores.
+     *
+     * @param k key
+     * @param v value
+     * @return the entry, with the size and type of the value
+     */
+    Entry add(String k, Object v) {
+        if (size == dense.length) {
+            dense = Arrays.copyOf(dense, size * 2);
+        }
+        Entry e = new Entry(k, v, size, System.currentTimeMillis());
+        dense[size++] = e;
+        e.size = entrySize(k, v);
+        account(e.size);
+        typeKeys[e.type]++;
+        typeUsed[e.type] += e.size;
+        return e;
+    }
+
+    /**
+     * Sets the size and type of the key from its value, walking hashes and
+     * lists, e.g. after the value was replaced.
+     *
+     * @param e the entry of the key
+     */
+    void resize(Entry e) {
+        long bytes = entrySize(e.key, e.value);
+        typeKeys[e.type]--;
+        typeUsed[e.type] -= e.size;
+        account(bytes - e.size);
+        e.size = bytes;
+        e.type = typeOf(e.value);
+        typeKeys[e.type]++;
+        typeUsed[e.type] += bytes;
+    }
+
+    /**
+     * Adds to the size of a key.
+     *
+     * @param e     the entry of the key
+     * @param delta the change of the estimated size
+     */
+    void grow(Entry e, long delta) {
+        e.size += delta;
+        account(delta);
+        typeUsed[e.type] += delta;
+    }
+
+    /**
+     * Forgets the key and its size, once the keyspace removed its entry.
+     *
+     * @param e the entry of the key
+     */
+    void remove(Entry e) {
+        account(-e.size);
+        typeKeys[e.type]--;
+        typeUsed[e.type] -= e.size;
+        Entry last = dense[--size];
+        dense[e.slot] = last;
+        last.slot = e.slot;
+        dense[size] = null;
+    }
+
+    /**
+     * Forgets all the keys.
+     */
+    void clear() {
+        dense = new Entry[16];
+        size = 0;
+        poolSize = 0;
+        account(-used);
+        Arrays.fill(typeKeys, 0);
+        Arrays.fill(typeUsed, 0);
+    }
+
+    /**
+     * Records an access to the key for LRU and LFU.
+     *
+     * It does nothing while no memory limit is set, since only eviction
+     * reads the access data.
+     *
+     * @param e the entry of the key
+     */
+    void touch(Entry e) {
+        if (maxmemory == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        e.atime = now;
+        if (policy == MaxMemoryPolicy.ALLKEYS_LFU) {
+            e.counter = logIncr(decayed(e, now));
+            e.ldt = now / 60_000;
+        }
+    }
+
+    /**
+     * Finds the next key to evict.
+     *
+     * @param store   the keyspace
+     * @param expires the keys with an expire time, sampled by volatile
+     *                policies
+     * @return the key to evict, or null if the policy does not evict or there
+     * is no candidate
+     */
+    String victim(Dict<String, Entry> store, ExpireTable expires) {
+        if (policy == MaxMemoryPolicy.NOEVICTION) {
+            return null;
+        }
+        boolean volatileOnly = policy == MaxMemoryPolicy.VOLATILE_LRU;
+        int population = volatileOnly ? expires.size() : size;
+        if (population == 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < samples; i++) {
+            int slot = random.nextInt(population);
+            Entry e = volatileOnly ? store.get(expires.keyAt(slot)) : dense[slot];
+            if (e != null) {
+                offer(e.key, idle(e, now));
+            }
+        }
+        // the best candidate is at the end, skip the ones deleted since
+        while (poolSize > 0) {
+            String k = poolKeys[--poolSize];
+            poolKeys[poolSize] = null;
+            if (store.containsKey(k) && (!volatileOnly || expires.get(k) >= 0)) {
+                return k;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the idle score of the key, the higher the better to evict.
+     */
+    private long idle(Entry e, long now) {
+        if (policy == MaxMemoryPolicy.ALLKEYS_LFU) {
+            return 255 - decayed(e, now);
+        }
+        return now - e.atime;
+    }
+
+    /**
+     * Inserts the candidate into the pool ordered by ascending idle score,
+     * dropping the worst candidate when the pool is full.
+     */
+    private void offer(String k, long idle) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolKeys[i].equals(k)) {
+                return;
+            }
+        }
+        int pos = 0;
+        while (pos < poolSize && poolIdle[pos] < idle) {
+            pos++;
+        }
+        if (poolSize == POOL_SIZE) {
+            if (pos == 0) {
+                // worse than every candidate in a full pool
+                return;
+            }
+            pos--;
+            System.arraycopy(poolKeys, 1, poolKeys, 0, pos);
+            System.arraycopy(poolIdle, 1, poolIdle, 0, pos);
+        } else {
+            System.arraycopy(poolKeys, pos, poolKeys, pos + 1, poolSize - pos);
+            System.arraycopy(poolIdle, pos, poolIdle, pos + 1, poolSize - pos);
+            poolSize++;
+        }
+        poolKeys[pos] = k;
+        poolIdle[pos] = idle;
+    }
+
+    /**
+     * Returns the LFU counter decremented once per elapsed decay period.
+     */
+    private static int decayed(Entry e, long now) {
+        long periods = (now / 60_000 - e.ldt) / LFU_DECAY_MINUTES;
+        return (int) Math.max(0, e.counter - periods);
+    }
+
+    /**
+     * Increments the LFU counter with a probability that decreases as the
+     * counter grows, so that 8 bits count up to millions of accesses.
+     */
+    private static int logIncr(int counter) {
+        if (counter == 255) {
+            return counter;
+        }
+        double base = Math.max(0, counter - LFU_INIT_VAL);
+        double p = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < p ? counter + 1 : counter;
+    }
+}
@@ -0,0 +1,133 @@
+package edu.cmu.cs.cloud;
+
+import java.util.Arrays;
+
+/**
+ * The expire times of the keys that have one, the equivalent of the
+ * {@code expires} dict of a Redis database.
+ *
+ * Besides the key to expire time index, the entries are kept in a dense
+ * array so that a uniformly random key with an expire time can be picked in
+ * O(1), which is what the active expire cycle of {@link Redis} samples.
+ * Removing an entry moves the last entry of the array into its slot.
+ *
+ * This class is not thread-safe.
+ */
+final class ExpireTable {
+
+    /**
+     * A key with an expire time.
+     */
+    private static final class Entry {
+        private final String key;
+        private long when;
+        private int slot;
+
+        private Entry(String key, long when, int slot) {
+            this.key = key;
+            this.when = when;
+            this.slot = slot;
+        }
+    }
+
+    private final Dict<String, Entry> index = new Dict<>();
+    private Entry[] dense = new Entry[16];
+    private int size;
+
+    /**
+     * Returns the number of keys with an expire time.
+     *
+     * @return the number of keys
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether no key has an expire time.
+     *
+     * @return true if no key has an expire time
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the expire time of the key.
+     *
+     * @param k key
+     * @return the expire time as a unix time in milliseconds, or -1 if the
+     * key has no expire time
+     */
+    long get(String k) {
+        Entry e = index.get(k);
+        return e == null ? -1 : e.when;
+    }
+
+    /**
+     * Sets the expire time of the key.
+     *
+     * @param k    key
+     * @param when the expire time as a unix time in milliseconds
+     */
+    void put(String k, long when) {
+        Entry e = index.get(k);
+        if (e != null) {
+            e.when = when;
+            return;
+        }
+        if (size == dense.length) {
+            dense = Arrays.copyOf(dense, size * 2);
+        }
+        e = new Entry(k, when, size);
+        dense[size++] = e;
+        index.put(k, e);
+    }
+
+    /**
+     * Removes the expire time of the key.
+     *
+     * @param k key
+     * @return true if the key had an expire time
+     */
+    boolean remove(String k) {
+        Entry e = index.remove(k);
+        if (e == null) {
+            return false;
+        }
+        Entry last = dense[--size];
+        dense[e.slot] = last;
+        last.slot = e.slot;
+        dense[size] = null;
+        return true;
+    }
+
+    /**
+     * Returns the key in the slot of the dense array.
+     *
+     * @param slot a slot in {@code [0, size())}
+     * @return the key
+     */
+    String keyAt(int slot) {
+        return dense[slot].key;
+    }
+
+    /**
+     * Returns the expire time in the slot of the dense array.
+     *
+     * @param slot a slot in {@code [0, size())}
+     * @return the expire time as a unix time in milliseconds
+     */
+    long whenAt(int slot) {
+        return dense[slot].when;
+    }
+
+    /**
+     * Removes all the expire times.
+     */
+    void clear() {
+        index.clear();
+        dense = new Entry[16];
+        size = 0;
+    }
+}
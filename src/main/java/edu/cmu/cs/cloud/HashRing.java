@@ -0,0 +1,220 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A consistent hash ring with virtual nodes, the ketama scheme of the
+ * Memcached clients.
+ *
+ * Every node is placed at {@link #DEFAULT_POINTS} points of a ring of 2^32
+ * positions: the MD5 of "name-i" gives four 32-bit points per i. A key
+ * belongs to the node of the first point at or after the hash of the key,
+ * wrapping around. Adding a node only takes over the arcs before its own
+ * points, about 1/N of the keys, and removing a node only gives its arcs
+ * to the following points; the other keys stay where they are, unlike
+ * {@code hash % N} which moves almost every key when N changes. The many
+ * points per node even out the share of every node.
+ *
+ * A ring is immutable, {@link #with(String, Object)} and
+ * {@link #without(String)} return a new ring, so lookups need no lock.
+ *
+ * @param <T> the type of the nodes
+ * @see <a href="https://github.com/RJ/ketama">ketama</a>
+ */
+final class HashRing<T> {
+
+    /**
+     * The number of points of every node, as libketama.
+     */
+    static final int DEFAULT_POINTS = 160;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int pointsPerNode;
+
+    /**
+     * The nodes by name, in the order they were added.
+     */
+    private final Map<String, T> nodes;
+
+    /**
+     * The nodes, indexed by {@link #owners}.
+     */
+    private final List<T> values;
+
+    /**
+     * The positions of the points on the ring, ascending.
+     */
+    private final long[] points;
+
+    /**
+     * The index in {@link #values} of the node of every point.
+     */
+    private final int[] owners;
+
+    /**
+     * An empty ring.
+     *
+     * @param pointsPerNode the number of virtual nodes of every node
+     */
+    HashRing(int pointsPerNode) {
+        this(pointsPerNode, Collections.emptyMap());
+    }
+
+    private HashRing(int pointsPerNode, Map<String, T> nodes) {
+        if (pointsPerNode <= 0 || pointsPerNode % 4 != 0) {
+            throw new IllegalArgumentException("the points per node must be a positive multiple of 4");
+        }
+        this.pointsPerNode = pointsPerNode;
+        this.nodes = Collections.unmodifiableMap(nodes);
+        this.values = new ArrayList<>(nodes.values());
+        int n = nodes.size() * pointsPerNode;
+        // sorted as one array: the point above the owner in the low 31 bits, so
+        // the packed values stay positive
+        long[] packed = new long[n];
+        int p = 0;
+        int owner = 0;
+        for (String name : nodes.keySet()) {
+            for (int i = 0; i < pointsPerNode / 4; i++) {
+                byte[] digest = md5(name + "-" + i);
+                for (int h = 0; h < 4; h++) {
+                    packed[p++] = point(digest, h) << 31 | owner;
+                }
+            }
+            owner++;
+        }
+        Arrays.sort(packed);
+        points = new long[n];
+        owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = packed[i] >>> 31;
+            owners[i] = (int) (packed[i] & Integer.MAX_VALUE);
+        }
+    }
+
+    private static byte[] md5(String s) {
+        return MD5.get().digest(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the h-th little-endian 32-bit word of a digest, unsigned.
+     */
+    private static long point(byte[] digest, int h) {
+        return (long) (digest[3 + h * 4] & 0xFF) << 24
+                | (digest[2 + h * 4] & 0xFF) << 16
+                | (digest[1 + h * 4] & 0xFF) << 8
+                | digest[h * 4] & 0xFF;
+    }
+
+    /**
+     * Returns the position of a key on the ring.
+     *
+     * @param key the key
+     * @return the hash of the key, between 0 and 2^32 - 1
+     */
+    static long hash(String key) {
+        return point(md5(key), 0);
+    }
+
+    /**
+     * Returns a ring with one more node, or with the node replaced if the
+     * name is taken.
+     *
+     * @param name the name of the node, which places its points
+     * @param node the node
+     * @return the new ring
+     */
+    HashRing<T> with(String name, T node) {
+        Map<String, T> m = new LinkedHashMap<>(nodes);
+        m.put(name, node);
+        return new HashRing<>(pointsPerNode, m);
+    }
+
+    /**
+     * Returns a ring without a node.
+     *
+     * @param name the name of the node
+     * @return the new ring, this one if there is no such node
+     */
+    HashRing<T> without(String name) {
+        if (!nodes.containsKey(name)) {
+            return this;
+        }
+        Map<String, T> m = new LinkedHashMap<>(nodes);
+        m.remove(name);
+        return new HashRing<>(pointsPerNode, m);
+    }
+
+    /**
+     * Returns the nodes by name.
+     *
+     * @return an unmodifiable map, in the order the nodes were added
+     */
+    Map<String, T> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the number of nodes.
+     *
+     * @return the number of nodes
+     */
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Returns the index of the node of a key, for {@link #node(int)}.
+     *
+     * @param key the key
+     * @return the index of the node
+     */
+    int indexOf(String key) {
+        if (points.length == 0) {
+            throw new IllegalStateException("the ring has no node");
+        }
+        long h = hash(key);
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) {
+            i = -i - 1;
+            if (i == points.length) {
+                i = 0;
+            }
+        }
+        return owners[i];
+    }
+
+    /**
+     * Returns a node by index.
+     *
+     * @param i the index, from 0 to {@link #size()} - 1
+     * @return the node
+     */
+    T node(int i) {
+        return values.get(i);
+    }
+
+    /**
+     * Returns the node of a key.
+     *
+     * @param key the key
+     * @return the node
+     */
+    T get(String key) {
+        return node(indexOf(key));
+    }
+}
@@ -0,0 +1,275 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A simplified version of the Redis listpack, the compact encoding of small
+ * Redis Hashes.
+ *
+ * All the fields and values of the hash are stored back to back in one
+ * {@code byte[]}, alternating field and value, every entry being a varint
+ * length followed by the UTF-8 bytes. A hash of a few fields therefore costs
+ * two objects instead of the table, the entry nodes and the strings of a
+ * {@link Dict}.
+ *
+ * Lookups scan the entries linearly, which is faster than hashing for a
+ * handful of short fields. {@link Redis} converts a listpack to a
+ * {@link Dict} once it outgrows the configured limits, see
+ * {@link Redis#setHashMaxListpackEntries(int)} and
+ * {@link Redis#setHashMaxListpackValue(int)}.
+ *
+ * This class is not thread-safe.
+ *
+ * @see <a href="https://github.com/redis/redis/blob/unstable/src/listpack.c">
+ * listpack.c - Redis</a>
+ */
+public class ListPack {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * The encoded entries, only {@code buf[0, used)} is meaningful.
+     */
+    private byte[] buf = EMPTY;
+    private int used;
+
+    /**
+     * The number of field-value pairs.
+     */
+    private int size;
+
+    /**
+     * Creates an empty listpack.
+     */
+    public ListPack() {
+    }
+
+    /**
+     * Wraps entries encoded by another listpack, e.g. read from a snapshot.
+     *
+     * @param buf  the encoded entries, owned by the listpack from now on
+     * @param used the number of meaningful bytes
+     * @param size the number of field-value pairs
+     */
+    ListPack(byte[] buf, int used, int size) {
+        this.buf = buf;
+        this.used = used;
+        this.size = size;
+    }
+
+    /**
+     * Returns the encoded entries, only the first {@link #bytes()} bytes are
+     * meaningful.
+     *
+     * @return the buffer, not a copy
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Returns a copy of the listpack.
+     *
+     * @return the copy
+     */
+    ListPack copy() {
+        return new ListPack(Arrays.copyOf(buf, used), used, size);
+    }
+
+    /**
+     * Encodes a string in UTF-8.
+     *
+     * @param s the string
+     * @return the bytes
+     */
+    static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of field-value pairs.
+     *
+     * @return the number of pairs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes used by the encoded entries.
+     *
+     * @return the number of bytes
+     */
+    public int bytes() {
+        return used;
+    }
+
+    /**
+     * Returns the value of the field.
+     *
+     * @param f the field
+     * @return the value, or null if the field is not present
+     */
+    public String get(String f) {
+        int pos = find(encode(f));
+        if (pos < 0) {
+            return null;
+        }
+        int len = readLength(pos);
+        int start = pos + lengthSize(len);
+        return new String(buf, start, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the field to the value.
+     *
+     * @param f the encoded field
+     * @param v the encoded value
+     * @return 1 if the field is new, 0 if the value was updated
+     */
+    public int put(byte[] f, byte[] v) {
+        int pos = find(f);
+        if (pos < 0) {
+            int need = lengthSize(f.length) + f.length
+                    + lengthSize(v.length) + v.length;
+            buf = Arrays.copyOf(buf, used + need);
+            used = writeEntry(writeEntry(used, f), v);
+            size++;
+            return 1;
+        }
+        int oldLen = readLength(pos);
+        int oldEnd = pos + lengthSize(oldLen) + oldLen;
+        int newSize = lengthSize(v.length) + v.length;
+        int delta = newSize - (oldEnd - pos);
+        if (delta != 0) {
+            byte[] next = delta > 0 ? Arrays.copyOf(buf, used + delta) : buf;
+            System.arraycopy(buf, oldEnd, next, oldEnd + delta,
+                    used - oldEnd);
+            buf = delta > 0 ? next : Arrays.copyOf(buf, used + delta);
+            used += delta;
+        }
+        writeEntry(pos, v);
+        return 0;
+    }
+
+    /**
+     * Appends every field followed by its value to the list.
+     *
+     * @param out the list to append to
+     */
+    public void appendTo(List<String> out) {
+        int pos = 0;
+        while (pos < used) {
+            int len = readLength(pos);
+            int start = pos + lengthSize(len);
+            out.add(new String(buf, start, len, StandardCharsets.UTF_8));
+            pos = start + len;
+        }
+    }
+
+    /**
+     * Visits every field and its value, decoding them one by one.
+     *
+     * @param visitor the visitor of the pairs
+     */
+    public void forEach(BiConsumer<String, String> visitor) {
+        int pos = 0;
+        while (pos < used) {
+            int len = readLength(pos);
+            int start = pos + lengthSize(len);
+            String f = new String(buf, start, len, StandardCharsets.UTF_8);
+            pos = start + len;
+            len = readLength(pos);
+            start = pos + lengthSize(len);
+            visitor.accept(f, new String(buf, start, len, StandardCharsets.UTF_8));
+            pos = start + len;
+        }
+    }
+
+    /**
+     * Converts to the hash table encoding.
+     *
+     * @return a new {@link Dict} holding the same pairs
+     */
+    public Dict<String, String> toDict() {
+        Dict<String, String> m = new Dict<>();
+        forEach(m::put);
+        return m;
+    }
+
+    /**
+     * Finds the value entry of the field.
+     *
+     * @param f the encoded field
+     * @return the position of the value entry, or -1 if not present
+     */
+    private int find(byte[] f) {
+        int pos = 0;
+        while (pos < used) {
+            int len = readLength(pos);
+            int start = pos + lengthSize(len);
+            int next = start + len;
+            if (len == f.length && equalsAt(start, f)) {
+                return next;
+            }
+            len = readLength(next);
+            pos = next + lengthSize(len) + len;
+        }
+        return -1;
+    }
+
+    private boolean equalsAt(int start, byte[] f) {
+        for (int i = 0; i < f.length; i++) {
+            if (buf[start + i] != f[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes one entry, the length then the bytes.
+     *
+     * @return the position right after the entry
+     */
+    private int writeEntry(int pos, byte[] b) {
+        int len = b.length;
+        while (len >= 0x80) {
+            buf[pos++] = (byte) (len | 0x80);
+            len >>>= 7;
+        }
+        buf[pos++] = (byte) len;
+        System.arraycopy(b, 0, buf, pos, b.length);
+        return pos + b.length;
+    }
+
+    /**
+     * Reads the varint length of the entry at the position.
+     */
+    private int readLength(int pos) {
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos++];
+            len |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return len;
+    }
+
+    /**
+     * Returns the number of bytes of the varint encoding of the length.
+     */
+    private static int lengthSize(int len) {
+        int n = 1;
+        while (len >= 0x80) {
+            len >>>= 7;
+            n++;
+        }
+        return n;
+    }
+}
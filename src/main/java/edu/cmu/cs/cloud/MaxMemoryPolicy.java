@@ -0,0 +1,65 @@
+package edu.cmu.cs.cloud;
+
+/**
+ * The policies of {@link Redis} to free memory once the maxmemory limit is
+ * reached.
+ *
+ * @see <a href="https://redis.io/docs/reference/eviction/">
+ * Key eviction - Redis</a>
+ */
+public enum MaxMemoryPolicy {
+
+    /**
+     * New values are not saved when the memory limit is reached, write
+     * commands return an error instead.
+     */
+    NOEVICTION("noeviction"),
+
+    /**
+     * Evict the least recently used keys.
+     */
+    ALLKEYS_LRU("allkeys-lru"),
+
+    /**
+     * Evict the least frequently used keys.
+     */
+    ALLKEYS_LFU("allkeys-lfu"),
+
+    /**
+     * Evict the least recently used keys among the keys with an expire time.
+     */
+    VOLATILE_LRU("volatile-lru");
+
+    /**
+     * The name used by the maxmemory-policy configuration of Redis.
+     */
+    private final String name;
+
+    MaxMemoryPolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the policy with the given name, e.g. "allkeys-lru".
+     *
+     * @param name the name used by the maxmemory-policy configuration
+     * @return the policy
+     */
+    public static MaxMemoryPolicy of(String name) {
+        for (MaxMemoryPolicy p : values()) {
+            if (p.name.equals(name)) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException(
+                "ERR Invalid argument '" + name + "' for CONFIG SET 'maxmemory-policy'");
+    }
+
+    /**
+     * @return the name used by the maxmemory-policy configuration
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,24 +1,345 @@
 package edu.cmu.cs.cloud;
 
-import java.util.HashMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * A simplified version of Memcached.
  *
  * This is simplified in the aspects including but not limited to:
- * 1. This program only covers the most basic 3 storage commands.
+ * 1. This program covers the storage, retrieval, incr/decr and touch
+ * commands, not the meta commands.
  * 2. This program is single-node.
- * 3. This program is not thread-safe.
+ * 3. Expired items are only removed when they are accessed or evicted.
+ *
+ * Values are binary-safe byte arrays, the String methods encode and decode
+ * UTF-8. Every item has 32-bit client flags, an expiration time and a
+ * 64-bit CAS unique that changes whenever the item is stored, so clients
+ * can update an item without a lock of their own: read it with
+ * {@link #gets(String)}, then write it back with
+ * {@link #cas(String, byte[], int, int, long)}, which fails with "EXISTS" if
+ * another client stored it in between.
+ *
+ * Values are stored in an {@link OffHeapSlab} limited to the memory given
+ * to the constructor, the -m option of Memcached. The slab has classes of
+ * chunk sizes growing geometrically, and a value takes a chunk of the
+ * smallest class it fits in. When a class has no free chunk and the limit
+ * leaves no room for another page, the least recently used item of that
+ * class is evicted, so the memory of the values never grows past the limit
+ * and the values are never seen by the garbage collector. The heap only
+ * holds the keys and a small header per item.
+ *
+ * Each class has its own LRU, segmented as in Memcached 1.5:
+ * <ul>
+ *     <li>HOT: new items, at most {@link #HOT_PERCENT}% of the class;</li>
+ *     <li>WARM: items read while they were HOT or COLD, at most
+ *     {@link #WARM_PERCENT}% of the class;</li>
+ *     <li>COLD: the other items, evicted from the tail.</li>
+ * </ul>
+ * A read of a HOT or WARM item only marks it active, it does not move it,
+ * and the tails of the overflowing segments move down when items are
+ * stored: an active item goes to the head of WARM, an inactive one to COLD.
+ * A read of a COLD item moves it to WARM. Items read only once therefore
+ * flow from HOT to COLD without pushing out the ones read repeatedly.
+ *
+ * This class is thread-safe. As the item locks of Memcached, the keys are
+ * split into stripes, each guarded by its own lock, and a command only
+ * takes the lock of its key, so every command is atomic for its key and
+ * commands on other stripes run in parallel. The LRU of a class has its
+ * own lock, taken after the stripe lock. An eviction holds the LRU lock and
+ * only tries the lock of the stripe of a victim, skipping the victims whose
+ * stripe is busy, so it never waits for a stripe while holding an LRU.
+ *
+ * @see <a href="https://github.com/memcached/memcached/blob/master/doc/protocol.txt">
+ * Memcached protocol</a>
+ * @see <a href="https://github.com/memcached/memcached/wiki/MemoryManagement">
+ * Memory Management - Memcached</a>
+ * @see <a href="https://memcached.org/blog/modern-lru/">
+ * Replacing the cache replacement algorithm in memcached</a>
  */
 public class Memcached {
 
     /**
-     * In-memory k-v store.
+     * The default memory limit, 64 MB as in Memcached.
+     */
+    public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+
+    /**
+     * The share of the items of a class the HOT segment holds at most, the
+     * hot_lru_pct of Memcached.
+     */
+    static final int HOT_PERCENT = 20;
+
+    /**
+     * The share of the items of a class the WARM segment holds at most, the
+     * warm_lru_pct of Memcached.
+     */
+    static final int WARM_PERCENT = 40;
+
+    /**
+     * The most items moved down the segments per store, and the most
+     * victims tried per segment by an eviction.
+     */
+    static final int LRU_SEARCH_DEPTH = 5;
+
+    /**
+     * The largest exptime taken as relative to now, 30 days in seconds;
+     * larger ones are Unix times.
+     */
+    static final int MAX_RELATIVE_EXPTIME = 60 * 60 * 24 * 30;
+
+    /**
+     * The reply to a value larger than the largest chunk.
+     */
+    static final String TOO_LARGE = "SERVER_ERROR object too large for cache";
+
+    /**
+     * The reply when nothing can be evicted to make room.
+     */
+    static final String OUT_OF_MEMORY = "SERVER_ERROR out of memory storing object";
+
+    /**
+     * The reply to incr or decr of a value that is not a decimal number.
+     */
+    static final String NON_NUMERIC = "CLIENT_ERROR cannot increment or decrement non-numeric value";
+
+    private static final int HOT = 0;
+    private static final int WARM = 1;
+    private static final int COLD = 2;
+
+    /**
+     * Reads an item without copying its value.
+     */
+    @FunctionalInterface
+    public interface ItemReader {
+
+        /**
+         * Reads the item, the buffer is read-only and only valid during the
+         * call.
+         *
+         * @param value the remaining bytes of the buffer
+         * @param flags the client flags
+         * @param cas   the CAS unique
+         */
+        void read(ByteBuffer value, int flags, long cas);
+    }
+
+    /**
+     * Reads the items of a multi-key get without copying their values.
+     */
+    @FunctionalInterface
+    public interface BatchReader {
+
+        /**
+         * Reads one item found, the buffer is read-only and only valid
+         * during the call.
+         *
+         * @param key   the key of the item
+         * @param value the remaining bytes of the buffer
+         * @param flags the client flags
+         * @param cas   the CAS unique
+         */
+        void read(String key, ByteBuffer value, int flags, long cas);
+    }
+
+    /**
+     * The header of an item: its key, where its value is, its metadata, and
+     * its links in the LRU of its class.
+     *
+     * The expiration time is guarded by the stripe lock of the key, the
+     * links and the segment by the lock of the LRU.
+     */
+    private static final class Item {
+        private final String key;
+        private final long address;
+        private final int length;
+        private final int flags;
+        private final long cas;
+        /**
+         * The time it expires at in milliseconds, 0 if it does not.
+         */
+        private long expiresAt;
+        private int segment;
+        /**
+         * Read since it was last moved between segments.
+         */
+        private volatile boolean active;
+        /**
+         * Read at least once.
+         */
+        private volatile boolean fetched;
+        private Item prev;
+        private Item next;
+
+        private Item(String key, long address, int length, int flags, long cas, long expiresAt) {
+            this.key = key;
+            this.address = address;
+            this.length = length;
+            this.flags = flags;
+            this.cas = cas;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean expired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
+    /**
+     * The segmented LRU and the counters of one slab class, guarded by its
+     * monitor.
+     */
+    private static final class SlabClass {
+        private final Item[] heads = new Item[3];
+        private final Item[] tails = new Item[3];
+        private final int[] sizes = new int[3];
+        private int items;
+        private long requested;
+        private final LongAdder hits = new LongAdder();
+        private long evictions;
+        private long evictedUnfetched;
+    }
+
+    /**
+     * The stripes of the k-v store.
      *
      * K: String
-     * V: String is the only supported type in Memcached
+     * V: the header of the item, whose value is in {@link #slab}
+     *
+     * A {@link Dict} rehashes incrementally, so a growing cache never
+     * stalls a set to resize.
+     */
+    private final Dict<String, Item>[] stripes;
+
+    /**
+     * The lock of each stripe, {@code locks[i]} guards {@code stripes[i]}.
+     */
+    private final ReentrantLock[] locks;
+
+    /**
+     * {@code stripes.length - 1}, the number of stripes is a power of two.
+     */
+    private final int mask;
+
+    private final OffHeapSlab slab;
+
+    private final SlabClass[] classes = new SlabClass[OffHeapSlab.classCount()];
+
+    /**
+     * The last CAS unique given to an item.
+     */
+    private final AtomicLong casUnique = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The instrumentation of the commands, recorded by the protocol
+     * handlers.
+     */
+    private final CommandStats stats = new CommandStats();
+
+    /**
+     * A cache of {@link #DEFAULT_MEMORY_LIMIT} bytes.
+     */
+    public Memcached() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * A cache whose values take at most the given memory, with
+     * {@link StripedRedis#DEFAULT_STRIPES} stripes.
+     *
+     * @param memoryLimit the maximum number of bytes of the slab pages
+     */
+    public Memcached(long memoryLimit) {
+        this(memoryLimit, StripedRedis.DEFAULT_STRIPES);
+    }
+
+    /**
+     * A cache whose values take at most the given memory. As in Memcached,
+     * each slab class gets its first page even past the limit.
+     *
+     * @param memoryLimit the maximum number of bytes of the slab pages
+     * @param n           the number of stripes, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public Memcached(long memoryLimit, int n) {
+        if (memoryLimit <= 0) {
+            throw new IllegalArgumentException("the memory limit must be positive");
+        }
+        if (n <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int size = Integer.highestOneBit(n);
+        if (size < n) {
+            size <<= 1;
+        }
+        stripes = (Dict<String, Item>[]) new Dict[size];
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Dict<>();
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+        slab = new OffHeapSlab(memoryLimit);
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SlabClass();
+        }
+    }
+
+    private int stripeOf(String k) {
+        int h = k.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the sorted, distinct stripes owning the keys.
+     */
+    private int[] stripesOf(String[] ks) {
+        int[] idx = new int[ks.length];
+        for (int i = 0; i < ks.length; i++) {
+            idx[i] = stripeOf(ks[i]);
+        }
+        Arrays.sort(idx);
+        int n = 0;
+        for (int i = 0; i < idx.length; i++) {
+            if (n == 0 || idx[n - 1] != idx[i]) {
+                idx[n++] = idx[i];
+            }
+        }
+        return Arrays.copyOf(idx, n);
+    }
+
+    /**
+     * Locks the given stripes in ascending order.
      */
-    private HashMap<String, String> store = new HashMap<>();
+    private void lockAll(int[] idx) {
+        for (int i : idx) {
+            locks[i].lock();
+        }
+    }
+
+    /**
+     * Unlocks the given stripes in descending order.
+     */
+    private void unlockAll(int[] idx) {
+        for (int i = idx.length - 1; i >= 0; i--) {
+            locks[idx[i]].unlock();
+        }
+    }
 
     /**
      * Set the value with the key in the cache regardless of any existing value.
@@ -28,8 +349,246 @@ public class Memcached {
      * @return "STORED" to indicate success
      */
     public String set(String k, String v) {
-        store.put(k, v);
-        return "STORED";
+        return set(k, v.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Like {@link #set(String, String)} with a binary value.
+     *
+     * @param k the key
+     * @param v the value
+     * @return "STORED" to indicate success, or an error as
+     * {@link #set(String, byte[], int, int)}
+     */
+    public String set(String k, byte[] v) {
+        return set(k, v, 0, 0);
+    }
+
+    /**
+     * Stores the item regardless of any existing one.
+     *
+     * If the value cannot be stored, any existing value is deleted, as
+     * Memcached does so that a failed set does not leave stale data.
+     *
+     * @param k       the key
+     * @param v       the value
+     * @param flags   the client flags, returned with the value
+     * @param exptime 0 to never expire, seconds from now up to
+     *                {@link #MAX_RELATIVE_EXPTIME}, else a Unix time in
+     *                seconds; negative to expire at once
+     * @return "STORED" to indicate success, {@link #TOO_LARGE} if the value
+     * is larger than {@link OffHeapSlab#PAGE_SIZE}, or {@link #OUT_OF_MEMORY}
+     */
+    public String set(String k, byte[] v, int flags, int exptime) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            String reply = store(i, k, v, flags, expiresAt(exptime));
+            if (!"STORED".equals(reply)) {
+                remove(i, k);
+            }
+            return reply;
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Stores the item only if the key does not exist.
+     *
+     * @param k       the key
+     * @param v       the value
+     * @param flags   the client flags
+     * @param exptime the expiration, as {@link #set(String, byte[], int, int)}
+     * @return "STORED", "NOT_STORED" if the key exists, or an error
+     */
+    public String add(String k, byte[] v, int flags, int exptime) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            if (live(i, k) != null) {
+                return "NOT_STORED";
+            }
+            return store(i, k, v, flags, expiresAt(exptime));
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Stores the item only if the key exists.
+     *
+     * @param k       the key
+     * @param v       the value
+     * @param flags   the client flags
+     * @param exptime the expiration, as {@link #set(String, byte[], int, int)}
+     * @return "STORED", "NOT_STORED" if the key does not exist, or an error
+     */
+    public String replace(String k, byte[] v, int flags, int exptime) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            if (live(i, k) == null) {
+                return "NOT_STORED";
+            }
+            return store(i, k, v, flags, expiresAt(exptime));
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Adds the bytes after the value of an existing item, keeping its flags
+     * and expiration.
+     *
+     * @param k the key
+     * @param v the bytes to append
+     * @return "STORED", "NOT_STORED" if the key does not exist, or an error
+     */
+    public String append(String k, byte[] v) {
+        return concat(k, v, false);
+    }
+
+    /**
+     * Adds the bytes before the value of an existing item, keeping its
+     * flags and expiration.
+     *
+     * @param k the key
+     * @param v the bytes to prepend
+     * @return "STORED", "NOT_STORED" if the key does not exist, or an error
+     */
+    public String prepend(String k, byte[] v) {
+        return concat(k, v, true);
+    }
+
+    private String concat(String k, byte[] v, boolean before) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            Item item = live(i, k);
+            if (item == null) {
+                return "NOT_STORED";
+            }
+            byte[] old = slab.read(item.address, item.length);
+            byte[] joined = new byte[old.length + v.length];
+            System.arraycopy(before ? v : old, 0, joined, 0, before ? v.length : old.length);
+            System.arraycopy(before ? old : v, 0, joined, before ? v.length : old.length,
+                    before ? old.length : v.length);
+            return store(i, k, joined, item.flags, item.expiresAt);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Stores the item only if it was not stored since the client read it,
+     * check and set.
+     *
+     * @param k       the key
+     * @param v       the value
+     * @param flags   the client flags
+     * @param exptime the expiration, as {@link #set(String, byte[], int, int)}
+     * @param cas     the CAS unique the client read with {@link #gets(String)}
+     * @return "STORED", "EXISTS" if the item was stored since, "NOT_FOUND"
+     * if it does not exist, or an error
+     */
+    public String cas(String k, byte[] v, int flags, int exptime, long cas) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            Item item = live(i, k);
+            if (item == null) {
+                return "NOT_FOUND";
+            }
+            if (item.cas != cas) {
+                return "EXISTS";
+            }
+            return store(i, k, v, flags, expiresAt(exptime));
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Adds to the value of an item, which must be the decimal
+     * representation of an unsigned 64-bit integer. The sum wraps around
+     * at 2^64.
+     *
+     * @param k     the key
+     * @param delta the unsigned amount to add
+     * @return the new value, "NOT_FOUND", or {@link #NON_NUMERIC}
+     */
+    public String incr(String k, long delta) {
+        return delta(k, delta, true);
+    }
+
+    /**
+     * Subtracts from the value of an item, as {@link #incr(String, long)}.
+     * The difference stops at 0.
+     *
+     * @param k     the key
+     * @param delta the unsigned amount to subtract
+     * @return the new value, "NOT_FOUND", or {@link #NON_NUMERIC}
+     */
+    public String decr(String k, long delta) {
+        return delta(k, delta, false);
+    }
+
+    private String delta(String k, long delta, boolean incr) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            Item item = live(i, k);
+            if (item == null) {
+                return "NOT_FOUND";
+            }
+            long n;
+            try {
+                // Memcached ignores trailing spaces, left by an in-place decr
+                n = Long.parseUnsignedLong(new String(slab.read(item.address, item.length),
+                        StandardCharsets.US_ASCII).trim());
+            } catch (NumberFormatException e) {
+                return NON_NUMERIC;
+            }
+            if (incr) {
+                n += delta;
+            } else {
+                n = Long.compareUnsigned(n, delta) < 0 ? 0 : n - delta;
+            }
+            String value = Long.toUnsignedString(n);
+            String reply = store(i, k, value.getBytes(StandardCharsets.US_ASCII),
+                    item.flags, item.expiresAt);
+            return "STORED".equals(reply) ? value : reply;
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Changes the expiration of an item without reading it.
+     *
+     * @param k       the key
+     * @param exptime the expiration, as {@link #set(String, byte[], int, int)}
+     * @return "TOUCHED", or "NOT_FOUND"
+     */
+    public String touch(String k, int exptime) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            Item item = live(i, k);
+            if (item == null) {
+                return "NOT_FOUND";
+            }
+            long when = expiresAt(exptime);
+            if (when < 0) {
+                remove(i, k);
+            } else {
+                item.expiresAt = when;
+            }
+            return "TOUCHED";
+        } finally {
+            locks[i].unlock();
+        }
     }
 
     /**
@@ -39,7 +598,156 @@ public class Memcached {
      * @return the value, or null if there is none
      */
     public String get(String k) {
-        return store.get(k);
+        byte[] v = getBytes(k);
+        return v == null ? null : new String(v, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Like {@link #get(String)} without decoding the value.
+     *
+     * @param k the key
+     * @return a copy of the value, or null if there is none
+     */
+    public byte[] getBytes(String k) {
+        CasValue v = gets(k);
+        return v == null ? null : v.value();
+    }
+
+    /**
+     * Returns the value of an item with its flags and its CAS unique.
+     *
+     * @param k the key
+     * @return the item, or null if there is none
+     */
+    public CasValue gets(String k) {
+        CasValue[] v = new CasValue[1];
+        get(k, (b, flags, cas) -> {
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            v[0] = new CasValue(bytes, flags, cas);
+        });
+        return v[0];
+    }
+
+    /**
+     * Returns the items of several keys, as a multi-key gets. Each key is
+     * read atomically, not the keys together.
+     *
+     * @param keys the keys
+     * @return the items found by key, in the order of the keys
+     */
+    public Map<String, CasValue> gets(Collection<String> keys) {
+        Map<String, CasValue> items = new LinkedHashMap<>();
+        getMulti(keys.toArray(new String[0]), (k, b, flags, cas) -> {
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            items.put(k, new CasValue(bytes, flags, cas));
+        });
+        return items;
+    }
+
+    /**
+     * Returns the values of several keys, with one call and the lock of
+     * each stripe taken once for the whole batch.
+     *
+     * @param keys the keys
+     * @return the values in the order of the keys, null for the missing
+     * ones
+     */
+    public List<String> getMulti(Collection<String> keys) {
+        String[] ks = keys.toArray(new String[0]);
+        String[] vs = new String[ks.length];
+        int[] idx = stripesOf(ks);
+        lockAll(idx);
+        try {
+            for (int i = 0; i < ks.length; i++) {
+                int slot = i;
+                read(stripeOf(ks[i]), ks[i], (b, flags, cas) -> {
+                    byte[] bytes = new byte[b.remaining()];
+                    b.get(bytes);
+                    vs[slot] = new String(bytes, StandardCharsets.UTF_8);
+                });
+            }
+        } finally {
+            unlockAll(idx);
+        }
+        return Arrays.asList(vs);
+    }
+
+    /**
+     * Lends the items of several keys to the reader in the order of the
+     * keys, skipping the missing ones.
+     *
+     * The locks of the stripes of the keys are taken once, in ascending
+     * order, and held for the whole batch, so the items are read together
+     * and the reader must be short.
+     *
+     * @param keys   the keys
+     * @param reader the reader of every item found
+     * @return the number of items found
+     */
+    public int getMulti(String[] keys, BatchReader reader) {
+        int[] idx = stripesOf(keys);
+        lockAll(idx);
+        try {
+            int found = 0;
+            for (String k : keys) {
+                if (read(stripeOf(k), k, (v, flags, cas) -> reader.read(k, v, flags, cas))) {
+                    found++;
+                }
+            }
+            return found;
+        } finally {
+            unlockAll(idx);
+        }
+    }
+
+    /**
+     * Like {@link #getBytes(String)} but lends the value to the reader
+     * without copying it. The buffer is read-only and only valid during the
+     * call.
+     *
+     * @param k      the key
+     * @param reader the reader of the remaining bytes of the buffer
+     * @return true if the key exists
+     */
+    public boolean get(String k, Consumer<ByteBuffer> reader) {
+        return get(k, (v, flags, cas) -> reader.accept(v));
+    }
+
+    /**
+     * Lends the value of an item to the reader with its flags and CAS
+     * unique, without copying it. The reader runs under the lock of the
+     * key, so it must be short.
+     *
+     * @param k      the key
+     * @param reader the reader of the item
+     * @return true if the key exists
+     */
+    public boolean get(String k, ItemReader reader) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return read(i, k, reader);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Lends the item of a key in a locked stripe to the reader and records
+     * the hit or the miss.
+     */
+    private boolean read(int i, String k, ItemReader reader) {
+        Item item = live(i, k);
+        if (item == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        touched(item);
+        slab.read(item.address, item.length, v -> reader.read(v, item.flags, item.cas));
+        return true;
     }
 
     /**
@@ -50,10 +758,429 @@ public class Memcached {
      * the item with this key was not found
      */
     public String delete(String k) {
-        if (store.containsKey(k)) {
-            store.remove(k);
-            return "DELETED";
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return live(i, k) != null && remove(i, k) ? "DELETED" : "NOT_FOUND";
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the memory reserved for the values, the pages of the slab.
+     *
+     * @return the number of bytes, at most the limit plus one page per class
+     */
+    public long offHeapMemory() {
+        return slab.reserved();
+    }
+
+    /**
+     * Returns the limit on the memory of the values.
+     *
+     * @return the limit in bytes
+     */
+    public long memoryLimit() {
+        return slab.limit();
+    }
+
+    /**
+     * Returns the number of items, including the expired ones not removed
+     * yet.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        int n = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                n += stripes[i].size();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the gets that found their key.
+     *
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the gets that did not find their key.
+     *
+     * @return the number of misses
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the share of the gets that found their key.
+     *
+     * @return the hit rate, between 0 and 1, 0 before any get
+     */
+    public double hitRate() {
+        long h = hits();
+        long gets = h + misses();
+        return gets == 0 ? 0 : (double) h / gets;
+    }
+
+    /**
+     * Returns the items evicted from all the classes.
+     *
+     * @return the number of evictions
+     */
+    public long evictions() {
+        long n = 0;
+        for (SlabClass c : classes) {
+            synchronized (c) {
+                n += c.evictions;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the instrumentation of the commands, recorded by
+     * {@link MemcachedTextHandler}.
+     *
+     * @return the command statistics
+     */
+    public CommandStats stats() {
+        return stats;
+    }
+
+    /**
+     * Returns the entries of the slowlog.
+     *
+     * @param count the most entries returned, negative for all
+     * @return the entries, newest first
+     * @see CommandStats#slowlog(int)
+     */
+    public List<CommandStats.SlowlogEntry> slowlog(int count) {
+        return stats.slowlog(count);
+    }
+
+    /**
+     * Returns the statistics of the cache in the format of the INFO of
+     * Redis, so both engines are monitored the same way: the counters of
+     * the cache, then the calls and latency percentiles of each command.
+     *
+     * @return the INFO text
+     */
+    public String info() {
+        StringBuilder info = new StringBuilder("# Stats\r\n")
+                .append("curr_items:").append(size()).append("\r\n")
+                .append("bytes:").append(offHeapMemory()).append("\r\n")
+                .append("limit_maxbytes:").append(memoryLimit()).append("\r\n")
+                .append("total_commands_processed:").append(stats.totalCommands())
+                .append("\r\n")
+                .append("instantaneous_ops_per_sec:").append(Math.round(stats.opsPerSec()))
+                .append("\r\n")
+                .append("get_hits:").append(hits()).append("\r\n")
+                .append("get_misses:").append(misses()).append("\r\n")
+                .append("evictions:").append(evictions()).append("\r\n")
+                .append("slowlog_len:").append(stats.slowlogLen()).append("\r\n\r\n");
+        stats.appendInfo(info);
+        return info.toString();
+    }
+
+    /**
+     * Registers the statistics of the cache as an MBean of the platform
+     * MBean server.
+     *
+     * @return the name of the MBean
+     * @throws JMException if the MBean cannot be registered
+     */
+    public ObjectName registerMBean() throws JMException {
+        return CommandStats.registerMBean("Memcached", new CommandStats.InfoMBean() {
+            @Override
+            public String getInfo() {
+                return info();
+            }
+
+            @Override
+            public long getTotalCommandsProcessed() {
+                return stats.totalCommands();
+            }
+
+            @Override
+            public double getInstantaneousOpsPerSec() {
+                return stats.opsPerSec();
+            }
+
+            @Override
+            public long getKeyspaceHits() {
+                return hits();
+            }
+
+            @Override
+            public long getKeyspaceMisses() {
+                return misses();
+            }
+
+            @Override
+            public long getUsedMemory() {
+                return offHeapMemory();
+            }
+
+            @Override
+            public int getSlowlogLength() {
+                return stats.slowlogLen();
+            }
+
+            @Override
+            public String[] slowlog(int count) {
+                return stats.slowlog(count).stream().map(Object::toString).toArray(String[]::new);
+            }
+
+            @Override
+            public double latencyPercentileMicros(String command, double percentile) {
+                return stats.percentile(command, percentile) / 1000.0;
+            }
+        });
+    }
+
+    /**
+     * Returns the statistics of the classes that have pages.
+     *
+     * @return one entry per class in use, by ascending chunk size
+     */
+    public List<SlabStats> slabStats() {
+        List<SlabStats> stats = new ArrayList<>();
+        for (int i = 0; i < classes.length; i++) {
+            int pages = slab.pages(i);
+            if (pages > 0) {
+                SlabClass c = classes[i];
+                synchronized (c) {
+                    stats.add(new SlabStats(i + 1, OffHeapSlab.classChunkSize(i), pages,
+                            slab.usedChunks(i), c.requested,
+                            c.sizes[HOT], c.sizes[WARM], c.sizes[COLD],
+                            c.hits.sum(), c.evictions, c.evictedUnfetched));
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Converts an exptime of the protocol to a time in milliseconds.
+     *
+     * @return 0 if the item does not expire, -1 if it is already expired
+     */
+    private static long expiresAt(int exptime) {
+        if (exptime == 0) {
+            return 0;
+        }
+        if (exptime < 0) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        if (exptime <= MAX_RELATIVE_EXPTIME) {
+            return now + exptime * 1000L;
+        }
+        long when = exptime * 1000L;
+        return when <= now ? -1 : when;
+    }
+
+    /**
+     * Returns the item of a key in a locked stripe, removing it if it has
+     * expired.
+     */
+    private Item live(int i, String k) {
+        Item item = stripes[i].get(k);
+        if (item != null && item.expired(System.currentTimeMillis())) {
+            remove(i, k);
+            return null;
+        }
+        return item;
+    }
+
+    /**
+     * Stores an item in a locked stripe with a new CAS unique, replacing
+     * any existing one.
+     */
+    private String store(int i, String k, byte[] v, int flags, long expiresAt) {
+        if (v.length > OffHeapSlab.PAGE_SIZE) {
+            return TOO_LARGE;
+        }
+        if (expiresAt < 0) {
+            remove(i, k);
+            return "STORED";
+        }
+        SlabClass c = classes[OffHeapSlab.classOf(v.length)];
+        long address = slab.allocate(v.length);
+        while (address == OffHeapSlab.NO_SPACE) {
+            if (!evict(c)) {
+                return OUT_OF_MEMORY;
+            }
+            address = slab.allocate(v.length);
+        }
+        slab.write(address, v);
+        Item item = new Item(k, address, v.length, flags, casUnique.incrementAndGet(), expiresAt);
+        // the old item may have been evicted to make room
+        Item old = stripes[i].put(k, item);
+        if (old != null) {
+            release(old);
+        }
+        synchronized (c) {
+            link(c, item, HOT);
+            c.items++;
+            c.requested += v.length;
+            balance(c);
+        }
+        return "STORED";
+    }
+
+    /**
+     * Removes the item of a key from a locked stripe.
+     *
+     * @return false if there is none
+     */
+    private boolean remove(int i, String k) {
+        Item item = stripes[i].remove(k);
+        if (item == null) {
+            return false;
+        }
+        release(item);
+        return true;
+    }
+
+    /**
+     * Records a read of an item.
+     */
+    private void touched(Item item) {
+        SlabClass c = classes[OffHeapSlab.classOf(item.length)];
+        c.hits.increment();
+        item.fetched = true;
+        // checked without the lock first, most reads do not move the item
+        if (item.segment != COLD) {
+            item.active = true;
+            return;
+        }
+        synchronized (c) {
+            if (item.segment == COLD) {
+                unlink(c, item);
+                link(c, item, WARM);
+                balance(c);
+            } else {
+                item.active = true;
+            }
+        }
+    }
+
+    /**
+     * Moves the tails of the HOT and WARM segments down while they hold
+     * more than their share of the class.
+     */
+    private static void balance(SlabClass c) {
+        for (int moves = 0; moves < LRU_SEARCH_DEPTH; moves++) {
+            Item item;
+            int to;
+            if (c.sizes[HOT] > c.items * HOT_PERCENT / 100) {
+                item = c.tails[HOT];
+                to = item.active ? WARM : COLD;
+            } else if (c.sizes[WARM] > c.items * WARM_PERCENT / 100) {
+                item = c.tails[WARM];
+                // an active item gets another round in WARM
+                to = item.active ? WARM : COLD;
+            } else {
+                return;
+            }
+            unlink(c, item);
+            item.active = false;
+            link(c, item, to);
+        }
+    }
+
+    /**
+     * Evicts the least recently used item of a class whose stripe is not
+     * busy: from the tail of COLD, or of HOT or WARM if COLD has none.
+     *
+     * @return false if no item could be evicted
+     */
+    private boolean evict(SlabClass c) {
+        synchronized (c) {
+            for (int segment : new int[] {COLD, HOT, WARM}) {
+                Item victim = c.tails[segment];
+                for (int tries = 0; victim != null && tries < LRU_SEARCH_DEPTH;
+                     victim = victim.prev, tries++) {
+                    int j = stripeOf(victim.key);
+                    // the lock of the caller's own stripe is reentrant
+                    if (!locks[j].tryLock()) {
+                        continue;
+                    }
+                    try {
+                        stripes[j].remove(victim.key);
+                        release(victim);
+                    } finally {
+                        locks[j].unlock();
+                    }
+                    c.evictions++;
+                    if (!victim.fetched) {
+                        c.evictedUnfetched++;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Unlinks an item that left its stripe and frees its chunk.
+     */
+    private void release(Item item) {
+        SlabClass c = classes[OffHeapSlab.classOf(item.length)];
+        synchronized (c) {
+            unlink(c, item);
+            c.items--;
+            c.requested -= item.length;
+        }
+        slab.free(item.address, item.length);
+    }
+
+    /**
+     * Links an item at the head of a segment.
+     */
+    private static void link(SlabClass c, Item item, int segment) {
+        item.segment = segment;
+        item.prev = null;
+        item.next = c.heads[segment];
+        if (item.next != null) {
+            item.next.prev = item;
+        } else {
+            c.tails[segment] = item;
+        }
+        c.heads[segment] = item;
+        c.sizes[segment]++;
+    }
+
+    /**
+     * Unlinks an item from its segment.
+     */
+    private static void unlink(SlabClass c, Item item) {
+        int segment = item.segment;
+        if (item.prev != null) {
+            item.prev.next = item.next;
+        } else {
+            c.heads[segment] = item.next;
+        }
+        if (item.next != null) {
+            item.next.prev = item.prev;
+        } else {
+            c.tails[segment] = item.prev;
         }
-        return "NOT_FOUND";
+        item.prev = null;
+        item.next = null;
+        c.sizes[segment]--;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,287 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The Memcached text protocol in front of a {@link Memcached}.
+ *
+ * Supported commands:
+ * <ul>
+ *     <li>{@code get <key>*} and {@code gets <key>*}, which adds the CAS
+ *     unique of every item;</li>
+ *     <li>{@code set|add|replace|append|prepend <key> <flags> <exptime>
+ *     <bytes> [noreply]};</li>
+ *     <li>{@code cas <key> <flags> <exptime> <bytes> <cas unique>
+ *     [noreply]};</li>
+ *     <li>{@code incr|decr <key> <value> [noreply]};</li>
+ *     <li>{@code touch <key> <exptime> [noreply]};</li>
+ *     <li>{@code delete <key> [noreply]}, {@code stats}, {@code version}
+ *     and {@code quit}.</li>
+ * </ul>
+ *
+ * The latency of every command is recorded in the {@link CommandStats} of
+ * the cache, and {@code stats} replies its {@link Memcached#info()} as
+ * {@code STAT} lines.
+ *
+ * The cache is thread-safe, so the event loops call it without a lock of
+ * their own.
+ *
+ * @see <a href="https://github.com/memcached/memcached/blob/master/doc/protocol.txt">
+ * Memcached protocol</a>
+ */
+public class MemcachedTextHandler implements NioServer.Handler {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] END = "END\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VALUE = "VALUE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = "ERROR\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The largest key accepted, as in Memcached.
+     */
+    static final int MAX_KEY_LENGTH = 250;
+
+    /**
+     * The largest item accepted, the default item size limit of Memcached.
+     */
+    static final int MAX_ITEM_SIZE = 1024 * 1024;
+
+    /**
+     * The commands recorded in the statistics, so unknown commands do not
+     * fill them.
+     */
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+            "get", "gets", "set", "add", "replace", "append", "prepend", "cas", "incr", "decr",
+            "touch", "delete", "stats", "version"));
+
+    private final Memcached memcached;
+
+    /**
+     * Serves the cache.
+     *
+     * @param memcached the cache, shared by all the event loops
+     */
+    public MemcachedTextHandler(Memcached memcached) {
+        this.memcached = memcached;
+    }
+
+    @Override
+    public void process(NioServer.Connection c, ByteBuffer in) {
+        OutputBuffer out = c.out();
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int eol = RespHandler.lineEnd(in, start);
+            if (eol < 0) {
+                if (in.remaining() > 2048) {
+                    clientError(out, "line too long");
+                    in.position(in.limit());
+                    c.closeAfterReply();
+                }
+                return;
+            }
+            String line = RespHandler.decode(in, eol - start);
+            in.position(eol + 2);
+            String[] argv = line.trim().split(" +");
+            long begin = System.nanoTime();
+            if (!execute(c, argv, in)) {
+                in.position(start);
+                return;
+            }
+            if (COMMANDS.contains(argv[0])) {
+                memcached.stats().record(argv[0], System.nanoTime() - begin, argv);
+            }
+        }
+    }
+
+    /**
+     * Executes one command and writes its reply.
+     *
+     * @param c    the connection
+     * @param argv the command line split on spaces
+     * @param in   the bytes after the command line, for the data block
+     * @return false if the data block of a storage command is incomplete
+     */
+    private boolean execute(NioServer.Connection c, String[] argv, ByteBuffer in) {
+        OutputBuffer out = c.out();
+        switch (argv[0]) {
+            case "get":
+            case "gets":
+                if (argv.length < 2) {
+                    out.write(ERROR);
+                    return true;
+                }
+                boolean withCas = argv[0].equals("gets");
+                // one batch for all the keys, the values are copied as
+                // stored, they are not transcoded
+                memcached.getMulti(Arrays.copyOfRange(argv, 1, argv.length), (k, v, flags, cas) -> {
+                    out.write(VALUE).write(k.getBytes(StandardCharsets.UTF_8))
+                            .write((byte) ' ').writeAscii(Integer.toUnsignedString(flags))
+                            .write((byte) ' ').writeLong(v.remaining());
+                    if (withCas) {
+                        out.write((byte) ' ').writeAscii(Long.toUnsignedString(cas));
+                    }
+                    out.write(CRLF).write(v).write(CRLF);
+                });
+                out.write(END);
+                return true;
+            case "set":
+            case "add":
+            case "replace":
+            case "append":
+            case "prepend":
+            case "cas":
+                return store(out, argv, in);
+            case "incr":
+            case "decr":
+                if (argv.length < 3 || argv.length > 4) {
+                    out.write(ERROR);
+                    return true;
+                }
+                long delta;
+                try {
+                    delta = Long.parseUnsignedLong(argv[2]);
+                } catch (NumberFormatException e) {
+                    clientError(out, "invalid numeric delta argument");
+                    return true;
+                }
+                reply(out, argv, 3, argv[0].equals("incr")
+                        ? memcached.incr(argv[1], delta) : memcached.decr(argv[1], delta));
+                return true;
+            case "touch":
+                if (argv.length < 3 || argv.length > 4) {
+                    out.write(ERROR);
+                    return true;
+                }
+                int exptime;
+                try {
+                    exptime = Integer.parseInt(argv[2]);
+                } catch (NumberFormatException e) {
+                    clientError(out, "invalid exptime argument");
+                    return true;
+                }
+                reply(out, argv, 3, memcached.touch(argv[1], exptime));
+                return true;
+            case "delete":
+                if (argv.length < 2 || argv.length > 3) {
+                    out.write(ERROR);
+                    return true;
+                }
+                reply(out, argv, 2, memcached.delete(argv[1]));
+                return true;
+            case "stats":
+                stats(out);
+                return true;
+            case "version":
+                out.writeAscii("VERSION 1.6.0-cmu").write(CRLF);
+                return true;
+            case "quit":
+                c.closeAfterReply();
+                in.position(in.limit());
+                return true;
+            default:
+                out.write(ERROR);
+                return true;
+        }
+    }
+
+    /**
+     * stats: a STAT line for every field of the INFO of the cache.
+     */
+    private void stats(OutputBuffer out) {
+        for (String line : memcached.info().split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && !line.startsWith("#")) {
+                out.writeAscii("STAT ").writeAscii(line.substring(0, colon)).write((byte) ' ')
+                        .writeAscii(line.substring(colon + 1)).write(CRLF);
+            }
+        }
+        out.write(END);
+    }
+
+    /**
+     * &lt;command&gt; &lt;key&gt; &lt;flags&gt; &lt;exptime&gt; &lt;bytes&gt;
+     * [&lt;cas unique&gt;] [noreply]
+     */
+    private boolean store(OutputBuffer out, String[] argv, ByteBuffer in) {
+        boolean cas = argv[0].equals("cas");
+        int args = cas ? 6 : 5;
+        if (argv.length < args || argv.length > args + 1) {
+            out.write(ERROR);
+            return true;
+        }
+        int flags;
+        int exptime;
+        int bytes;
+        long unique = 0;
+        try {
+            flags = Integer.parseUnsignedInt(argv[2]);
+            exptime = Integer.parseInt(argv[3]);
+            bytes = Integer.parseInt(argv[4]);
+            if (cas) {
+                unique = Long.parseUnsignedLong(argv[5]);
+            }
+        } catch (NumberFormatException e) {
+            clientError(out, "bad command line format");
+            return true;
+        }
+        if (bytes < 0 || bytes > MAX_ITEM_SIZE || argv[1].length() > MAX_KEY_LENGTH) {
+            clientError(out, "bad data chunk");
+            in.position(Math.min(in.limit(), in.position() + Math.max(0, bytes) + 2));
+            return true;
+        }
+        if (in.remaining() < bytes + 2) {
+            return false;
+        }
+        byte[] v = new byte[bytes];
+        in.get(v);
+        if (in.get(in.position()) != '\r' || in.get(in.position() + 1) != '\n') {
+            clientError(out, "bad data chunk");
+            in.position(in.limit());
+            return true;
+        }
+        in.position(in.position() + 2);
+        String k = argv[1];
+        String reply;
+        switch (argv[0]) {
+            case "add":
+                reply = memcached.add(k, v, flags, exptime);
+                break;
+            case "replace":
+                reply = memcached.replace(k, v, flags, exptime);
+                break;
+            case "append":
+                reply = memcached.append(k, v);
+                break;
+            case "prepend":
+                reply = memcached.prepend(k, v);
+                break;
+            case "cas":
+                reply = memcached.cas(k, v, flags, exptime, unique);
+                break;
+            default:
+                reply = memcached.set(k, v, flags, exptime);
+                break;
+        }
+        reply(out, argv, args, reply);
+        return true;
+    }
+
+    /**
+     * Writes the reply line unless the command ends with noreply.
+     *
+     * @param args the number of arguments before the optional noreply
+     */
+    private static void reply(OutputBuffer out, String[] argv, int args, String reply) {
+        if (argv.length == args) {
+            out.writeAscii(reply).write(CRLF);
+        }
+    }
+
+    private static void clientError(OutputBuffer out, String message) {
+        out.writeAscii("CLIENT_ERROR ").writeAscii(message).write(CRLF);
+    }
+}
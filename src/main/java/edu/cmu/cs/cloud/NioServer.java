@@ -0,0 +1,490 @@
+package edu.cmu.cs.cloud;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A TCP server built on {@code java.nio} selectors, shared by the network
+ * front ends of {@link Redis} and {@link Memcached}.
+ *
+ * A small, fixed number of event loop threads serve all the connections.
+ * Each event loop owns one selector and one direct {@link ByteBuffer} for
+ * reading and one for writing, reused for every connection it serves.
+ *
+ * Requests are pipelined: all the complete requests found in the bytes read
+ * at once are handled in a row by the {@link Handler}, and their replies are
+ * collected in the {@link OutputBuffer} of the connection and written back
+ * in one batch. A connection with replies not yet written stops being read
+ * until they are, so a slow client cannot make the server buffer without
+ * limit.
+ *
+ * Other threads never touch a connection directly: they hand a task to
+ * {@link Connection#execute(Runnable)}, run by the event loop of the
+ * connection, e.g. to push the commands of a replication stream.
+ *
+ * A request that cannot be answered yet, such as BLPOP on empty lists,
+ * {@link Connection#suspend() suspends} its connection instead of blocking
+ * the event loop: the requests after it wait, unhandled, until a task
+ * {@link Connection#resume() resumes} the connection.
+ */
+public class NioServer implements Closeable {
+
+    /**
+     * The size of the read and write buffers of every event loop.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The protocol spoken on the connections.
+     */
+    public interface Handler {
+
+        /**
+         * Handles all the complete requests available, or those before the
+         * request that suspends the connection.
+         *
+         * The replies are appended to {@link Connection#out()}. On return,
+         * the position of the buffer must be at the first byte of the first
+         * incomplete request, or at the limit if there is none. The bytes
+         * left are handed in again, followed by the next bytes read.
+         *
+         * @param c  the connection
+         * @param in the bytes read, in read mode
+         */
+        void process(Connection c, ByteBuffer in);
+
+        /**
+         * Called once the connection is closed.
+         *
+         * @param c the connection
+         */
+        default void closed(Connection c) {
+        }
+    }
+
+    /**
+     * The state of a client connection.
+     *
+     * It is only accessed by the event loop serving the connection.
+     */
+    public static final class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final OutputBuffer out = new OutputBuffer();
+        private SelectionKey key;
+
+        /**
+         * The bytes of incomplete requests, in write mode.
+         */
+        private ByteBuffer pending;
+        private boolean closing;
+        private boolean suspended;
+        private Object attachment;
+
+        private Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * Returns the buffer collecting the replies.
+         *
+         * @return the output buffer
+         */
+        public OutputBuffer out() {
+            return out;
+        }
+
+        /**
+         * Returns the address of the client.
+         *
+         * @return the remote address, or null if the connection is closed
+         */
+        public InetSocketAddress remoteAddress() {
+            try {
+                return (InetSocketAddress) channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Closes the connection once the replies written so far are sent.
+         */
+        public void closeAfterReply() {
+            closing = true;
+        }
+
+        /**
+         * Stops handing the requests of the connection to the handler, from
+         * the handler itself. The bytes read meanwhile are kept for when
+         * the connection is resumed, and a closed connection is still
+         * detected.
+         */
+        public void suspend() {
+            suspended = true;
+        }
+
+        /**
+         * Returns whether the connection is suspended.
+         *
+         * @return true between {@link #suspend()} and {@link #resume()}
+         */
+        public boolean suspended() {
+            return suspended;
+        }
+
+        /**
+         * Hands the requests received while suspended to the handler, from a
+         * task run by {@link #execute(Runnable)}.
+         */
+        public void resume() {
+            suspended = false;
+            loop.resume(this);
+        }
+
+        /**
+         * Returns the protocol state attached to the connection.
+         *
+         * @return the attachment, or null
+         */
+        public Object attachment() {
+            return attachment;
+        }
+
+        /**
+         * Attaches protocol state to the connection.
+         *
+         * @param attachment the attachment
+         */
+        public void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        /**
+         * Runs a task on the event loop of the connection, which then writes
+         * what the task appended to {@link #out()}. Tasks of a closed
+         * connection are dropped. Can be called from any thread.
+         *
+         * @param task the task
+         */
+        public void execute(Runnable task) {
+            loop.tasks.add(() -> {
+                if (channel.isOpen()) {
+                    task.run();
+                    loop.flushOrClose(this);
+                }
+            });
+            loop.selector.wakeup();
+        }
+
+        /**
+         * Closes the connection, from a task run by
+         * {@link #execute(Runnable)} or by the handler.
+         */
+        public void close() {
+            loop.close(this);
+        }
+    }
+
+    private final String name;
+    private final Handler handler;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private int next;
+
+    /**
+     * Binds the server, it serves no connection until {@link #start()}.
+     *
+     * @param name    the name of the event loop threads
+     * @param handler the protocol
+     * @param address the address to listen on, port 0 picks a free port
+     * @param threads the number of event loop threads
+     * @throws IOException if the address cannot be bound
+     */
+    public NioServer(String name, Handler handler, InetSocketAddress address,
+                     int threads) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.name = name;
+        this.handler = handler;
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(name + "-" + i);
+        }
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the event loop threads.
+     */
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the port
+     */
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the event loops and closes every connection.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            if (Thread.currentThread() != loop.thread) {
+                try {
+                    loop.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " on port " + port();
+    }
+
+    /**
+     * An event loop thread with its selector and buffers.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        private EventLoop(String threadName) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerAccepted();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException e) {
+                // the selector itself failed, nothing left to serve
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        close((Connection) key.attachment());
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection c = (Connection) key.attachment();
+            try {
+                if (key.isWritable()) {
+                    flush(c);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(c);
+                }
+            } catch (IOException | RuntimeException e) {
+                close(c);
+            }
+        }
+
+        private void accept() {
+            SocketChannel ch;
+            try {
+                while ((ch = server.accept()) != null) {
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    EventLoop loop = loops[next++ % loops.length];
+                    loop.accepted.add(ch);
+                    if (loop != this) {
+                        loop.selector.wakeup();
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away before being served
+            }
+            registerAccepted();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel ch;
+            while ((ch = accepted.poll()) != null) {
+                Connection c = new Connection(ch, this);
+                try {
+                    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                } catch (IOException e) {
+                    close(c);
+                }
+            }
+        }
+
+        private void read(Connection c) throws IOException {
+            ByteBuffer buf = readBuffer;
+            buf.clear();
+            if (c.channel.read(buf) < 0) {
+                close(c);
+                return;
+            }
+            buf.flip();
+            if (c.suspended) {
+                c.pending = append(c.pending, buf);
+                return;
+            }
+            ByteBuffer in = buf;
+            if (c.pending != null && c.pending.position() > 0) {
+                c.pending = append(c.pending, buf);
+                c.pending.flip();
+                in = c.pending;
+            }
+            handler.process(c, in);
+            if (in == c.pending) {
+                c.pending.compact();
+            } else if (in.hasRemaining()) {
+                c.pending = append(c.pending, in);
+            }
+            flush(c);
+        }
+
+        /**
+         * Handles the requests left when the connection was suspended.
+         */
+        private void resume(Connection c) {
+            if (c.pending != null && c.pending.position() > 0) {
+                c.pending.flip();
+                handler.process(c, c.pending);
+                c.pending.compact();
+            }
+        }
+
+        /**
+         * Writes the replies, in chunks of the write buffer.
+         */
+        private void flush(Connection c) throws IOException {
+            OutputBuffer out = c.out;
+            while (out.readable() > 0) {
+                ByteBuffer buf = writeBuffer;
+                buf.clear();
+                int n = out.drainTo(buf);
+                buf.flip();
+                int written = c.channel.write(buf);
+                out.consume(written);
+                if (written < n) {
+                    break;
+                }
+            }
+            if (out.readable() > 0) {
+                c.key.interestOps(SelectionKey.OP_WRITE);
+            } else if (c.closing) {
+                close(c);
+            } else {
+                c.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void flushOrClose(Connection c) {
+            try {
+                flush(c);
+            } catch (IOException | RuntimeException e) {
+                close(c);
+            }
+        }
+
+        private void close(Connection c) {
+            if (!c.channel.isOpen()) {
+                return;
+            }
+            if (c.key != null) {
+                c.key.cancel();
+            }
+            try {
+                c.channel.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+            handler.closed(c);
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of src to dst, growing dst as needed.
+     *
+     * @param dst the destination in write mode, or null
+     * @param src the source in read mode
+     * @return the destination, possibly a new buffer
+     */
+    private static ByteBuffer append(ByteBuffer dst, ByteBuffer src) {
+        if (dst == null) {
+            dst = ByteBuffer.allocate(Math.max(1024, src.remaining()));
+        } else if (dst.remaining() < src.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(dst.capacity() * 2, dst.position() + src.remaining()));
+            dst.flip();
+            bigger.put(dst);
+            dst = bigger;
+        }
+        dst.put(src);
+        return dst;
+    }
+}
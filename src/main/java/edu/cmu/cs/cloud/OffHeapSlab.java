@@ -0,0 +1,377 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A slab allocator of string values on direct {@link ByteBuffer}s, outside
+ * of the heap managed by the garbage collector.
+ *
+ * Memory is reserved in pages of {@link #PAGE_SIZE} bytes. A page is
+ * assigned to one size class and carved into chunks of that size, as the
+ * slabs of Memcached: the chunk sizes grow by {@link #GROWTH_FACTOR} from
+ * {@link #MIN_CHUNK_SIZE} up to a whole page. A value is stored in the
+ * smallest chunk it fits in, and a freed chunk is reused by the next value
+ * of its class. Pages are never returned to the operating system.
+ *
+ * A slab may be given a limit on the memory of its pages, then
+ * {@link #allocate(int)} fails once a class has no free chunk and no page
+ * can be added, and the caller makes room by freeing a chunk of the class,
+ * as {@link Memcached} evicts. As in Memcached, the first page of a class is
+ * granted even past the limit so that every size can be stored.
+ *
+ * A million values of 1 KB on the heap are a million objects for the
+ * collector to trace and copy. In the slab they are a thousand pages the
+ * collector does not look into, and the heap only keeps a small
+ * {@link Chunk} handle per value.
+ *
+ * Allocating and freeing are thread-safe, so one slab can serve every
+ * stripe of a {@link StripedRedis}. The contents of a chunk are owned by
+ * the value it holds and are read and written under the lock of its key.
+ *
+ * @see <a href="https://github.com/memcached/memcached/blob/master/slabs.c">
+ * slabs.c - Memcached</a>
+ */
+final class OffHeapSlab {
+
+    /**
+     * The size of a page, and of the largest chunk.
+     */
+    static final int PAGE_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the smallest chunk.
+     */
+    static final int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * The ratio between the chunk sizes of consecutive classes, the -f
+     * option of Memcached.
+     */
+    static final double GROWTH_FACTOR = 1.25;
+
+    /**
+     * The address returned by {@link #allocate(int)} when the limit leaves
+     * no room.
+     */
+    static final long NO_SPACE = -1;
+
+    private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
+
+    /**
+     * The chunk size of every class, ascending.
+     */
+    private static final int[] CHUNK_SIZES = chunkSizes();
+
+    private static int[] chunkSizes() {
+        int[] sizes = new int[64];
+        int n = 0;
+        for (double size = MIN_CHUNK_SIZE; size < PAGE_SIZE / GROWTH_FACTOR;
+             size *= GROWTH_FACTOR) {
+            // aligned to 8 bytes as Memcached does
+            sizes[n++] = ((int) size + 7) & ~7;
+        }
+        sizes[n++] = PAGE_SIZE;
+        return Arrays.copyOf(sizes, n);
+    }
+
+    /**
+     * A value stored in the slab.
+     */
+    static final class Chunk {
+        private final long address;
+        private final int length;
+
+        private Chunk(long address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+
+        /**
+         * Returns the length of the value.
+         *
+         * @return the number of bytes
+         */
+        int length() {
+            return length;
+        }
+    }
+
+    /**
+     * The free chunks of one size class and the page being carved.
+     */
+    private static final class SizeClass {
+        private long[] free = new long[16];
+        private int freeCount;
+        private int page = -1;
+        private int next = PAGE_SIZE;
+        private int pages;
+        private int used;
+    }
+
+    private final long limit;
+
+    private final SizeClass[] classes = new SizeClass[CHUNK_SIZES.length];
+
+    /**
+     * The pages, published to readers through the volatile write.
+     */
+    private volatile ByteBuffer[] pages = new ByteBuffer[16];
+    private int pageCount;
+    private long used;
+
+    /**
+     * A slab without a limit.
+     */
+    OffHeapSlab() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * A slab whose pages take at most the given memory, besides the first
+     * page of every class.
+     *
+     * @param limit the maximum number of bytes of the pages
+     */
+    OffHeapSlab(long limit) {
+        this.limit = limit;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * Returns the number of size classes.
+     *
+     * @return the number of classes
+     */
+    static int classCount() {
+        return CHUNK_SIZES.length;
+    }
+
+    /**
+     * Returns the size of the chunks of a class.
+     *
+     * @param cls the index of the class
+     * @return the chunk size
+     */
+    static int classChunkSize(int cls) {
+        return CHUNK_SIZES[cls];
+    }
+
+    /**
+     * Returns the index of the smallest class whose chunks fit n bytes.
+     *
+     * @param n the length of the value, at most {@link #PAGE_SIZE}
+     * @return the index of the class
+     */
+    static int classOf(int n) {
+        int i = Arrays.binarySearch(CHUNK_SIZES, n);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Returns the size of the chunk a value of n bytes is stored in.
+     *
+     * @param n the length of the value
+     * @return the chunk size
+     */
+    static int chunkSize(int n) {
+        return CHUNK_SIZES[classOf(n)];
+    }
+
+    /**
+     * Copies a value into a new chunk.
+     *
+     * @param v the value, at most {@link #PAGE_SIZE} bytes
+     * @return the chunk holding a copy of the value
+     */
+    Chunk store(byte[] v) {
+        long address = allocate(v.length);
+        if (address == NO_SPACE) {
+            throw new IllegalStateException("slab memory limit reached");
+        }
+        write(address, v);
+        return new Chunk(address, v.length);
+    }
+
+    /**
+     * Reserves a chunk for a value of n bytes, a free chunk of its class if
+     * there is one, else a new one.
+     *
+     * @param n the length of the value, at most {@link #PAGE_SIZE}
+     * @return the address of the chunk, or {@link #NO_SPACE} if the class
+     * has no free chunk and the limit leaves no room for a page
+     */
+    synchronized long allocate(int n) {
+        if (n > PAGE_SIZE) {
+            throw new IllegalArgumentException("value larger than a slab page");
+        }
+        int cls = classOf(n);
+        SizeClass sc = classes[cls];
+        if (sc.freeCount > 0) {
+            used += CHUNK_SIZES[cls];
+            sc.used++;
+            return sc.free[--sc.freeCount];
+        }
+        if (sc.next + CHUNK_SIZES[cls] > PAGE_SIZE) {
+            if (sc.pages > 0 && (long) (pageCount + 1) * PAGE_SIZE > limit) {
+                return NO_SPACE;
+            }
+            ByteBuffer[] p = pageCount == pages.length
+                    ? Arrays.copyOf(pages, pageCount * 2) : pages;
+            p[pageCount] = ByteBuffer.allocateDirect(PAGE_SIZE);
+            // the volatile write publishes the new page
+            pages = p;
+            sc.page = pageCount++;
+            sc.pages++;
+            sc.next = 0;
+        }
+        long address = (long) sc.page << PAGE_SHIFT | sc.next;
+        sc.next += CHUNK_SIZES[cls];
+        used += CHUNK_SIZES[cls];
+        sc.used++;
+        return address;
+    }
+
+    /**
+     * Copies a value into an allocated chunk.
+     *
+     * @param address the address returned by {@link #allocate(int)}
+     * @param v       the value, of the length it was allocated for
+     */
+    void write(long address, byte[] v) {
+        buffer(address, v.length).put(v);
+    }
+
+    /**
+     * Returns the chunk to its class, its contents must not be read any
+     * more.
+     *
+     * @param c the chunk
+     */
+    void free(Chunk c) {
+        free(c.address, c.length);
+    }
+
+    /**
+     * Returns an allocated chunk to its class.
+     *
+     * @param address the address of the chunk
+     * @param n       the length it was allocated for
+     */
+    synchronized void free(long address, int n) {
+        int cls = classOf(n);
+        SizeClass sc = classes[cls];
+        if (sc.freeCount == sc.free.length) {
+            sc.free = Arrays.copyOf(sc.free, sc.freeCount * 2);
+        }
+        sc.free[sc.freeCount++] = address;
+        used -= CHUNK_SIZES[cls];
+        sc.used--;
+    }
+
+    /**
+     * Returns a buffer whose remaining bytes are the n bytes at the address.
+     */
+    private ByteBuffer buffer(long address, int n) {
+        ByteBuffer page = pages[(int) (address >>> PAGE_SHIFT)].duplicate();
+        int offset = (int) address & (PAGE_SIZE - 1);
+        page.limit(offset + n).position(offset);
+        return page;
+    }
+
+    /**
+     * Copies a value back to the heap.
+     *
+     * @param c the chunk
+     * @return the value
+     */
+    byte[] read(Chunk c) {
+        return read(c.address, c.length);
+    }
+
+    /**
+     * Copies the value of an allocated chunk back to the heap.
+     *
+     * @param address the address of the chunk
+     * @param n       the length of the value
+     * @return the value
+     */
+    byte[] read(long address, int n) {
+        byte[] v = new byte[n];
+        buffer(address, n).get(v);
+        return v;
+    }
+
+    /**
+     * Lends the value to the reader without copying it, the buffer is only
+     * valid during the call.
+     *
+     * @param c      the chunk
+     * @param reader the reader of the remaining bytes of the buffer
+     */
+    void read(Chunk c, Consumer<ByteBuffer> reader) {
+        read(c.address, c.length, reader);
+    }
+
+    /**
+     * Lends the value of an allocated chunk to the reader, the buffer is
+     * only valid during the call.
+     *
+     * @param address the address of the chunk
+     * @param n       the length of the value
+     * @param reader  the reader of the remaining bytes of the buffer
+     */
+    void read(long address, int n, Consumer<ByteBuffer> reader) {
+        reader.accept(buffer(address, n).asReadOnlyBuffer());
+    }
+
+    /**
+     * Returns the bytes reserved outside of the heap.
+     *
+     * @return the number of pages times the page size
+     */
+    synchronized long reserved() {
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    /**
+     * Returns the bytes of the chunks holding values.
+     *
+     * @return the sum of the chunk sizes in use
+     */
+    synchronized long used() {
+        return used;
+    }
+
+    /**
+     * Returns the limit on the memory of the pages.
+     *
+     * @return the limit in bytes, {@link Long#MAX_VALUE} if there is none
+     */
+    long limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the pages carved into chunks of a class.
+     *
+     * @param cls the index of the class
+     * @return the number of pages of the class
+     */
+    synchronized int pages(int cls) {
+        return classes[cls].pages;
+    }
+
+    /**
+     * Returns the allocated chunks of a class.
+     *
+     * @param cls the index of the class
+     * @return the number of chunks in use
+     */
+    synchronized int usedChunks(int cls) {
+        return classes[cls].used;
+    }
+}
@@ -0,0 +1,196 @@
+package edu.cmu.cs.cloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer collecting the replies of a connection of
+ * {@link NioServer}.
+ *
+ * The replies of all the pipelined requests read at once are appended here
+ * and written to the socket in one go. Bytes in {@code [head, tail)} are
+ * still to be written.
+ *
+ * This class is not thread-safe.
+ */
+public final class OutputBuffer {
+
+    private static final byte[] DIGITS = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf = new byte[256];
+    private int head;
+    private int tail;
+
+    /**
+     * Returns the number of bytes still to be written.
+     *
+     * @return the number of bytes
+     */
+    public int readable() {
+        return tail - head;
+    }
+
+    /**
+     * Appends one byte.
+     *
+     * @param b the byte
+     * @return this buffer
+     */
+    public OutputBuffer write(byte b) {
+        ensure(1);
+        buf[tail++] = b;
+        return this;
+    }
+
+    /**
+     * Appends the bytes.
+     *
+     * @param b the bytes
+     * @return this buffer
+     */
+    public OutputBuffer write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    /**
+     * Appends the remaining bytes of a buffer, consuming them.
+     *
+     * @param b the buffer
+     * @return this buffer
+     */
+    public OutputBuffer write(ByteBuffer b) {
+        int len = b.remaining();
+        ensure(len);
+        b.get(buf, tail, len);
+        tail += len;
+        return this;
+    }
+
+    /**
+     * Appends the readable bytes of another buffer, without consuming them.
+     *
+     * @param b the other buffer
+     * @return this buffer
+     */
+    public OutputBuffer write(OutputBuffer b) {
+        return write(b.buf, b.head, b.readable());
+    }
+
+    /**
+     * Appends a range of the bytes.
+     *
+     * @param b   the bytes
+     * @param off the first byte
+     * @param len the number of bytes
+     * @return this buffer
+     */
+    public OutputBuffer write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, tail, len);
+        tail += len;
+        return this;
+    }
+
+    /**
+     * Appends a string that only has ASCII characters, one byte per char.
+     *
+     * @param s the string
+     * @return this buffer
+     */
+    public OutputBuffer writeAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buf[tail++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of the number, without allocating.
+     *
+     * @param v the number
+     * @return this buffer
+     */
+    public OutputBuffer writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            return writeAscii(Long.toString(v));
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[tail++] = '-';
+            v = -v;
+        }
+        int start = tail;
+        do {
+            buf[tail++] = DIGITS[(int) (v % 10)];
+            v /= 10;
+        } while (v > 0);
+        for (int i = start, j = tail - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+        return this;
+    }
+
+    /**
+     * Moves as many bytes as fit into the destination.
+     *
+     * @param dst the destination, in write mode
+     * @return the number of bytes moved
+     */
+    int drainTo(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), readable());
+        dst.put(buf, head, n);
+        return n;
+    }
+
+    /**
+     * Writes all the bytes to a blocking channel, e.g. a file.
+     *
+     * @param ch the channel
+     * @return the number of bytes written
+     * @throws IOException if the channel fails
+     */
+    int writeTo(WritableByteChannel ch) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buf, head, readable());
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            ch.write(src);
+        }
+        consume(n);
+        return n;
+    }
+
+    /**
+     * Marks bytes as written.
+     *
+     * @param n the number of bytes written
+     */
+    void consume(int n) {
+        head += n;
+        if (head == tail) {
+            head = 0;
+            tail = 0;
+        }
+    }
+
+    private void ensure(int n) {
+        if (tail + n <= buf.length) {
+            return;
+        }
+        if (head > 0) {
+            System.arraycopy(buf, head, buf, 0, tail - head);
+            tail -= head;
+            head = 0;
+            if (tail + n <= buf.length) {
+                return;
+            }
+        }
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, tail + n));
+    }
+}
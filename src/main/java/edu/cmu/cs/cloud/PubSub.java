@@ -0,0 +1,499 @@
+package edu.cmu.cs.cloud;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+/**
+ * Publish/subscribe messaging of a {@link StripedRedis}: messages published
+ * to a channel are pushed to the subscribers of the channel and of the glob
+ * patterns matching it, and are not stored.
+ *
+ * The publisher only looks up the receivers and queues the message, the
+ * fan-out to thousands of subscribers runs on a dedicated thread. Each
+ * subscriber has a bounded ring buffer filled by that thread and drained by
+ * its own consumer, usually the event loop of its connection, which is
+ * signalled when the buffer stops being empty. A subscriber whose buffer is
+ * full is a slow consumer: it stops receiving and is reported, so that its
+ * connection is closed as with client-output-buffer-limit of Redis, rather
+ * than holding up the other subscribers or growing without bound.
+ *
+ * This class is thread-safe.
+ *
+ * @see <a href="https://redis.io/docs/interact/pubsub/">Redis Pub/Sub</a>
+ */
+public final class PubSub {
+
+    /**
+     * The default capacity of the buffer of a subscriber, in messages.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private static final Subscriber[] NONE = new Subscriber[0];
+
+    /**
+     * A message as received by the subscribers of a channel or of a
+     * pattern, shared by all of them.
+     */
+    public static final class Message {
+        private final String pattern;
+        private final String channel;
+        private final String message;
+
+        /**
+         * The message encoded once for all the receivers, see
+         * {@link #encoded(Function)}.
+         */
+        private volatile Object encoded;
+
+        private Message(String pattern, String channel, String message) {
+            this.pattern = pattern;
+            this.channel = channel;
+            this.message = message;
+        }
+
+        /**
+         * Returns the pattern the message was received through.
+         *
+         * @return the pattern, or null for a subscription to the channel
+         */
+        public String pattern() {
+            return pattern;
+        }
+
+        /**
+         * @return the channel published to
+         */
+        public String channel() {
+            return channel;
+        }
+
+        /**
+         * @return the message
+         */
+        public String message() {
+            return message;
+        }
+
+        /**
+         * Returns the message encoded for the wire, encoding it on first
+         * use: every receiver writes the same bytes.
+         *
+         * @param encoder the encoding, always the same for a message
+         * @param <T>     the type of the encoded message
+         * @return the encoded message
+         */
+        @SuppressWarnings("unchecked")
+        <T> T encoded(Function<Message, T> encoder) {
+            Object e = encoded;
+            if (e == null) {
+                // racing consumers encode the same bytes, either is kept
+                e = encoder.apply(this);
+                encoded = e;
+            }
+            return (T) e;
+        }
+
+        @Override
+        public String toString() {
+            return pattern == null ? channel + ": " + message
+                    : pattern + " " + channel + ": " + message;
+        }
+    }
+
+    /**
+     * A message to hand to its receivers.
+     */
+    private static final class Delivery {
+        private final Message message;
+        private final Subscriber[] receivers;
+
+        private Delivery(Message message, Subscriber[] receivers) {
+            this.message = message;
+            this.receivers = receivers;
+        }
+    }
+
+    /**
+     * A subscriber, with the channels and patterns it subscribed to and the
+     * buffer of the messages not consumed yet.
+     *
+     * The buffer is a single-producer single-consumer ring: only the
+     * fan-out thread offers and only the consumer polls. The subscriptions
+     * are changed and the buffer is polled by one thread at a time, e.g.
+     * the event loop of the connection.
+     */
+    public static final class Subscriber {
+        private final PubSub pubsub;
+        private final Message[] ring;
+        private final int mask;
+
+        /**
+         * The number of messages polled, written by the consumer only.
+         */
+        private volatile long head;
+
+        /**
+         * The number of messages offered, written by the fan-out thread
+         * only.
+         */
+        private volatile long tail;
+
+        private final Runnable signal;
+        private final Runnable overflow;
+        private volatile boolean overflowed;
+        private final Set<String> channels = new HashSet<>();
+        private final Set<String> patterns = new HashSet<>();
+
+        private Subscriber(PubSub pubsub, int capacity, Runnable signal, Runnable overflow) {
+            this.pubsub = pubsub;
+            ring = new Message[capacity];
+            mask = capacity - 1;
+            this.signal = signal;
+            this.overflow = overflow;
+        }
+
+        /**
+         * Subscribes to a channel.
+         *
+         * @param channel the channel
+         * @return false if already subscribed
+         * @see <a href="https://redis.io/commands/subscribe">SUBSCRIBE - Redis</a>
+         */
+        public boolean subscribe(String channel) {
+            if (!channels.add(channel)) {
+                return false;
+            }
+            pubsub.add(pubsub.channels, channel, this);
+            return true;
+        }
+
+        /**
+         * Unsubscribes from a channel, the messages of the channel still
+         * buffered are dropped.
+         *
+         * @param channel the channel
+         * @return false if not subscribed
+         * @see <a href="https://redis.io/commands/unsubscribe">UNSUBSCRIBE - Redis</a>
+         */
+        public boolean unsubscribe(String channel) {
+            if (!channels.remove(channel)) {
+                return false;
+            }
+            pubsub.remove(pubsub.channels, channel, this);
+            return true;
+        }
+
+        /**
+         * Subscribes to the channels matching a glob-style pattern, see
+         * {@link RespHandler#matches(String, int, String, int)}.
+         *
+         * @param pattern the pattern
+         * @return false if already subscribed
+         * @see <a href="https://redis.io/commands/psubscribe">PSUBSCRIBE - Redis</a>
+         */
+        public boolean psubscribe(String pattern) {
+            if (!patterns.add(pattern)) {
+                return false;
+            }
+            pubsub.addPattern(pattern, this);
+            return true;
+        }
+
+        /**
+         * Unsubscribes from a pattern.
+         *
+         * @param pattern the pattern
+         * @return false if not subscribed
+         * @see <a href="https://redis.io/commands/punsubscribe">PUNSUBSCRIBE - Redis</a>
+         */
+        public boolean punsubscribe(String pattern) {
+            if (!patterns.remove(pattern)) {
+                return false;
+            }
+            pubsub.removePattern(pattern, this);
+            return true;
+        }
+
+        /**
+         * @return the channels subscribed to
+         */
+        public Set<String> channels() {
+            return Collections.unmodifiableSet(channels);
+        }
+
+        /**
+         * @return the patterns subscribed to
+         */
+        public Set<String> patterns() {
+            return Collections.unmodifiableSet(patterns);
+        }
+
+        /**
+         * @return the number of channels and patterns subscribed to
+         */
+        public int subscriptions() {
+            return channels.size() + patterns.size();
+        }
+
+        /**
+         * Unsubscribes from every channel and pattern.
+         */
+        public void close() {
+            for (String channel : channels.toArray(new String[0])) {
+                unsubscribe(channel);
+            }
+            for (String pattern : patterns.toArray(new String[0])) {
+                punsubscribe(pattern);
+            }
+        }
+
+        /**
+         * Returns whether the buffer overflowed, the subscriber receives no
+         * more messages then.
+         *
+         * @return true for a slow consumer
+         */
+        public boolean overflowed() {
+            return overflowed;
+        }
+
+        /**
+         * Removes the next message of a channel or pattern still
+         * subscribed to, from the consumer.
+         *
+         * @return the message, or null if the buffer is empty
+         */
+        public Message poll() {
+            while (true) {
+                long h = head;
+                if (h == tail) {
+                    return null;
+                }
+                int i = (int) h & mask;
+                Message m = ring[i];
+                ring[i] = null;
+                head = h + 1;
+                if (m.pattern == null ? channels.contains(m.channel)
+                        : patterns.contains(m.pattern)) {
+                    return m;
+                }
+            }
+        }
+
+        /**
+         * Appends a message to the buffer, from the fan-out thread. The
+         * consumer is signalled if the buffer was empty: it polls until
+         * the buffer is empty again, so every message is seen.
+         */
+        private void offer(Message m) {
+            if (overflowed) {
+                return;
+            }
+            long t = tail;
+            if (t - head == ring.length) {
+                overflowed = true;
+                pubsub.slowConsumers++;
+                overflow.run();
+                return;
+            }
+            ring[(int) t & mask] = m;
+            tail = t + 1;
+            if (head == t) {
+                signal.run();
+            }
+        }
+    }
+
+    /**
+     * The subscribers of every channel, replaced on every change.
+     */
+    private final ConcurrentHashMap<String, Subscriber[]> channels = new ConcurrentHashMap<>();
+
+    /**
+     * The subscribers of every pattern, the whole map is replaced on every
+     * change, guarded by this for writes.
+     */
+    private volatile Map<String, Subscriber[]> patterns = Collections.emptyMap();
+
+    /**
+     * The messages to fan out, in the order they were published.
+     */
+    private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<>();
+
+    private final int bufferSize;
+
+    /**
+     * The fan-out thread, started on the first message with a receiver.
+     */
+    private Thread fanOut;
+
+    /**
+     * The number of subscribers whose buffer overflowed, written by the
+     * fan-out thread only.
+     */
+    private volatile long slowConsumers;
+
+    /**
+     * Creates a pub/sub with buffers of {@link #DEFAULT_BUFFER_SIZE}
+     * messages.
+     */
+    public PubSub() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a pub/sub.
+     *
+     * @param bufferSize the capacity of the buffer of every subscriber, in
+     *                   messages, rounded up to a power of two
+     */
+    public PubSub(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+        int size = Integer.highestOneBit(bufferSize);
+        this.bufferSize = size < bufferSize ? size << 1 : size;
+    }
+
+    /**
+     * Creates a subscriber with no subscription.
+     *
+     * @param signal   called from the fan-out thread when a message arrives
+     *                 in an empty buffer, it must not block but hand the
+     *                 polling to the consumer, e.g. with
+     *                 {@link NioServer.Connection#execute(Runnable)}
+     * @param overflow called once from the fan-out thread when the buffer
+     *                 is full, the consumer should then be closed
+     * @return the subscriber
+     */
+    public Subscriber subscriber(Runnable signal, Runnable overflow) {
+        return new Subscriber(this, bufferSize, signal, overflow);
+    }
+
+    /**
+     * Publishes a message, without waiting for the subscribers to get it.
+     *
+     * @param channel the channel
+     * @param message the message
+     * @return the number of receivers, a subscriber of the channel and of a
+     * matching pattern counts twice
+     * @see <a href="https://redis.io/commands/publish">PUBLISH - Redis</a>
+     */
+    public int publish(String channel, String message) {
+        int n = 0;
+        Subscriber[] subscribers = channels.get(channel);
+        if (subscribers != null) {
+            n += subscribers.length;
+            deliver(new Message(null, channel, message), subscribers);
+        }
+        for (Map.Entry<String, Subscriber[]> e : patterns.entrySet()) {
+            if (RespHandler.matches(e.getKey(), 0, channel, 0)) {
+                n += e.getValue().length;
+                deliver(new Message(e.getKey(), channel, message), e.getValue());
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of channels with a subscriber.
+     *
+     * @return pubsub_channels of INFO
+     */
+    public int channels() {
+        return channels.size();
+    }
+
+    /**
+     * Returns the number of patterns with a subscriber.
+     *
+     * @return pubsub_patterns of INFO
+     */
+    public int patterns() {
+        return patterns.size();
+    }
+
+    /**
+     * Returns the number of subscribers that stopped receiving because
+     * their buffer overflowed.
+     *
+     * @return the number of slow consumers
+     */
+    public long slowConsumers() {
+        return slowConsumers;
+    }
+
+    private void deliver(Message message, Subscriber[] receivers) {
+        deliveries.add(new Delivery(message, receivers));
+        if (fanOut == null) {
+            startFanOut();
+        }
+    }
+
+    private synchronized void startFanOut() {
+        if (fanOut != null) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    Delivery d = deliveries.take();
+                    for (Subscriber s : d.receivers) {
+                        s.offer(d.message);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the process is exiting
+            }
+        }, "redis-pubsub");
+        t.setDaemon(true);
+        t.start();
+        fanOut = t;
+    }
+
+    private synchronized void add(Map<String, Subscriber[]> map, String key, Subscriber s) {
+        Subscriber[] old = map.getOrDefault(key, NONE);
+        Subscriber[] subscribers = Arrays.copyOf(old, old.length + 1);
+        subscribers[old.length] = s;
+        map.put(key, subscribers);
+    }
+
+    private synchronized void remove(Map<String, Subscriber[]> map, String key, Subscriber s) {
+        Subscriber[] old = map.get(key);
+        if (old == null) {
+            return;
+        }
+        if (old.length == 1) {
+            map.remove(key);
+            return;
+        }
+        Subscriber[] subscribers = new Subscriber[old.length - 1];
+        int n = 0;
+        for (Subscriber o : old) {
+            if (o != s && n < subscribers.length) {
+                subscribers[n++] = o;
+            }
+        }
+        map.put(key, subscribers);
+    }
+
+    private synchronized void addPattern(String pattern, Subscriber s) {
+        Map<String, Subscriber[]> copy = new LinkedHashMap<>(patterns);
+        add(copy, pattern, s);
+        patterns = copy;
+    }
+
+    private synchronized void removePattern(String pattern, Subscriber s) {
+        Map<String, Subscriber[]> copy = new LinkedHashMap<>(patterns);
+        remove(copy, pattern, s);
+        patterns = copy;
+    }
+}
@@ -0,0 +1,322 @@
+package edu.cmu.cs.cloud;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * A simplified version of the Redis quicklist, the encoding of Redis Lists.
+ *
+ * A quicklist is a doubly linked list of fixed-size array segments. Compared
+ * with {@link java.util.LinkedList}, which allocates one node object per
+ * element, it only pays one node object per {@link #SEGMENT} elements, and
+ * traversals walk contiguous arrays instead of chasing a pointer per element.
+ *
+ * Pushing and popping at both ends is O(1). Index access and range reads
+ * walk whole segments from the nearer end, so they cost
+ * O(index / {@link #SEGMENT}) segment hops plus the elements returned.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <E> the type of the elements
+ * @see <a href="https://github.com/redis/redis/blob/unstable/src/quicklist.c">
+ * quicklist.c - Redis</a>
+ */
+public class QuickList<E> implements Iterable<E> {
+
+    /**
+     * The capacity of every segment.
+     */
+    static final int SEGMENT = 128;
+
+    /**
+     * A segment of the list.
+     *
+     * The elements live in {@code items[start, end)}. A segment created by a
+     * push at the tail fills up from the left, and a segment created by a
+     * push at the head fills up from the right, so both ends always have
+     * free room until the segment at that end is full.
+     */
+    private static final class Node {
+        private final Object[] items = new Object[SEGMENT];
+        private int start;
+        private int end;
+        private Node prev;
+        private Node next;
+
+        private Node(int offset) {
+            start = offset;
+            end = offset;
+        }
+
+        private int size() {
+            return end - start;
+        }
+    }
+
+    private Node head;
+    private Node tail;
+    private int size;
+
+    /**
+     * Returns the number of elements.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether the list has no elements.
+     *
+     * @return true if the list is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Inserts the element at the tail.
+     *
+     * @param e the element
+     */
+    public void addLast(E e) {
+        if (tail == null || tail.end == SEGMENT) {
+            Node n = new Node(0);
+            n.prev = tail;
+            if (tail == null) {
+                head = n;
+            } else {
+                tail.next = n;
+            }
+            tail = n;
+        }
+        tail.items[tail.end++] = e;
+        size++;
+    }
+
+    /**
+     * Inserts the element at the head.
+     *
+     * @param e the element
+     */
+    public void addFirst(E e) {
+        if (head == null || head.start == 0) {
+            Node n = new Node(SEGMENT);
+            n.next = head;
+            if (head == null) {
+                tail = n;
+            } else {
+                head.prev = n;
+            }
+            head = n;
+        }
+        head.items[--head.start] = e;
+        size++;
+    }
+
+    /**
+     * Removes and returns the element at the tail.
+     *
+     * @return the last element, or null if the list is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        if (tail == null) {
+            return null;
+        }
+        Node n = tail;
+        E e = (E) n.items[--n.end];
+        n.items[n.end] = null;
+        size--;
+        if (n.size() == 0) {
+            unlink(n);
+        }
+        return e;
+    }
+
+    /**
+     * Removes and returns the element at the head.
+     *
+     * @return the first element, or null if the list is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E pollFirst() {
+        if (head == null) {
+            return null;
+        }
+        Node n = head;
+        E e = (E) n.items[n.start];
+        n.items[n.start++] = null;
+        size--;
+        if (n.size() == 0) {
+            unlink(n);
+        }
+        return e;
+    }
+
+    /**
+     * Returns the element at the index.
+     *
+     * Negative indexes count from the tail, -1 is the last element, as in
+     * <a href="https://redis.io/commands/lindex">LINDEX - Redis</a>.
+     *
+     * @param index the index
+     * @return the element, or null if the index is out of range
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index < 0) {
+            index += size;
+        }
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        if (index < size / 2) {
+            Node n = head;
+            while (index >= n.size()) {
+                index -= n.size();
+                n = n.next;
+            }
+            return (E) n.items[n.start + index];
+        }
+        int fromTail = size - 1 - index;
+        Node n = tail;
+        while (fromTail >= n.size()) {
+            fromTail -= n.size();
+            n = n.prev;
+        }
+        return (E) n.items[n.end - 1 - fromTail];
+    }
+
+    /**
+     * Returns the elements between start and stop, both inclusive.
+     *
+     * The offsets follow
+     * <a href="https://redis.io/commands/lrange">LRANGE - Redis</a>: negative
+     * offsets count from the tail, and out of range offsets are clamped
+     * instead of being an error.
+     *
+     * @param start the first offset
+     * @param stop  the last offset
+     * @return the elements in the range, empty if the range is empty
+     */
+    public List<E> range(int start, int stop) {
+        List<E> out = new ArrayList<>();
+        forEachInRange(start, stop, out::add);
+        return out;
+    }
+
+    /**
+     * Visits the elements between start and stop, both inclusive, with the
+     * offsets of {@link #range(int, int)}, without copying them to a list.
+     *
+     * The first element is found from the nearer end of the list, so paging
+     * through a long list costs O(count + offset / {@link #SEGMENT}) per
+     * page.
+     *
+     * @param start   the first offset
+     * @param stop    the last offset
+     * @param visitor the visitor of the elements
+     * @return the number of elements visited
+     */
+    @SuppressWarnings("unchecked")
+    public int forEachInRange(int start, int stop, Consumer<? super E> visitor) {
+        if (start < 0) {
+            start = Math.max(0, start + size);
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            return 0;
+        }
+        Node n;
+        int i;
+        if (start < size / 2) {
+            n = head;
+            int skip = start;
+            while (skip >= n.size()) {
+                skip -= n.size();
+                n = n.next;
+            }
+            i = n.start + skip;
+        } else {
+            n = tail;
+            int fromTail = size - 1 - start;
+            while (fromTail >= n.size()) {
+                fromTail -= n.size();
+                n = n.prev;
+            }
+            i = n.end - 1 - fromTail;
+        }
+        int count = stop - start + 1;
+        for (int remaining = count; remaining > 0; remaining--) {
+            if (i == n.end) {
+                n = n.next;
+                i = n.start;
+            }
+            visitor.accept((E) n.items[i++]);
+        }
+        return count;
+    }
+
+    /**
+     * Removes all the elements.
+     */
+    public void clear() {
+        head = null;
+        tail = null;
+        size = 0;
+    }
+
+    private void unlink(Node n) {
+        if (n.prev == null) {
+            head = n.next;
+        } else {
+            n.prev.next = n.next;
+        }
+        if (n.next == null) {
+            tail = n.prev;
+        } else {
+            n.next.prev = n.prev;
+        }
+    }
+
+    /**
+     * Returns an iterator from the head to the tail.
+     *
+     * The list must not be modified during the iteration.
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private Node n = head;
+            private int i = head == null ? 0 : head.start;
+
+            @Override
+            public boolean hasNext() {
+                return n != null && (i < n.end || n.next != null);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (n != null && i == n.end) {
+                    n = n.next;
+                    i = n == null ? 0 : n.start;
+                }
+                if (n == null) {
+                    throw new NoSuchElementException();
+                }
+                return (E) n.items[i++];
+            }
+        };
+    }
+}
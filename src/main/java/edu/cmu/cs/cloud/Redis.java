@@ -1,17 +1,30 @@
 package edu.cmu.cs.cloud;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * A simplified version of Redis.
  *
  * This is simplified in the aspects including but not limited to:
- * 1. This program only covers the three most basic data structures with a
+ * 1. This program only covers the four most basic data structures with a
  * subset of the storage commands.
  * 2. This program is single-node.
- * 3. This program is not thread-safe.
+ * 3. This program is not thread-safe, use {@link StripedRedis} to share a
+ * keyspace between threads.
  *
  * You can use <a href="http://try.redis.io/">Try Redis</a> as the reference
  * Redis interface.
@@ -23,110 +36,1036 @@ import java.util.List;
 public class Redis {
 
     /**
-     * We will implement the three most basic data structures supported in
+     * We will implement the four most basic data structures supported in
      * Redis.
      *
      * Redis Strings.
-     * It is the only data type in Memcached.
+     * It is the only data type in Memcached. Strings are binary-safe and
+     * stored as byte arrays, the String methods encode and decode UTF-8.
+     * Values of at least {@link #setOffHeapThreshold(int)} bytes are stored
+     * off the heap in an {@link OffHeapSlab}.
      * {@link #set(String, String)}
+     * {@link #set(String, byte[])}
      * {@link #get(String)}
+     * {@link #getBytes(String)}
+     * {@link #get(String, Consumer)}
      *
      * Redis Hashes.
+     * Small hashes are encoded as a {@link ListPack} and converted to a
+     * {@link Dict} once they exceed the listpack limits.
      * {@link #hset(String, String, String)}
      * {@link #hget(String, String)}
+     * {@link #hlen(String)}
      * {@link #hgetall(String)}
+     * {@link #hgetall(String, BiConsumer)}
+     * {@link #hscan(String, long, int)}
      *
      * Redis Lists.
-     * Redis lists are implemented via {@link LinkedList}.
+     * Redis lists are implemented via {@link QuickList}, a linked list of
+     * fixed-size array segments.
      * For a database system it is crucial to be able to add elements to a
      * very long list in a very fast way.
      * {@link #rpop(String)}
      * {@link #rpush(String, String...)}
+     * {@link #lpop(String)}
+     * {@link #lpush(String, String...)}
      * {@link #llen(String)}
+     * {@link #lindex(String, int)}
+     * {@link #lrange(String, int, int)}
+     * {@link #lrange(String, int, int, Consumer)}
+     *
+     * Redis Sorted Sets.
+     * Sorted sets are implemented via {@link SortedSet}, a skip list ordered
+     * by score plus a member-to-score {@link Dict}, so ranks and ranges cost
+     * O(log N + M), e.g. for leaderboards.
+     * {@link #zadd(String, double, String)}
+     * {@link #zadd(String, Map)}
+     * {@link #zrem(String, String...)}
+     * {@link #zscore(String, String)}
+     * {@link #zrank(String, String)}
+     * {@link #zrevrank(String, String)}
+     * {@link #zcard(String)}
+     * {@link #zrange(String, int, int)}
+     * {@link #zrange(String, int, int, BiConsumer)}
+     * {@link #zrevrange(String, int, int)}
+     * {@link #zrevrange(String, int, int, BiConsumer)}
+     * {@link #zrangebyscore(String, double, double)}
+     * {@link #zrangebyscore(String, String, String, int, int, BiConsumer)}
      *
      * General operations.
      * {@link #del(String...)}
+     * {@link #scan(long, int)}
+     *
+     * Key expiration.
+     * A key with an expire time is removed lazily when it is accessed after
+     * the expire time, and actively by {@link #activeExpireCycle()}, which
+     * samples random keys with an expire time like Redis does.
+     * {@link #expire(String, long)}
+     * {@link #pexpire(String, long)}
+     * {@link #ttl(String)}
+     * {@link #pttl(String)}
+     * {@link #persist(String)}
+     * {@link #setex(String, long, String)}
+     * {@link #psetex(String, long, String)}
+     *
+     * Memory limit.
+     * The memory used by every key is estimated, and once the limit set by
+     * {@link #setMaxmemory(long)} is exceeded, write commands first evict
+     * keys according to {@link #setMaxmemoryPolicy(String)}.
+     * {@link #usedMemory()}
+     * {@link #evictedKeys()}
+     *
+     * Persistence.
+     * Every successful write is reported to the {@link CommandFeed} set by
+     * {@link #setFeed(CommandFeed)} as the command that redoes it, e.g. an
+     * {@link AppendOnlyFile}. Relative expire times are reported as absolute
+     * {@link #pexpireat(String, long)}, and keys removed by expiration or
+     * eviction as DEL, so that replaying the commands rebuilds the keyspace.
+     * A point-in-time snapshot is taken by {@link #beginSnapshot()} and
+     * dumped later by {@link #dumpSnapshot(EntryVisitor)}, see
+     * {@link Snapshot}.
+     *
+     * An operation against a key holding the wrong type throws
+     * {@link UnsupportedOperationException}, see
+     * {@link #checkType(String, String)}.
+     */
+    private Dict<String, Evictor.Entry> store = new Dict<>();
+
+    /**
+     * The expire times of the keys that have one.
+     */
+    private final ExpireTable expires = new ExpireTable();
+
+    /**
+     * The memory accounting and the eviction of keys.
+     */
+    private final Evictor evictor = new Evictor();
+
+    /**
+     * Evicts a key of another keyspace sharing the memory limit, when this
+     * one has none to evict, see {@link #shareMaxmemory(AtomicLong, BooleanSupplier)}.
+     */
+    private BooleanSupplier evictElsewhere;
+
+    /**
+     * The number of keys evicted because of the memory limit.
+     */
+    private long evicted;
+
+    /**
+     * The number of lookups of GET, MGET, HGET and HMGET that found the key
+     * or not, as keyspace_hits and keyspace_misses of INFO.
+     */
+    private long hits;
+    private long misses;
+
+    /**
+     * Where the writes are reported, or null.
+     */
+    private CommandFeed feed;
+
+    /**
+     * Where large strings are stored, or null.
+     */
+    private OffHeapSlab slab;
+
+    /**
+     * The length from which strings are stored in the slab, 0 to keep
+     * them all on the heap.
+     */
+    private int offHeapThreshold;
+
+    /**
+     * The error when the memory limit is reached and nothing can be evicted.
+     */
+    private static final String OOM_MESSAGE =
+            "OOM command not allowed when used memory > 'maxmemory'.";
+
+    /**
+     * The exception message when performing an operation against the wrong
+     * type given a key.
+     */
+    private static final String WRONG_TYPE_MESSAGE =
+            "WRONGTYPE Operation against a key holding the wrong kind of value";
+    /**
+     * Unknown type, used in {@link #type(String)}.
+     */
+    private static final String UNKNOWN = "unknown";
+
+    /**
+     * The string representation of when the key does not exist.
+     */
+    private static final String NONE = "none";
+
+    /**
+     * The default of {@link #hashMaxListpackEntries}, as in Redis.
+     */
+    static final int DEFAULT_HASH_MAX_LISTPACK_ENTRIES = 128;
+
+    /**
+     * The default of {@link #hashMaxListpackValue}, as in Redis.
+     */
+    static final int DEFAULT_HASH_MAX_LISTPACK_VALUE = 64;
+
+    /**
+     * The maximum number of fields of a hash encoded as a {@link ListPack}.
+     */
+    private int hashMaxListpackEntries = DEFAULT_HASH_MAX_LISTPACK_ENTRIES;
+
+    /**
+     * The maximum length in bytes of a field or a value of a hash encoded as
+     * a {@link ListPack}.
+     */
+    private int hashMaxListpackValue = DEFAULT_HASH_MAX_LISTPACK_VALUE;
+
+    /**
+     * Sets the maximum number of fields of a hash encoded as a listpack.
+     *
+     * A hash growing beyond it is converted to a hash table. 0 disables the
+     * listpack encoding for new hashes.
+     *
+     * @param n the maximum number of fields
+     * @see <a href="https://redis.io/docs/management/optimization/memory-optimization/">
+     * Memory optimization - Redis</a>
+     */
+    public void setHashMaxListpackEntries(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException(
+                    "hash-max-listpack-entries must not be negative");
+        }
+        hashMaxListpackEntries = n;
+    }
+
+    /**
+     * Sets the maximum length in bytes of a field or a value of a hash
+     * encoded as a listpack.
+     *
+     * Setting a longer field or value converts the hash to a hash table.
+     *
+     * @param n the maximum length in bytes
+     */
+    public void setHashMaxListpackValue(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException(
+                    "hash-max-listpack-value must not be negative");
+        }
+        hashMaxListpackValue = n;
+    }
+
+    /**
+     * Stores the string values of at least the given length outside of the
+     * heap, in direct buffers managed by an {@link OffHeapSlab}, so that
+     * large caches do not burden the garbage collector. 0, the default,
+     * keeps every value on the heap.
+     *
+     * Only values written afterwards are affected, and values larger than
+     * {@link OffHeapSlab#PAGE_SIZE} stay on the heap.
+     *
+     * @param bytes the minimum length of the values stored off the heap
+     */
+    public void setOffHeapThreshold(int bytes) {
+        setOffHeap(slab == null && bytes > 0 ? new OffHeapSlab() : slab, bytes);
+    }
+
+    /**
+     * Returns the memory reserved off the heap for the string values.
+     *
+     * It is included in {@link #usedMemory()} as far as it holds values.
+     *
+     * @return the bytes of the pages of the slab
+     */
+    public long offHeapMemory() {
+        return slab == null ? 0 : slab.reserved();
+    }
+
+    /**
+     * Stores the large string values in the given slab, which may be shared
+     * with other instances.
+     *
+     * @param slab      the slab
+     * @param threshold the minimum length of the values stored in the slab
+     */
+    void setOffHeap(OffHeapSlab slab, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("the off-heap threshold must not be negative");
+        }
+        if (threshold > 0 && this.slab != null && this.slab != slab) {
+            throw new IllegalStateException("the values are already stored in another slab");
+        }
+        if (slab != null) {
+            this.slab = slab;
+        }
+        offHeapThreshold = threshold;
+    }
+
+    /**
+     * Returns the representation of a string value to put in the store.
+     *
+     * @param v the value
+     * @return a chunk of the slab if the value is large enough, else v
+     */
+    private Object storable(byte[] v) {
+        if (offHeapThreshold > 0 && v.length >= offHeapThreshold
+                && v.length <= OffHeapSlab.PAGE_SIZE) {
+            return slab.store(v);
+        }
+        return v;
+    }
+
+    /**
+     * Frees the slab chunk of a value that left the store.
+     *
+     * @param v the value removed or replaced, or null
+     */
+    private void release(Object v) {
+        if (v instanceof OffHeapSlab.Chunk) {
+            slab.free((OffHeapSlab.Chunk) v);
+        }
+    }
+
+    /**
+     * Returns a value with strings stored off the heap copied back, as
+     * written to the feed and to snapshots.
+     */
+    private Object onHeap(Object v) {
+        return v instanceof OffHeapSlab.Chunk ? slab.read((OffHeapSlab.Chunk) v) : v;
+    }
+
+    /**
+     * Sets the memory limit, 0 means no limit.
+     *
+     * @param bytes the maximum estimated memory used by the keys
+     * @see <a href="https://redis.io/docs/reference/eviction/">
+     * Key eviction - Redis</a>
+     */
+    public void setMaxmemory(long bytes) {
+        evictor.setMaxmemory(bytes);
+    }
+
+    /**
+     * @return the memory limit, 0 means no limit
+     */
+    public long maxmemory() {
+        return evictor.maxmemory();
+    }
+
+    /**
+     * Shares the memory limit with other keyspaces, e.g. the stripes of a
+     * {@link StripedRedis}: the limit then bounds the memory used by all
+     * of them, and a write over the limit evicts the keys of this keyspace
+     * first, then those of the others.
+     *
+     * @param total          the memory used by the keyspaces sharing the
+     *                       limit, or null to stop sharing
+     * @param evictElsewhere evicts a key of another keyspace, returns false
+     *                       if none was evicted
+     */
+    void shareMaxmemory(AtomicLong total, BooleanSupplier evictElsewhere) {
+        evictor.share(total);
+        this.evictElsewhere = total == null ? null : evictElsewhere;
+    }
+
+    /**
+     * Evicts one key if the memory limit is exceeded, for another keyspace
+     * sharing the limit.
+     *
+     * @return true if a key was evicted
+     */
+    boolean evictOne() {
+        if (!evictor.overLimit()) {
+            return false;
+        }
+        String victim = evictor.victim(store, expires);
+        if (victim == null) {
+            return false;
+        }
+        deleteKey(victim);
+        evicted++;
+        return true;
+    }
+
+    /**
+     * Sets how keys are evicted once the memory limit is reached.
+     *
+     * @param policy one of "noeviction" (the default), "allkeys-lru",
+     *               "allkeys-lfu" and "volatile-lru"
+     */
+    public void setMaxmemoryPolicy(String policy) {
+        evictor.setPolicy(MaxMemoryPolicy.of(policy));
+    }
+
+    /**
+     * Sets the number of keys sampled per eviction, 5 by default. More
+     * samples approximate true LRU/LFU better at a higher CPU cost.
+     *
+     * @param samples the number of keys sampled
+     */
+    public void setMaxmemorySamples(int samples) {
+        evictor.setSamples(samples);
+    }
+
+    /**
+     * Returns the estimated memory used by the keys and their values.
+     *
+     * @return the estimated size in bytes
+     */
+    public long usedMemory() {
+        return evictor.used();
+    }
+
+    /**
+     * Returns the number of keys evicted because of the memory limit.
+     *
+     * @return the number of evicted keys
+     */
+    public long evictedKeys() {
+        return evicted;
+    }
+
+    /**
+     * Returns the number of read lookups that found the key.
+     *
+     * @return keyspace_hits of INFO
+     */
+    public long keyspaceHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of read lookups that did not find the key.
+     *
+     * @return keyspace_misses of INFO
+     */
+    public long keyspaceMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of keys.
+     *
+     * @return the size of the keyspace, as DBSIZE
+     * @see <a href="https://redis.io/commands/dbsize">DBSIZE - Redis</a>
+     */
+    public int dbsize() {
+        return store.size();
+    }
+
+    /**
+     * Returns the number of keys with an expire time.
+     *
+     * @return expires of the keyspace section of INFO
+     */
+    public int expiresCount() {
+        return expires.size();
+    }
+
+    /**
+     * Returns the number of keys holding a type.
+     *
+     * @param type the type, see {@link #type(String)}
+     * @return the number of keys
+     */
+    public long keys(String type) {
+        return evictor.keys(typeIndex(type));
+    }
+
+    /**
+     * Returns the estimated memory used by the keys holding a type.
+     *
+     * @param type the type, see {@link #type(String)}
+     * @return the estimated size in bytes
+     */
+    public long usedMemory(String type) {
+        return evictor.used(typeIndex(type));
+    }
+
+    private static int typeIndex(String type) {
+        int i = Arrays.asList(Evictor.TYPE_NAMES).indexOf(type);
+        if (i < 0) {
+            throw new IllegalArgumentException("ERR unknown type " + type);
+        }
+        return i;
+    }
+
+    /**
+     * Counts a read lookup for keyspace_hits and keyspace_misses.
+     */
+    private void lookedUp(Object v) {
+        if (v == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+    }
+
+    /**
+     * Reports every successful write to the feed, null to stop reporting.
+     *
+     * @param feed the feed, or null
+     */
+    void setFeed(CommandFeed feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * Reports a write to the feed, if any.
+     *
+     * @param argv the command name followed by its arguments
+     */
+    private void propagate(Object... argv) {
+        if (feed != null) {
+            feed.feed(argv);
+        }
+    }
+
+    /**
+     * The largest number of list elements or hash fields per command written
+     * by {@link #rewrite(CommandFeed)}, as AOF_REWRITE_ITEMS_PER_CMD of Redis.
+     */
+    static final int REWRITE_ITEMS_PER_COMMAND = 64;
+
+    /**
+     * Writes the shortest commands that rebuild the keyspace, one key at a
+     * time: SET for strings, HSET, RPUSH and ZADD for hashes, lists and
+     * sorted sets split into commands of at most
+     * {@link #REWRITE_ITEMS_PER_COMMAND} items, followed
+     * by PEXPIREAT for keys with an expire time. Keys already expired are
+     * skipped.
+     *
+     * @param out where the commands are written
+     */
+    void rewrite(CommandFeed out) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Evictor.Entry> e : store.entrySet()) {
+            String k = e.getKey();
+            long when = expires.isEmpty() ? -1 : expires.get(k);
+            if (when < 0 || when > now) {
+                rewriteKey(out, k, onHeap(e.getValue().value), when);
+            }
+        }
+    }
+
+    /**
+     * Writes the commands that rebuild one key.
+     *
+     * @param out  where the commands are written
+     * @param k    key
+     * @param v    the value, with strings on the heap
+     * @param when the expire time, or -1
+     */
+    private static void rewriteKey(CommandFeed out, String k, Object v, long when) {
+        if (v instanceof byte[]) {
+            out.feed("SET", k, v);
+        } else if (v instanceof QuickList) {
+            @SuppressWarnings("unchecked")
+            QuickList<String> list = (QuickList<String>) v;
+            rewriteItems(out, "RPUSH", k, list.iterator(),
+                    REWRITE_ITEMS_PER_COMMAND);
+        } else if (v instanceof SortedSet) {
+            List<String> items = new ArrayList<>();
+            for (SortedSet.Node e : (SortedSet) v) {
+                items.add(SortedSet.formatScore(e.score()));
+                items.add(e.member());
+            }
+            rewriteItems(out, "ZADD", k, items.iterator(),
+                    REWRITE_ITEMS_PER_COMMAND * 2);
+        } else {
+            List<String> fields = new ArrayList<>();
+            if (v instanceof ListPack) {
+                ((ListPack) v).appendTo(fields);
+            } else {
+                @SuppressWarnings("unchecked")
+                Dict<String, String> m = (Dict<String, String>) v;
+                for (Map.Entry<String, String> f : m.entrySet()) {
+                    fields.add(f.getKey());
+                    fields.add(f.getValue());
+                }
+            }
+            rewriteItems(out, "HSET", k, fields.iterator(),
+                    REWRITE_ITEMS_PER_COMMAND * 2);
+        }
+        if (when >= 0) {
+            out.feed("PEXPIREAT", k, Long.toString(when));
+        }
+    }
+
+    /**
+     * Writes the items as commands of at most max items each.
+     */
+    private static void rewriteItems(CommandFeed out, String cmd, String k,
+                                     Iterator<String> items, int max) {
+        List<String> argv = new ArrayList<>(max + 2);
+        while (items.hasNext()) {
+            argv.clear();
+            argv.add(cmd);
+            argv.add(k);
+            while (items.hasNext() && argv.size() < max + 2) {
+                argv.add(items.next());
+            }
+            out.feed((Object[]) argv.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * The version and the number of watches of every watched key. Only the
+     * watched keys have a version, so the other writes only pay one test of
+     * {@link HashMap#isEmpty()}.
+     */
+    private final HashMap<String, long[]> watched = new HashMap<>();
+
+    /**
+     * Watches a key for a transaction, see {@link Transaction}: every write
+     * of the key, including its expiration or eviction, bumps its version
+     * until it is unwatched.
+     *
+     * @param k key
+     * @return the current version of the key
+     */
+    long watch(String k) {
+        long[] w = watched.computeIfAbsent(k, x -> new long[2]);
+        w[1]++;
+        return w[0];
+    }
+
+    /**
+     * Releases one watch of a key, the key is forgotten with its last watch.
+     *
+     * @param k key
+     */
+    void unwatch(String k) {
+        long[] w = watched.get(k);
+        if (w != null && --w[1] == 0) {
+            watched.remove(k);
+        }
+    }
+
+    /**
+     * Returns the version of a watched key, a key expired since it was
+     * watched counts as written.
+     *
+     * @param k key
+     * @return the version, or -1 if the key is not watched
+     */
+    long version(String k) {
+        expireIfNeeded(k);
+        long[] w = watched.get(k);
+        return w == null ? -1 : w[0];
+    }
+
+    /**
+     * Visits the keys of a snapshot, see {@link #dumpSnapshot(EntryVisitor)}.
+     */
+    interface EntryVisitor {
+
+        /**
+         * Visits one key.
+         *
+         * @param k    key
+         * @param v    the value, a byte array for a string, a
+         *             {@link QuickList}, a {@link ListPack}, a
+         *             {@link Dict} or a {@link SortedSet}, not to be
+         *             modified
+         * @param when the expire time, or -1
+         */
+        void visit(String k, Object v, long when);
+    }
+
+    /**
+     * A key as it was when the pending snapshot began.
+     */
+    private static final class Preserved {
+        private final Object value;
+        private final long when;
+
+        private Preserved(Object value, long when) {
+            this.value = value;
+            this.when = when;
+        }
+    }
+
+    /**
+     * The keys written since the pending snapshot began, with their value at
+     * that time, null when no snapshot is pending. A key that did not exist
+     * then has a null value.
+     */
+    private HashMap<String, Preserved> preserved;
+
+    /**
+     * Returns true if a snapshot began and is not dumped yet.
+     *
+     * @return true if a snapshot is pending
+     */
+    boolean snapshotPending() {
+        return preserved != null;
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the keyspace, to be dumped later by
+     * {@link #dumpSnapshot(EntryVisitor)} while writes go on.
+     *
+     * Nothing is copied here. Instead, the first write to a key until the
+     * dump copies the value of the key before changing it, so the snapshot
+     * costs one copy per key written during the dump, like the copy-on-write
+     * pages of the child forked by BGSAVE in Redis.
+     */
+    void beginSnapshot() {
+        if (preserved != null) {
+            throw new IllegalStateException("ERR Background save already in progress");
+        }
+        preserved = new HashMap<>();
+    }
+
+    /**
+     * Drops the pending snapshot, if any.
+     */
+    void endSnapshot() {
+        preserved = null;
+    }
+
+    /**
+     * Visits every key of the pending snapshot as it was when the snapshot
+     * began, then ends the snapshot. Keys expired by now are skipped.
+     *
+     * @param visitor the visitor
+     */
+    void dumpSnapshot(EntryVisitor visitor) {
+        if (preserved == null) {
+            throw new IllegalStateException("no snapshot pending");
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Evictor.Entry> e : store.entrySet()) {
+            String k = e.getKey();
+            if (preserved.containsKey(k)) {
+                continue;
+            }
+            long when = expires.isEmpty() ? -1 : expires.get(k);
+            if (when < 0 || when > now) {
+                visitor.visit(k, onHeap(e.getValue().value), when);
+            }
+        }
+        for (Map.Entry<String, Preserved> e : preserved.entrySet()) {
+            Preserved p = e.getValue();
+            if (p.value != null && (p.when < 0 || p.when > now)) {
+                visitor.visit(e.getKey(), p.value, p.when);
+            }
+        }
+        preserved = null;
+    }
+
+    /**
+     * Called before every write of a key: bumps the version of the key if it
+     * is watched, and copies the value of the key for the pending snapshot
+     * before the key is written for the first time since the snapshot began.
+     *
+     * @param k key
+     */
+    private void preserve(String k) {
+        if (!watched.isEmpty()) {
+            long[] w = watched.get(k);
+            if (w != null) {
+                w[0]++;
+            }
+        }
+        if (preserved == null || preserved.containsKey(k)) {
+            return;
+        }
+        Evictor.Entry e = store.get(k);
+        long when = e == null || expires.isEmpty() ? -1 : expires.get(k);
+        preserved.put(k, new Preserved(e == null ? null : copyOf(e.value), when));
+    }
+
+    /**
+     * Returns a copy of a value that later writes do not change.
+     *
+     * A string stored off the heap is copied back to the heap, because its
+     * chunk is reused once the key is written.
+     */
+    private Object copyOf(Object v) {
+        if (v instanceof QuickList) {
+            QuickList<String> copy = new QuickList<>();
+            for (Object e : (QuickList<?>) v) {
+                copy.addLast((String) e);
+            }
+            return copy;
+        } else if (v instanceof ListPack) {
+            return ((ListPack) v).copy();
+        } else if (v instanceof SortedSet) {
+            return ((SortedSet) v).copy();
+        } else if (v instanceof Dict) {
+            Dict<Object, Object> copy = new Dict<>();
+            copy.putAll((Dict<?, ?>) v);
+            return copy;
+        }
+        // byte arrays are never modified once stored
+        return onHeap(v);
+    }
+
+    /**
+     * Sets key to a value loaded from a snapshot, replacing any existing
+     * value.
+     *
+     * @param k    key
+     * @param v    the value, as visited by {@link #dumpSnapshot(EntryVisitor)}
+     * @param when the expire time, or -1
+     */
+    void restore(String k, Object v, long when) {
+        performEvictions();
+        preserve(k);
+        put(k, v instanceof byte[] ? storable((byte[]) v) : v);
+        if (when >= 0) {
+            expires.put(k, when);
+        } else if (!expires.isEmpty()) {
+            expires.remove(k);
+        }
+        if (feed != null) {
+            propagate("DEL", k);
+            rewriteKey(feed, k, v, when);
+        }
+    }
+
+    /**
+     * Evicts keys until the memory limit is honored. Called by write commands
+     * before they execute.
+     *
+     * Throws {@link IllegalStateException} if the limit is exceeded and the
+     * policy cannot free memory.
+     */
+    private boolean performEvictions() {
+        boolean any = false;
+        while (evictor.overLimit()) {
+            String victim = evictor.victim(store, expires);
+            if (victim == null) {
+                if (evictElsewhere != null && evictElsewhere.getAsBoolean()) {
+                    // this keyspace is unchanged
+                    continue;
+                }
+                throw new IllegalStateException(OOM_MESSAGE);
+            }
+            deleteKey(victim);
+            evicted++;
+            any = true;
+        }
+        return any;
+    }
+
+    /**
+     * Returns the string representation of the type of the value stored at
+     * key.
+     *
+     * The different types that can be returned are: string, list, hash and
+     * zset.
+     *
+     * @param k key
+     * @return the type of the value stored at key, or "none" when the key does
+     * not exist.
+     * @see <a href="https://redis.io/commands/type">TYPE - Redis</a>
+     */
+    public String type(String k) {
+        expireIfNeeded(k);
+        Evictor.Entry e = store.get(k);
+        if (e == null) {
+            return NONE;
+        }
+        int type = e.type();
+        return type == Evictor.UNKNOWN ? UNKNOWN : Evictor.TYPE_NAMES[type];
+    }
+
+    /**
+     * Set key to hold the string value.
+     *
+     * SET will replace any existing value already stored into the key, in the
+     * case that the key already exists, even if the key is associated with a
+     * non-string value.
+     *
+     * @param k key
+     * @param v string value
+     * @return "OK" to indicate SET was executed correctly
+     * @see <a href="https://redis.io/commands/set">SET - Redis</a>
+     */
+    public String set(String k, String v) {
+        return set(k, v.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Like {@link #set(String, String)} with a binary value.
      *
-     * Please implement the unfinished functions, which are marked by
-     * {@code new UnsupportedOperationException("Waiting to be implemented")}
+     * The array is stored as is, without a copy, so it must not be modified
+     * afterwards.
      *
-     * Throw {@link UnsupportedOperationException} when performing an
-     * operation against the wrong type given a key using
-     * {@link #checkType(String, String)}.
+     * @param k key
+     * @param v binary value
+     * @return "OK" to indicate SET was executed correctly
+     * @see <a href="https://redis.io/commands/set">SET - Redis</a>
      */
-    private HashMap<String, Object> store = new HashMap<>();
+    public String set(String k, byte[] v) {
+        performEvictions();
+        preserve(k);
+        put(k, storable(v));
+        if (!expires.isEmpty()) {
+            expires.remove(k);
+        }
+        propagate("SET", k, v);
+        return "OK";
+    }
 
     /**
-     * The exception message when performing an operation against the wrong
-     * type given a key.
+     * Set key to hold the string value and set key to timeout after a given
+     * number of seconds.
+     *
+     * @param k       key
+     * @param seconds the time to live, must be positive
+     * @param v       string value
+     * @return "OK" to indicate SETEX was executed correctly
+     * @see <a href="https://redis.io/commands/setex">SETEX - Redis</a>
      */
-    private static final String WRONG_TYPE_MESSAGE =
-            "WRONGTYPE Operation against a key holding the wrong kind of value";
+    public String setex(String k, long seconds, String v) {
+        return setex(k, seconds, v.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
-     * The string representation of the types of the value supported by Redis.
+     * Like {@link #setex(String, long, String)} with a binary value, which
+     * must not be modified afterwards.
+     *
+     * @param k       key
+     * @param seconds the time to live, must be positive
+     * @param v       binary value
+     * @return "OK" to indicate SETEX was executed correctly
+     * @see <a href="https://redis.io/commands/setex">SETEX - Redis</a>
      */
-    private static final String STRING = "string";
-    private static final String HASH = "hash";
-    private static final String LIST = "list";
+    public String setex(String k, long seconds, byte[] v) {
+        return psetex(k, checkTimeout(seconds, 1000), v);
+    }
 
     /**
-     * Unknown type, used in {@link #type(String)}.
+     * Set key to hold the string value and set key to timeout after a given
+     * number of milliseconds.
+     *
+     * @param k  key
+     * @param ms the time to live in milliseconds, must be positive
+     * @param v  string value
+     * @return "OK" to indicate PSETEX was executed correctly
+     * @see <a href="https://redis.io/commands/psetex">PSETEX - Redis</a>
      */
-    private static final String UNKNOWN = "unknown";
+    public String psetex(String k, long ms, String v) {
+        return psetex(k, ms, v.getBytes(StandardCharsets.UTF_8));
+    }
 
     /**
-     * The string representation of when the key does not exist.
+     * Like {@link #psetex(String, long, String)} with a binary value, which
+     * must not be modified afterwards.
+     *
+     * @param k  key
+     * @param ms the time to live in milliseconds, must be positive
+     * @param v  binary value
+     * @return "OK" to indicate PSETEX was executed correctly
+     * @see <a href="https://redis.io/commands/psetex">PSETEX - Redis</a>
      */
-    private static final String NONE = "none";
+    public String psetex(String k, long ms, byte[] v) {
+        if (ms <= 0) {
+            throw new IllegalArgumentException(
+                    "ERR invalid expire time in 'psetex' command");
+        }
+        performEvictions();
+        preserve(k);
+        put(k, storable(v));
+        long when = System.currentTimeMillis() + ms;
+        expires.put(k, when);
+        propagate("SET", k, v);
+        propagate("PEXPIREAT", k, Long.toString(when));
+        return "OK";
+    }
 
     /**
-     * Returns the string representation of the type of the value stored at
-     * key.
+     * SET key value [NX] [PX ms]: set key to hold the value, only if it
+     * does not exist yet with nx, e.g. to acquire a lock, and to timeout
+     * after a number of milliseconds if ms is positive.
      *
-     * The different types that can be returned are: string, list and hash.
-     *
-     * @param k key
-     * @return the type of the value stored at key, or "none" when the key does
-     * not exist.
-     * @see <a href="https://redis.io/commands/type">TYPE - Redis</a>
+     * @param k  key
+     * @param v  binary value, not to be modified afterwards
+     * @param nx whether the key is only set if it does not exist
+     * @param ms the time to live in milliseconds, or 0 for none
+     * @return true if the key was set, false if nx and key exists
+     * @see <a href="https://redis.io/commands/set">SET - Redis</a>
      */
-    public String type(String k) {
-        if (store.containsKey(k)) {
-            Object v = store.get(k);
-            if (v instanceof String) {
-                return STRING;
-            } else if (v instanceof HashMap) {
-                return HASH;
-            } else if (v instanceof List) {
-                return LIST;
-            } else {
-                return UNKNOWN;
+    public boolean set(String k, byte[] v, boolean nx, long ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException(
+                    "ERR invalid expire time in 'set' command");
+        }
+        if (nx) {
+            expireIfNeeded(k);
+            if (store.containsKey(k)) {
+                return false;
             }
         }
-        return NONE;
+        if (ms > 0) {
+            psetex(k, ms, v);
+        } else {
+            set(k, v);
+        }
+        return true;
     }
 
     /**
-     * Set key to hold the string value.
-     *
-     * SET will replace any existing value already stored into the key, in the
-     * case that the key already exists, even if the key is associated with a
-     * non-string value.
+     * Increments the number stored at key by one.
      *
      * @param k key
-     * @param v string value
-     * @return "OK" to indicate SET was executed correctly
-     * @see <a href="https://redis.io/commands/set">SET - Redis</a>
+     * @return the value of key after the increment
+     * @see <a href="https://redis.io/commands/incr">INCR - Redis</a>
      */
-    public String set(String k, String v) {
-        store.put(k, v);
-        return "OK";
+    public long incr(String k) {
+        return incrby(k, 1);
+    }
+
+    /**
+     * Increments the number stored at key by delta. A key that does not
+     * exist is set to 0 before the operation, and its timeout is kept if
+     * it has one.
+     *
+     * Throws {@link IllegalArgumentException} if the value is not the
+     * decimal string of a 64 bit signed integer, or if the result would
+     * overflow.
+     *
+     * @param k     key
+     * @param delta the increment
+     * @return the value of key after the increment
+     * @see <a href="https://redis.io/commands/incrby">INCRBY - Redis</a>
+     */
+    public long incrby(String k, long delta) {
+        // before the lookup, so that an eviction does not drop the value read
+        performEvictions();
+        Object v = lookup(k, Evictor.STRING);
+        lookedUp(v);
+        long n = 0;
+        if (v != null) {
+            try {
+                n = Long.parseLong(new String((byte[]) onHeap(v), StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("ERR value is not an integer or out of range");
+            }
+        }
+        long result;
+        try {
+            result = Math.addExact(n, delta);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("ERR increment or decrement would overflow");
+        }
+        byte[] b = Long.toString(result).getBytes(StandardCharsets.US_ASCII);
+        preserve(k);
+        put(k, storable(b));
+        // replicated as a SET, which drops the timeout, so it is sent again
+        propagate("SET", k, b);
+        long when = expires.isEmpty() ? -1 : expires.get(k);
+        if (when >= 0) {
+            propagate("PEXPIREAT", k, Long.toString(when));
+        }
+        return result;
     }
 
     /**
      * Check if the value stored at key matches the type.
      *
-     * type: STRING HASH LIST
+     * type: STRING HASH LIST ZSET
      *
      * Throws {@link UnsupportedOperationException} if the value
      * stored at key exists but does not match the type.
@@ -135,9 +1074,67 @@ public class Redis {
      * @param type to check
      */
     void checkType(String k, String type) {
-        if (!type(k).equals(NONE) && !type(k).equals(type)) {
+        // an unknown type matches no value, not even an unknown one
+        int i = Arrays.asList(Evictor.TYPE_NAMES).indexOf(type.toLowerCase(Locale.ROOT));
+        lookup(k, i < 0 ? Integer.MIN_VALUE : i);
+    }
+
+    /**
+     * Returns the value stored at key and records the access for eviction.
+     *
+     * Throws {@link UnsupportedOperationException} if the value stored at
+     * key exists but does not match the type.
+     *
+     * @param k    key
+     * @param type the expected type, e.g. {@link Evictor#HASH}
+     * @return the value, or null when key does not exist
+     */
+    private Object lookup(String k, int type) {
+        Evictor.Entry e = entry(k, type);
+        return e == null ? null : e.value;
+    }
+
+    /**
+     * Like {@link #lookup(String, int)} but returns the entry of the key,
+     * for the writes that change the value in place.
+     *
+     * The entry holds the value with its type and its access data, so the
+     * type is checked and the access recorded with a single lookup of the
+     * key, and without a string comparison.
+     *
+     * @param k    key
+     * @param type the expected type, e.g. {@link Evictor#HASH}
+     * @return the entry, or null when key does not exist
+     */
+    private Evictor.Entry entry(String k, int type) {
+        expireIfNeeded(k);
+        Evictor.Entry e = store.get(k);
+        if (e == null) {
+            return null;
+        }
+        if (e.type() != type) {
             throw new UnsupportedOperationException(WRONG_TYPE_MESSAGE);
         }
+        evictor.touch(e);
+        return e;
+    }
+
+    /**
+     * Sets key to hold the value, replacing any existing value but keeping
+     * the access data of the key.
+     *
+     * @param k key
+     * @param v the value to store
+     */
+    private void put(String k, Object v) {
+        Evictor.Entry e = store.get(k);
+        if (e == null) {
+            store.put(k, evictor.add(k, v));
+        } else {
+            release(e.value);
+            e.value = v;
+            evictor.resize(e);
+        }
     }
 
     /**
@@ -151,29 +1148,429 @@ public class Redis {
      * or null when key does not exist
      * @see <a href="https://redis.io/commands/get">GET - Redis</a>
      */
-    public String get(String k) {
-        checkType(k, STRING);
-        return (String) store.get(k);
+    public String get(String k) {
+        byte[] v = getBytes(k);
+        return v == null ? null : new String(v, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Like {@link #get(String)} without decoding the value.
+     *
+     * The array of a value stored on the heap is returned as is, without a
+     * copy, so it must not be modified.
+     *
+     * @param k the key
+     * @return the value if the key exists, or null when key does not exist
+     * @see <a href="https://redis.io/commands/get">GET - Redis</a>
+     */
+    public byte[] getBytes(String k) {
+        Object v = lookup(k, Evictor.STRING);
+        lookedUp(v);
+        return (byte[]) onHeap(v);
+    }
+
+    /**
+     * Like {@link #getBytes(String)} but lends the value to the reader,
+     * without copying a value stored off the heap. The buffer is read-only
+     * and only valid during the call, e.g. to copy the value into the
+     * output buffer of a connection.
+     *
+     * @param k      the key
+     * @param reader the reader of the remaining bytes of the buffer
+     * @return true if the key exists, false when key does not exist
+     * @see <a href="https://redis.io/commands/get">GET - Redis</a>
+     */
+    public boolean get(String k, Consumer<ByteBuffer> reader) {
+        Object v = lookup(k, Evictor.STRING);
+        lookedUp(v);
+        if (v == null) {
+            return false;
+        }
+        lend(v, reader);
+        return true;
+    }
+
+    /**
+     * Lends a string value to the reader as a read-only buffer.
+     */
+    private void lend(Object v, Consumer<ByteBuffer> reader) {
+        if (v instanceof OffHeapSlab.Chunk) {
+            slab.read((OffHeapSlab.Chunk) v, reader);
+        } else {
+            reader.accept(ByteBuffer.wrap((byte[]) v).asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Returns the string value of key, or null if key does not exist or
+     * holds another type, which MGET does not report as an error.
+     */
+    private Object stringValue(String k) {
+        expireIfNeeded(k);
+        Evictor.Entry e = store.get(k);
+        if (e != null && e.type() == Evictor.STRING) {
+            evictor.touch(e);
+            hits++;
+            return e.value;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Like {@link #getBytes(String)}, but a key holding another type is
+     * treated as missing instead of an error, as MGET does.
+     *
+     * @param k the key
+     * @return the value if the key holds a string, else null
+     */
+    byte[] getBytesIfString(String k) {
+        return (byte[]) onHeap(stringValue(k));
+    }
+
+    /**
+     * Like {@link #get(String, Consumer)}, but a key holding another type
+     * is treated as missing instead of an error, as MGET does.
+     *
+     * @param k      the key
+     * @param reader the reader of the remaining bytes of the buffer
+     * @return true if the key holds a string
+     */
+    boolean getIfString(String k, Consumer<ByteBuffer> reader) {
+        Object v = stringValue(k);
+        if (v == null) {
+            return false;
+        }
+        lend(v, reader);
+        return true;
+    }
+
+    /**
+     * Returns the values of all the specified keys.
+     *
+     * A key that does not exist or does not hold a string has a null
+     * value, MGET never fails. One lookup is made per key, and the values
+     * are collected in an array of the size of the batch.
+     *
+     * @param ks the keys
+     * @return the values in the order of the keys, null for the missing ones
+     * @see <a href="https://redis.io/commands/mget">MGET - Redis</a>
+     */
+    public List<String> mget(String... ks) {
+        String[] vs = new String[ks.length];
+        for (int i = 0; i < ks.length; i++) {
+            byte[] v = getBytesIfString(ks[i]);
+            if (v != null) {
+                vs[i] = new String(v, StandardCharsets.UTF_8);
+            }
+        }
+        return Arrays.asList(vs);
+    }
+
+    /**
+     * Like {@link #mget(String...)} but lends the values to the reader in
+     * the order of the keys, null for a missing value, without copying
+     * them.
+     *
+     * @param ks     the keys
+     * @param reader the reader of every value, each buffer only valid
+     *               during its call
+     * @return the number of keys holding a string
+     * @see <a href="https://redis.io/commands/mget">MGET - Redis</a>
+     */
+    public int mget(String[] ks, Consumer<ByteBuffer> reader) {
+        int found = 0;
+        for (String k : ks) {
+            if (getIfString(k, reader)) {
+                found++;
+            } else {
+                reader.accept(null);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Sets the given keys to their values, as {@link #set(String, String)}
+     * for every pair. E.g. {@code mset(key1, value1, key2, value2)}
+     *
+     * @param kvs the keys each followed by its value
+     * @return "OK"
+     * @see <a href="https://redis.io/commands/mset">MSET - Redis</a>
+     */
+    public String mset(String... kvs) {
+        if (kvs.length == 0 || kvs.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "ERR wrong number of arguments for 'mset' command");
+        }
+        for (int i = 0; i < kvs.length; i += 2) {
+            set(kvs[i], kvs[i + 1].getBytes(StandardCharsets.UTF_8));
+        }
+        return "OK";
+    }
+
+    /**
+     * Like {@link #mset(String...)} with binary values, which must not be
+     * modified afterwards.
+     *
+     * @param ks the keys
+     * @param vs the value of every key
+     * @return "OK"
+     * @see <a href="https://redis.io/commands/mset">MSET - Redis</a>
+     */
+    public String mset(String[] ks, byte[][] vs) {
+        if (ks.length == 0 || ks.length != vs.length) {
+            throw new IllegalArgumentException(
+                    "ERR wrong number of arguments for 'mset' command");
+        }
+        for (int i = 0; i < ks.length; i++) {
+            set(ks[i], vs[i]);
+        }
+        return "OK";
+    }
+
+    /**
+     * Removes the specified keys. E.g. {@code del(key1, key2, key3)}
+     *
+     * A key is ignored if it does not exist.
+     *
+     * @param ks keys to remove
+     * @return the number of keys that were removed
+     * @see <a href="https://redis.io/commands/del">DEL - Redis</a>
+     */
+    public int del(String... ks) {
+        int n = 0;
+        for (String k : ks) {
+            expireIfNeeded(k);
+            if (store.containsKey(k)) {
+                deleteKey(k);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Set a timeout on key in seconds. After the timeout has expired, the key
+     * will automatically be deleted.
+     *
+     * The timeout is cleared by {@link #set(String, String)}, {@link #del(String...)}
+     * and {@link #persist(String)}, but not by commands that alter the value
+     * stored at key such as {@link #hset(String, String, String)}.
+     *
+     * A non-positive timeout deletes the key immediately.
+     *
+     * @param k       key
+     * @param seconds the timeout in seconds
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see <a href="https://redis.io/commands/expire">EXPIRE - Redis</a>
+     */
+    public int expire(String k, long seconds) {
+        return pexpire(k, checkTimeout(seconds, 1000));
+    }
+
+    /**
+     * Like {@link #expire(String, long)} but the timeout is in milliseconds.
+     *
+     * @param k  key
+     * @param ms the timeout in milliseconds
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see <a href="https://redis.io/commands/pexpire">PEXPIRE - Redis</a>
+     */
+    public int pexpire(String k, long ms) {
+        return pexpireat(k, System.currentTimeMillis() + checkTimeout(ms, 1));
+    }
+
+    /**
+     * Like {@link #pexpire(String, long)} but the expire time is an absolute
+     * Unix time in milliseconds. A time in the past deletes the key.
+     *
+     * @param k    key
+     * @param when the expire time, in milliseconds since the epoch
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see <a href="https://redis.io/commands/pexpireat">PEXPIREAT - Redis</a>
+     */
+    public int pexpireat(String k, long when) {
+        expireIfNeeded(k);
+        if (!store.containsKey(k)) {
+            return 0;
+        }
+        if (when <= System.currentTimeMillis()) {
+            deleteKey(k);
+        } else {
+            preserve(k);
+            expires.put(k, when);
+            propagate("PEXPIREAT", k, Long.toString(when));
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the remaining time to live of a key that has a timeout, in
+     * seconds.
+     *
+     * @param k key
+     * @return the time to live in seconds, -2 if the key does not exist,
+     * or -1 if the key exists but has no associated expire
+     * @see <a href="https://redis.io/commands/ttl">TTL - Redis</a>
+     */
+    public long ttl(String k) {
+        long ms = pttl(k);
+        return ms < 0 ? ms : (ms + 500) / 1000;
+    }
+
+    /**
+     * Like {@link #ttl(String)} but the time to live is in milliseconds.
+     *
+     * @param k key
+     * @return the time to live in milliseconds, -2 if the key does not exist,
+     * or -1 if the key exists but has no associated expire
+     * @see <a href="https://redis.io/commands/pttl">PTTL - Redis</a>
+     */
+    public long pttl(String k) {
+        expireIfNeeded(k);
+        if (!store.containsKey(k)) {
+            return -2;
+        }
+        long when = expires.get(k);
+        return when < 0 ? -1 : Math.max(0, when - System.currentTimeMillis());
+    }
+
+    /**
+     * Remove the existing timeout on key.
+     *
+     * @param k key
+     * @return 1 if the timeout was removed, 0 if key does not exist or does
+     * not have an associated timeout
+     * @see <a href="https://redis.io/commands/persist">PERSIST - Redis</a>
+     */
+    public int persist(String k) {
+        expireIfNeeded(k);
+        if (expires.isEmpty() || expires.get(k) < 0) {
+            // nothing changes, so neither the snapshot nor WATCH see a write
+            return 0;
+        }
+        preserve(k);
+        expires.remove(k);
+        propagate("PERSIST", k);
+        return 1;
+    }
+
+    /**
+     * The number of keys with an expire time sampled per iteration of
+     * {@link #activeExpireCycle()}.
+     */
+    static final int ACTIVE_EXPIRE_SAMPLES = 20;
+
+    /**
+     * The upper bound of the time spent in one {@link #activeExpireCycle()},
+     * in nanoseconds.
+     */
+    static final long ACTIVE_EXPIRE_BUDGET_NANOS = 1_000_000L;
+
+    /**
+     * Removes expired keys that are never accessed again.
+     *
+     * Like the active expire cycle of Redis, it samples
+     * {@link #ACTIVE_EXPIRE_SAMPLES} random keys with an expire time and
+     * removes the expired ones, and repeats as long as more than 25% of the
+     * sample was expired, within a time budget. It never scans the whole
+     * keyspace, so its cost does not depend on the number of keys.
+     *
+     * This program is not thread-safe, so the owner of the instance should
+     * call this periodically, e.g. 10 times per second as Redis does, or use
+     * {@link StripedRedis#startActiveExpire(long)}.
+     *
+     * @return the number of keys removed
+     */
+    public int activeExpireCycle() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int removed = 0;
+        int expired;
+        do {
+            int samples = Math.min(ACTIVE_EXPIRE_SAMPLES, expires.size());
+            expired = 0;
+            for (int i = 0; i < samples; i++) {
+                int slot = random.nextInt(expires.size());
+                if (expires.whenAt(slot) <= now) {
+                    deleteKey(expires.keyAt(slot));
+                    expired++;
+                }
+            }
+            removed += expired;
+        } while (expired > ACTIVE_EXPIRE_SAMPLES / 4
+                && System.nanoTime() - start < ACTIVE_EXPIRE_BUDGET_NANOS);
+        return removed;
+    }
+
+    /**
+     * Removes the key if its expire time has passed.
+     *
+     * @param k key
+     * @return true if the key was expired and removed
+     */
+    private boolean expireIfNeeded(String k) {
+        if (expires.isEmpty()) {
+            return false;
+        }
+        long when = expires.get(k);
+        if (when < 0 || when > System.currentTimeMillis()) {
+            return false;
+        }
+        deleteKey(k);
+        return true;
+    }
+
+    /**
+     * Removes every key, each reported as DEL to the feed, as FLUSHALL.
+     */
+    void flushAll() {
+        for (String k : new ArrayList<>(store.keySet())) {
+            deleteKey(k);
+        }
+    }
+
+    /**
+     * Removes the key and reports it as DEL to the feed.
+     *
+     * @param k key
+     */
+    private void deleteKey(String k) {
+        removeKey(k);
+        propagate("DEL", k);
+    }
+
+    /**
+     * Removes the key together with its expire time.
+     *
+     * @param k key
+     */
+    private void removeKey(String k) {
+        preserve(k);
+        Evictor.Entry e = store.remove(k);
+        if (e != null) {
+            release(e.value);
+            evictor.remove(e);
+        }
+        if (!expires.isEmpty()) {
+            expires.remove(k);
+        }
     }
 
     /**
-     * Removes the specified keys. E.g. {@code del(key1, key2, key3)}
-     *
-     * A key is ignored if it does not exist.
+     * Converts a timeout to milliseconds, rejecting overflows.
      *
-     * @param ks keys to remove
-     * @return the number of keys that were removed
-     * @see <a href="https://redis.io/commands/del">DEL - Redis</a>
+     * @param timeout    the timeout
+     * @param multiplier the number of milliseconds per unit
+     * @return the timeout in milliseconds
      */
-    public int del(String... ks) {
-        int n = 0;
-        for (String k : ks) {
-            if (store.containsKey(k)) {
-                store.remove(k);
-                n++;
-            }
+    private static long checkTimeout(long timeout, long multiplier) {
+        if (Math.abs(timeout) > Long.MAX_VALUE / multiplier / 2) {
+            throw new IllegalArgumentException("ERR invalid expire time");
         }
-        return n;
+        return timeout * multiplier;
     }
 
 
@@ -192,15 +1589,97 @@ public class Redis {
      * @see <a href="https://redis.io/commands/hset">HSET - Redis</a>
      */
     public int hset(String k, String f, String v) {
-        checkType(k, HASH);
+        int added = setField(k, f, v);
+        propagate("HSET", k, f, v);
+        return added;
+    }
+
+    /**
+     * Sets several fields in the hash stored at key, reported to the feed
+     * as one write.
+     * E.g. {@code hset(key, field1, value1, field2, value2)}
+     *
+     * @param k   key
+     * @param fvs the fields each followed by its value
+     * @return the number of fields that were added
+     * @see <a href="https://redis.io/commands/hset">HSET - Redis</a>
+     */
+    public int hset(String k, String... fvs) {
+        if (fvs.length == 0 || fvs.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "ERR wrong number of arguments for 'hset' command");
+        }
+        int added = 0;
+        for (int i = 0; i < fvs.length; i += 2) {
+            added += setField(k, fvs[i], fvs[i + 1]);
+        }
+        Object[] argv = new Object[fvs.length + 2];
+        argv[0] = "HSET";
+        argv[1] = k;
+        System.arraycopy(fvs, 0, argv, 2, fvs.length);
+        propagate(argv);
+        return added;
+    }
+
+    /**
+     * Sets several fields in the hash stored at key, as
+     * {@link #hset(String, String...)}.
+     *
+     * @param k   key
+     * @param fvs the fields each followed by its value
+     * @return "OK"
+     * @see <a href="https://redis.io/commands/hmset">HMSET - Redis</a>
+     */
+    public String hmset(String k, String... fvs) {
+        hset(k, fvs);
+        return "OK";
+    }
+
+    /**
+     * Sets field in the hash stored at key, converting the listpack to a
+     * hash table once it exceeds the listpack limits.
+     *
+     * @param k key
+     * @param f field
+     * @param v value
+     * @return 1 if field is new, 0 if it was updated
+     */
+    private int setField(String k, String f, String v) {
+        Evictor.Entry e = entry(k, Evictor.HASH);
+        if (performEvictions()) {
+            e = store.get(k);
+        }
+        preserve(k);
+        if (e == null) {
+            e = evictor.add(k, hashMaxListpackEntries > 0 ? new ListPack() : new Dict<>());
+            store.put(k, e);
+        }
+        if (e.value instanceof ListPack) {
+            ListPack lp = (ListPack) e.value;
+            byte[] fb = ListPack.encode(f);
+            byte[] vb = ListPack.encode(v);
+            if (fb.length <= hashMaxListpackValue
+                    && vb.length <= hashMaxListpackValue) {
+                int added = lp.put(fb, vb);
+                if (lp.size() > hashMaxListpackEntries) {
+                    e.value = lp.toDict();
+                }
+                evictor.resize(e);
+                return added;
+            }
+            e.value = lp.toDict();
+            evictor.resize(e);
+        }
         @SuppressWarnings("unchecked")
-        HashMap<String, String> m = (HashMap<String, String>) store.get(k);
-        if (m == null) {
-            m = new HashMap<>();
-            store.put(k, m);
+        Dict<String, String> m = (Dict<String, String>) e.value;
+        String old = m.put(f, v);
+        if (old == null) {
+            evictor.grow(e, Evictor.HASH_FIELD_OVERHEAD
+                    + Evictor.stringSize(f) + Evictor.stringSize(v));
+            return 1;
         }
-        throw new UnsupportedOperationException(
-                "Waiting to be implemented");
+        evictor.grow(e, Evictor.stringSize(v) - Evictor.stringSize(old));
+        return 0;
     }
 
     /**
@@ -213,14 +1692,61 @@ public class Redis {
      * @see <a href="https://redis.io/commands/hget">HGET - Redis</a>
      */
     public String hget(String k, String f) {
-        checkType(k, HASH);
-        @SuppressWarnings("unchecked")
-        HashMap<String, String> m = (HashMap<String, String>) store.get(k);
-        if (m == null) {
+        Object h = lookup(k, Evictor.HASH);
+        lookedUp(h);
+        if (h == null) {
             return null;
         }
-        throw new UnsupportedOperationException(
-                "Waiting to be implemented");
+        if (h instanceof ListPack) {
+            return ((ListPack) h).get(f);
+        }
+        @SuppressWarnings("unchecked")
+        Dict<String, String> m = (Dict<String, String>) h;
+        return m.get(f);
+    }
+
+    /**
+     * Returns the values associated with the fields in the hash stored at
+     * key, with one lookup of the key for the whole batch.
+     *
+     * @param k  key
+     * @param fs fields
+     * @return the values in the order of the fields, null for the fields
+     * not present in the hash, all null when key does not exist
+     * @see <a href="https://redis.io/commands/hmget">HMGET - Redis</a>
+     */
+    public List<String> hmget(String k, String... fs) {
+        Object h = lookup(k, Evictor.HASH);
+        lookedUp(h);
+        String[] vs = new String[fs.length];
+        if (h instanceof ListPack) {
+            ListPack lp = (ListPack) h;
+            for (int i = 0; i < fs.length; i++) {
+                vs[i] = lp.get(fs[i]);
+            }
+        } else if (h != null) {
+            @SuppressWarnings("unchecked")
+            Dict<String, String> m = (Dict<String, String>) h;
+            for (int i = 0; i < fs.length; i++) {
+                vs[i] = m.get(fs[i]);
+            }
+        }
+        return Arrays.asList(vs);
+    }
+
+    /**
+     * Returns the number of fields contained in the hash stored at key.
+     *
+     * @param k key
+     * @return the number of fields, or 0 when key does not exist
+     * @see <a href="https://redis.io/commands/hlen">HLEN - Redis</a>
+     */
+    public int hlen(String k) {
+        Object h = lookup(k, Evictor.HASH);
+        if (h == null) {
+            return 0;
+        }
+        return h instanceof ListPack ? ((ListPack) h).size() : ((Dict<?, ?>) h).size();
     }
 
     /**
@@ -235,15 +1761,121 @@ public class Redis {
      * @see <a href="https://redis.io/commands/hgetall">HGETALL - Redis</a>
      */
     public List<String> hgetall(String k) {
-        checkType(k, HASH);
-        List<String> list = new LinkedList<>();
+        List<String> list = new ArrayList<>();
+        hgetall(k, (f, v) -> {
+            list.add(f);
+            list.add(v);
+        });
+        return list;
+    }
+
+    /**
+     * Visits all fields and values of the hash stored at key, without
+     * collecting them into a list first.
+     *
+     * The hash must not be modified by the visitor.
+     *
+     * @param k       key
+     * @param visitor the visitor of every field and its value
+     * @return the number of fields visited, 0 when key does not exist
+     * @see <a href="https://redis.io/commands/hgetall">HGETALL - Redis</a>
+     */
+    public int hgetall(String k, BiConsumer<String, String> visitor) {
+        Object h = lookup(k, Evictor.HASH);
+        if (h == null) {
+            return 0;
+        }
+        if (h instanceof ListPack) {
+            ListPack lp = (ListPack) h;
+            lp.forEach(visitor);
+            return lp.size();
+        }
+        @SuppressWarnings("unchecked")
+        Dict<String, String> m = (Dict<String, String>) h;
+        m.forEach(visitor);
+        return m.size();
+    }
+
+    /**
+     * The default COUNT of {@link #scan(long, int)}, as in Redis.
+     */
+    static final int DEFAULT_SCAN_COUNT = 10;
+
+    /**
+     * Incrementally iterates the keyspace.
+     *
+     * Start with cursor 0 and call again with the returned cursor until it
+     * is 0. Every key present for the whole iteration is returned at least
+     * once, even if the keyspace grows or shrinks meanwhile, but a key may
+     * be returned more than once. Each call does a bounded amount of work,
+     * so iterating a large keyspace does not stall other commands.
+     *
+     * @param cursor the cursor, 0 to start
+     * @param count  the number of keys to return per call, a hint only
+     * @return the next cursor and the keys
+     * @see <a href="https://redis.io/commands/scan">SCAN - Redis</a>
+     */
+    public ScanResult scan(long cursor, int count) {
+        List<String> keys = new ArrayList<>();
+        cursor = scan(store, cursor, count, (k, v) -> keys.add(k));
+        // expired keys are removed and left out, as Redis does
+        if (!expires.isEmpty()) {
+            keys.removeIf(this::expireIfNeeded);
+        }
+        return new ScanResult(cursor, keys);
+    }
+
+    /**
+     * Incrementally iterates the fields and values of the hash stored at
+     * key, with the guarantees of {@link #scan(long, int)}.
+     *
+     * A hash encoded as a listpack is returned at once with cursor 0, as
+     * Redis does, because it is small.
+     *
+     * @param k      key
+     * @param cursor the cursor, 0 to start
+     * @param count  the number of fields to return per call, a hint only
+     * @return the next cursor and the fields, each followed by its value
+     * @see <a href="https://redis.io/commands/hscan">HSCAN - Redis</a>
+     */
+    public ScanResult hscan(String k, long cursor, int count) {
+        Object h = lookup(k, Evictor.HASH);
+        List<String> items = new ArrayList<>();
+        if (h == null) {
+            return new ScanResult(0, items);
+        }
+        if (h instanceof ListPack) {
+            ((ListPack) h).appendTo(items);
+            return new ScanResult(0, items);
+        }
         @SuppressWarnings("unchecked")
-        HashMap<String, String> m = (HashMap<String, String>) store.get(k);
-        if (m == null) {
-            return list;
+        Dict<String, String> m = (Dict<String, String>) h;
+        cursor = scan(m, cursor, count, (f, v) -> {
+            items.add(f);
+            items.add(v);
+        });
+        return new ScanResult(cursor, items);
+    }
+
+    /**
+     * Scans buckets until count entries were visited, the iteration is over,
+     * or ten times count empty buckets were seen.
+     */
+    private static <V> long scan(Dict<String, V> dict, long cursor, int count,
+                                 BiConsumer<String, V> visitor) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("ERR syntax error");
         }
-        throw new UnsupportedOperationException(
-                "Waiting to be implemented");
+        int[] visited = new int[1];
+        BiConsumer<String, V> counting = (k, v) -> {
+            visitor.accept(k, v);
+            visited[0]++;
+        };
+        long maxIterations = count * 10L;
+        do {
+            cursor = dict.scan(cursor, counting);
+        } while (cursor != 0 && visited[0] < count && --maxIterations > 0);
+        return cursor;
     }
 
     /**
@@ -258,9 +1890,8 @@ public class Redis {
      * @see <a href="https://redis.io/commands/llen">LLEN - Redis</a>
      */
     public int llen(String k) {
-        checkType(k, LIST);
         @SuppressWarnings("unchecked")
-        LinkedList<String> list = (LinkedList<String>) store.get(k);
+        QuickList<String> list = (QuickList<String>) lookup(k, Evictor.LIST);
         if (list == null) {
             return 0;
         }
@@ -281,15 +1912,31 @@ public class Redis {
      * @see <a href="https://redis.io/commands/rpush">RPUSH - Redis</a>
      */
     public int rpush(String k, String... vs) {
-        checkType(k, LIST);
+        Evictor.Entry e = entry(k, Evictor.LIST);
+        if (performEvictions()) {
+            e = store.get(k);
+        }
+        preserve(k);
+        if (e == null) {
+            e = evictor.add(k, new QuickList<String>());
+            store.put(k, e);
+        }
         @SuppressWarnings("unchecked")
-        LinkedList<String> list = (LinkedList<String>) store.get(k);
-        if (list == null) {
-            list = new LinkedList<>();
-            store.put(k, list);
+        QuickList<String> list = (QuickList<String>) e.value;
+        long delta = 0;
+        for (String v : vs) {
+            list.addLast(v);
+            delta += Evictor.LIST_ELEMENT_OVERHEAD + Evictor.stringSize(v);
+        }
+        evictor.grow(e, delta);
+        if (feed != null) {
+            String[] argv = new String[vs.length + 2];
+            argv[0] = "RPUSH";
+            argv[1] = k;
+            System.arraycopy(vs, 0, argv, 2, vs.length);
+            feed.feed((Object[]) argv);
         }
-        throw new UnsupportedOperationException(
-                "Waiting to be implemented");
+        return list.size();
     }
 
     /**
@@ -303,13 +1950,448 @@ public class Redis {
      * @see <a href="https://redis.io/commands/rpop">RPOP - Redis</a>
      */
     public String rpop(String k) {
-        checkType(k, LIST);
+        Evictor.Entry e = entry(k, Evictor.LIST);
+        if (e == null) {
+            return null;
+        }
+        preserve(k);
+        @SuppressWarnings("unchecked")
+        QuickList<String> list = (QuickList<String>) e.value;
+        String v = list.pollLast();
+        if (list.isEmpty()) {
+            // Redis never keeps an empty list around
+            removeKey(k);
+        } else {
+            evictor.grow(e, -Evictor.LIST_ELEMENT_OVERHEAD - Evictor.stringSize(v));
+        }
+        propagate("RPOP", k);
+        return v;
+    }
+
+    /**
+     * Insert all the specified values at the head of the list stored at key,
+     * one after the other, so the last value ends up first.
+     *
+     * If key does not exist, it is created as an empty list before performing the
+     * push operation.
+     *
+     * When key holds a value that is not a list, an error is returned.
+     *
+     * @param k  key
+     * @param vs values
+     * @return the length of the list after the push operation
+     * @see <a href="https://redis.io/commands/lpush">LPUSH - Redis</a>
+     */
+    public int lpush(String k, String... vs) {
+        Evictor.Entry e = entry(k, Evictor.LIST);
+        if (performEvictions()) {
+            e = store.get(k);
+        }
+        preserve(k);
+        if (e == null) {
+            e = evictor.add(k, new QuickList<String>());
+            store.put(k, e);
+        }
+        @SuppressWarnings("unchecked")
+        QuickList<String> list = (QuickList<String>) e.value;
+        long delta = 0;
+        for (String v : vs) {
+            list.addFirst(v);
+            delta += Evictor.LIST_ELEMENT_OVERHEAD + Evictor.stringSize(v);
+        }
+        evictor.grow(e, delta);
+        if (feed != null) {
+            String[] argv = new String[vs.length + 2];
+            argv[0] = "LPUSH";
+            argv[1] = k;
+            System.arraycopy(vs, 0, argv, 2, vs.length);
+            feed.feed((Object[]) argv);
+        }
+        return list.size();
+    }
+
+    /**
+     * Removes and returns the first element of the list stored at key.
+     *
+     * When key holds a value that is not a list, an error is returned.
+     *
+     * @param k the key
+     * @return the value of the first element, or null when key does not exist.
+     * @see <a href="https://redis.io/commands/lpop">LPOP - Redis</a>
+     */
+    public String lpop(String k) {
+        Evictor.Entry e = entry(k, Evictor.LIST);
+        if (e == null) {
+            return null;
+        }
+        preserve(k);
+        @SuppressWarnings("unchecked")
+        QuickList<String> list = (QuickList<String>) e.value;
+        String v = list.pollFirst();
+        if (list.isEmpty()) {
+            // Redis never keeps an empty list around
+            removeKey(k);
+        } else {
+            evictor.grow(e, -Evictor.LIST_ELEMENT_OVERHEAD - Evictor.stringSize(v));
+        }
+        propagate("LPOP", k);
+        return v;
+    }
+
+    /**
+     * Returns the element at index in the list stored at key.
+     *
+     * The index is zero-based, negative indexes count from the tail, so -1
+     * is the last element.
+     *
+     * When the value at key is not a list, an error is returned.
+     *
+     * @param k     key
+     * @param index the index
+     * @return the requested element, or null when index is out of range or
+     * key does not exist
+     * @see <a href="https://redis.io/commands/lindex">LINDEX - Redis</a>
+     */
+    public String lindex(String k, int index) {
+        @SuppressWarnings("unchecked")
+        QuickList<String> list = (QuickList<String>) lookup(k, Evictor.LIST);
+        if (list == null) {
+            return null;
+        }
+        return list.get(index);
+    }
+
+    /**
+     * Returns the specified elements of the list stored at key.
+     *
+     * The offsets start and stop are zero-based and inclusive, negative
+     * offsets count from the tail. Out of range offsets do not produce an
+     * error, they are clamped to the list.
+     *
+     * When the value at key is not a list, an error is returned.
+     *
+     * @param k     key
+     * @param start the first offset
+     * @param stop  the last offset
+     * @return the elements in the specified range, or an empty list when key
+     * does not exist
+     * @see <a href="https://redis.io/commands/lrange">LRANGE - Redis</a>
+     */
+    public List<String> lrange(String k, int start, int stop) {
+        @SuppressWarnings("unchecked")
+        QuickList<String> list = (QuickList<String>) lookup(k, Evictor.LIST);
+        if (list == null) {
+            return new ArrayList<>(0);
+        }
+        return list.range(start, stop);
+    }
+
+    /**
+     * Visits the specified elements of the list stored at key, with the
+     * offsets of {@link #lrange(String, int, int)}, without copying them to a
+     * list.
+     *
+     * A long list is read page by page by passing the offset after the last
+     * element visited as the next start, like a cursor.
+     *
+     * @param k       key
+     * @param start   the first offset
+     * @param stop    the last offset
+     * @param visitor the visitor of the elements
+     * @return the number of elements visited
+     * @see <a href="https://redis.io/commands/lrange">LRANGE - Redis</a>
+     */
+    public int lrange(String k, int start, int stop, Consumer<String> visitor) {
         @SuppressWarnings("unchecked")
-        LinkedList<String> list = (LinkedList<String>) store.get(k);
+        QuickList<String> list = (QuickList<String>) lookup(k, Evictor.LIST);
         if (list == null) {
+            return 0;
+        }
+        return list.forEachInRange(start, stop, visitor);
+    }
+
+    /**
+     * Adds a member with a score to the sorted set stored at key, or updates
+     * the score of an existing member, re-positioning it.
+     *
+     * If key does not exist, a new sorted set is created.
+     *
+     * @param k      key
+     * @param score  the score
+     * @param member the member
+     * @return 1 if the member was added, 0 if its score was updated
+     * @see <a href="https://redis.io/commands/zadd">ZADD - Redis</a>
+     */
+    public int zadd(String k, double score, String member) {
+        return zadd(k, Collections.singletonMap(member, score));
+    }
+
+    /**
+     * Adds all the members with their scores to the sorted set stored at
+     * key, see {@link #zadd(String, double, String)}.
+     *
+     * Throws {@link IllegalArgumentException} if a score is NaN.
+     *
+     * @param k      key
+     * @param scores the score of every member
+     * @return the number of members added, not counting the updated ones
+     * @see <a href="https://redis.io/commands/zadd">ZADD - Redis</a>
+     */
+    public int zadd(String k, Map<String, Double> scores) {
+        Evictor.Entry e = entry(k, Evictor.ZSET);
+        for (double score : scores.values()) {
+            if (Double.isNaN(score)) {
+                throw new IllegalArgumentException("ERR value is not a valid float");
+            }
+        }
+        if (scores.isEmpty()) {
+            return 0;
+        }
+        if (performEvictions()) {
+            e = store.get(k);
+        }
+        preserve(k);
+        if (e == null) {
+            e = evictor.add(k, new SortedSet());
+            store.put(k, e);
+        }
+        SortedSet zset = (SortedSet) e.value;
+        int added = 0;
+        long delta = 0;
+        String[] argv = new String[scores.size() * 2 + 2];
+        argv[0] = "ZADD";
+        argv[1] = k;
+        int i = 2;
+        for (Map.Entry<String, Double> member : scores.entrySet()) {
+            if (zset.add(member.getValue(), member.getKey())) {
+                added++;
+                delta += Evictor.ZSET_ELEMENT_OVERHEAD + Evictor.stringSize(member.getKey());
+            }
+            argv[i++] = SortedSet.formatScore(member.getValue());
+            argv[i++] = member.getKey();
+        }
+        evictor.grow(e, delta);
+        propagate((Object[]) argv);
+        return added;
+    }
+
+    /**
+     * Removes the specified members from the sorted set stored at key.
+     * Non-existing members are ignored, and the key is removed with its last
+     * member.
+     *
+     * @param k       key
+     * @param members the members
+     * @return the number of members removed
+     * @see <a href="https://redis.io/commands/zrem">ZREM - Redis</a>
+     */
+    public int zrem(String k, String... members) {
+        Evictor.Entry e = entry(k, Evictor.ZSET);
+        if (e == null) {
+            return 0;
+        }
+        preserve(k);
+        SortedSet zset = (SortedSet) e.value;
+        List<String> removed = new ArrayList<>(members.length);
+        long delta = 0;
+        for (String m : members) {
+            if (zset.remove(m)) {
+                removed.add(m);
+                delta -= Evictor.ZSET_ELEMENT_OVERHEAD + Evictor.stringSize(m);
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        if (zset.isEmpty()) {
+            removeKey(k);
+        } else {
+            evictor.grow(e, delta);
+        }
+        if (feed != null) {
+            String[] argv = new String[removed.size() + 2];
+            argv[0] = "ZREM";
+            argv[1] = k;
+            for (int i = 0; i < removed.size(); i++) {
+                argv[i + 2] = removed.get(i);
+            }
+            feed.feed((Object[]) argv);
+        }
+        return removed.size();
+    }
+
+    /**
+     * Returns the score of member in the sorted set at key.
+     *
+     * @param k      key
+     * @param member the member
+     * @return the score, or null when member or key does not exist
+     * @see <a href="https://redis.io/commands/zscore">ZSCORE - Redis</a>
+     */
+    public Double zscore(String k, String member) {
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        return zset == null ? null : zset.score(member);
+    }
+
+    /**
+     * Returns the number of members of the sorted set stored at key.
+     *
+     * @param k key
+     * @return the number of members, or 0 when key does not exist
+     * @see <a href="https://redis.io/commands/zcard">ZCARD - Redis</a>
+     */
+    public int zcard(String k) {
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        return zset == null ? 0 : zset.size();
+    }
+
+    /**
+     * Returns the rank of member in the sorted set stored at key, with the
+     * scores ordered from low to high. The rank is 0-based.
+     *
+     * @param k      key
+     * @param member the member
+     * @return the rank, or null when member or key does not exist
+     * @see <a href="https://redis.io/commands/zrank">ZRANK - Redis</a>
+     */
+    public Integer zrank(String k, String member) {
+        return rank(k, member, false);
+    }
+
+    /**
+     * Returns the rank of member in the sorted set stored at key, with the
+     * scores ordered from high to low. The rank is 0-based.
+     *
+     * @param k      key
+     * @param member the member
+     * @return the rank, or null when member or key does not exist
+     * @see <a href="https://redis.io/commands/zrevrank">ZREVRANK - Redis</a>
+     */
+    public Integer zrevrank(String k, String member) {
+        return rank(k, member, true);
+    }
+
+    private Integer rank(String k, String member, boolean reverse) {
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        if (zset == null) {
             return null;
         }
-        throw new UnsupportedOperationException(
-                "Waiting to be implemented");
+        int rank = zset.rank(member, reverse);
+        return rank < 0 ? null : rank;
+    }
+
+    /**
+     * Returns the members of the sorted set stored at key between two ranks,
+     * ordered from the lowest to the highest score, members with the same
+     * score in lexicographical order.
+     *
+     * The ranks start and stop are zero-based and inclusive, negative ranks
+     * count from the highest score. Out of range ranks are clamped.
+     *
+     * @param k     key
+     * @param start the first rank
+     * @param stop  the last rank
+     * @return the members, or an empty list when key does not exist
+     * @see <a href="https://redis.io/commands/zrange">ZRANGE - Redis</a>
+     */
+    public List<String> zrange(String k, int start, int stop) {
+        List<String> members = new ArrayList<>();
+        zrange(k, start, stop, (m, score) -> members.add(m));
+        return members;
+    }
+
+    /**
+     * Visits the members of the sorted set stored at key between two ranks
+     * with their scores, as ZRANGE WITHSCORES, see
+     * {@link #zrange(String, int, int)}.
+     *
+     * @param k       key
+     * @param start   the first rank
+     * @param stop    the last rank
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     * @see <a href="https://redis.io/commands/zrange">ZRANGE - Redis</a>
+     */
+    public int zrange(String k, int start, int stop, BiConsumer<String, Double> visitor) {
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        return zset == null ? 0 : zset.range(start, stop, false, visitor);
+    }
+
+    /**
+     * Returns the members of the sorted set stored at key between two ranks,
+     * ordered from the highest to the lowest score, as
+     * {@link #zrange(String, int, int)} in reverse.
+     *
+     * @param k     key
+     * @param start the first rank
+     * @param stop  the last rank
+     * @return the members, or an empty list when key does not exist
+     * @see <a href="https://redis.io/commands/zrevrange">ZREVRANGE - Redis</a>
+     */
+    public List<String> zrevrange(String k, int start, int stop) {
+        List<String> members = new ArrayList<>();
+        zrevrange(k, start, stop, (m, score) -> members.add(m));
+        return members;
+    }
+
+    /**
+     * Visits the members of the sorted set stored at key between two ranks
+     * with their scores, from the highest score, as ZREVRANGE WITHSCORES.
+     *
+     * @param k       key
+     * @param start   the first rank
+     * @param stop    the last rank
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     * @see <a href="https://redis.io/commands/zrevrange">ZREVRANGE - Redis</a>
+     */
+    public int zrevrange(String k, int start, int stop, BiConsumer<String, Double> visitor) {
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        return zset == null ? 0 : zset.range(start, stop, true, visitor);
+    }
+
+    /**
+     * Returns the members of the sorted set stored at key with a score
+     * between min and max, inclusive, ordered from the lowest score.
+     *
+     * @param k   key
+     * @param min the lowest score
+     * @param max the highest score
+     * @return the members, or an empty list when key does not exist
+     * @see <a href="https://redis.io/commands/zrangebyscore">ZRANGEBYSCORE - Redis</a>
+     */
+    public List<String> zrangebyscore(String k, double min, double max) {
+        List<String> members = new ArrayList<>();
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        if (zset != null) {
+            zset.rangeByScore(new SortedSet.Range(min, false, max, false), 0, -1,
+                    (m, score) -> members.add(m));
+        }
+        return members;
+    }
+
+    /**
+     * Visits the members of the sorted set stored at key with a score
+     * between min and max with their scores, as ZRANGEBYSCORE WITHSCORES
+     * LIMIT offset count.
+     *
+     * The bounds are numbers, "-inf" or "+inf", prefixed with "(" to
+     * exclude them. Throws {@link IllegalArgumentException} if one is not.
+     *
+     * @param k       key
+     * @param min     the lowest score
+     * @param max     the highest score
+     * @param offset  the number of members in the range to skip
+     * @param count   the maximum number of members visited, negative for
+     *                all of them
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     * @see <a href="https://redis.io/commands/zrangebyscore">ZRANGEBYSCORE - Redis</a>
+     */
+    public int zrangebyscore(String k, String min, String max, int offset, int count,
+                             BiConsumer<String, Double> visitor) {
+        SortedSet.Range range = SortedSet.Range.parse(min, max);
+        SortedSet zset = (SortedSet) lookup(k, Evictor.ZSET);
+        return zset == null ? 0 : zset.rangeByScore(range, offset, count, visitor);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package edu.cmu.cs.cloud;
+
+/**
+ * A compound command of the keyspace, the Java counterpart of a function
+ * loaded by FUNCTION LOAD.
+ *
+ * A function is registered once under a name by
+ * {@link StripedRedis#functionLoad(String, RedisFunction)} and called by
+ * {@link StripedRedis#fcall(String, String[], String...)}, which runs it
+ * atomically while holding the locks of the stripes of the keys declared by
+ * the call. A read-modify-write such as
+ * <pre>
+ * redis.functionLoad("checkout", (r, keys, args) -&gt; {
+ *     String stock = r.hget(keys[0], args[0]);
+ *     if (stock == null || Integer.parseInt(stock) == 0) {
+ *         return 0;
+ *     }
+ *     r.hset(keys[0], args[0], Integer.toString(Integer.parseInt(stock) - 1));
+ *     return r.rpush(keys[1], args[0]);
+ * });
+ * redis.fcall("checkout", new String[]{"stock", "orders"}, "book");
+ * </pre>
+ * then costs one call, and one round trip over RESP, instead of a
+ * WATCH/MULTI/EXEC retry loop around three commands.
+ *
+ * The body is compiled Java rather than a script, so it is neither parsed
+ * nor interpreted at every call. It sees the keyspace through a
+ * {@link ScopedRedis}, whose commands run on the locked stripes directly,
+ * without locking them again, and refuse the keys that were not declared.
+ *
+ * @see <a href="https://redis.io/docs/interact/programmability/functions-intro/">
+ * Redis functions - Redis</a>
+ */
+@FunctionalInterface
+public interface RedisFunction {
+
+    /**
+     * Runs the function.
+     *
+     * @param redis the keyspace, limited to the keys and locked for them
+     * @param keys  the keys declared by the call
+     * @param args  the other arguments of the call
+     * @return the result of the call: null, a number, a string, a byte
+     * array, or a list of them
+     */
+    Object call(ScopedRedis redis, String[] keys, String[] args);
+}
@@ -1,22 +1,143 @@
 package edu.cmu.cs.cloud;
 
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.commands.JedisCommands;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * A class that implements a distributed lock using Redis.
+ *
+ * Every acquire stores a new random token as the value of the lock key, so
+ * that release and extend, which compare the token and delete or expire
+ * the key in one script, never free or prolong the lock of another owner,
+ * e.g. after the lease of this one expired and another client acquired it.
+ *
+ * Every acquire also returns a fencing token, incremented by INCR on the
+ * key "{&lt;lockKey&gt;}:fence" in the same script, so it is greater than the
+ * tokens of all the previous owners. A resource protected by the lock
+ * rejects the writes carrying a token smaller than the last it saw, which
+ * makes it safe even when an owner paused past its lease, see
+ * <a href="https://martin.kleppmann.com/2016/02/08/how-to-do-distributed-locking.html">
+ * How to do distributed locking</a>.
+ *
+ * A lock is owned by the RedisLock that acquired it, threads that exclude
+ * each other use their own instances. An optional watchdog renews the
+ * lease every third of its TTL until it is released, so that a long owner
+ * does not lose the lock while it is alive, and a dead one loses it after
+ * the TTL.
+ *
+ * The lock itself is stored at the lock key as is. The fence key has the
+ * lock key as hash tag, so that Redis Cluster puts both keys in the same
+ * slot, as a script needs. A lock key that has a hash tag already keeps it
+ * in its fence key, "&lt;lockKey&gt;:fence", and a lock key with a '}' but no
+ * hash tag cannot share its slot, so the acquire fails on a cluster, see
+ * <a href="https://redis.io/docs/reference/cluster-spec/#hash-tags">Hash tags</a>.
+ *
+ * The embedded {@link StripedRedis} has no Lua interpreter, the scripts run
+ * on it once registered by {@link #registerScripts(StripedRedis)}.
+ *
+ * @see <a href="https://redis.io/docs/manual/patterns/distributed-locks/">
+ * Distributed Locks with Redis</a>
  */
-public class RedisLock {
-    private Jedis jedis;
+public class RedisLock implements Closeable {
+
+    /**
+     * Sets the lock key to the token if it does not exist, with a TTL in
+     * milliseconds, and returns the incremented fencing token, or 0 if the
+     * lock is held.
+     */
+    static final String ACQUIRE_SCRIPT =
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then "
+                    + "return redis.call('incr', KEYS[2]) else return 0 end";
+
+    /**
+     * Deletes the lock key if it holds the token, returns 1 if it did.
+     */
+    static final String RELEASE_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then "
+                    + "return redis.call('del', KEYS[1]) else return 0 end";
+
+    /**
+     * Sets the TTL of the lock key in milliseconds if it holds the token,
+     * returns 1 if it did.
+     */
+    static final String EXTEND_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then "
+                    + "return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+
+    /**
+     * The suffix of the key of the fencing tokens of a lock, see
+     * {@link #fenceKey(String)}.
+     */
+    static final String FENCE_SUFFIX = ":fence";
+
+    private final JedisCommands jedis;
+
+    /**
+     * Whether the client may be used by the watchdog and the owner at once.
+     */
+    private final boolean threadSafe;
+
+    /**
+     * The leases held, by lock key.
+     */
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * The thread renewing the leases, started on first use.
+     */
+    private ScheduledThreadPoolExecutor watchdog;
+
+    /**
+     * A lock held by this instance.
+     */
+    private static final class Lease {
+        final String token;
+        final long fence;
+        final long ttlMillis;
+        volatile ScheduledFuture<?> renewal;
+
+        Lease(String token, long fence, long ttlMillis) {
+            this.token = token;
+            this.fence = fence;
+            this.ttlMillis = ttlMillis;
+        }
+    }
 
     /**
      * Constructs a RedisLock with the specified Jedis client.
      *
+     * A Jedis is a single connection, which is not thread-safe, so the
+     * lock cannot be renewed by the watchdog.
+     *
      * @param jedis The Jedis client to use for Redis operations.
      */
     public RedisLock(Jedis jedis) {
         this.jedis = jedis;
+        this.threadSafe = false;
+    }
+
+    /**
+     * Constructs a RedisLock with a thread-safe client, e.g. a
+     * {@link redis.clients.jedis.JedisPooled}, which the watchdog may use.
+     *
+     * @param jedis The client to use for Redis operations.
+     */
+    public RedisLock(UnifiedJedis jedis) {
+        this.jedis = jedis;
+        this.threadSafe = true;
     }
 
     /**
@@ -27,11 +148,57 @@ public class RedisLock {
      * @return true if the lock was successfully acquired, false otherwise.
      */
     public boolean acquireLock(String lockKey, Long ttl) {
-        // used to set any additional options for the redis command
-        SetParams setParams = new SetParams(); 
-        // TODO: complete this function
-        String result = jedis.set("", "", setParams);
-        throw new RuntimeException("To be implemented");
+        return acquireLock(lockKey, ttl, TimeUnit.SECONDS, false) > 0;
+    }
+
+    /**
+     * Attempts to acquire a lock, renewed by the watchdog until it is
+     * released if watchdog is true.
+     *
+     * The lock is not reentrant: if this instance still holds it, the
+     * acquire fails. A lease of this instance that expired meanwhile is
+     * forgotten, and the lock acquired again.
+     *
+     * Throws {@link IllegalStateException} if watchdog is true and the
+     * client is not thread-safe.
+     *
+     * @param lockKey  The key to use for the lock in Redis.
+     * @param ttl      The time-to-live for the lock, positive.
+     * @param unit     The unit of the ttl.
+     * @param watchdog Whether the lease is renewed in the background.
+     * @return the fencing token, positive, if the lock was acquired, or 0
+     * if it is held.
+     */
+    public long acquireLock(String lockKey, long ttl, TimeUnit unit, boolean watchdog) {
+        long ttlMillis = unit.toMillis(ttl);
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        if (watchdog && !threadSafe) {
+            throw new IllegalStateException("the watchdog needs a thread-safe client");
+        }
+        Lease held = leases.get(lockKey);
+        if (held != null) {
+            if (held.token.equals(jedis.get(lockKey))) {
+                return 0;
+            }
+            lost(lockKey, held);
+        }
+        String token = UUID.randomUUID().toString();
+        long fence = (Long) jedis.eval(ACQUIRE_SCRIPT,
+                Arrays.asList(lockKey, fenceKey(lockKey)),
+                Arrays.asList(token, Long.toString(ttlMillis)));
+        if (fence == 0) {
+            return 0;
+        }
+        Lease lease = new Lease(token, fence, ttlMillis);
+        leases.put(lockKey, lease);
+        if (watchdog) {
+            long period = Math.max(1, ttlMillis / 3);
+            lease.renewal = watchdog().scheduleAtFixedRate(
+                    () -> renew(lockKey, lease), period, period, TimeUnit.MILLISECONDS);
+        }
+        return fence;
     }
 
     /**
@@ -43,7 +210,163 @@ public class RedisLock {
      * @return true if the lock was successfully released, false otherwise.
      */
     public boolean releaseLock(String lockKey) {
-        // TODO: complete this function
-        throw new RuntimeException("To be implemented");
+        Lease lease = leases.remove(lockKey);
+        if (lease == null) {
+            return false;
+        }
+        cancel(lease);
+        return run(RELEASE_SCRIPT, lockKey, lease.token) == 1;
+    }
+
+    /**
+     * Sets the TTL of a lock held by this instance, from now on.
+     *
+     * @param lockKey The key of the lock.
+     * @param ttl     The new time-to-live, positive.
+     * @param unit    The unit of the ttl.
+     * @return true if the lock is still held and was extended, false if it
+     * was not acquired or its lease expired.
+     */
+    public boolean extendLock(String lockKey, long ttl, TimeUnit unit) {
+        long ttlMillis = unit.toMillis(ttl);
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        Lease lease = leases.get(lockKey);
+        if (lease == null) {
+            return false;
+        }
+        if (run(EXTEND_SCRIPT, lockKey, lease.token, Long.toString(ttlMillis)) == 1) {
+            return true;
+        }
+        lost(lockKey, lease);
+        return false;
+    }
+
+    /**
+     * Returns the fencing token of a lock held by this instance, to send
+     * with every write to the resource it protects.
+     *
+     * Throws {@link IllegalStateException} if the lock is not held.
+     *
+     * @param lockKey The key of the lock.
+     * @return the fencing token returned by the acquire.
+     */
+    public long fencingToken(String lockKey) {
+        Lease lease = leases.get(lockKey);
+        if (lease == null) {
+            throw new IllegalStateException(lockKey + " is not held");
+        }
+        return lease.fence;
+    }
+
+    /**
+     * Returns whether this instance holds a lock, as far as it knows: a
+     * lease that expired is only noticed by the next extend or renewal.
+     *
+     * @param lockKey The key of the lock.
+     * @return true if the lock was acquired and not released or lost.
+     */
+    public boolean isHeld(String lockKey) {
+        return leases.containsKey(lockKey);
+    }
+
+    /**
+     * Stops the watchdog. The locks still held are not released, they
+     * expire after their TTL.
+     */
+    @Override
+    public synchronized void close() {
+        for (Lease lease : leases.values()) {
+            cancel(lease);
+        }
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * Registers the Java equivalents of the scripts of the lock, so that
+     * it runs against the embedded server.
+     *
+     * @param redis the keyspace of the server
+     */
+    public static void registerScripts(StripedRedis redis) {
+        redis.scriptLoad(ACQUIRE_SCRIPT, (r, keys, args) ->
+                r.set(keys[0], args[0].getBytes(StandardCharsets.UTF_8), true,
+                        Long.parseLong(args[1])) ? r.incr(keys[1]) : 0L);
+        redis.scriptLoad(RELEASE_SCRIPT, (r, keys, args) ->
+                args[0].equals(r.get(keys[0])) ? (long) r.del(keys[0]) : 0L);
+        redis.scriptLoad(EXTEND_SCRIPT, (r, keys, args) ->
+                args[0].equals(r.get(keys[0]))
+                        ? (long) r.pexpire(keys[0], Long.parseLong(args[1])) : 0L);
+    }
+
+    /**
+     * Renews a lease by its TTL, or forgets it once it was lost. A failure
+     * to reach the server is retried by the next renewal.
+     */
+    private void renew(String lockKey, Lease lease) {
+        if (leases.get(lockKey) != lease) {
+            cancel(lease);
+            return;
+        }
+        try {
+            if (run(EXTEND_SCRIPT, lockKey, lease.token, Long.toString(lease.ttlMillis)) != 1) {
+                lost(lockKey, lease);
+            }
+        } catch (JedisException e) {
+            // thrown out of the task, it would cancel the next renewals
+        }
+    }
+
+    /**
+     * Forgets a lease whose key expired or was taken by another owner.
+     */
+    private void lost(String lockKey, Lease lease) {
+        leases.remove(lockKey, lease);
+        cancel(lease);
+    }
+
+    private static void cancel(Lease lease) {
+        ScheduledFuture<?> renewal = lease.renewal;
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the key of the fencing tokens of a lock, in the same Redis
+     * Cluster slot as the lock key when it can be.
+     */
+    static String fenceKey(String lockKey) {
+        int open = lockKey.indexOf('{');
+        int close = open < 0 ? -1 : lockKey.indexOf('}', open + 1);
+        if (close > open + 1) {
+            // the hash tag of the lock key is the first one of the suffixed key
+            return lockKey + FENCE_SUFFIX;
+        }
+        return "{" + lockKey + "}" + FENCE_SUFFIX;
+    }
+
+    /**
+     * Runs a script on the lock key with arguments, returns its integer reply.
+     */
+    private long run(String script, String lockKey, String... args) {
+        return (Long) jedis.eval(script, Collections.singletonList(lockKey),
+                Arrays.asList(args));
+    }
+
+    private synchronized ScheduledThreadPoolExecutor watchdog() {
+        if (watchdog == null) {
+            watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "redis-lock-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+            watchdog.setRemoveOnCancelPolicy(true);
+        }
+        return watchdog;
     }
-}
\ No newline at end of file
+}
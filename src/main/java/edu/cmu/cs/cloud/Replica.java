@@ -0,0 +1,400 @@
+package edu.cmu.cs.cloud;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The replica side of the asynchronous replication of a
+ * {@link StripedRedis}, see {@link Replication}.
+ *
+ * A background thread connects to the primary, synchronizes the keyspace
+ * with {@code PSYNC}, then applies the replication stream as it arrives
+ * and acknowledges its offset every {@link #ACK_PERIOD_MILLIS}. When the
+ * link breaks, it reconnects after {@link #RETRY_DELAY_MILLIS} and asks to
+ * continue from its offset, so a brief disconnection only costs the
+ * missing part of the stream instead of a new snapshot.
+ *
+ * The keyspace of a replica is meant to be served read-only, see
+ * {@link RespHandler#setReplica(Replica)}: it only changes through the
+ * stream, and its reads lag the primary by the replication delay.
+ *
+ * @see <a href="https://redis.io/docs/management/replication/">
+ * Redis replication</a>
+ */
+public final class Replica implements Closeable {
+
+    /**
+     * The period of the {@code REPLCONF ACK} sent to the primary.
+     */
+    static final long ACK_PERIOD_MILLIS = 1000;
+
+    /**
+     * The delay before reconnecting to the primary.
+     */
+    static final long RETRY_DELAY_MILLIS = 100;
+
+    /**
+     * The time a read of the socket waits before acknowledging.
+     */
+    private static final int READ_TIMEOUT_MILLIS = 100;
+
+    /**
+     * The state of the link to the primary, as master_link_status and the
+     * state of ROLE.
+     */
+    public enum State {
+        /**
+         * Not connected to the primary.
+         */
+        CONNECT,
+        /**
+         * Connected, waiting for or loading the snapshot.
+         */
+        SYNC,
+        /**
+         * Applying the replication stream.
+         */
+        CONNECTED
+    }
+
+    private final StripedRedis redis;
+    private final String host;
+    private final int port;
+    private final int listeningPort;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private volatile State state = State.CONNECT;
+
+    /**
+     * The id of the stream followed, "?" before the first synchronization.
+     */
+    private volatile String replid = "?";
+
+    /**
+     * The offset of the next byte of the stream to apply, -1 before the
+     * first synchronization.
+     */
+    private volatile long offset = -1;
+
+    private volatile long lastIoMillis;
+    private volatile long fullSyncs;
+    private volatile long partialSyncs;
+
+    private Replica(StripedRedis redis, String host, int port, int listeningPort) {
+        this.redis = redis;
+        this.host = host;
+        this.port = port;
+        this.listeningPort = listeningPort;
+        thread = new Thread(this::run, "redis-replica");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts replicating a primary into a keyspace, as REPLICAOF. The keys
+     * of the keyspace are replaced by those of the primary.
+     *
+     * @param redis         the keyspace
+     * @param host          the host of the primary
+     * @param port          the RESP port of the primary
+     * @param listeningPort the port this replica serves its clients on, told
+     *                      to the primary, or 0
+     * @return the replica, to be closed to stop replicating
+     */
+    public static Replica start(StripedRedis redis, String host, int port, int listeningPort) {
+        Replica replica = new Replica(redis, host, port, listeningPort);
+        replica.thread.start();
+        return replica;
+    }
+
+    /**
+     * Returns the address of the primary.
+     *
+     * @return host:port
+     */
+    public String primary() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Returns the state of the link to the primary.
+     *
+     * @return the state
+     */
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Returns the id of the replication stream followed.
+     *
+     * @return the id, "?" before the first synchronization
+     */
+    public String replicationId() {
+        return replid;
+    }
+
+    /**
+     * Returns the position in the replication stream, to compare with
+     * {@link Replication#offset()}.
+     *
+     * @return the offset of the next byte to apply, -1 before the first
+     * synchronization
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Returns the time since the last bytes were received from the primary,
+     * master_last_io_seconds_ago of Redis.
+     *
+     * @return the time in milliseconds, -1 if never
+     */
+    public long lastIoMillisAgo() {
+        return lastIoMillis == 0 ? -1 : System.currentTimeMillis() - lastIoMillis;
+    }
+
+    /**
+     * Returns the number of synchronizations that loaded a snapshot.
+     *
+     * @return the number of full resynchronizations
+     */
+    public long fullSyncs() {
+        return fullSyncs;
+    }
+
+    /**
+     * Returns the number of synchronizations that continued the stream.
+     *
+     * @return the number of partial resynchronizations
+     */
+    public long partialSyncs() {
+        return partialSyncs;
+    }
+
+    /**
+     * Breaks the link to the primary, which is connected again as after a
+     * network failure.
+     */
+    void disconnect() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Stops replicating, the keyspace keeps its keys.
+     */
+    @Override
+    public void close() {
+        running = false;
+        disconnect();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                if (!running) {
+                    return;
+                }
+                s.connect(new InetSocketAddress(host, port));
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(READ_TIMEOUT_MILLIS);
+                replicate(new Link(s));
+            } catch (IOException | RuntimeException e) {
+                // reconnect, a command the keyspace refused breaks the link too
+            }
+            state = State.CONNECT;
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Synchronizes, then applies the stream until the link breaks.
+     */
+    private void replicate(Link link) throws IOException {
+        state = State.SYNC;
+        link.send("REPLCONF", "listening-port", Integer.toString(listeningPort));
+        if (!link.readLine().startsWith("+")) {
+            throw new IOException("REPLCONF refused");
+        }
+        link.send("PSYNC", replid, Long.toString(offset));
+        String reply = link.readLine();
+        if (reply.startsWith("+FULLRESYNC ")) {
+            String[] fields = reply.split(" ");
+            load(link);
+            replid = fields[1];
+            offset = Long.parseLong(fields[2]);
+            fullSyncs++;
+        } else if (reply.startsWith("+CONTINUE")) {
+            partialSyncs++;
+        } else {
+            throw new IOException("PSYNC failed: " + reply);
+        }
+        state = State.CONNECTED;
+        link.ack();
+        while (running) {
+            // the stream may follow the snapshot in the bytes already read
+            ByteBuffer in = link.in;
+            while (in.hasRemaining()) {
+                int start = in.position();
+                byte[][] argv = RespHandler.parse(in);
+                if (argv == null) {
+                    in.position(start);
+                    break;
+                }
+                AppendOnlyFile.apply(redis, argv);
+                offset += in.position() - start;
+            }
+            if (System.currentTimeMillis() - link.acked >= ACK_PERIOD_MILLIS) {
+                link.ack();
+            }
+            link.fill();
+        }
+    }
+
+    /**
+     * Reads the snapshot sent as a bulk string and replaces the keyspace
+     * with it.
+     */
+    private void load(Link link) throws IOException {
+        String header = link.readLine();
+        if (!header.startsWith("$")) {
+            throw new IOException("Bad snapshot header: " + header);
+        }
+        long size = Long.parseLong(header.substring(1));
+        Path tmp = Files.createTempFile("redis-replica-", ".rdb");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer in = link.in;
+                while (size > 0) {
+                    if (!in.hasRemaining()) {
+                        link.fill();
+                        continue;
+                    }
+                    ByteBuffer part = in.duplicate();
+                    part.limit(part.position() + (int) Math.min(size, part.remaining()));
+                    int n = part.remaining();
+                    while (part.hasRemaining()) {
+                        ch.write(part);
+                    }
+                    in.position(in.position() + n);
+                    size -= n;
+                }
+            }
+            redis.flushAll();
+            Snapshot.load(redis, tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * A connection to the primary, with the bytes read not consumed yet.
+     */
+    private final class Link {
+        private final InputStream input;
+        private final OutputStream output;
+        private final OutputBuffer buffer = new OutputBuffer();
+
+        /**
+         * The bytes read, in read mode.
+         */
+        private ByteBuffer in = ByteBuffer.allocate(NioServer.BUFFER_SIZE);
+        private long acked;
+
+        private Link(Socket s) throws IOException {
+            input = s.getInputStream();
+            output = s.getOutputStream();
+            in.flip();
+        }
+
+        /**
+         * Sends one command.
+         */
+        private void send(String... argv) throws IOException {
+            AppendOnlyFile.encode(buffer, argv);
+            byte[] b = new byte[buffer.readable()];
+            buffer.drainTo(ByteBuffer.wrap(b));
+            buffer.consume(b.length);
+            output.write(b);
+            output.flush();
+        }
+
+        private void ack() throws IOException {
+            send("REPLCONF", "ACK", Long.toString(offset));
+            acked = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads more bytes, or returns after the read timeout.
+         */
+        private void fill() throws IOException {
+            if (!running) {
+                throw new IOException("closed");
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            try {
+                int n = input.read(in.array(), in.arrayOffset() + in.position(), in.remaining());
+                if (n < 0) {
+                    throw new IOException("the primary closed the connection");
+                }
+                in.position(in.position() + n);
+                lastIoMillis = System.currentTimeMillis();
+            } catch (SocketTimeoutException e) {
+                // nothing to read yet
+            } finally {
+                in.flip();
+            }
+        }
+
+        /**
+         * Reads one line, without its "\r\n".
+         */
+        private String readLine() throws IOException {
+            int eol;
+            while ((eol = RespHandler.lineEnd(in, in.position())) < 0) {
+                fill();
+            }
+            String line = RespHandler.decode(in, eol - in.position());
+            in.position(eol + 2);
+            if (line.startsWith("-")) {
+                throw new IOException(line.substring(1));
+            }
+            return line;
+        }
+    }
+}
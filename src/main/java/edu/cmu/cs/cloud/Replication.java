@@ -0,0 +1,431 @@
+package edu.cmu.cs.cloud;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The primary side of the asynchronous replication of a
+ * {@link StripedRedis} to {@link Replica}s.
+ *
+ * Every write of the keyspace is encoded as the RESP command that redoes
+ * it, see {@link CommandFeed}, and appended to the
+ * {@link ReplicationBacklog}, the replication stream. The connected
+ * replicas are sent the new bytes of the stream by the event loops of
+ * their connections, so the writers never wait for a replica.
+ *
+ * A replica connects to the RESP port like any client and sends
+ * {@code PSYNC replid offset}, see {@link RespHandler}:
+ * <ul>
+ * <li>If it was replicating this primary and the stream from its offset
+ * is still in the backlog, the primary replies {@code +CONTINUE} and sends
+ * the missing bytes, a partial resynchronization.</li>
+ * <li>Otherwise the primary replies {@code +FULLRESYNC replid offset},
+ * then a {@link Snapshot} of the keyspace as a bulk string, taken at that
+ * offset of the stream, then the stream from that offset.</li>
+ * </ul>
+ * The replica acknowledges the offset it has applied every second with
+ * {@code REPLCONF ACK offset}, which gives the lag of every replica, see
+ * {@link #replicas()}.
+ *
+ * A replica whose unsent stream exceeds {@link #REPLICA_OUTPUT_LIMIT} is
+ * disconnected, as client-output-buffer-limit of Redis, and comes back
+ * with a partial or full resynchronization.
+ *
+ * @see <a href="https://redis.io/docs/management/replication/">
+ * Redis replication</a>
+ */
+public final class Replication implements CommandFeed, Closeable {
+
+    /**
+     * The default size of the backlog, as repl-backlog-size of Redis.
+     */
+    static final int DEFAULT_BACKLOG_SIZE = 1024 * 1024;
+
+    /**
+     * The bytes waiting to be sent to a replica above which it is
+     * disconnected.
+     */
+    static final int REPLICA_OUTPUT_LIMIT = 256 * 1024 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * The state of a connected replica, guarded by the replication.
+     */
+    private static final class Link {
+        private final NioServer.Connection c;
+        private int listeningPort;
+        private boolean online;
+        private boolean scheduled;
+        /**
+         * The offset of the next byte to send.
+         */
+        private long sent;
+        private long acked = -1;
+        private long ackMillis = System.currentTimeMillis();
+
+        private Link(NioServer.Connection c) {
+            this.c = c;
+        }
+    }
+
+    /**
+     * The replication state of one replica, as the slave lines of
+     * {@code INFO replication}.
+     */
+    public static final class ReplicaInfo {
+        private final InetSocketAddress address;
+        private final int listeningPort;
+        private final boolean online;
+        private final long acked;
+        private final long lagBytes;
+        private final long lagMillis;
+
+        private ReplicaInfo(InetSocketAddress address, int listeningPort, boolean online,
+                            long acked, long lagBytes, long lagMillis) {
+            this.address = address;
+            this.listeningPort = listeningPort;
+            this.online = online;
+            this.acked = acked;
+            this.lagBytes = lagBytes;
+            this.lagMillis = lagMillis;
+        }
+
+        /**
+         * Returns the address the replica connected from.
+         *
+         * @return the address, or null if it is gone
+         */
+        public InetSocketAddress address() {
+            return address;
+        }
+
+        /**
+         * Returns the port the replica serves its clients on, as sent by
+         * {@code REPLCONF listening-port}.
+         *
+         * @return the port, or 0 if unknown
+         */
+        public int listeningPort() {
+            return listeningPort;
+        }
+
+        /**
+         * Returns whether the replica receives the stream, rather than
+         * waiting for its snapshot.
+         *
+         * @return true once the replica is synchronized
+         */
+        public boolean online() {
+            return online;
+        }
+
+        /**
+         * Returns the offset of the stream the replica last acknowledged.
+         *
+         * @return the offset, or -1 before the first acknowledgment
+         */
+        public long ackedOffset() {
+            return acked;
+        }
+
+        /**
+         * Returns how far the replica is behind the primary.
+         *
+         * @return the bytes of the stream not acknowledged yet
+         */
+        public long lagBytes() {
+            return lagBytes;
+        }
+
+        /**
+         * Returns the time since the last acknowledgment of the replica, the
+         * lag field of {@code INFO replication}.
+         *
+         * @return the time in milliseconds
+         */
+        public long lagMillis() {
+            return lagMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "ip=" + (address == null ? "?" : address.getHostString())
+                    + ",port=" + listeningPort
+                    + ",state=" + (online ? "online" : "wait_bgsave")
+                    + ",offset=" + acked + ",lag=" + lagMillis / 1000;
+        }
+    }
+
+    private final StripedRedis redis;
+    private final String replid;
+
+    // guarded by this
+    private final ReplicationBacklog backlog;
+    private final OutputBuffer encoded = new OutputBuffer();
+    private final Map<NioServer.Connection, Link> links = new IdentityHashMap<>();
+
+    /**
+     * Takes the snapshots of the full resynchronizations, one at a time.
+     */
+    private final ExecutorService syncer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "redis-repl-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Object attachLock = new Object();
+    private boolean attached;
+
+    /**
+     * Replicates a keyspace with a backlog of {@link #DEFAULT_BACKLOG_SIZE}.
+     *
+     * @param redis the keyspace
+     */
+    public Replication(StripedRedis redis) {
+        this(redis, DEFAULT_BACKLOG_SIZE);
+    }
+
+    /**
+     * Replicates a keyspace. The writes are only recorded once the first
+     * replica connects.
+     *
+     * @param redis       the keyspace
+     * @param backlogSize the bytes of the stream kept for partial
+     *                    resynchronizations
+     */
+    public Replication(StripedRedis redis, int backlogSize) {
+        this.redis = redis;
+        this.backlog = new ReplicationBacklog(backlogSize);
+        StringBuilder id = new StringBuilder(40);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 40; i++) {
+            id.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        replid = id.toString();
+    }
+
+    /**
+     * Returns the id of the replication stream, which replicas send back
+     * to continue it.
+     *
+     * @return 40 random hexadecimal digits
+     */
+    public String replicationId() {
+        return replid;
+    }
+
+    /**
+     * Returns the end of the replication stream.
+     *
+     * @return the offset of the next byte, master_repl_offset of Redis
+     */
+    public synchronized long offset() {
+        return backlog.offset();
+    }
+
+    /**
+     * Returns the state of every connected replica.
+     *
+     * @return the replicas, in no particular order
+     */
+    public synchronized List<ReplicaInfo> replicas() {
+        long now = System.currentTimeMillis();
+        List<ReplicaInfo> infos = new ArrayList<>(links.size());
+        for (Link l : links.values()) {
+            infos.add(new ReplicaInfo(l.c.remoteAddress(), l.listeningPort, l.online, l.acked,
+                    l.acked < 0 ? backlog.offset() : backlog.offset() - l.acked,
+                    now - l.ackMillis));
+        }
+        return Collections.unmodifiableList(infos);
+    }
+
+    /**
+     * Appends one write to the stream and schedules the sending of it to
+     * every online replica that has nothing pending.
+     *
+     * @param argv the command name followed by its arguments
+     */
+    @Override
+    public synchronized void feed(Object... argv) {
+        AppendOnlyFile.encode(encoded, argv);
+        backlog.append(encoded);
+        for (Link l : links.values()) {
+            if (l.online && !l.scheduled) {
+                l.scheduled = true;
+                l.c.execute(() -> push(l));
+            }
+        }
+    }
+
+    /**
+     * Appends the stream a replica misses to its output, on the event loop
+     * of its connection.
+     */
+    private void push(Link l) {
+        boolean dropped;
+        synchronized (this) {
+            l.scheduled = false;
+            dropped = links.get(l.c) != l || !backlog.copy(l.sent, l.c.out())
+                    || l.c.out().readable() > REPLICA_OUTPUT_LIMIT;
+            if (dropped) {
+                links.remove(l.c);
+            } else {
+                l.sent = backlog.offset();
+            }
+        }
+        if (dropped) {
+            l.c.close();
+        }
+    }
+
+    /**
+     * Starts recording the writes, when the first replica connects.
+     */
+    private void attach() {
+        synchronized (attachLock) {
+            if (!attached) {
+                redis.addFeed(this);
+                attached = true;
+            }
+        }
+    }
+
+    /**
+     * Handles {@code PSYNC replid offset} on the event loop of the
+     * connection of the replica.
+     *
+     * @param c      the connection of the replica
+     * @param id     the id of the stream the replica follows, or "?"
+     * @param offset the offset of the next byte the replica needs, or -1
+     */
+    void sync(NioServer.Connection c, String id, long offset) {
+        attach();
+        Link l;
+        synchronized (this) {
+            l = links.computeIfAbsent(c, Link::new);
+            if (replid.equals(id) && backlog.contains(offset)) {
+                c.out().writeAscii("+CONTINUE " + replid).write(CRLF);
+                l.sent = offset;
+                l.online = true;
+            } else {
+                l.online = false;
+            }
+        }
+        if (l.online) {
+            push(l);
+            return;
+        }
+        syncer.execute(() -> fullSync(l));
+    }
+
+    /**
+     * Saves a snapshot at the current offset and sends it to the replica,
+     * followed by the stream from that offset.
+     */
+    private void fullSync(Link l) {
+        long[] at = new long[1];
+        byte[] snapshot;
+        try {
+            Path tmp = Files.createTempFile("redis-repl-", ".rdb");
+            try {
+                Snapshot.save(redis, tmp, () -> {
+                    synchronized (this) {
+                        at[0] = backlog.offset();
+                    }
+                });
+                snapshot = Files.readAllBytes(tmp);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException | IllegalStateException e) {
+            // e.g. a BGSAVE is running, the replica retries
+            synchronized (this) {
+                links.remove(l.c);
+            }
+            l.c.execute(l.c::close);
+            return;
+        }
+        l.c.execute(() -> {
+            l.c.out().writeAscii("+FULLRESYNC " + replid + " " + at[0]).write(CRLF)
+                    .write((byte) '$').writeLong(snapshot.length).write(CRLF)
+                    .write(snapshot);
+            synchronized (this) {
+                l.sent = at[0];
+                l.online = true;
+            }
+            push(l);
+        });
+    }
+
+    /**
+     * Handles {@code REPLCONF ACK offset}.
+     *
+     * @param c      the connection of the replica
+     * @param offset the offset of the next byte the replica will apply
+     */
+    synchronized void ack(NioServer.Connection c, long offset) {
+        Link l = links.get(c);
+        if (l != null) {
+            l.acked = offset;
+            l.ackMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Handles {@code REPLCONF listening-port port}.
+     *
+     * @param c    the connection of the replica
+     * @param port the port the replica serves its clients on
+     */
+    synchronized void listeningPort(NioServer.Connection c, int port) {
+        links.computeIfAbsent(c, Link::new).listeningPort = port;
+    }
+
+    /**
+     * Forgets a replica whose connection is closed.
+     *
+     * @param c the connection
+     */
+    synchronized void closed(NioServer.Connection c) {
+        links.remove(c);
+    }
+
+    /**
+     * Stops recording the writes and disconnects the replicas.
+     */
+    @Override
+    public void close() {
+        synchronized (attachLock) {
+            if (attached) {
+                redis.removeFeed(this);
+                attached = false;
+            }
+        }
+        syncer.shutdownNow();
+        List<NioServer.Connection> replicas;
+        synchronized (this) {
+            replicas = new ArrayList<>(links.keySet());
+            links.clear();
+        }
+        for (NioServer.Connection c : replicas) {
+            c.execute(c::close);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "master_replid:" + replid + ",master_repl_offset:" + offset();
+    }
+}
@@ -0,0 +1,118 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The replication backlog of a {@link Replication}: a ring buffer holding
+ * the last bytes of the replication stream, as repl-backlog-size of Redis.
+ *
+ * Every byte of the stream has an offset, counted from the first byte ever
+ * written. A replica that reconnects asks for the bytes from the offset it
+ * stopped at, and can continue without a full resynchronization as long as
+ * they are still in the ring.
+ *
+ * This class is not thread-safe.
+ */
+final class ReplicationBacklog {
+
+    private final byte[] ring;
+
+    /**
+     * The offset of the next byte written.
+     */
+    private long offset;
+
+    /**
+     * @param size the number of bytes kept
+     */
+    ReplicationBacklog(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("the backlog size must be positive");
+        }
+        ring = new byte[size];
+    }
+
+    /**
+     * Returns the number of bytes kept.
+     *
+     * @return the size of the ring
+     */
+    int size() {
+        return ring.length;
+    }
+
+    /**
+     * Returns the offset of the next byte written, the number of bytes
+     * written so far.
+     *
+     * @return the offset at the end of the stream
+     */
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the oldest byte kept.
+     *
+     * @return the offset at the start of the ring
+     */
+    long firstOffset() {
+        return Math.max(0, offset - ring.length);
+    }
+
+    /**
+     * Appends all the bytes of a buffer, consuming them. The oldest bytes
+     * are overwritten once the ring is full.
+     *
+     * @param src the bytes
+     */
+    void append(OutputBuffer src) {
+        int n = src.readable();
+        if (n > ring.length) {
+            // only the tail fits
+            src.consume(n - ring.length);
+            offset += n - ring.length;
+            n = ring.length;
+        }
+        int at = (int) (offset % ring.length);
+        int first = Math.min(n, ring.length - at);
+        src.drainTo(ByteBuffer.wrap(ring, at, first));
+        src.consume(first);
+        if (first < n) {
+            src.drainTo(ByteBuffer.wrap(ring, 0, n - first));
+            src.consume(n - first);
+        }
+        offset += n;
+    }
+
+    /**
+     * Returns whether the stream from an offset can be copied.
+     *
+     * @param from the offset of the first byte
+     * @return true if the bytes from that offset are all in the ring
+     */
+    boolean contains(long from) {
+        return from >= firstOffset() && from <= offset;
+    }
+
+    /**
+     * Copies the bytes from an offset to the end of the stream.
+     *
+     * @param from the offset of the first byte
+     * @param out  where the bytes are appended
+     * @return false if the bytes are no longer, or not yet, in the ring
+     */
+    boolean copy(long from, OutputBuffer out) {
+        if (!contains(from)) {
+            return false;
+        }
+        int n = (int) (offset - from);
+        int at = (int) (from % ring.length);
+        int first = Math.min(n, ring.length - at);
+        out.write(ring, at, first);
+        if (first < n) {
+            out.write(ring, 0, n - first);
+        }
+        return true;
+    }
+}
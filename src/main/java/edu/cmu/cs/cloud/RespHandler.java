@@ -0,0 +1,1710 @@
+package edu.cmu.cs.cloud;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The RESP2 protocol in front of a {@link StripedRedis}, so that
+ * {@code redis-cli}, {@code redis-benchmark} or Jedis can talk to it.
+ *
+ * Requests are arrays of bulk strings, or inline commands separated by
+ * spaces as typed in telnet. Keys and other arguments are decoded as UTF-8,
+ * but the values of SET, SETEX and PSETEX stay binary and GET replies the
+ * stored bytes, so strings are binary-safe and never transcoded. Errors of the engine are mapped to RESP errors:
+ * the message of the exception is sent, prefixed with "ERR" unless it
+ * already starts with an error code such as "WRONGTYPE" or "OOM".
+ *
+ * BLPOP and BRPOP on empty lists suspend the connection rather than block
+ * the event loop: the client is queued on the keys, see
+ * {@link StripedRedis#blpop(long, String...)}, and the push or the timeout
+ * that unblocks it writes the reply and resumes the connection. Thousands
+ * of blocked clients cost no thread.
+ *
+ * MULTI queues the commands of the connection until EXEC runs them
+ * atomically as one {@link Transaction}, which only locks the stripes of
+ * their keys. Inside EXEC, BLPOP and BRPOP do not block.
+ *
+ * EVAL and EVALSHA run the Java equivalents of Lua scripts registered by
+ * {@link StripedRedis#scriptLoad(String, RedisFunction)}, as FCALL runs
+ * functions: clients such as {@link RedisLock} send their scripts unchanged.
+ *
+ * SUBSCRIBE and PSUBSCRIBE turn the connection into a subscriber of a
+ * {@link PubSub}: the messages are written by the event loop of the
+ * connection as they are handed over by the fan-out thread, encoded once
+ * for all the receivers. A subscriber whose replies pile up past the
+ * output buffer limit is disconnected.
+ *
+ * @see <a href="https://redis.io/docs/reference/protocol-spec/">
+ * Redis serialization protocol specification</a>
+ */
+public class RespHandler implements NioServer.Handler {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_ARRAY = "*-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUEUED = "+QUEUED\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The largest bulk string accepted, as proto-max-bulk-len of Redis.
+     */
+    static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+    /**
+     * The largest number of arguments accepted in one request.
+     */
+    static final int MAX_ARGUMENTS = 1024 * 1024;
+
+    /**
+     * A malformed request, the connection is closed after the error reply.
+     */
+    static final class ProtocolException extends RuntimeException {
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * An invalid command, replied as an error.
+     */
+    static final class CommandException extends RuntimeException {
+        CommandException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The commands refused by a replica.
+     */
+    static final Set<String> WRITE_COMMANDS = new HashSet<>(Arrays.asList(
+            "set", "setex", "psetex", "mset", "incr", "incrby", "del", "hset", "hmset", "rpush", "rpop",
+            "lpush", "lpop", "blpop", "brpop", "zadd", "zrem", "expire", "pexpire", "pexpireat", "persist",
+            "fcall", "eval", "evalsha"));
+
+    /**
+     * The commands run at once rather than queued inside MULTI.
+     */
+    private static final Set<String> TRANSACTION_COMMANDS = new HashSet<>(Arrays.asList(
+            "multi", "exec", "discard", "watch", "unwatch", "quit"));
+
+    /**
+     * The commands that may touch any key, EXEC locks all the stripes.
+     */
+    private static final Set<String> UNKEYED_COMMANDS = new HashSet<>(Arrays.asList("scan"));
+
+    /**
+     * The commands whose arguments are no keys.
+     */
+    private static final Set<String> KEYLESS_COMMANDS = new HashSet<>(Arrays.asList(
+            "ping", "echo", "select", "client", "hello", "command", "config", "role",
+            "replconf", "psync", "publish", "info", "slowlog", "function", "script"));
+
+    /**
+     * The commands allowed while subscribed.
+     */
+    private static final Set<String> SUBSCRIBER_COMMANDS = new HashSet<>(Arrays.asList(
+            "subscribe", "unsubscribe", "psubscribe", "punsubscribe", "ping", "quit"));
+
+    /**
+     * The default limit of the output buffer of a subscriber, as the hard
+     * limit of client-output-buffer-limit pubsub.
+     */
+    static final long DEFAULT_PUBSUB_OUTPUT_BUFFER_LIMIT = 32 * 1024 * 1024;
+
+    /**
+     * The state of a client connection, attached to it on first use.
+     */
+    private static final class Client {
+        /**
+         * The pending BLPOP or BRPOP, or null.
+         */
+        private BlockedPop blocked;
+
+        /**
+         * The transaction, created on first use.
+         */
+        private Transaction transaction;
+
+        /**
+         * The replies of the queued commands, written while EXEC runs them.
+         */
+        private OutputBuffer replies;
+
+        /**
+         * Whether EXEC is running the queued commands.
+         */
+        private boolean executing;
+
+        /**
+         * The subscriptions, created on first use.
+         */
+        private PubSub.Subscriber subscriber;
+    }
+
+    private final StripedRedis redis;
+
+    /**
+     * The replication of the keyspace to replicas, or null.
+     */
+    private Replication replication;
+
+    /**
+     * The replication of the keyspace from a primary, or null.
+     */
+    private Replica replica;
+
+    /**
+     * The bytes of messages a subscriber may have waiting to be sent
+     * before it is disconnected.
+     */
+    private volatile long pubsubOutputBufferLimit = DEFAULT_PUBSUB_OUTPUT_BUFFER_LIMIT;
+
+    /**
+     * Serves the keyspace.
+     *
+     * @param redis the keyspace, shared by all the event loops
+     */
+    public RespHandler(StripedRedis redis) {
+        this.redis = redis;
+    }
+
+    /**
+     * Accepts replicas, which synchronize with PSYNC. To be set before the
+     * server starts.
+     *
+     * @param replication the replication of the keyspace
+     */
+    public void setReplication(Replication replication) {
+        this.replication = replication;
+    }
+
+    /**
+     * Serves the keyspace of a replica: reads are served, writes are
+     * refused as in Redis with replica-read-only. To be set before the
+     * server starts.
+     *
+     * @param replica the replication from the primary
+     */
+    public void setReplica(Replica replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * Sets the bytes of messages a subscriber may have waiting to be sent
+     * before it is disconnected as a slow consumer.
+     *
+     * @param bytes the limit
+     */
+    public void setPubsubOutputBufferLimit(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        pubsubOutputBufferLimit = bytes;
+    }
+
+    @Override
+    public void closed(NioServer.Connection c) {
+        if (replication != null) {
+            replication.closed(c);
+        }
+        Client client = (Client) c.attachment();
+        if (client == null) {
+            return;
+        }
+        if (client.blocked != null) {
+            redis.unblock(client.blocked);
+        }
+        if (client.transaction != null) {
+            // the keys watched are released
+            client.transaction.reset();
+        }
+        if (client.subscriber != null) {
+            client.subscriber.close();
+        }
+    }
+
+    /**
+     * Returns the state of the client, attached on first use.
+     */
+    private static Client client(NioServer.Connection c) {
+        Client client = (Client) c.attachment();
+        if (client == null) {
+            client = new Client();
+            c.attach(client);
+        }
+        return client;
+    }
+
+    @Override
+    public void process(NioServer.Connection c, ByteBuffer in) {
+        OutputBuffer out = c.out();
+        while (in.hasRemaining() && !c.suspended()) {
+            int start = in.position();
+            byte[][] argv;
+            try {
+                argv = parse(in);
+            } catch (ProtocolException e) {
+                error(out, "ERR Protocol error: " + e.getMessage());
+                in.position(in.limit());
+                c.closeAfterReply();
+                return;
+            }
+            if (argv == null) {
+                in.position(start);
+                return;
+            }
+            if (argv.length == 0) {
+                continue;
+            }
+            try {
+                execute(c, argv);
+            } catch (CommandException | IllegalArgumentException
+                    | IllegalStateException | UnsupportedOperationException e) {
+                error(out, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Executes one command and writes its reply.
+     *
+     * @param c    the connection
+     * @param args the command name followed by its arguments
+     */
+    void execute(NioServer.Connection c, byte[][] args) {
+        execute(c, c.out(), args);
+    }
+
+    /**
+     * Executes one command, or queues it inside MULTI, and writes its reply.
+     * The latency of the commands that succeed is recorded in the
+     * statistics, those that fail are not.
+     *
+     * @param c    the connection
+     * @param out  the buffer of the reply
+     * @param args the command name followed by its arguments
+     */
+    private void execute(NioServer.Connection c, OutputBuffer out, byte[][] args) {
+        String cmd = string(args[0]).toLowerCase(Locale.ROOT);
+        // the values of string writes are stored as sent, they are not decoded
+        int value = "set".equals(cmd) || "mset".equals(cmd) ? 2
+                : "setex".equals(cmd) || "psetex".equals(cmd) ? 3 : -1;
+        String[] argv = strings(args, value, "mset".equals(cmd) ? 2 : 0);
+        if (replica != null && WRITE_COMMANDS.contains(cmd)) {
+            throw new CommandException("READONLY You can't write against a read only replica.");
+        }
+        Client client = (Client) c.attachment();
+        if (client != null && client.transaction != null && client.transaction.inMulti()
+                && !TRANSACTION_COMMANDS.contains(cmd)) {
+            queue(c, client, cmd, argv, args);
+            out.write(QUEUED);
+            return;
+        }
+        if (client != null && client.subscriber != null
+                && client.subscriber.subscriptions() > 0 && !SUBSCRIBER_COMMANDS.contains(cmd)) {
+            throw new CommandException("ERR Can't execute '" + cmd + "': only (P)SUBSCRIBE / "
+                    + "(P)UNSUBSCRIBE / PING / QUIT are allowed in this context");
+        }
+        long start = System.nanoTime();
+        if (!dispatch(c, out, cmd, argv, args)) {
+            throw new CommandException("ERR unknown command '" + argv[0] + "'");
+        }
+        long nanos = System.nanoTime() - start;
+        CommandStats stats = redis.stats();
+        // the values left encoded are decoded only for the slowlog
+        stats.record(cmd, nanos, value >= 0 && stats.logs(nanos) ? strings(args) : argv);
+    }
+
+    /**
+     * Executes one command and writes its reply.
+     *
+     * @return false if the command is unknown
+     */
+    private boolean dispatch(NioServer.Connection c, OutputBuffer out, String cmd,
+                             String[] argv, byte[][] args) {
+        Client client = (Client) c.attachment();
+        switch (cmd) {
+            case "ping":
+                arity(argv, -1, cmd);
+                if (client != null && client.subscriber != null
+                        && client.subscriber.subscriptions() > 0) {
+                    arrayHeader(out, 2);
+                    bulk(out, "pong");
+                    bulk(out, argv.length == 1 ? "" : argv[1]);
+                } else if (argv.length == 1) {
+                    out.write(PONG);
+                } else {
+                    bulk(out, argv[1]);
+                }
+                break;
+            case "echo":
+                arity(argv, 2, cmd);
+                bulk(out, argv[1]);
+                break;
+            case "multi":
+                arity(argv, 1, cmd);
+                multi(c);
+                out.write(OK);
+                break;
+            case "exec":
+                arity(argv, 1, cmd);
+                exec(c, out);
+                break;
+            case "discard":
+                arity(argv, 1, cmd);
+                transaction(c).discard();
+                out.write(OK);
+                break;
+            case "watch":
+                arity(argv, -2, cmd);
+                transaction(c).watch(tail(argv, 1));
+                out.write(OK);
+                break;
+            case "unwatch":
+                arity(argv, 1, cmd);
+                transaction(c).unwatch();
+                out.write(OK);
+                break;
+            case "fcall":
+            case "eval":
+            case "evalsha": {
+                arity(argv, -3, cmd);
+                String[] keys = fcallKeys(argv);
+                String[] rest = tail(argv, 3 + keys.length);
+                Object result;
+                try {
+                    if ("fcall".equals(cmd)) {
+                        result = redis.fcall(argv[1], keys, rest);
+                    } else if ("eval".equals(cmd)) {
+                        result = redis.eval(argv[1], keys, rest);
+                    } else {
+                        result = redis.evalsha(argv[1], keys, rest);
+                    }
+                } catch (CommandException | IllegalArgumentException
+                        | IllegalStateException | UnsupportedOperationException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    // a bug of the function fails the call, not the connection
+                    throw new CommandException("ERR Error running "
+                            + ("fcall".equals(cmd) ? "function '" + argv[1] + "'" : "script")
+                            + ": " + e);
+                }
+                reply(out, result);
+                break;
+            }
+            case "function":
+                function(out, argv);
+                break;
+            case "script":
+                script(out, argv);
+                break;
+            case "publish":
+                arity(argv, 3, cmd);
+                integer(out, redis.publish(argv[1], argv[2]));
+                break;
+            case "subscribe":
+            case "psubscribe":
+                arity(argv, -2, cmd);
+                subscribe(c, out, argv, cmd);
+                break;
+            case "unsubscribe":
+            case "punsubscribe":
+                unsubscribe(c, out, argv, cmd);
+                break;
+            case "quit":
+                out.write(OK);
+                c.closeAfterReply();
+                break;
+            case "select":
+                arity(argv, 2, cmd);
+                if (!"0".equals(argv[1])) {
+                    throw new CommandException("ERR DB index is out of range");
+                }
+                out.write(OK);
+                break;
+            case "client":
+            case "hello":
+                // accept connection metadata sent by clients on connect
+                out.write(OK);
+                break;
+            case "command":
+                out.write(EMPTY_ARRAY);
+                break;
+            case "config":
+                config(out, argv);
+                break;
+            case "info":
+                arity(argv, -1, cmd);
+                if (argv.length > 2) {
+                    throw new CommandException("ERR syntax error");
+                }
+                bulk(out, redis.info(argv.length == 2 ? argv[1] : "default"));
+                break;
+            case "slowlog":
+                slowlog(out, argv);
+                break;
+            case "role":
+                arity(argv, 1, cmd);
+                role(out);
+                break;
+            case "replconf":
+                replconf(c, argv);
+                break;
+            case "psync":
+                arity(argv, 3, cmd);
+                if (replication == null) {
+                    throw new CommandException("ERR PSYNC not allowed, the server does not replicate");
+                }
+                replication.sync(c, argv[1], parseLong(argv[2]));
+                break;
+            case "get":
+                arity(argv, 2, cmd);
+                if (!redis.get(argv[1], v -> bulk(out, v))) {
+                    out.write(NULL_BULK);
+                }
+                break;
+            case "set":
+                set(out, argv, args);
+                break;
+            case "incr":
+                arity(argv, 2, cmd);
+                integer(out, redis.incr(argv[1]));
+                break;
+            case "incrby":
+                arity(argv, 3, cmd);
+                integer(out, redis.incrby(argv[1], parseLong(argv[2])));
+                break;
+            case "setex":
+                arity(argv, 4, cmd);
+                redis.setex(argv[1], parseLong(argv[2]), args[3]);
+                out.write(OK);
+                break;
+            case "psetex":
+                arity(argv, 4, cmd);
+                redis.psetex(argv[1], parseLong(argv[2]), args[3]);
+                out.write(OK);
+                break;
+            case "mget": {
+                arity(argv, -2, cmd);
+                String[] ks = tail(argv, 1);
+                // one reply for the whole batch, in the order of the keys
+                arrayHeader(out, ks.length);
+                redis.mget(ks, v -> {
+                    if (v == null) {
+                        out.write(NULL_BULK);
+                    } else {
+                        bulk(out, v);
+                    }
+                });
+                break;
+            }
+            case "mset": {
+                if (argv.length < 3 || argv.length % 2 == 0) {
+                    throw wrongArity(cmd);
+                }
+                String[] ks = new String[argv.length / 2];
+                byte[][] vs = new byte[ks.length][];
+                for (int i = 0; i < ks.length; i++) {
+                    ks[i] = argv[2 * i + 1];
+                    vs[i] = args[2 * i + 2];
+                }
+                redis.mset(ks, vs);
+                out.write(OK);
+                break;
+            }
+            case "del":
+                arity(argv, -2, cmd);
+                integer(out, redis.del(tail(argv, 1)));
+                break;
+            case "exists":
+                arity(argv, -2, cmd);
+                int n = 0;
+                for (int i = 1; i < argv.length; i++) {
+                    if (!"none".equals(redis.type(argv[i]))) {
+                        n++;
+                    }
+                }
+                integer(out, n);
+                break;
+            case "type":
+                arity(argv, 2, cmd);
+                simple(out, redis.type(argv[1]));
+                break;
+            case "hset":
+                if (argv.length < 4 || argv.length % 2 != 0) {
+                    throw wrongArity(cmd);
+                }
+                integer(out, redis.hset(argv[1], tail(argv, 2)));
+                break;
+            case "hmset":
+                if (argv.length < 4 || argv.length % 2 != 0) {
+                    throw wrongArity(cmd);
+                }
+                redis.hmset(argv[1], tail(argv, 2));
+                out.write(OK);
+                break;
+            case "hmget": {
+                arity(argv, -3, cmd);
+                List<String> vs = redis.hmget(argv[1], tail(argv, 2));
+                arrayHeader(out, vs.size());
+                for (String v : vs) {
+                    bulk(out, v);
+                }
+                break;
+            }
+            case "hget":
+                arity(argv, 3, cmd);
+                bulk(out, redis.hget(argv[1], argv[2]));
+                break;
+            case "hlen":
+                arity(argv, 2, cmd);
+                integer(out, redis.hlen(argv[1]));
+                break;
+            case "hgetall": {
+                arity(argv, 2, cmd);
+                // streamed into the reply, the count is only known at the end
+                OutputBuffer body = new OutputBuffer();
+                int fields = redis.hgetall(argv[1], (f, v) -> {
+                    bulk(body, f);
+                    bulk(body, v);
+                });
+                arrayHeader(out, fields * 2);
+                out.write(body);
+                break;
+            }
+            case "scan":
+                scan(out, argv, 1);
+                break;
+            case "hscan":
+                arity(argv, -3, cmd);
+                scan(out, argv, 2);
+                break;
+            case "rpush":
+                arity(argv, -3, cmd);
+                integer(out, redis.rpush(argv[1], tail(argv, 2)));
+                break;
+            case "rpop":
+                arity(argv, 2, cmd);
+                bulk(out, redis.rpop(argv[1]));
+                break;
+            case "lpush":
+                arity(argv, -3, cmd);
+                integer(out, redis.lpush(argv[1], tail(argv, 2)));
+                break;
+            case "lpop":
+                arity(argv, 2, cmd);
+                bulk(out, redis.lpop(argv[1]));
+                break;
+            case "blpop":
+            case "brpop":
+                blockingPop(c, out, argv, cmd);
+                break;
+            case "llen":
+                arity(argv, 2, cmd);
+                integer(out, redis.llen(argv[1]));
+                break;
+            case "lindex":
+                arity(argv, 3, cmd);
+                bulk(out, redis.lindex(argv[1], parseInt(argv[2])));
+                break;
+            case "lrange": {
+                arity(argv, 4, cmd);
+                OutputBuffer body = new OutputBuffer();
+                int items = redis.lrange(argv[1], parseInt(argv[2]),
+                        parseInt(argv[3]), v -> bulk(body, v));
+                arrayHeader(out, items);
+                out.write(body);
+                break;
+            }
+            case "zadd":
+                zadd(out, argv);
+                break;
+            case "zrem":
+                arity(argv, -3, cmd);
+                integer(out, redis.zrem(argv[1], tail(argv, 2)));
+                break;
+            case "zscore": {
+                arity(argv, 3, cmd);
+                Double score = redis.zscore(argv[1], argv[2]);
+                bulk(out, score == null ? null : SortedSet.formatScore(score));
+                break;
+            }
+            case "zcard":
+                arity(argv, 2, cmd);
+                integer(out, redis.zcard(argv[1]));
+                break;
+            case "zrank":
+            case "zrevrank": {
+                arity(argv, 3, cmd);
+                Integer rank = cmd.equals("zrank") ? redis.zrank(argv[1], argv[2])
+                        : redis.zrevrank(argv[1], argv[2]);
+                if (rank == null) {
+                    out.write(NULL_BULK);
+                } else {
+                    integer(out, rank);
+                }
+                break;
+            }
+            case "zrange":
+            case "zrevrange":
+                zrange(out, argv, cmd);
+                break;
+            case "zrangebyscore":
+                zrangebyscore(out, argv);
+                break;
+            case "expire":
+                arity(argv, 3, cmd);
+                integer(out, redis.expire(argv[1], parseLong(argv[2])));
+                break;
+            case "pexpire":
+                arity(argv, 3, cmd);
+                integer(out, redis.pexpire(argv[1], parseLong(argv[2])));
+                break;
+            case "pexpireat":
+                arity(argv, 3, cmd);
+                integer(out, redis.pexpireat(argv[1], parseLong(argv[2])));
+                break;
+            case "ttl":
+                arity(argv, 2, cmd);
+                integer(out, redis.ttl(argv[1]));
+                break;
+            case "pttl":
+                arity(argv, 2, cmd);
+                integer(out, redis.pttl(argv[1]));
+                break;
+            case "persist":
+                arity(argv, 2, cmd);
+                integer(out, redis.persist(argv[1]));
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the transaction of the client, created on first use.
+     */
+    private Transaction transaction(NioServer.Connection c) {
+        Client client = client(c);
+        if (client.transaction == null) {
+            client.transaction = redis.transaction();
+        }
+        return client.transaction;
+    }
+
+    /**
+     * MULTI: the next commands are queued until EXEC or DISCARD.
+     */
+    private void multi(NioServer.Connection c) {
+        transaction(c).multi();
+        client(c).replies = new OutputBuffer();
+    }
+
+    /**
+     * Queues a command inside MULTI with the keys it touches, its reply is
+     * written to the replies of the transaction when EXEC runs it.
+     */
+    private void queue(NioServer.Connection c, Client client, String cmd, String[] argv,
+                       byte[][] args) {
+        OutputBuffer replies = client.replies;
+        Function<StripedRedis, ?> command = r -> {
+            try {
+                execute(c, replies, args);
+            } catch (CommandException | IllegalArgumentException
+                    | IllegalStateException | UnsupportedOperationException e) {
+                error(replies, e.getMessage());
+            }
+            return null;
+        };
+        String[] keys = keysOf(cmd, argv);
+        if (keys == null) {
+            client.transaction.queueUnkeyed(command);
+        } else {
+            client.transaction.queue(command, keys);
+        }
+    }
+
+    /**
+     * Returns the keys a command touches, as in the key specs of COMMAND.
+     *
+     * @return the keys, or null if the command may touch any key
+     */
+    private static String[] keysOf(String cmd, String[] argv) {
+        if (UNKEYED_COMMANDS.contains(cmd)) {
+            return null;
+        }
+        if (KEYLESS_COMMANDS.contains(cmd) || argv.length < 2) {
+            return new String[0];
+        }
+        switch (cmd) {
+            case "mget":
+            case "del":
+            case "exists":
+                return tail(argv, 1);
+            case "mset": {
+                String[] ks = new String[argv.length / 2];
+                for (int i = 0; i < ks.length; i++) {
+                    ks[i] = argv[2 * i + 1];
+                }
+                return ks;
+            }
+            case "blpop":
+            case "brpop":
+                return Arrays.copyOfRange(argv, 1, Math.max(1, argv.length - 1));
+            case "fcall":
+            case "eval":
+            case "evalsha":
+                return fcallKeys(argv);
+            default:
+                return new String[]{argv[1]};
+        }
+    }
+
+    /**
+     * EXEC: the replies of the queued commands, or a null array if a
+     * watched key was written.
+     */
+    private void exec(NioServer.Connection c, OutputBuffer out) {
+        Client client = client(c);
+        Transaction tx = transaction(c);
+        List<Object> results;
+        client.executing = true;
+        try {
+            results = tx.exec();
+        } finally {
+            client.executing = false;
+        }
+        OutputBuffer replies = client.replies;
+        client.replies = null;
+        if (results == null) {
+            out.write(NULL_ARRAY);
+            return;
+        }
+        arrayHeader(out, results.size());
+        out.write(replies);
+    }
+
+    /**
+     * Returns the subscriptions of the client, created on first use. The
+     * messages are written from the event loop of the connection.
+     */
+    private PubSub.Subscriber subscriber(NioServer.Connection c) {
+        Client client = client(c);
+        if (client.subscriber == null) {
+            client.subscriber = redis.pubsub().subscriber(
+                    () -> c.execute(() -> deliver(c, client.subscriber)),
+                    () -> c.execute(c::close));
+        }
+        return client.subscriber;
+    }
+
+    /**
+     * SUBSCRIBE channel [channel ...] and PSUBSCRIBE pattern [pattern ...],
+     * one reply per channel with the number of subscriptions.
+     */
+    private void subscribe(NioServer.Connection c, OutputBuffer out, String[] argv, String cmd) {
+        PubSub.Subscriber s = subscriber(c);
+        for (int i = 1; i < argv.length; i++) {
+            if (cmd.equals("subscribe")) {
+                s.subscribe(argv[i]);
+            } else {
+                s.psubscribe(argv[i]);
+            }
+            subscription(out, cmd, argv[i], s.subscriptions());
+        }
+    }
+
+    /**
+     * UNSUBSCRIBE [channel ...] and PUNSUBSCRIBE [pattern ...], from every
+     * channel or pattern if none is given.
+     */
+    private void unsubscribe(NioServer.Connection c, OutputBuffer out, String[] argv, String cmd) {
+        PubSub.Subscriber s = subscriber(c);
+        boolean channels = cmd.equals("unsubscribe");
+        String[] names = argv.length > 1 ? tail(argv, 1)
+                : (channels ? s.channels() : s.patterns()).toArray(new String[0]);
+        if (names.length == 0) {
+            subscription(out, cmd, null, s.subscriptions());
+        }
+        for (String name : names) {
+            if (channels) {
+                s.unsubscribe(name);
+            } else {
+                s.punsubscribe(name);
+            }
+            subscription(out, cmd, name, s.subscriptions());
+        }
+    }
+
+    private static void subscription(OutputBuffer out, String kind, String name, int count) {
+        arrayHeader(out, 3);
+        bulk(out, kind);
+        bulk(out, name);
+        integer(out, count);
+    }
+
+    /**
+     * Writes the messages handed over to a subscriber, on the event loop of
+     * its connection, which is closed if they pile up past the limit.
+     */
+    private void deliver(NioServer.Connection c, PubSub.Subscriber s) {
+        OutputBuffer out = c.out();
+        PubSub.Message m;
+        while ((m = s.poll()) != null) {
+            out.write(m.encoded(RespHandler::encode));
+            if (out.readable() > pubsubOutputBufferLimit) {
+                c.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encodes a message or pmessage push.
+     */
+    private static byte[] encode(PubSub.Message m) {
+        OutputBuffer b = new OutputBuffer();
+        if (m.pattern() == null) {
+            arrayHeader(b, 3);
+            bulk(b, "message");
+        } else {
+            arrayHeader(b, 4);
+            bulk(b, "pmessage");
+            bulk(b, m.pattern());
+        }
+        bulk(b, m.channel());
+        bulk(b, m.message());
+        ByteBuffer bytes = ByteBuffer.allocate(b.readable());
+        b.drainTo(bytes);
+        return bytes.array();
+    }
+
+    /**
+     * ROLE: ["master", offset, [[ip, port, offset]...]] or
+     * ["slave", host, port, state, offset].
+     */
+    private void role(OutputBuffer out) {
+        if (replica != null) {
+            String[] primary = replica.primary().split(":");
+            arrayHeader(out, 5);
+            bulk(out, "slave");
+            bulk(out, primary[0]);
+            integer(out, Long.parseLong(primary[1]));
+            bulk(out, replica.state().name().toLowerCase(Locale.ROOT));
+            integer(out, replica.offset());
+            return;
+        }
+        List<Replication.ReplicaInfo> replicas = replication == null
+                ? new ArrayList<>() : replication.replicas();
+        arrayHeader(out, 3);
+        bulk(out, "master");
+        integer(out, replication == null ? 0 : replication.offset());
+        arrayHeader(out, replicas.size());
+        for (Replication.ReplicaInfo r : replicas) {
+            arrayHeader(out, 3);
+            bulk(out, r.address() == null ? "?" : r.address().getHostString());
+            bulk(out, Integer.toString(r.listeningPort()));
+            bulk(out, Long.toString(r.ackedOffset()));
+        }
+    }
+
+    /**
+     * REPLCONF listening-port port | ACK offset | capa ..., sent by
+     * replicas. ACK has no reply.
+     */
+    private void replconf(NioServer.Connection c, String[] argv) {
+        if (argv.length % 2 == 0 || argv.length < 3) {
+            throw wrongArity("replconf");
+        }
+        for (int i = 1; i < argv.length; i += 2) {
+            switch (argv[i].toLowerCase(Locale.ROOT)) {
+                case "ack":
+                    if (replication != null) {
+                        replication.ack(c, parseLong(argv[i + 1]));
+                    }
+                    return;
+                case "listening-port":
+                    if (replication != null) {
+                        replication.listeningPort(c, parseInt(argv[i + 1]));
+                    }
+                    break;
+                default:
+                    // capabilities are ignored
+                    break;
+            }
+        }
+        c.out().write(OK);
+    }
+
+    /**
+     * SET key value [NX] [EX seconds | PX milliseconds], replies a null
+     * bulk string when NX did not set the key.
+     */
+    private void set(OutputBuffer out, String[] argv, byte[][] args) {
+        if (argv.length < 3) {
+            throw wrongArity("set");
+        }
+        boolean nx = false;
+        long ms = 0;
+        for (int i = 3; i < argv.length; i++) {
+            String option = argv[i].toLowerCase(Locale.ROOT);
+            if ("nx".equals(option) && !nx) {
+                nx = true;
+            } else if (("ex".equals(option) || "px".equals(option)) && ms == 0
+                    && i + 1 < argv.length) {
+                long ttl = parseLong(argv[++i]);
+                if (ttl <= 0 || ("ex".equals(option) && ttl > Long.MAX_VALUE / 1000)) {
+                    throw new CommandException("ERR invalid expire time in 'set' command");
+                }
+                ms = "ex".equals(option) ? ttl * 1000 : ttl;
+            } else {
+                throw new CommandException("ERR syntax error");
+            }
+        }
+        if (argv.length == 3) {
+            redis.set(argv[1], args[2]);
+        } else if (!redis.set(argv[1], args[2], nx, ms)) {
+            out.write(NULL_BULK);
+            return;
+        }
+        out.write(OK);
+    }
+
+    /**
+     * SCAN cursor [MATCH pattern] [COUNT count] and
+     * HSCAN key cursor [MATCH pattern] [COUNT count].
+     *
+     * As in Redis, MATCH filters the items after they were read, so a reply
+     * may be empty while the cursor is not 0.
+     *
+     * @param at the position of the cursor in argv, 1 for SCAN, 2 for HSCAN
+     */
+    private void scan(OutputBuffer out, String[] argv, int at) {
+        if (argv.length <= at) {
+            throw wrongArity(argv[0].toLowerCase(Locale.ROOT));
+        }
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(argv[at]);
+        } catch (NumberFormatException e) {
+            throw new CommandException("ERR invalid cursor");
+        }
+        String pattern = null;
+        int count = Redis.DEFAULT_SCAN_COUNT;
+        for (int i = at + 1; i < argv.length; i += 2) {
+            if (i + 1 == argv.length) {
+                throw new CommandException("ERR syntax error");
+            }
+            switch (argv[i].toLowerCase(Locale.ROOT)) {
+                case "match":
+                    pattern = argv[i + 1];
+                    break;
+                case "count":
+                    count = parseInt(argv[i + 1]);
+                    if (count < 1) {
+                        throw new CommandException("ERR syntax error");
+                    }
+                    break;
+                default:
+                    throw new CommandException("ERR syntax error");
+            }
+        }
+        ScanResult r = at == 1 ? redis.scan(cursor, count)
+                : redis.hscan(argv[1], cursor, count);
+        List<String> items = r.items();
+        if (pattern != null) {
+            // a field and its value are kept or dropped together
+            int step = at == 1 ? 1 : 2;
+            List<String> matched = new ArrayList<>();
+            for (int i = 0; i < items.size(); i += step) {
+                if (matches(pattern, 0, items.get(i), 0)) {
+                    matched.addAll(items.subList(i, i + step));
+                }
+            }
+            items = matched;
+        }
+        arrayHeader(out, 2);
+        bulk(out, Long.toUnsignedString(r.cursor()));
+        array(out, items);
+    }
+
+    /**
+     * BLPOP and BRPOP key [key ...] timeout, the timeout in seconds.
+     */
+    private void blockingPop(NioServer.Connection c, OutputBuffer out, String[] argv,
+                             String cmd) {
+        arity(argv, -3, cmd);
+        double seconds;
+        try {
+            seconds = Double.parseDouble(argv[argv.length - 1]);
+        } catch (NumberFormatException e) {
+            throw new CommandException("ERR timeout is not a float or out of range");
+        }
+        if (Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+            throw new CommandException("ERR timeout is not a float or out of range");
+        }
+        String[] keys = Arrays.copyOfRange(argv, 1, argv.length - 1);
+        Client client = client(c);
+        if (client.executing) {
+            // a transaction never blocks, as if the timeout expired at once
+            for (String k : keys) {
+                String v = cmd.equals("blpop") ? redis.lpop(k) : redis.rpop(k);
+                if (v != null) {
+                    pop(out, k, v);
+                    return;
+                }
+            }
+            out.write(NULL_ARRAY);
+            return;
+        }
+        BlockedPop w = redis.block(keys, cmd.equals("blpop"), (long) Math.ceil(seconds * 1000),
+                (k, v) -> c.execute(() -> {
+                    client.blocked = null;
+                    pop(c.out(), k, v);
+                    c.resume();
+                }));
+        if (w.key() != null) {
+            pop(out, w.key(), w.value());
+        } else {
+            client.blocked = w;
+            c.suspend();
+        }
+    }
+
+    /**
+     * The reply of BLPOP and BRPOP, a null array on timeout.
+     */
+    private static void pop(OutputBuffer out, String k, String v) {
+        if (k == null) {
+            out.write(NULL_ARRAY);
+            return;
+        }
+        arrayHeader(out, 2);
+        bulk(out, k);
+        bulk(out, v);
+    }
+
+    /**
+     * ZADD key score member [score member ...]
+     */
+    private void zadd(OutputBuffer out, String[] argv) {
+        if (argv.length < 4 || argv.length % 2 != 0) {
+            throw wrongArity("zadd");
+        }
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (int i = 2; i < argv.length; i += 2) {
+            scores.put(argv[i + 1], SortedSet.parseScore(argv[i]));
+        }
+        integer(out, redis.zadd(argv[1], scores));
+    }
+
+    /**
+     * ZRANGE and ZREVRANGE key start stop [WITHSCORES]
+     */
+    private void zrange(OutputBuffer out, String[] argv, String cmd) {
+        arity(argv, -4, cmd);
+        boolean withScores = withScores(argv, 4);
+        if (argv.length > 5) {
+            throw new CommandException("ERR syntax error");
+        }
+        int start = parseInt(argv[2]);
+        int stop = parseInt(argv[3]);
+        OutputBuffer body = new OutputBuffer();
+        BiConsumer<String, Double> visitor = (m, score) -> {
+            bulk(body, m);
+            if (withScores) {
+                bulk(body, SortedSet.formatScore(score));
+            }
+        };
+        int members = cmd.equals("zrange") ? redis.zrange(argv[1], start, stop, visitor)
+                : redis.zrevrange(argv[1], start, stop, visitor);
+        arrayHeader(out, withScores ? members * 2 : members);
+        out.write(body);
+    }
+
+    /**
+     * ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]
+     */
+    private void zrangebyscore(OutputBuffer out, String[] argv) {
+        arity(argv, -4, "zrangebyscore");
+        boolean withScores = false;
+        int offset = 0;
+        int count = -1;
+        for (int i = 4; i < argv.length; i++) {
+            if (argv[i].equalsIgnoreCase("withscores")) {
+                withScores = true;
+            } else if (argv[i].equalsIgnoreCase("limit") && i + 2 < argv.length) {
+                offset = parseInt(argv[i + 1]);
+                count = parseInt(argv[i + 2]);
+                i += 2;
+            } else {
+                throw new CommandException("ERR syntax error");
+            }
+        }
+        OutputBuffer body = new OutputBuffer();
+        boolean scores = withScores;
+        int members = redis.zrangebyscore(argv[1], argv[2], argv[3], offset, count,
+                (m, score) -> {
+                    bulk(body, m);
+                    if (scores) {
+                        bulk(body, SortedSet.formatScore(score));
+                    }
+                });
+        arrayHeader(out, scores ? members * 2 : members);
+        out.write(body);
+    }
+
+    /**
+     * Returns whether the argument at i is WITHSCORES, false past the end.
+     */
+    private static boolean withScores(String[] argv, int i) {
+        if (i >= argv.length) {
+            return false;
+        }
+        if (!argv[i].equalsIgnoreCase("withscores")) {
+            throw new CommandException("ERR syntax error");
+        }
+        return true;
+    }
+
+    /**
+     * Matches a glob-style pattern as KEYS and SCAN do: '*' matches any
+     * sequence, '?' any character, "[...]" a set or range of characters,
+     * negated by a leading '^', and '\' escapes the next character.
+     *
+     * @see <a href="https://redis.io/commands/keys">KEYS - Redis</a>
+     */
+    static boolean matches(String p, int pi, String s, int si) {
+        while (pi < p.length()) {
+            char c = p.charAt(pi);
+            switch (c) {
+                case '*':
+                    while (pi + 1 < p.length() && p.charAt(pi + 1) == '*') {
+                        pi++;
+                    }
+                    if (pi + 1 == p.length()) {
+                        return true;
+                    }
+                    for (int i = si; i <= s.length(); i++) {
+                        if (matches(p, pi + 1, s, i)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case '?':
+                    if (si == s.length()) {
+                        return false;
+                    }
+                    si++;
+                    pi++;
+                    break;
+                case '[': {
+                    if (si == s.length()) {
+                        return false;
+                    }
+                    char ch = s.charAt(si++);
+                    pi++;
+                    boolean not = pi < p.length() && p.charAt(pi) == '^';
+                    if (not) {
+                        pi++;
+                    }
+                    boolean match = false;
+                    while (pi < p.length() && p.charAt(pi) != ']') {
+                        if (p.charAt(pi) == '\\' && pi + 1 < p.length()) {
+                            pi++;
+                            match |= p.charAt(pi) == ch;
+                        } else if (pi + 2 < p.length() && p.charAt(pi + 1) == '-') {
+                            char lo = p.charAt(pi);
+                            char hi = p.charAt(pi + 2);
+                            if (lo > hi) {
+                                char t = lo;
+                                lo = hi;
+                                hi = t;
+                            }
+                            match |= ch >= lo && ch <= hi;
+                            pi += 2;
+                        } else {
+                            match |= p.charAt(pi) == ch;
+                        }
+                        pi++;
+                    }
+                    if (match == not) {
+                        return false;
+                    }
+                    pi++;
+                    break;
+                }
+                case '\\':
+                    if (pi + 1 < p.length()) {
+                        pi++;
+                        c = p.charAt(pi);
+                    }
+                    // fall through
+                default:
+                    if (si == s.length() || s.charAt(si) != c) {
+                        return false;
+                    }
+                    si++;
+                    pi++;
+                    break;
+            }
+        }
+        return si == s.length();
+    }
+
+    /**
+     * Returns the keys of FCALL function numkeys key... arg...
+     */
+    private static String[] fcallKeys(String[] argv) {
+        int numkeys = parseInt(argv[2]);
+        if (numkeys < 0) {
+            throw new CommandException("ERR Number of keys can't be negative");
+        }
+        if (numkeys > argv.length - 3) {
+            throw new CommandException("ERR Number of keys can't be greater than number of args");
+        }
+        return Arrays.copyOfRange(argv, 3, 3 + numkeys);
+    }
+
+    /**
+     * SCRIPT EXISTS or FLUSH. There is no Lua interpreter, the scripts are
+     * Java code registered by {@link StripedRedis#scriptLoad(String, RedisFunction)},
+     * so LOAD is refused.
+     *
+     * @see <a href="https://redis.io/commands/script">SCRIPT - Redis</a>
+     */
+    private void script(OutputBuffer out, String[] argv) {
+        if (argv.length < 2) {
+            throw wrongArity("script");
+        }
+        switch (argv[1].toLowerCase(Locale.ROOT)) {
+            case "exists": {
+                arity(argv, -3, "script|exists");
+                List<Long> exists = new ArrayList<>();
+                for (int i = 2; i < argv.length; i++) {
+                    exists.add(redis.scriptExists(argv[i]) ? 1L : 0L);
+                }
+                reply(out, exists);
+                break;
+            }
+            case "flush":
+                redis.scriptFlush();
+                out.write(OK);
+                break;
+            case "load":
+                throw new CommandException("ERR SCRIPT LOAD is not supported, "
+                        + "scripts are registered in Java");
+            default:
+                throw new CommandException("ERR unknown subcommand '" + argv[1]
+                        + "'. Try SCRIPT HELP.");
+        }
+    }
+
+    /**
+     * FUNCTION LIST, DELETE or FLUSH. The functions are Java code, they are
+     * registered by {@link StripedRedis#functionLoad(String, RedisFunction)}
+     * rather than loaded from a script, so LOAD is refused.
+     *
+     * @see <a href="https://redis.io/commands/function">FUNCTION - Redis</a>
+     */
+    private void function(OutputBuffer out, String[] argv) {
+        if (argv.length < 2) {
+            throw wrongArity("function");
+        }
+        switch (argv[1].toLowerCase(Locale.ROOT)) {
+            case "list":
+                array(out, redis.functionList());
+                break;
+            case "delete":
+                arity(argv, 3, "function|delete");
+                if (!redis.functionDelete(argv[2])) {
+                    throw new CommandException("ERR Library not found");
+                }
+                out.write(OK);
+                break;
+            case "flush":
+                redis.functionFlush();
+                out.write(OK);
+                break;
+            case "load":
+                throw new CommandException("ERR FUNCTION LOAD is not supported, "
+                        + "functions are registered in Java");
+            default:
+                throw new CommandException("ERR unknown subcommand '" + argv[1]
+                        + "'. Try FUNCTION HELP.");
+        }
+    }
+
+    /**
+     * SLOWLOG GET [count], LEN or RESET. An entry is the array of its id,
+     * its unix time in seconds, its duration in microseconds, and its
+     * arguments.
+     *
+     * @see <a href="https://redis.io/commands/slowlog">SLOWLOG - Redis</a>
+     */
+    private void slowlog(OutputBuffer out, String[] argv) {
+        if (argv.length < 2) {
+            throw wrongArity("slowlog");
+        }
+        CommandStats stats = redis.stats();
+        switch (argv[1].toLowerCase(Locale.ROOT)) {
+            case "get": {
+                if (argv.length > 3) {
+                    throw new CommandException("ERR syntax error");
+                }
+                List<CommandStats.SlowlogEntry> entries =
+                        stats.slowlog(argv.length == 3 ? parseInt(argv[2]) : 10);
+                arrayHeader(out, entries.size());
+                for (CommandStats.SlowlogEntry e : entries) {
+                    arrayHeader(out, 4);
+                    integer(out, e.id());
+                    integer(out, e.timestamp());
+                    integer(out, e.durationMicros());
+                    array(out, e.args());
+                }
+                break;
+            }
+            case "len":
+                arity(argv, 2, "slowlog|len");
+                integer(out, stats.slowlogLen());
+                break;
+            case "reset":
+                arity(argv, 2, "slowlog|reset");
+                stats.slowlogReset();
+                out.write(OK);
+                break;
+            default:
+                throw new CommandException("ERR unknown subcommand '" + argv[1]
+                        + "'. Try SLOWLOG HELP.");
+        }
+    }
+
+    /**
+     * CONFIG SET of the memory and slowlog settings, CONFIG GET replies an
+     * empty list.
+     */
+    private void config(OutputBuffer out, String[] argv) {
+        if (argv.length < 2) {
+            throw wrongArity("config");
+        }
+        String sub = argv[1].toLowerCase(Locale.ROOT);
+        if ("get".equals(sub)) {
+            out.write(EMPTY_ARRAY);
+            return;
+        }
+        if (!"set".equals(sub) || argv.length != 4) {
+            throw new CommandException("ERR syntax error");
+        }
+        switch (argv[2].toLowerCase(Locale.ROOT)) {
+            case "maxmemory":
+                redis.setMaxmemory(parseLong(argv[3]));
+                break;
+            case "maxmemory-policy":
+                redis.setMaxmemoryPolicy(argv[3].toLowerCase(Locale.ROOT));
+                break;
+            case "maxmemory-samples":
+                redis.setMaxmemorySamples(parseInt(argv[3]));
+                break;
+            case "hash-max-listpack-entries":
+                redis.setHashMaxListpackEntries(parseInt(argv[3]));
+                break;
+            case "hash-max-listpack-value":
+                redis.setHashMaxListpackValue(parseInt(argv[3]));
+                break;
+            case "slowlog-log-slower-than":
+                redis.stats().setSlowlogLogSlowerThan(parseLong(argv[3]));
+                break;
+            case "slowlog-max-len":
+                redis.stats().setSlowlogMaxLen(parseInt(argv[3]));
+                break;
+            default:
+                throw new CommandException("ERR Unsupported CONFIG parameter: " + argv[2]);
+        }
+        out.write(OK);
+    }
+
+    /**
+     * Parses one request.
+     *
+     * @param in the bytes read
+     * @return the arguments as sent, or null if the request is incomplete
+     */
+    static byte[][] parse(ByteBuffer in) {
+        if (in.get(in.position()) != '*') {
+            return parseInline(in);
+        }
+        int eol = lineEnd(in, in.position());
+        if (eol < 0) {
+            return null;
+        }
+        long n = parseNumber(in, in.position() + 1, eol);
+        if (n > MAX_ARGUMENTS) {
+            throw new ProtocolException("invalid multibulk length");
+        }
+        in.position(eol + 2);
+        if (n <= 0) {
+            return new byte[0][];
+        }
+        byte[][] argv = new byte[(int) n][];
+        for (int i = 0; i < n; i++) {
+            if (!in.hasRemaining()) {
+                return null;
+            }
+            if (in.get(in.position()) != '$') {
+                throw new ProtocolException("expected '$', got '"
+                        + (char) in.get(in.position()) + "'");
+            }
+            eol = lineEnd(in, in.position());
+            if (eol < 0) {
+                return null;
+            }
+            long len = parseNumber(in, in.position() + 1, eol);
+            if (len < 0 || len > MAX_BULK_LENGTH) {
+                throw new ProtocolException("invalid bulk length");
+            }
+            if (in.limit() - (eol + 2) < len + 2) {
+                return null;
+            }
+            in.position(eol + 2);
+            argv[i] = new byte[(int) len];
+            in.get(argv[i]);
+            in.position(in.position() + 2);
+        }
+        return argv;
+    }
+
+    private static byte[][] parseInline(ByteBuffer in) {
+        int eol = lineEnd(in, in.position());
+        if (eol < 0) {
+            if (in.remaining() > MAX_ARGUMENTS) {
+                throw new ProtocolException("too big inline request");
+            }
+            return null;
+        }
+        String line = decode(in, eol - in.position());
+        in.position(eol + 2);
+        List<byte[]> argv = new ArrayList<>();
+        for (String s : line.trim().split(" +")) {
+            if (!s.isEmpty()) {
+                argv.add(s.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return argv.toArray(new byte[0][]);
+    }
+
+    /**
+     * Decodes an argument as UTF-8.
+     */
+    static String string(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes every argument as UTF-8.
+     */
+    static String[] strings(byte[][] args) {
+        return strings(args, -1, 0);
+    }
+
+    /**
+     * Decodes the arguments as UTF-8 but the one at skip, and every step
+     * arguments after it if step is positive, those are left null.
+     */
+    private static String[] strings(byte[][] args, int skip, int step) {
+        String[] argv = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (i != skip) {
+                argv[i] = string(args[i]);
+            } else if (step > 0) {
+                skip += step;
+            }
+        }
+        return argv;
+    }
+
+    /**
+     * Returns the position of the "\r" of the next "\r\n", or -1.
+     */
+    static int lineEnd(ByteBuffer in, int from) {
+        for (int i = from; i + 1 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseNumber(ByteBuffer in, int from, int to) {
+        if (from == to) {
+            throw new ProtocolException("invalid length");
+        }
+        boolean negative = in.get(from) == '-';
+        long v = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            byte b = in.get(i);
+            if (b < '0' || b > '9' || v > Integer.MAX_VALUE) {
+                throw new ProtocolException("invalid length");
+            }
+            v = v * 10 + (b - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Decodes the next len bytes as UTF-8 and advances past them.
+     */
+    static String decode(ByteBuffer in, int len) {
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(),
+                    len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+            return s;
+        }
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static String[] tail(String[] argv, int from) {
+        String[] t = new String[argv.length - from];
+        System.arraycopy(argv, from, t, 0, t.length);
+        return t;
+    }
+
+    /**
+     * Checks the number of arguments including the command name, a negative
+     * arity means at least -arity arguments.
+     */
+    static void arity(String[] argv, int arity, String cmd) {
+        if (arity >= 0 ? argv.length != arity : argv.length < -arity) {
+            throw wrongArity(cmd);
+        }
+    }
+
+    static CommandException wrongArity(String cmd) {
+        return new CommandException(
+                "ERR wrong number of arguments for '" + cmd + "' command");
+    }
+
+    static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new CommandException("ERR value is not an integer or out of range");
+        }
+    }
+
+    static int parseInt(String s) {
+        long v = parseLong(s);
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw new CommandException("ERR value is not an integer or out of range");
+        }
+        return (int) v;
+    }
+
+    static void simple(OutputBuffer out, String s) {
+        out.write((byte) '+').writeAscii(s).write(CRLF);
+    }
+
+    static void error(OutputBuffer out, String message) {
+        if (message == null) {
+            message = "ERR";
+        } else if (!startsWithCode(message)) {
+            message = "ERR " + message;
+        }
+        out.write((byte) '-').write(message.replace('\r', ' ').replace('\n', ' ')
+                .getBytes(StandardCharsets.UTF_8)).write(CRLF);
+    }
+
+    /**
+     * Returns whether the message starts with an upper case error code.
+     */
+    private static boolean startsWithCode(String message) {
+        int space = message.indexOf(' ');
+        if (space <= 0) {
+            return false;
+        }
+        for (int i = 0; i < space; i++) {
+            char ch = message.charAt(i);
+            if (ch < 'A' || ch > 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void integer(OutputBuffer out, long v) {
+        out.write((byte) ':').writeLong(v).write(CRLF);
+    }
+
+    static void bulk(OutputBuffer out, String s) {
+        if (s == null) {
+            out.write(NULL_BULK);
+            return;
+        }
+        bulk(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void bulk(OutputBuffer out, byte[] b) {
+        if (b == null) {
+            out.write(NULL_BULK);
+            return;
+        }
+        out.write((byte) '$').writeLong(b.length).write(CRLF).write(b).write(CRLF);
+    }
+
+    static void bulk(OutputBuffer out, ByteBuffer b) {
+        out.write((byte) '$').writeLong(b.remaining()).write(CRLF).write(b).write(CRLF);
+    }
+
+    static void arrayHeader(OutputBuffer out, int n) {
+        out.write((byte) '*').writeLong(n).write(CRLF);
+    }
+
+    static void array(OutputBuffer out, List<String> items) {
+        arrayHeader(out, items.size());
+        for (String s : items) {
+            bulk(out, s);
+        }
+    }
+
+    /**
+     * Writes the result of a function as Redis converts the values of a
+     * script: integers as integers, booleans as 1 or null, collections as
+     * arrays, and anything else as a bulk string.
+     */
+    static void reply(OutputBuffer out, Object v) {
+        if (v == null || Boolean.FALSE.equals(v)) {
+            out.write(NULL_BULK);
+        } else if (Boolean.TRUE.equals(v)) {
+            integer(out, 1);
+        } else if (v instanceof Long || v instanceof Integer
+                || v instanceof Short || v instanceof Byte) {
+            integer(out, ((Number) v).longValue());
+        } else if (v instanceof byte[]) {
+            bulk(out, (byte[]) v);
+        } else if (v instanceof Collection) {
+            Collection<?> items = (Collection<?>) v;
+            arrayHeader(out, items.size());
+            for (Object item : items) {
+                reply(out, item);
+            }
+        } else {
+            bulk(out, v.toString());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package edu.cmu.cs.cloud;
+
+import java.util.List;
+
+/**
+ * One step of a cursor-based iteration, the reply of
+ * {@link Redis#scan(long, int)} and {@link Redis#hscan(String, long, int)}.
+ */
+public final class ScanResult {
+
+    private final long cursor;
+    private final List<String> items;
+
+    /**
+     * @param cursor the cursor of the next step, 0 if the iteration is over
+     * @param items  the items returned by this step
+     */
+    public ScanResult(long cursor, List<String> items) {
+        this.cursor = cursor;
+        this.items = items;
+    }
+
+    /**
+     * Returns the cursor to pass to the next step.
+     *
+     * @return the cursor, 0 once the iteration is complete
+     */
+    public long cursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns the items of this step: keys for SCAN, fields each followed
+     * by its value for HSCAN.
+     *
+     * @return the items
+     */
+    public List<String> items() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return cursor + " " + items;
+    }
+}
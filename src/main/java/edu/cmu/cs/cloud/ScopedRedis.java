@@ -0,0 +1,381 @@
+package edu.cmu.cs.cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The keyspace as seen by a {@link RedisFunction}: the commands on the
+ * keys declared by the call, run on the stripes whose locks the call
+ * already holds.
+ *
+ * A command goes straight to the {@link Redis} of its stripe, without
+ * taking the stripe lock again. A key that was not declared is refused
+ * with {@link IllegalArgumentException}, because its stripe may not be
+ * locked, and locking it inside the call would take a lock out of the
+ * ascending order of {@link StripedRedis}, which can deadlock.
+ *
+ * A view is only valid during the call it was made for.
+ *
+ * @see <a href="https://redis.io/docs/interact/programmability/functions-intro/">
+ * Redis functions - Redis</a>
+ */
+public final class ScopedRedis {
+
+    private final StripedRedis redis;
+    private final String[] keys;
+
+    /**
+     * @param redis the keyspace, with the stripes of the keys locked
+     * @param keys  the keys declared by the call
+     */
+    ScopedRedis(StripedRedis redis, String[] keys) {
+        this.redis = redis;
+        this.keys = keys;
+    }
+
+    /**
+     * Returns the stripe of a declared key.
+     *
+     * The keys of a call are few, so they are scanned rather than hashed.
+     */
+    private Redis stripe(String k) {
+        for (String declared : keys) {
+            if (declared.equals(k)) {
+                return redis.stripe(redis.stripeOf(k));
+            }
+        }
+        throw new IllegalArgumentException("ERR Function accessed the undeclared key '"
+                + k + "', keys must be passed as KEYS");
+    }
+
+    /**
+     * @param k key
+     * @return the type of the value stored at key
+     * @see Redis#type(String)
+     */
+    public String type(String k) {
+        return stripe(k).type(k);
+    }
+
+    /**
+     * @param k key
+     * @param v string value
+     * @return "OK"
+     * @see Redis#set(String, String)
+     */
+    public String set(String k, String v) {
+        return stripe(k).set(k, v);
+    }
+
+    /**
+     * @param k key
+     * @param v binary value, not to be modified afterwards
+     * @return "OK"
+     * @see Redis#set(String, byte[])
+     */
+    public String set(String k, byte[] v) {
+        return stripe(k).set(k, v);
+    }
+
+    /**
+     * @param k  key
+     * @param v  binary value, not to be modified afterwards
+     * @param nx whether the key is only set if it does not exist
+     * @param ms the time to live in milliseconds, or 0 for none
+     * @return true if the key was set
+     * @see Redis#set(String, byte[], boolean, long)
+     */
+    public boolean set(String k, byte[] v, boolean nx, long ms) {
+        return stripe(k).set(k, v, nx, ms);
+    }
+
+    /**
+     * @param k  key
+     * @param ms the time to live in milliseconds, must be positive
+     * @param v  string value
+     * @return "OK"
+     * @see Redis#psetex(String, long, String)
+     */
+    public String psetex(String k, long ms, String v) {
+        return stripe(k).psetex(k, ms, v);
+    }
+
+    /**
+     * @param k key
+     * @return the string value, or null when key does not exist
+     * @see Redis#get(String)
+     */
+    public String get(String k) {
+        return stripe(k).get(k);
+    }
+
+    /**
+     * @param k key
+     * @return the value, not to be modified, or null when key does not exist
+     * @see Redis#getBytes(String)
+     */
+    public byte[] getBytes(String k) {
+        return stripe(k).getBytes(k);
+    }
+
+    /**
+     * @param k key
+     * @return the value of key after the increment
+     * @see Redis#incr(String)
+     */
+    public long incr(String k) {
+        return stripe(k).incr(k);
+    }
+
+    /**
+     * @param k     key
+     * @param delta the increment
+     * @return the value of key after the increment
+     * @see Redis#incrby(String, long)
+     */
+    public long incrby(String k, long delta) {
+        return stripe(k).incrby(k, delta);
+    }
+
+    /**
+     * @param ks keys
+     * @return the number of keys that were removed
+     * @see Redis#del(String...)
+     */
+    public int del(String... ks) {
+        int n = 0;
+        for (String k : ks) {
+            n += stripe(k).del(k);
+        }
+        return n;
+    }
+
+    /**
+     * @param k  key
+     * @param ms the time to live in milliseconds
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see Redis#pexpire(String, long)
+     */
+    public int pexpire(String k, long ms) {
+        return stripe(k).pexpire(k, ms);
+    }
+
+    /**
+     * @param k key
+     * @return the time to live in milliseconds, -2 if the key does not exist,
+     * or -1 if it has no timeout
+     * @see Redis#pttl(String)
+     */
+    public long pttl(String k) {
+        return stripe(k).pttl(k);
+    }
+
+    /**
+     * @param k key
+     * @return 1 if the timeout was removed, 0 otherwise
+     * @see Redis#persist(String)
+     */
+    public int persist(String k) {
+        return stripe(k).persist(k);
+    }
+
+    /**
+     * @param k key
+     * @param f field
+     * @param v value
+     * @return 1 if the field is new, 0 if it was updated
+     * @see Redis#hset(String, String, String)
+     */
+    public int hset(String k, String f, String v) {
+        return stripe(k).hset(k, f, v);
+    }
+
+    /**
+     * @param k key
+     * @param f field
+     * @return the value of the field, or null
+     * @see Redis#hget(String, String)
+     */
+    public String hget(String k, String f) {
+        return stripe(k).hget(k, f);
+    }
+
+    /**
+     * @param k  key
+     * @param fs fields
+     * @return the values of the fields, null for the missing ones
+     * @see Redis#hmget(String, String...)
+     */
+    public List<String> hmget(String k, String... fs) {
+        return stripe(k).hmget(k, fs);
+    }
+
+    /**
+     * @param k key
+     * @return the fields and values of the hash
+     * @see Redis#hgetall(String)
+     */
+    public List<String> hgetall(String k) {
+        return stripe(k).hgetall(k);
+    }
+
+    /**
+     * @param k key
+     * @return the number of fields of the hash
+     * @see Redis#hlen(String)
+     */
+    public int hlen(String k) {
+        return stripe(k).hlen(k);
+    }
+
+    /**
+     * Like {@link StripedRedis#rpush(String, String...)}, the clients
+     * blocked on the key are served once the call releases its locks.
+     *
+     * @param k  key
+     * @param vs values
+     * @return the length of the list after the push operation
+     * @see Redis#rpush(String, String...)
+     */
+    public int rpush(String k, String... vs) {
+        int n = stripe(k).rpush(k, vs);
+        redis.pushed(k);
+        return n;
+    }
+
+    /**
+     * @param k  key
+     * @param vs values
+     * @return the length of the list after the push operation
+     * @see Redis#lpush(String, String...)
+     */
+    public int lpush(String k, String... vs) {
+        int n = stripe(k).lpush(k, vs);
+        redis.pushed(k);
+        return n;
+    }
+
+    /**
+     * @param k key
+     * @return the last element, or null when key does not exist
+     * @see Redis#rpop(String)
+     */
+    public String rpop(String k) {
+        return stripe(k).rpop(k);
+    }
+
+    /**
+     * @param k key
+     * @return the first element, or null when key does not exist
+     * @see Redis#lpop(String)
+     */
+    public String lpop(String k) {
+        return stripe(k).lpop(k);
+    }
+
+    /**
+     * @param k key
+     * @return the length of the list
+     * @see Redis#llen(String)
+     */
+    public int llen(String k) {
+        return stripe(k).llen(k);
+    }
+
+    /**
+     * @param k     key
+     * @param start first index, negative from the end
+     * @param stop  last index, inclusive, negative from the end
+     * @return the elements in the range
+     * @see Redis#lrange(String, int, int)
+     */
+    public List<String> lrange(String k, int start, int stop) {
+        return stripe(k).lrange(k, start, stop);
+    }
+
+    /**
+     * @param k      key
+     * @param score  score
+     * @param member member
+     * @return 1 if the member is new, 0 if its score was updated
+     * @see Redis#zadd(String, double, String)
+     */
+    public int zadd(String k, double score, String member) {
+        return stripe(k).zadd(k, score, member);
+    }
+
+    /**
+     * @param k      key
+     * @param scores the score of every member
+     * @return the number of new members
+     * @see Redis#zadd(String, Map)
+     */
+    public int zadd(String k, Map<String, Double> scores) {
+        return stripe(k).zadd(k, scores);
+    }
+
+    /**
+     * @param k       key
+     * @param members members
+     * @return the number of members removed
+     * @see Redis#zrem(String, String...)
+     */
+    public int zrem(String k, String... members) {
+        return stripe(k).zrem(k, members);
+    }
+
+    /**
+     * @param k      key
+     * @param member member
+     * @return the score of the member, or null
+     * @see Redis#zscore(String, String)
+     */
+    public Double zscore(String k, String member) {
+        return stripe(k).zscore(k, member);
+    }
+
+    /**
+     * @param k key
+     * @return the number of members
+     * @see Redis#zcard(String)
+     */
+    public int zcard(String k) {
+        return stripe(k).zcard(k);
+    }
+
+    /**
+     * @param k     key
+     * @param start first rank, negative from the end
+     * @param stop  last rank, inclusive, negative from the end
+     * @return the members in the range, by ascending score
+     * @see Redis#zrange(String, int, int)
+     */
+    public List<String> zrange(String k, int start, int stop) {
+        return stripe(k).zrange(k, start, stop);
+    }
+
+    /**
+     * @param k     key
+     * @param start first rank, negative from the end
+     * @param stop  last rank, inclusive, negative from the end
+     * @return the members in the range, by descending score
+     * @see Redis#zrevrange(String, int, int)
+     */
+    public List<String> zrevrange(String k, int start, int stop) {
+        return stripe(k).zrevrange(k, start, stop);
+    }
+
+    /**
+     * @param ks keys
+     * @return the string values, null for the missing keys
+     * @see Redis#mget(String...)
+     */
+    public List<String> mget(String... ks) {
+        List<String> values = new ArrayList<>(ks.length);
+        for (String k : ks) {
+            values.add(stripe(k).mget(k).get(0));
+        }
+        return values;
+    }
+}
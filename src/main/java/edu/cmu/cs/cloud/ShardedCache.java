@@ -0,0 +1,474 @@
+package edu.cmu.cs.cloud;
+
+import redis.clients.jedis.UnifiedJedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client-side sharding front end that spreads the keys over several
+ * cache nodes, so the cache is not bound to the memory and the cores of a
+ * single {@link Memcached} or {@link StripedRedis}.
+ *
+ * Every key belongs to one node, chosen by a ketama {@link HashRing}, so
+ * adding or removing a node only moves about 1/N of the keys to another
+ * node: the other keys keep hitting. The keys that moved miss once and are
+ * set again by the application, as with any cache.
+ *
+ * A node is anything implementing {@link Node}: an in-process engine, see
+ * {@link #memcached(Memcached)} and {@link #redis(StripedRedis)}, or a
+ * server reached over the network, see {@link #redis(UnifiedJedis)}, e.g.
+ * a {@link CacheServer} running as another local process.
+ *
+ * Multi-key requests are split by node and the parts are sent to their
+ * nodes in parallel, each as one batch, then the replies are gathered in
+ * the order of the keys: a request to N nodes costs the slowest node
+ * instead of the sum of the nodes.
+ *
+ * This class is thread-safe. The ring is replaced on every change of
+ * nodes, so lookups take no lock.
+ *
+ * @see <a href="https://github.com/memcached/memcached/wiki/ConfiguringClient">
+ * Configuring the client - Memcached</a>
+ */
+public class ShardedCache implements AutoCloseable {
+
+    /**
+     * A cache node.
+     */
+    public interface Node {
+
+        /**
+         * @param k the key
+         * @return the value, or null if there is none
+         */
+        String get(String k);
+
+        /**
+         * @param k the key
+         * @param v the value
+         */
+        void set(String k, String v);
+
+        /**
+         * @param k the key
+         * @return true if the key existed
+         */
+        boolean delete(String k);
+
+        /**
+         * Returns the values of several keys, one request by default.
+         *
+         * @param ks the keys
+         * @return the values in the order of the keys, null for the missing
+         * ones
+         */
+        default List<String> getMulti(List<String> ks) {
+            String[] vs = new String[ks.size()];
+            for (int i = 0; i < vs.length; i++) {
+                vs[i] = get(ks.get(i));
+            }
+            return Arrays.asList(vs);
+        }
+
+        /**
+         * Sets several keys, one request per key by default.
+         *
+         * @param ks the keys
+         * @param vs the value of every key
+         */
+        default void setMulti(List<String> ks, List<String> vs) {
+            for (int i = 0; i < ks.size(); i++) {
+                set(ks.get(i), vs.get(i));
+            }
+        }
+    }
+
+    private volatile HashRing<Node> ring;
+
+    /**
+     * The threads the parts of the multi-key requests run on.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "sharded-cache");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A front end without nodes, with {@link HashRing#DEFAULT_POINTS}
+     * virtual nodes per node.
+     */
+    public ShardedCache() {
+        this(HashRing.DEFAULT_POINTS);
+    }
+
+    /**
+     * A front end without nodes.
+     *
+     * @param virtualNodes the number of points of every node on the ring, a
+     *                     multiple of 4
+     */
+    public ShardedCache(int virtualNodes) {
+        ring = new HashRing<>(virtualNodes);
+    }
+
+    /**
+     * A node serving an in-process {@link Memcached}.
+     *
+     * @param memcached the cache
+     * @return the node
+     */
+    public static Node memcached(Memcached memcached) {
+        return new Node() {
+            @Override
+            public String get(String k) {
+                return memcached.get(k);
+            }
+
+            @Override
+            public void set(String k, String v) {
+                String reply = memcached.set(k, v);
+                if (!"STORED".equals(reply)) {
+                    throw new IllegalStateException(reply);
+                }
+            }
+
+            @Override
+            public boolean delete(String k) {
+                return "DELETED".equals(memcached.delete(k));
+            }
+
+            @Override
+            public List<String> getMulti(List<String> ks) {
+                return memcached.getMulti(ks);
+            }
+        };
+    }
+
+    /**
+     * A node serving an in-process {@link StripedRedis}.
+     *
+     * @param redis the keyspace
+     * @return the node
+     */
+    public static Node redis(StripedRedis redis) {
+        return new Node() {
+            @Override
+            public String get(String k) {
+                return redis.get(k);
+            }
+
+            @Override
+            public void set(String k, String v) {
+                redis.set(k, v);
+            }
+
+            @Override
+            public boolean delete(String k) {
+                return redis.del(k) == 1;
+            }
+
+            @Override
+            public List<String> getMulti(List<String> ks) {
+                return redis.mget(ks.toArray(new String[0]));
+            }
+
+            @Override
+            public void setMulti(List<String> ks, List<String> vs) {
+                redis.mset(interleave(ks, vs));
+            }
+        };
+    }
+
+    /**
+     * A node served by a Redis server, or a {@link CacheServer}, through a
+     * thread-safe Jedis client such as {@link redis.clients.jedis.JedisPooled}.
+     * Multi-key requests are sent as MGET and MSET.
+     *
+     * @param jedis the client
+     * @return the node
+     */
+    public static Node redis(UnifiedJedis jedis) {
+        return new Node() {
+            @Override
+            public String get(String k) {
+                return jedis.get(k);
+            }
+
+            @Override
+            public void set(String k, String v) {
+                jedis.set(k, v);
+            }
+
+            @Override
+            public boolean delete(String k) {
+                return jedis.del(k) == 1;
+            }
+
+            @Override
+            public List<String> getMulti(List<String> ks) {
+                return jedis.mget(ks.toArray(new String[0]));
+            }
+
+            @Override
+            public void setMulti(List<String> ks, List<String> vs) {
+                jedis.mset(interleave(ks, vs));
+            }
+        };
+    }
+
+    /**
+     * A node whose writes go to a primary and whose reads go to its
+     * replicas in turn, to scale the reads of a {@link Replication}. The
+     * reads may return values older than the last writes, by the
+     * replication lag.
+     *
+     * @param primary  the node the writes are sent to
+     * @param replicas the nodes the reads are spread over, the primary if
+     *                 there are none
+     * @return the node
+     */
+    public static Node replicated(Node primary, Node... replicas) {
+        Node[] readers = replicas.length == 0 ? new Node[]{primary} : replicas.clone();
+        AtomicInteger next = new AtomicInteger();
+        return new Node() {
+            private Node reader() {
+                return readers[(next.getAndIncrement() & Integer.MAX_VALUE) % readers.length];
+            }
+
+            @Override
+            public String get(String k) {
+                return reader().get(k);
+            }
+
+            @Override
+            public void set(String k, String v) {
+                primary.set(k, v);
+            }
+
+            @Override
+            public boolean delete(String k) {
+                return primary.delete(k);
+            }
+
+            @Override
+            public List<String> getMulti(List<String> ks) {
+                return reader().getMulti(ks);
+            }
+
+            @Override
+            public void setMulti(List<String> ks, List<String> vs) {
+                primary.setMulti(ks, vs);
+            }
+        };
+    }
+
+    private static String[] interleave(List<String> ks, List<String> vs) {
+        String[] kvs = new String[ks.size() * 2];
+        for (int i = 0; i < ks.size(); i++) {
+            kvs[2 * i] = ks.get(i);
+            kvs[2 * i + 1] = vs.get(i);
+        }
+        return kvs;
+    }
+
+    /**
+     * Adds a node, or replaces the node of that name. The keys on the arcs
+     * it takes over miss until they are set again.
+     *
+     * @param name the name of the node, which places it on the ring, e.g.
+     *             "host:port"
+     * @param node the node
+     */
+    public synchronized void addNode(String name, Node node) {
+        ring = ring.with(name, node);
+    }
+
+    /**
+     * Removes a node, its keys go to the nodes that follow its points.
+     *
+     * @param name the name of the node
+     */
+    public synchronized void removeNode(String name) {
+        ring = ring.without(name);
+    }
+
+    /**
+     * Returns the nodes.
+     *
+     * @return the nodes by name, in the order they were added
+     */
+    public Map<String, Node> nodes() {
+        return ring.nodes();
+    }
+
+    /**
+     * Returns the node a key belongs to.
+     *
+     * @param k the key
+     * @return the node
+     */
+    public Node nodeOf(String k) {
+        return ring.get(k);
+    }
+
+    /**
+     * @param k the key
+     * @return the value, or null if there is none
+     */
+    public String get(String k) {
+        return ring.get(k).get(k);
+    }
+
+    /**
+     * @param k the key
+     * @param v the value
+     */
+    public void set(String k, String v) {
+        ring.get(k).set(k, v);
+    }
+
+    /**
+     * @param k the key
+     * @return true if the key existed
+     */
+    public boolean delete(String k) {
+        return ring.get(k).delete(k);
+    }
+
+    /**
+     * Returns the values of several keys, with one batch per node, the
+     * batches running in parallel.
+     *
+     * @param keys the keys
+     * @return the values in the order of the keys, null for the missing ones
+     */
+    public List<String> getMulti(Collection<String> keys) {
+        String[] ks = keys.toArray(new String[0]);
+        String[] vs = new String[ks.length];
+        HashRing<Node> r = ring;
+        int[][] parts = split(r, ks);
+        scatter(r, parts, (node, part) -> {
+            List<String> got = node.getMulti(select(ks, part));
+            for (int j = 0; j < part.length; j++) {
+                vs[part[j]] = got.get(j);
+            }
+        });
+        return Arrays.asList(vs);
+    }
+
+    /**
+     * Sets several keys, with one batch per node, the batches running in
+     * parallel. Unlike MSET, the keys of different nodes are not set
+     * atomically.
+     *
+     * @param entries the keys and their values
+     */
+    public void setMulti(Map<String, String> entries) {
+        String[] ks = entries.keySet().toArray(new String[0]);
+        String[] vs = new String[ks.length];
+        for (int i = 0; i < ks.length; i++) {
+            vs[i] = entries.get(ks[i]);
+        }
+        HashRing<Node> r = ring;
+        scatter(r, split(r, ks), (node, part) -> node.setMulti(select(ks, part), select(vs, part)));
+    }
+
+    /**
+     * Returns the indexes of the keys of every node of the ring, in the
+     * order of the keys; the nodes without keys get an empty part.
+     */
+    private static int[][] split(HashRing<Node> r, String[] ks) {
+        int[] owner = new int[ks.length];
+        int[] counts = new int[r.size()];
+        for (int i = 0; i < ks.length; i++) {
+            owner[i] = r.indexOf(ks[i]);
+            counts[owner[i]]++;
+        }
+        int[][] parts = new int[counts.length][];
+        for (int n = 0; n < counts.length; n++) {
+            parts[n] = new int[counts[n]];
+            counts[n] = 0;
+        }
+        for (int i = 0; i < ks.length; i++) {
+            parts[owner[i]][counts[owner[i]]++] = i;
+        }
+        return parts;
+    }
+
+    private static List<String> select(String[] items, int[] part) {
+        List<String> selected = new ArrayList<>(part.length);
+        for (int i : part) {
+            selected.add(items[i]);
+        }
+        return selected;
+    }
+
+    /**
+     * A batch of keys sent to one node.
+     */
+    private interface Batch {
+        void run(Node node, int[] part);
+    }
+
+    /**
+     * Runs the batch of every node with keys, in parallel when there are
+     * several, and waits for all of them. The first failure is thrown once
+     * every batch is done.
+     */
+    private void scatter(HashRing<Node> r, int[][] parts, Batch batch) {
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        int last = -1;
+        for (int n = 0; n < parts.length; n++) {
+            if (parts[n].length == 0) {
+                continue;
+            }
+            if (last >= 0) {
+                Node node = r.node(last);
+                int[] part = parts[last];
+                running.add(CompletableFuture.runAsync(() -> batch.run(node, part), executor));
+            }
+            last = n;
+        }
+        // the last batch runs on the calling thread
+        RuntimeException failure = null;
+        if (last >= 0) {
+            try {
+                batch.run(r.node(last), parts[last]);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+        for (CompletableFuture<Void> f : running) {
+            try {
+                f.join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the threads of the multi-key requests, the nodes are not
+     * closed.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
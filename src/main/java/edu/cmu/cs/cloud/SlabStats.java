@@ -0,0 +1,188 @@
+package edu.cmu.cs.cloud;
+
+/**
+ * The statistics of one slab class of a {@link Memcached}, the reply of
+ * {@link Memcached#slabStats()}, as {@code stats slabs} and
+ * {@code stats items} of Memcached.
+ */
+public final class SlabStats {
+
+    private final int id;
+    private final int chunkSize;
+    private final int pages;
+    private final int usedChunks;
+    private final long requestedBytes;
+    private final int hotItems;
+    private final int warmItems;
+    private final int coldItems;
+    private final long hits;
+    private final long evictions;
+    private final long evictedUnfetched;
+
+    /**
+     * @param id               the id of the class, from 1
+     * @param chunkSize        the size of its chunks
+     * @param pages            the pages carved into its chunks
+     * @param usedChunks       the chunks holding items
+     * @param requestedBytes   the lengths of the values of its items
+     * @param hotItems         the items in the HOT segment of its LRU
+     * @param warmItems        the items in the WARM segment
+     * @param coldItems        the items in the COLD segment
+     * @param hits             the gets that found one of its items
+     * @param evictions        the items evicted to make room
+     * @param evictedUnfetched the evicted items that were never read
+     */
+    public SlabStats(int id, int chunkSize, int pages, int usedChunks, long requestedBytes,
+                     int hotItems, int warmItems, int coldItems,
+                     long hits, long evictions, long evictedUnfetched) {
+        this.id = id;
+        this.chunkSize = chunkSize;
+        this.pages = pages;
+        this.usedChunks = usedChunks;
+        this.requestedBytes = requestedBytes;
+        this.hotItems = hotItems;
+        this.warmItems = warmItems;
+        this.coldItems = coldItems;
+        this.hits = hits;
+        this.evictions = evictions;
+        this.evictedUnfetched = evictedUnfetched;
+    }
+
+    /**
+     * Returns the id of the class, the classes of larger chunks have larger
+     * ids.
+     *
+     * @return the id, from 1
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Returns the size of the chunks of the class.
+     *
+     * @return the chunk size in bytes
+     */
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the pages assigned to the class.
+     *
+     * @return the number of pages
+     */
+    public int pages() {
+        return pages;
+    }
+
+    /**
+     * Returns the chunks the pages of the class are carved into.
+     *
+     * @return the number of chunks, used or not
+     */
+    public long totalChunks() {
+        return (long) pages * (OffHeapSlab.PAGE_SIZE / chunkSize);
+    }
+
+    /**
+     * Returns the chunks holding items.
+     *
+     * @return the number of chunks in use
+     */
+    public int usedChunks() {
+        return usedChunks;
+    }
+
+    /**
+     * Returns the bytes of the values stored in the class.
+     *
+     * @return the sum of the lengths of the values
+     */
+    public long requestedBytes() {
+        return requestedBytes;
+    }
+
+    /**
+     * Returns the share of the used chunks that is not taken by values,
+     * lost because values are rounded up to the chunk size.
+     *
+     * @return the fragmentation, between 0 and 1
+     */
+    public double fragmentation() {
+        return usedChunks == 0 ? 0 : 1 - (double) requestedBytes / ((long) usedChunks * chunkSize);
+    }
+
+    /**
+     * Returns the recently stored items, not yet moved down the LRU.
+     *
+     * @return the number of items in the HOT segment
+     */
+    public int hotItems() {
+        return hotItems;
+    }
+
+    /**
+     * Returns the items read since they left the HOT segment.
+     *
+     * @return the number of items in the WARM segment
+     */
+    public int warmItems() {
+        return warmItems;
+    }
+
+    /**
+     * Returns the items next in line for eviction.
+     *
+     * @return the number of items in the COLD segment
+     */
+    public int coldItems() {
+        return coldItems;
+    }
+
+    /**
+     * Returns the gets that found an item of the class.
+     *
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the share of the items that left the class by eviction and
+     * had been read at least once, the other ones took memory for nothing.
+     *
+     * @return the share of the evicted items that were fetched, 1 without
+     * evictions
+     */
+    public double evictedFetchedRatio() {
+        return evictions == 0 ? 1 : 1 - (double) evictedUnfetched / evictions;
+    }
+
+    /**
+     * Returns the items evicted to make room for new ones of the class.
+     *
+     * @return the number of evictions
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the evicted items that were never read.
+     *
+     * @return the number of evictions of unfetched items
+     */
+    public long evictedUnfetched() {
+        return evictedUnfetched;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("slab %d: chunk %d, pages %d, chunks %d/%d, fragmentation %.2f, "
+                        + "hot %d, warm %d, cold %d, hits %d, evictions %d",
+                id, chunkSize, pages, usedChunks, totalChunks(), fragmentation(),
+                hotItems, warmItems, coldItems, hits, evictions);
+    }
+}
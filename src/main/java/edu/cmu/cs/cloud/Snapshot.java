@@ -0,0 +1,442 @@
+package edu.cmu.cs.cloud;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Point-in-time binary snapshots of a {@link StripedRedis}, in the spirit of
+ * the RDB files of Redis.
+ *
+ * The file starts with the magic "CMURDB" and a version byte, then holds
+ * one record per key and ends with {@link #EOF} and the CRC32 of all the
+ * preceding bytes. A record is the type byte, optionally preceded by
+ * {@link #EXPIRE_MS} and the 8-byte expire time, the key, then the value:
+ * <pre>
+ * STRING:   string
+ * LIST:     count, count strings
+ * HASH:     count, count field and value strings
+ * LISTPACK: count, length, the bytes of the {@link ListPack}
+ * ZSET:     count, count member strings and 8-byte scores, by rank
+ * </pre>
+ * Counts and lengths are unsigned LEB128 varints, and a string is its
+ * length followed by the bytes, the value of a STRING record as stored
+ * and the others in UTF-8. A small hash is saved as the raw
+ * bytes of its listpack, so it is loaded without parsing its entries.
+ *
+ * {@link #save(StripedRedis, Path)} takes the snapshot of every stripe at
+ * once, then dumps the stripes one by one, each while holding only its own
+ * lock. Writes during the dump are not blocked by it: the first write to a
+ * key copies its old value for the dump, see {@link Redis#beginSnapshot()}.
+ * The file is written under a temporary name and renamed when complete.
+ *
+ * {@link #load(StripedRedis, Path)} maps the file in windows, so a snapshot
+ * larger than the heap of byte arrays is read at the speed of the disk.
+ *
+ * @see <a href="https://redis.io/docs/management/persistence/">
+ * Redis persistence</a>
+ */
+public final class Snapshot {
+
+    private static final byte[] MAGIC = "CMURDB".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The version of the format, written after the magic.
+     */
+    static final byte VERSION = 1;
+
+    static final byte STRING = 0;
+    static final byte LIST = 1;
+    static final byte HASH = 2;
+    static final byte LISTPACK = 3;
+    static final byte ZSET = 4;
+    static final byte EXPIRE_MS = (byte) 0xFC;
+    static final byte EOF = (byte) 0xFF;
+
+    /**
+     * The size of the region of the file mapped at once by the load.
+     */
+    static final int LOAD_WINDOW = 256 * 1024 * 1024;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Saves the keyspace as it is now. Writers are only blocked while the
+     * stripe they write to is being dumped.
+     *
+     * Throws {@link IllegalStateException} if a save is already running.
+     *
+     * @param redis the keyspace
+     * @param path  the file, replaced atomically
+     * @return the number of keys saved
+     * @throws IOException if the file cannot be written
+     * @see <a href="https://redis.io/commands/save">SAVE - Redis</a>
+     */
+    public static long save(StripedRedis redis, Path path) throws IOException {
+        redis.beginSnapshot();
+        return dump(redis, path);
+    }
+
+    /**
+     * Saves the keyspace as it is now, and runs an action at the very point
+     * the snapshot is taken.
+     *
+     * @param redis      the keyspace
+     * @param path       the file, replaced atomically
+     * @param atSnapshot run while no write happens, see
+     *                   {@link StripedRedis#beginSnapshot(Runnable)}
+     * @return the number of keys saved
+     * @throws IOException if the file cannot be written
+     */
+    static long save(StripedRedis redis, Path path, Runnable atSnapshot) throws IOException {
+        redis.beginSnapshot(atSnapshot);
+        return dump(redis, path);
+    }
+
+    /**
+     * Takes the snapshot now and saves it in a new thread.
+     *
+     * Throws {@link IllegalStateException} if a save is already running.
+     *
+     * @param redis the keyspace
+     * @param path  the file, replaced atomically
+     * @return the number of keys saved, once the file is complete
+     * @see <a href="https://redis.io/commands/bgsave">BGSAVE - Redis</a>
+     */
+    public static CompletableFuture<Long> saveInBackground(StripedRedis redis, Path path) {
+        redis.beginSnapshot();
+        CompletableFuture<Long> saved = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                saved.complete(dump(redis, path));
+            } catch (IOException | RuntimeException e) {
+                saved.completeExceptionally(e);
+            }
+        }, "redis-bgsave");
+        t.setDaemon(true);
+        t.start();
+        return saved;
+    }
+
+    /**
+     * Dumps the pending snapshot of every stripe.
+     */
+    private static long dump(StripedRedis redis, Path path) throws IOException {
+        Path tmp = path.resolveSibling("temp-" + path.getFileName());
+        long[] keys = new long[1];
+        boolean done = false;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CrcChannel out = new CrcChannel(ch);
+            OutputBuffer buf = new OutputBuffer();
+            buf.write(MAGIC).write(VERSION);
+            for (int i = 0; i < redis.stripes(); i++) {
+                redis.forStripe(i, r -> r.dumpSnapshot((k, v, when) -> {
+                    writeEntry(buf, k, v, when);
+                    keys[0]++;
+                }));
+                buf.writeTo(out);
+            }
+            buf.write(EOF);
+            buf.writeTo(out);
+            long crc = out.crc.getValue();
+            buf.write((byte) (crc >>> 24)).write((byte) (crc >>> 16))
+                    .write((byte) (crc >>> 8)).write((byte) crc);
+            buf.writeTo(ch);
+            ch.force(true);
+            done = true;
+        } finally {
+            if (!done) {
+                redis.endSnapshot();
+                Files.deleteIfExists(tmp);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return keys[0];
+    }
+
+    private static void writeEntry(OutputBuffer buf, String k, Object v, long when) {
+        if (when >= 0) {
+            buf.write(EXPIRE_MS);
+            writeLong(buf, when);
+        }
+        if (v instanceof byte[]) {
+            byte[] b = (byte[]) v;
+            buf.write(STRING);
+            writeString(buf, k);
+            writeVarint(buf, b.length);
+            buf.write(b);
+        } else if (v instanceof QuickList) {
+            QuickList<?> list = (QuickList<?>) v;
+            buf.write(LIST);
+            writeString(buf, k);
+            writeVarint(buf, list.size());
+            for (Object e : list) {
+                writeString(buf, (String) e);
+            }
+        } else if (v instanceof ListPack) {
+            ListPack lp = (ListPack) v;
+            buf.write(LISTPACK);
+            writeString(buf, k);
+            writeVarint(buf, lp.size());
+            writeVarint(buf, lp.bytes());
+            buf.write(lp.array(), 0, lp.bytes());
+        } else if (v instanceof SortedSet) {
+            SortedSet zset = (SortedSet) v;
+            buf.write(ZSET);
+            writeString(buf, k);
+            writeVarint(buf, zset.size());
+            for (SortedSet.Node e : zset) {
+                writeString(buf, e.member());
+                writeLong(buf, Double.doubleToLongBits(e.score()));
+            }
+        } else {
+            Dict<?, ?> m = (Dict<?, ?>) v;
+            buf.write(HASH);
+            writeString(buf, k);
+            writeVarint(buf, m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                writeString(buf, (String) e.getKey());
+                writeString(buf, (String) e.getValue());
+            }
+        }
+    }
+
+    private static void writeLong(OutputBuffer buf, long n) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf.write((byte) (n >>> shift));
+        }
+    }
+
+    private static void writeString(OutputBuffer buf, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(buf, b.length);
+        buf.write(b);
+    }
+
+    private static void writeVarint(OutputBuffer buf, int n) {
+        while ((n & ~0x7F) != 0) {
+            buf.write((byte) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        buf.write((byte) n);
+    }
+
+    /**
+     * Loads a snapshot into the keyspace, replacing the keys it contains.
+     * Keys whose expire time has passed are skipped.
+     *
+     * @param redis the keyspace
+     * @param path  the file
+     * @return the number of keys loaded
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static long load(StripedRedis redis, Path path) throws IOException {
+        long keys = 0;
+        long now = System.currentTimeMillis();
+        CRC32 crc = new CRC32();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long pos = 0;
+            int window = LOAD_WINDOW;
+            while (true) {
+                int len = (int) Math.min(window, size - pos);
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                int consumed = 0;
+                boolean eof = false;
+                try {
+                    if (pos == 0) {
+                        readHeader(map);
+                        consumed = map.position();
+                    }
+                    while (!eof) {
+                        eof = readEntry(map, redis, now);
+                        if (!eof) {
+                            keys++;
+                        }
+                        consumed = map.position();
+                    }
+                } catch (BufferUnderflowException e) {
+                    if (pos + len == size) {
+                        throw new IOException("Unexpected end of the snapshot file");
+                    }
+                }
+                ByteBuffer checked = map.duplicate();
+                checked.position(0).limit(consumed);
+                crc.update(checked);
+                if (eof) {
+                    if (map.remaining() < 4 && pos + len < size) {
+                        map = ch.map(FileChannel.MapMode.READ_ONLY, pos + consumed, 4);
+                    } else if (map.remaining() < 4) {
+                        throw new IOException("Unexpected end of the snapshot file");
+                    }
+                    if ((map.getInt() & 0xFFFFFFFFL) != crc.getValue()) {
+                        throw new IOException("Wrong checksum of the snapshot file");
+                    }
+                    return keys;
+                }
+                if (consumed == 0) {
+                    if (window > Integer.MAX_VALUE / 2) {
+                        throw new IOException("Too large entry in the snapshot file");
+                    }
+                    // an entry larger than the window
+                    window *= 2;
+                }
+                pos += consumed;
+            }
+        }
+    }
+
+    private static void readHeader(ByteBuffer in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a snapshot file");
+        }
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    /**
+     * Reads one entry and restores it, unless it has expired.
+     *
+     * Throws {@link BufferUnderflowException} if the entry does not end
+     * within the buffer, nothing is restored then.
+     *
+     * @return true at the end of the file
+     */
+    private static boolean readEntry(ByteBuffer in, StripedRedis redis, long now)
+            throws IOException {
+        byte type = in.get();
+        if (type == EOF) {
+            return true;
+        }
+        long when = -1;
+        if (type == EXPIRE_MS) {
+            when = in.getLong();
+            type = in.get();
+        }
+        String k = readString(in);
+        Object v;
+        switch (type) {
+            case STRING:
+                v = readBytes(in);
+                break;
+            case LIST: {
+                int n = readVarint(in);
+                QuickList<String> list = new QuickList<>();
+                for (int i = 0; i < n; i++) {
+                    list.addLast(readString(in));
+                }
+                v = list;
+                break;
+            }
+            case HASH: {
+                int n = readVarint(in);
+                Dict<String, String> m = new Dict<>();
+                for (int i = 0; i < n; i++) {
+                    m.put(readString(in), readString(in));
+                }
+                v = m;
+                break;
+            }
+            case LISTPACK: {
+                int n = readVarint(in);
+                byte[] b = readBytes(in);
+                v = new ListPack(b, b.length, n);
+                break;
+            }
+            case ZSET: {
+                int n = readVarint(in);
+                SortedSet zset = new SortedSet();
+                for (int i = 0; i < n; i++) {
+                    String member = readString(in);
+                    zset.add(Double.longBitsToDouble(in.getLong()), member);
+                }
+                v = zset;
+                break;
+            }
+            default:
+                throw new IOException("Unknown type " + type + " in the snapshot file");
+        }
+        if (when < 0 || when > now) {
+            redis.restore(k, v, when);
+        }
+        return false;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int len = readVarint(in);
+        if (len < 0) {
+            throw new IOException("Bad length in the snapshot file");
+        }
+        if (len > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] b = new byte[len];
+        in.get(b);
+        return b;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int n = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            n |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Computes the CRC32 of the bytes written through it.
+     */
+    private static final class CrcChannel implements WritableByteChannel {
+        private final FileChannel ch;
+        private final CRC32 crc = new CRC32();
+
+        private CrcChannel(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer written = src.duplicate();
+            int n = ch.write(src);
+            written.limit(written.position() + n);
+            crc.update(written);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return ch.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package edu.cmu.cs.cloud;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * A simplified version of the Redis zset, the encoding of Redis Sorted Sets.
+ *
+ * The members are kept twice: a {@link Dict} maps every member to its score
+ * for O(1) ZSCORE, and a skip list orders the members by score, then by
+ * member for equal scores. Every forward pointer of the skip list stores
+ * its span, the number of members it jumps over, so the rank of a member
+ * and the member at a rank are found on the way down in O(log N), and a
+ * range of M members by rank or by score costs O(log N + M).
+ *
+ * A node has level i + 1 with probability {@link #P}^i, capped at
+ * {@link #MAX_LEVEL}, as in Redis.
+ *
+ * This class is not thread-safe.
+ *
+ * @see <a href="https://github.com/redis/redis/blob/unstable/src/t_zset.c">
+ * t_zset.c - Redis</a>
+ */
+public class SortedSet implements Iterable<SortedSet.Node> {
+
+    /**
+     * The maximum level of the skip list, enough for 2^64 members.
+     */
+    static final int MAX_LEVEL = 32;
+
+    /**
+     * The probability that a node has one more level.
+     */
+    static final double P = 0.25;
+
+    /**
+     * A member with its score, a node of the skip list.
+     */
+    public static final class Node {
+        private final String member;
+        private double score;
+        private Node backward;
+        private final Node[] forward;
+        private final int[] span;
+
+        private Node(int level, double score, String member) {
+            this.member = member;
+            this.score = score;
+            forward = new Node[level];
+            span = new int[level];
+        }
+
+        /**
+         * Returns the member.
+         *
+         * @return the member
+         */
+        public String member() {
+            return member;
+        }
+
+        /**
+         * Returns the score of the member.
+         *
+         * @return the score
+         */
+        public double score() {
+            return score;
+        }
+    }
+
+    /**
+     * A range of scores, each end inclusive or not, as the min and max
+     * arguments of ZRANGEBYSCORE.
+     */
+    public static final class Range {
+        private final double min;
+        private final double max;
+        private final boolean minExclusive;
+        private final boolean maxExclusive;
+
+        /**
+         * @param min          the lowest score
+         * @param minExclusive whether min itself is out of the range
+         * @param max          the highest score
+         * @param maxExclusive whether max itself is out of the range
+         */
+        public Range(double min, boolean minExclusive, double max, boolean maxExclusive) {
+            this.min = min;
+            this.max = max;
+            this.minExclusive = minExclusive;
+            this.maxExclusive = maxExclusive;
+        }
+
+        /**
+         * Parses the ends of a range as Redis does: a number, "-inf" or
+         * "+inf", prefixed with "(" to exclude it.
+         *
+         * Throws {@link IllegalArgumentException} if an end is not a float.
+         *
+         * @param min the lowest score
+         * @param max the highest score
+         * @return the range
+         */
+        public static Range parse(String min, String max) {
+            return new Range(bound(min), min.startsWith("("), bound(max), max.startsWith("("));
+        }
+
+        private static double bound(String s) {
+            try {
+                return parseScore(s.startsWith("(") ? s.substring(1) : s);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("ERR min or max is not a float");
+            }
+        }
+
+        private boolean aboveMin(double score) {
+            return minExclusive ? score > min : score >= min;
+        }
+
+        private boolean belowMax(double score) {
+            return maxExclusive ? score < max : score <= max;
+        }
+
+        private boolean isEmpty() {
+            return min > max || min == max && (minExclusive || maxExclusive);
+        }
+    }
+
+    /**
+     * The score of every member.
+     */
+    private final Dict<String, Double> scores = new Dict<>();
+
+    /**
+     * The header of the skip list, a node of every level without member.
+     */
+    private final Node header = new Node(MAX_LEVEL, 0, null);
+    private Node tail;
+    private int level = 1;
+
+    /**
+     * Returns the number of members.
+     *
+     * @return the number of members
+     */
+    public int size() {
+        return scores.size();
+    }
+
+    /**
+     * Returns whether the set has no members.
+     *
+     * @return true if the set is empty
+     */
+    public boolean isEmpty() {
+        return scores.isEmpty();
+    }
+
+    /**
+     * Returns the score of a member.
+     *
+     * @param member the member
+     * @return the score, or null if it is not a member
+     */
+    public Double score(String member) {
+        return scores.get(member);
+    }
+
+    /**
+     * Adds a member, or updates the score of an existing member.
+     *
+     * @param score  the score, not NaN
+     * @param member the member
+     * @return true if the member was added, false if it existed
+     */
+    public boolean add(double score, String member) {
+        if (Double.isNaN(score)) {
+            throw new IllegalArgumentException("ERR resulting score is not a number (NaN)");
+        }
+        Double old = scores.put(member, score);
+        if (old == null) {
+            insert(score, member);
+            return true;
+        }
+        if (old != score) {
+            delete(old, member);
+            insert(score, member);
+        }
+        return false;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param member the member
+     * @return true if it was a member
+     */
+    public boolean remove(String member) {
+        Double old = scores.remove(member);
+        if (old == null) {
+            return false;
+        }
+        delete(old, member);
+        return true;
+    }
+
+    /**
+     * Returns the rank of a member, its 0-based position by ascending
+     * score.
+     *
+     * @param member  the member
+     * @param reverse whether to rank by descending score
+     * @return the rank, or -1 if it is not a member
+     */
+    public int rank(String member, boolean reverse) {
+        Double score = scores.get(member);
+        if (score == null) {
+            return -1;
+        }
+        int rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && compare(x.forward[i], score, member) <= 0) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+        }
+        // x is the node of the member, rank is 1-based
+        return reverse ? size() - rank : rank - 1;
+    }
+
+    /**
+     * Visits the members between two ranks, inclusive, with the offsets of
+     * ZRANGE: negative ranks count from the end, out of range ranks are
+     * clamped.
+     *
+     * @param start   the first rank
+     * @param stop    the last rank
+     * @param reverse whether to rank by descending score
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     */
+    public int range(int start, int stop, boolean reverse, BiConsumer<String, Double> visitor) {
+        int n = size();
+        if (start < 0) {
+            start = Math.max(0, start + n);
+        }
+        if (stop < 0) {
+            stop += n;
+        }
+        if (stop >= n) {
+            stop = n - 1;
+        }
+        if (start > stop) {
+            return 0;
+        }
+        Node x = byRank(reverse ? n - start : start + 1);
+        int count = stop - start + 1;
+        for (int i = 0; i < count; i++) {
+            visitor.accept(x.member, x.score);
+            x = reverse ? x.backward : x.forward[0];
+        }
+        return count;
+    }
+
+    /**
+     * Visits the members whose score is in a range, by ascending score.
+     *
+     * @param range   the range of scores
+     * @param offset  the number of members in the range to skip
+     * @param count   the maximum number of members visited, negative for
+     *                all of them
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     */
+    public int rangeByScore(Range range, int offset, int count,
+                            BiConsumer<String, Double> visitor) {
+        if (range.isEmpty() || offset < 0) {
+            return 0;
+        }
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && !range.aboveMin(x.forward[i].score)) {
+                x = x.forward[i];
+            }
+        }
+        x = x.forward[0];
+        for (; x != null && offset > 0 && range.belowMax(x.score); offset--) {
+            x = x.forward[0];
+        }
+        int visited = 0;
+        for (; x != null && visited != count && range.belowMax(x.score); x = x.forward[0]) {
+            visitor.accept(x.member, x.score);
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Returns the members by ascending score.
+     *
+     * @return the nodes, not to be modified
+     */
+    @Override
+    public Iterator<Node> iterator() {
+        return new Iterator<Node>() {
+            private Node next = header.forward[0];
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Node next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Node n = next;
+                next = n.forward[0];
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy that later changes to this set do not affect.
+     *
+     * @return the copy
+     */
+    public SortedSet copy() {
+        SortedSet copy = new SortedSet();
+        for (Node n : this) {
+            copy.add(n.score, n.member);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the members and scores in order, as strings.
+     *
+     * @return member, score, member, score...
+     */
+    @Override
+    public String toString() {
+        List<String> items = new ArrayList<>();
+        for (Node n : this) {
+            items.add(n.member);
+            items.add(formatScore(n.score));
+        }
+        return items.toString();
+    }
+
+    /**
+     * Parses a score as Redis does, accepting "inf", "+inf" and "-inf".
+     *
+     * Throws {@link IllegalArgumentException} if it is not a float.
+     *
+     * @param s the score
+     * @return the score
+     */
+    public static double parseScore(String s) {
+        switch (s.toLowerCase(Locale.ROOT)) {
+            case "inf":
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    double d = Double.parseDouble(s);
+                    if (!Double.isNaN(d)) {
+                        return d;
+                    }
+                } catch (NumberFormatException e) {
+                    // not a float
+                }
+                throw new IllegalArgumentException("ERR value is not a valid float");
+        }
+    }
+
+    /**
+     * Formats a score as Redis replies it: integers without a fraction,
+     * infinities as "inf" and "-inf".
+     *
+     * @param score the score
+     * @return the score as a string
+     */
+    public static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            return Long.toString((long) score);
+        }
+        return Double.toString(score);
+    }
+
+    /**
+     * Orders a node against a score and a member: by score, then by member.
+     */
+    private static int compare(Node x, double score, String member) {
+        int c = Double.compare(x.score, score);
+        return c != 0 ? c : x.member.compareTo(member);
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextDouble() < P) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Inserts a node, the member is not in the skip list yet.
+     */
+    private void insert(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && compare(x.forward[i], score, member) < 0) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int lvl = randomLevel();
+        if (lvl > level) {
+            for (int i = level; i < lvl; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                update[i].span[i] = size() - 1;
+            }
+            level = lvl;
+        }
+        x = new Node(lvl, score, member);
+        for (int i = 0; i < lvl; i++) {
+            x.forward[i] = update[i].forward[i];
+            update[i].forward[i] = x;
+            x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        // the levels above the node now jump over one more member
+        for (int i = lvl; i < level; i++) {
+            update[i].span[i]++;
+        }
+        x.backward = update[0] == header ? null : update[0];
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x;
+        } else {
+            tail = x;
+        }
+    }
+
+    /**
+     * Deletes the node of a member with the given score.
+     */
+    private void delete(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && compare(x.forward[i], score, member) < 0) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        x = x.forward[0];
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == x) {
+                update[i].span[i] += x.span[i] - 1;
+                update[i].forward[i] = x.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x.backward;
+        } else {
+            tail = x.backward;
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+    }
+
+    /**
+     * Returns the node at a 1-based rank, which must exist.
+     */
+    private Node byRank(int rank) {
+        int traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        throw new IllegalStateException("no member at rank " + rank);
+    }
+}
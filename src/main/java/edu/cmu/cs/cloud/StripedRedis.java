@@ -0,0 +1,2398 @@
+package edu.cmu.cs.cloud;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The thread-safe mode of {@link Redis}.
+ *
+ * The keyspace is split into a fixed number of stripes. Every stripe is an
+ * ordinary single-threaded {@link Redis} guarded by its own lock, and a key
+ * always lives in the stripe chosen by its hash.
+ *
+ * Single-key commands only take the lock of the stripe that owns the key, so
+ * commands on keys of different stripes run in parallel on different cores.
+ *
+ * Multi-key commands such as {@link #del(String...)} take the locks of all
+ * the stripes they touch, always in ascending stripe order to avoid
+ * deadlocks, so they stay atomic with respect to every other command.
+ */
+public class StripedRedis {
+
+    /**
+     * The default number of stripes.
+     *
+     * It should be well above the number of cores so that two threads rarely
+     * contend on the same stripe.
+     */
+    static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * The stripes of the keyspace.
+     */
+    private final Redis[] stripes;
+
+    /**
+     * The lock of each stripe, {@code locks[i]} guards {@code stripes[i]}.
+     */
+    private final ReentrantLock[] locks;
+
+    /**
+     * {@code stripes.length - 1}, the number of stripes is a power of two.
+     */
+    private final int mask;
+
+    /**
+     * The active expire thread, see {@link #startActiveExpire(long)}.
+     */
+    private ScheduledExecutorService expireSweeper;
+
+    /**
+     * The clients blocked on each key of each stripe in the order they
+     * blocked, {@code blocked[i]} is guarded by {@code locks[i]} and
+     * created on first use.
+     */
+    private final HashMap<String, LinkedHashSet<BlockedPop>>[] blocked;
+
+    /**
+     * The number of clients blocked.
+     */
+    private final AtomicInteger blockedClients = new AtomicInteger();
+
+    /**
+     * Expires the timeouts of blocked clients, see
+     * {@link #block(String[], boolean, long, BiConsumer)}.
+     */
+    private ScheduledExecutorService blockTimeouts;
+
+    /**
+     * The blocked clients served by the pushes of the running
+     * {@link #exec(List, Map)} or {@link #fcall(String, String[], String...)}
+     * of the thread, woken once its locks are released, or null outside
+     * them.
+     */
+    private final ThreadLocal<List<Runnable>> deferredWakes = new ThreadLocal<>();
+
+    /**
+     * The functions by name, see {@link #functionLoad(String, RedisFunction)}.
+     */
+    private final ConcurrentHashMap<String, RedisFunction> functions = new ConcurrentHashMap<>();
+
+    /**
+     * The scripts by SHA1 digest, see {@link #scriptLoad(String, RedisFunction)}.
+     */
+    private final ConcurrentHashMap<String, RedisFunction> scripts = new ConcurrentHashMap<>();
+
+    /**
+     * The channels of the keyspace, see {@link #publish(String, String)}.
+     */
+    private final PubSub pubsub = new PubSub();
+
+    /**
+     * The instrumentation of the commands, recorded by the protocol
+     * handlers.
+     */
+    private final CommandStats stats = new CommandStats();
+
+    /**
+     * The slab shared by the stripes for the values stored off the heap,
+     * see {@link #setOffHeapThreshold(int)}.
+     */
+    private OffHeapSlab slab;
+
+    /**
+     * The feeds the writes are reported to, written under the monitor of
+     * this and read without it after the locks of a command are released.
+     */
+    private volatile CommandFeed[] feeds = new CommandFeed[0];
+
+    /**
+     * Creates a keyspace with {@link #DEFAULT_STRIPES} stripes.
+     */
+    public StripedRedis() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a keyspace with at least the given number of stripes.
+     *
+     * @param n the number of stripes, rounded up to a power of two
+     */
+    public StripedRedis(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int size = Integer.highestOneBit(n);
+        if (size < n) {
+            size <<= 1;
+        }
+        stripes = new Redis[size];
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Redis();
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+        @SuppressWarnings("unchecked")
+        HashMap<String, LinkedHashSet<BlockedPop>>[] queues = new HashMap[size];
+        blocked = queues;
+    }
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @return the number of stripes
+     */
+    public int stripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Runs the action on every stripe, one stripe lock at a time.
+     *
+     * @param action the action
+     */
+    private void forEachStripe(Consumer<Redis> action) {
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                action.accept(stripes[i]);
+            } finally {
+                unlock(i);
+            }
+        }
+    }
+
+    /**
+     * Runs the action on one stripe while holding its lock.
+     *
+     * @param i      the index of the stripe
+     * @param action the action
+     */
+    void forStripe(int i, Consumer<Redis> action) {
+        locks[i].lock();
+        try {
+            action.accept(stripes[i]);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Reports the writes of every stripe to one more feed, e.g. both an
+     * {@link AppendOnlyFile} and a {@link Replication}.
+     *
+     * @param feed the feed
+     * @see Redis#setFeed(CommandFeed)
+     */
+    synchronized void addFeed(CommandFeed feed) {
+        CommandFeed[] more = Arrays.copyOf(feeds, feeds.length + 1);
+        more[feeds.length] = feed;
+        setFeeds(more);
+    }
+
+    /**
+     * Stops reporting the writes to a feed.
+     *
+     * @param feed the feed
+     */
+    synchronized void removeFeed(CommandFeed feed) {
+        List<CommandFeed> rest = new ArrayList<>(Arrays.asList(feeds));
+        if (rest.remove(feed)) {
+            setFeeds(rest.toArray(new CommandFeed[0]));
+        }
+    }
+
+    private void setFeeds(CommandFeed[] all) {
+        feeds = all;
+        // a single feed is called directly
+        CommandFeed feed = all.length == 0 ? null
+                : all.length == 1 ? all[0]
+                : argv -> {
+                    for (CommandFeed f : all) {
+                        f.feed(argv);
+                    }
+                };
+        forEachStripe(r -> r.setFeed(feed));
+    }
+
+    /**
+     * Takes a point-in-time snapshot of every stripe at once, holding all
+     * the stripe locks only while marking the stripes.
+     *
+     * Throws {@link IllegalStateException} if a snapshot is already pending.
+     *
+     * @see Redis#beginSnapshot()
+     */
+    void beginSnapshot() {
+        beginSnapshot(() -> { });
+    }
+
+    /**
+     * Takes a point-in-time snapshot of every stripe at once, and runs an
+     * action at that point, e.g. to note the position of a replication
+     * stream the snapshot is consistent with.
+     *
+     * @param atSnapshot run while all the stripe locks are held, no write
+     *                   happens meanwhile
+     */
+    void beginSnapshot(Runnable atSnapshot) {
+        int[] all = new int[stripes.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        lockAll(all);
+        try {
+            for (Redis r : stripes) {
+                if (r.snapshotPending()) {
+                    throw new IllegalStateException(
+                            "ERR Background save already in progress");
+                }
+            }
+            for (Redis r : stripes) {
+                r.beginSnapshot();
+            }
+            atSnapshot.run();
+        } finally {
+            unlockAll(all);
+        }
+    }
+
+    /**
+     * Drops the pending snapshot of every stripe.
+     *
+     * @see Redis#endSnapshot()
+     */
+    void endSnapshot() {
+        forEachStripe(Redis::endSnapshot);
+    }
+
+    /**
+     * Removes every key, one stripe at a time.
+     *
+     * @see Redis#flushAll()
+     */
+    void flushAll() {
+        forEachStripe(Redis::flushAll);
+    }
+
+    /**
+     * @param k    key
+     * @param v    the value
+     * @param when the expire time, or -1
+     * @see Redis#restore(String, Object, long)
+     */
+    void restore(String k, Object v, long when) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            stripes[i].restore(k, v, when);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Sets the listpack entry limit of every stripe.
+     *
+     * @param n the maximum number of fields
+     * @see Redis#setHashMaxListpackEntries(int)
+     */
+    public void setHashMaxListpackEntries(int n) {
+        forEachStripe(r -> r.setHashMaxListpackEntries(n));
+    }
+
+    /**
+     * Sets the listpack value limit of every stripe.
+     *
+     * @param n the maximum length in bytes
+     * @see Redis#setHashMaxListpackValue(int)
+     */
+    public void setHashMaxListpackValue(int n) {
+        forEachStripe(r -> r.setHashMaxListpackValue(n));
+    }
+
+    /**
+     * Sets the memory limit of the whole keyspace, 0 means no limit.
+     *
+     * The stripes share one count of the memory used, so the limit holds
+     * however the keys are spread. A write over the limit evicts the keys
+     * of its stripe first; when its stripe has none left to evict, those
+     * of the other stripes that are not locked, so that no lock is waited
+     * for while one is held.
+     *
+     * @param bytes the maximum estimated memory used by the keys
+     * @see Redis#setMaxmemory(long)
+     */
+    public void setMaxmemory(long bytes) {
+        AtomicLong total = bytes == 0 ? null : new AtomicLong();
+        for (int i = 0; i < stripes.length; i++) {
+            int stripe = i;
+            locks[i].lock();
+            try {
+                stripes[i].setMaxmemory(bytes);
+                stripes[i].shareMaxmemory(total, () -> evictElsewhere(stripe));
+            } finally {
+                unlock(i);
+            }
+        }
+    }
+
+    /**
+     * Evicts a key of a stripe other than one, whose lock is held, if the
+     * memory limit is exceeded.
+     *
+     * @param from the stripe with no key left to evict
+     * @return true if a key was evicted
+     */
+    private boolean evictElsewhere(int from) {
+        int start = ThreadLocalRandom.current().nextInt(stripes.length);
+        for (int n = 0; n < stripes.length; n++) {
+            int j = (start + n) % stripes.length;
+            // waiting for a lock while holding another could deadlock
+            if (j != from && locks[j].tryLock()) {
+                try {
+                    if (stripes[j].evictOne()) {
+                        return true;
+                    }
+                } finally {
+                    locks[j].unlock();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param policy the eviction policy
+     * @see Redis#setMaxmemoryPolicy(String)
+     */
+    public void setMaxmemoryPolicy(String policy) {
+        MaxMemoryPolicy.of(policy);
+        forEachStripe(r -> r.setMaxmemoryPolicy(policy));
+    }
+
+    /**
+     * @param samples the number of keys sampled
+     * @see Redis#setMaxmemorySamples(int)
+     */
+    public void setMaxmemorySamples(int samples) {
+        forEachStripe(r -> r.setMaxmemorySamples(samples));
+    }
+
+    /**
+     * @return the estimated memory used by the keys of every stripe
+     * @see Redis#usedMemory()
+     */
+    public long usedMemory() {
+        long[] used = new long[1];
+        forEachStripe(r -> used[0] += r.usedMemory());
+        return used[0];
+    }
+
+    /**
+     * Stores the large string values of every stripe off the heap, in one
+     * slab shared by the stripes.
+     *
+     * @param bytes the minimum length of the values stored off the heap
+     * @see Redis#setOffHeapThreshold(int)
+     */
+    public synchronized void setOffHeapThreshold(int bytes) {
+        if (slab == null && bytes > 0) {
+            slab = new OffHeapSlab();
+        }
+        OffHeapSlab shared = slab;
+        forEachStripe(r -> r.setOffHeap(shared, bytes));
+    }
+
+    /**
+     * @return the bytes reserved off the heap by the slab of the stripes
+     * @see Redis#offHeapMemory()
+     */
+    public synchronized long offHeapMemory() {
+        return slab == null ? 0 : slab.reserved();
+    }
+
+    /**
+     * @return the number of keys evicted from every stripe
+     * @see Redis#evictedKeys()
+     */
+    public long evictedKeys() {
+        long[] evicted = new long[1];
+        forEachStripe(r -> evicted[0] += r.evictedKeys());
+        return evicted[0];
+    }
+
+    /**
+     * @return the number of read lookups that found the key
+     * @see Redis#keyspaceHits()
+     */
+    public long keyspaceHits() {
+        long[] hits = new long[1];
+        forEachStripe(r -> hits[0] += r.keyspaceHits());
+        return hits[0];
+    }
+
+    /**
+     * @return the number of read lookups that did not find the key
+     * @see Redis#keyspaceMisses()
+     */
+    public long keyspaceMisses() {
+        long[] misses = new long[1];
+        forEachStripe(r -> misses[0] += r.keyspaceMisses());
+        return misses[0];
+    }
+
+    /**
+     * @return the number of keys
+     * @see Redis#dbsize()
+     */
+    public long dbsize() {
+        long[] keys = new long[1];
+        forEachStripe(r -> keys[0] += r.dbsize());
+        return keys[0];
+    }
+
+    /**
+     * Returns the instrumentation of the commands, recorded by
+     * {@link RespHandler}.
+     *
+     * @return the command statistics
+     */
+    public CommandStats stats() {
+        return stats;
+    }
+
+    /**
+     * Returns the entries of the slowlog.
+     *
+     * @param count the most entries returned, negative for all
+     * @return the entries, newest first
+     * @see CommandStats#slowlog(int)
+     */
+    public List<CommandStats.SlowlogEntry> slowlog(int count) {
+        return stats.slowlog(count);
+    }
+
+    /**
+     * Returns every section of INFO.
+     *
+     * @return the INFO text
+     * @see #info(String)
+     */
+    public String info() {
+        return info("all");
+    }
+
+    /**
+     * Returns the statistics of the keyspace in the format of INFO: lines
+     * of "field:value" grouped in sections, each under a "# Section" line.
+     *
+     * The keyspace section also counts the keys of each type, and the
+     * memory section their estimated memory. The sums over the stripes
+     * take one stripe lock at a time.
+     *
+     * @param section clients, memory, stats, keyspace, commandstats,
+     *                latencystats, or all
+     * @return the INFO text
+     * @see <a href="https://redis.io/commands/info">INFO - Redis</a>
+     */
+    public String info(String section) {
+        String s = section.toLowerCase(Locale.ROOT);
+        boolean all = s.equals("all") || s.equals("everything") || s.equals("default");
+        long[] keys = new long[Evictor.TYPE_NAMES.length];
+        long[] used = new long[Evictor.TYPE_NAMES.length];
+        long[] totals = new long[6];
+        forEachStripe(r -> {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] += r.keys(Evictor.TYPE_NAMES[i]);
+                used[i] += r.usedMemory(Evictor.TYPE_NAMES[i]);
+            }
+            totals[0] += r.dbsize();
+            totals[1] += r.expiresCount();
+            totals[2] += r.usedMemory();
+            totals[3] += r.evictedKeys();
+            totals[4] += r.keyspaceHits();
+            totals[5] += r.keyspaceMisses();
+        });
+        StringBuilder info = new StringBuilder();
+        if (all || s.equals("clients")) {
+            info.append("# Clients\r\n")
+                    .append("blocked_clients:").append(blockedClients()).append("\r\n")
+                    .append("pubsub_clients_overflowed:").append(pubsub.slowConsumers())
+                    .append("\r\n\r\n");
+        }
+        if (all || s.equals("memory")) {
+            info.append("# Memory\r\n")
+                    .append("used_memory:").append(totals[2]).append("\r\n")
+                    .append("used_memory_offheap:").append(offHeapMemory()).append("\r\n");
+            for (int i = 0; i < used.length; i++) {
+                info.append("used_memory_").append(Evictor.TYPE_NAMES[i]).append(':')
+                        .append(used[i]).append("\r\n");
+            }
+            info.append("maxmemory:").append(stripes[0].maxmemory())
+                    .append("\r\n\r\n");
+        }
+        if (all || s.equals("stats")) {
+            info.append("# Stats\r\n")
+                    .append("total_commands_processed:").append(stats.totalCommands())
+                    .append("\r\n")
+                    .append("instantaneous_ops_per_sec:")
+                    .append(Math.round(stats.opsPerSec())).append("\r\n")
+                    .append("keyspace_hits:").append(totals[4]).append("\r\n")
+                    .append("keyspace_misses:").append(totals[5]).append("\r\n")
+                    .append("evicted_keys:").append(totals[3]).append("\r\n")
+                    .append("pubsub_channels:").append(pubsub.channels()).append("\r\n")
+                    .append("pubsub_patterns:").append(pubsub.patterns()).append("\r\n")
+                    .append("slowlog_len:").append(stats.slowlogLen()).append("\r\n\r\n");
+        }
+        if (all || s.equals("commandstats") || s.equals("latencystats")) {
+            StringBuilder commands = new StringBuilder();
+            stats.appendInfo(commands);
+            String text = commands.toString();
+            int latency = text.indexOf("# Latencystats");
+            if (all) {
+                info.append(text).append("\r\n");
+            } else if (s.equals("commandstats")) {
+                info.append(text, 0, latency);
+            } else {
+                info.append(text, latency, text.length()).append("\r\n");
+            }
+        }
+        if (all || s.equals("keyspace")) {
+            info.append("# Keyspace\r\n");
+            if (totals[0] > 0) {
+                info.append("db0:keys=").append(totals[0]).append(",expires=").append(totals[1]);
+                for (int i = 0; i < keys.length; i++) {
+                    info.append(',').append(Evictor.TYPE_NAMES[i]).append('=').append(keys[i]);
+                }
+                info.append("\r\n");
+            }
+            info.append("\r\n");
+        }
+        return info.toString();
+    }
+
+    /**
+     * Registers the statistics of the keyspace as an MBean of the platform
+     * MBean server.
+     *
+     * @return the name of the MBean
+     * @throws JMException if the MBean cannot be registered
+     */
+    public ObjectName registerMBean() throws JMException {
+        return CommandStats.registerMBean("Redis", new CommandStats.InfoMBean() {
+            @Override
+            public String getInfo() {
+                return info();
+            }
+
+            @Override
+            public long getTotalCommandsProcessed() {
+                return stats.totalCommands();
+            }
+
+            @Override
+            public double getInstantaneousOpsPerSec() {
+                return stats.opsPerSec();
+            }
+
+            @Override
+            public long getKeyspaceHits() {
+                return keyspaceHits();
+            }
+
+            @Override
+            public long getKeyspaceMisses() {
+                return keyspaceMisses();
+            }
+
+            @Override
+            public long getUsedMemory() {
+                return usedMemory();
+            }
+
+            @Override
+            public int getSlowlogLength() {
+                return stats.slowlogLen();
+            }
+
+            @Override
+            public String[] slowlog(int count) {
+                return stats.slowlog(count).stream().map(Object::toString).toArray(String[]::new);
+            }
+
+            @Override
+            public double latencyPercentileMicros(String command, double percentile) {
+                return stats.percentile(command, percentile) / 1000.0;
+            }
+        });
+    }
+
+    /**
+     * Returns the stripe that owns the key.
+     *
+     * The high bits of the hash code are folded into the low bits, as
+     * {@link java.util.HashMap} does, because only the low bits are used.
+     *
+     * @param k key
+     * @return the index of the stripe
+     */
+    int stripeOf(String k) {
+        int h = k.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the sorted, distinct stripes owning the keys.
+     *
+     * @param ks keys
+     * @return the indexes of the stripes in ascending order
+     */
+    private int[] stripesOf(String... ks) {
+        int[] idx = new int[ks.length];
+        for (int i = 0; i < ks.length; i++) {
+            idx[i] = stripeOf(ks[i]);
+        }
+        Arrays.sort(idx);
+        int n = 0;
+        for (int i = 0; i < idx.length; i++) {
+            if (n == 0 || idx[n - 1] != idx[i]) {
+                idx[n++] = idx[i];
+            }
+        }
+        return Arrays.copyOf(idx, n);
+    }
+
+    /**
+     * Locks the given stripes in ascending order.
+     *
+     * @param idx the sorted stripes
+     */
+    private void lockAll(int[] idx) {
+        for (int i : idx) {
+            locks[i].lock();
+        }
+    }
+
+    /**
+     * Unlocks the given stripes in descending order.
+     *
+     * @param idx the sorted stripes
+     */
+    private void unlockAll(int[] idx) {
+        for (int i = idx.length - 1; i >= 0; i--) {
+            locks[idx[i]].unlock();
+        }
+        released();
+    }
+
+    /**
+     * Unlocks a stripe.
+     *
+     * @param i the stripe
+     */
+    private void unlock(int i) {
+        locks[i].unlock();
+        released();
+    }
+
+    /**
+     * Lets the feeds wait for the writes of the command, e.g. until they
+     * are on the disk, once its locks are released, so that the other
+     * commands of the stripes do not wait with it. A command nested in
+     * {@link #atomically(int[], Supplier)} still holds the outer locks, the
+     * outer command waits instead.
+     */
+    private void released() {
+        CommandFeed[] all = feeds;
+        if (all.length == 0 || deferredWakes.get() != null) {
+            return;
+        }
+        for (CommandFeed f : all) {
+            f.released();
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the type of the value stored at key
+     * @see Redis#type(String)
+     */
+    public String type(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].type(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @param v string value
+     * @return "OK"
+     * @see Redis#set(String, String)
+     */
+    public String set(String k, String v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].set(k, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @param v binary value, not to be modified afterwards
+     * @return "OK"
+     * @see Redis#set(String, byte[])
+     */
+    public String set(String k, byte[] v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].set(k, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k  key
+     * @param v  binary value, not to be modified afterwards
+     * @param nx whether the key is only set if it does not exist
+     * @param ms the time to live in milliseconds, or 0 for none
+     * @return true if the key was set
+     * @see Redis#set(String, byte[], boolean, long)
+     */
+    public boolean set(String k, byte[] v, boolean nx, long ms) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].set(k, v, nx, ms);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the value of key after the increment
+     * @see Redis#incr(String)
+     */
+    public long incr(String k) {
+        return incrby(k, 1);
+    }
+
+    /**
+     * @param k     key
+     * @param delta the increment
+     * @return the value of key after the increment
+     * @see Redis#incrby(String, long)
+     */
+    public long incrby(String k, long delta) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].incrby(k, delta);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the string value, or null when key does not exist
+     * @see Redis#get(String)
+     */
+    public String get(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].get(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the binary value, not to be modified, or null when key does
+     * not exist
+     * @see Redis#getBytes(String)
+     */
+    public byte[] getBytes(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].getBytes(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Lends the value to the reader while holding the lock of its stripe,
+     * so the reader should be quick.
+     *
+     * @param k      key
+     * @param reader the reader of the remaining bytes of the buffer
+     * @return true if the key exists
+     * @see Redis#get(String, Consumer)
+     */
+    public boolean get(String k, Consumer<ByteBuffer> reader) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].get(k, reader);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Returns the values of the keys atomically.
+     *
+     * The lock of every stripe owning some of the keys is taken once for the
+     * whole batch, instead of once per key.
+     *
+     * @param ks the keys
+     * @return the values in the order of the keys, null for the missing ones
+     * @see Redis#mget(String...)
+     */
+    public List<String> mget(String... ks) {
+        String[] vs = new String[ks.length];
+        int[] idx = stripesOf(ks);
+        lockAll(idx);
+        try {
+            for (int i = 0; i < ks.length; i++) {
+                byte[] v = stripes[stripeOf(ks[i])].getBytesIfString(ks[i]);
+                if (v != null) {
+                    vs[i] = new String(v, StandardCharsets.UTF_8);
+                }
+            }
+        } finally {
+            unlockAll(idx);
+        }
+        return Arrays.asList(vs);
+    }
+
+    /**
+     * Lends the values of the keys to the reader atomically, in the order of
+     * the keys.
+     *
+     * @param ks     the keys
+     * @param reader the reader of every value, null for a missing one
+     * @return the number of keys holding a string
+     * @see Redis#mget(String[], Consumer)
+     */
+    public int mget(String[] ks, Consumer<ByteBuffer> reader) {
+        int[] idx = stripesOf(ks);
+        lockAll(idx);
+        try {
+            int found = 0;
+            for (String k : ks) {
+                if (stripes[stripeOf(k)].getIfString(k, reader)) {
+                    found++;
+                } else {
+                    reader.accept(null);
+                }
+            }
+            return found;
+        } finally {
+            unlockAll(idx);
+        }
+    }
+
+    /**
+     * Sets the keys to their values atomically: no other thread observes
+     * some of the keys set and others not.
+     *
+     * @param kvs the keys each followed by its value
+     * @return "OK"
+     * @see Redis#mset(String...)
+     */
+    public String mset(String... kvs) {
+        if (kvs.length == 0 || kvs.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "ERR wrong number of arguments for 'mset' command");
+        }
+        String[] ks = new String[kvs.length / 2];
+        byte[][] vs = new byte[ks.length][];
+        for (int i = 0; i < ks.length; i++) {
+            ks[i] = kvs[2 * i];
+            vs[i] = kvs[2 * i + 1].getBytes(StandardCharsets.UTF_8);
+        }
+        return mset(ks, vs);
+    }
+
+    /**
+     * Like {@link #mset(String...)} with binary values.
+     *
+     * @param ks the keys
+     * @param vs the value of every key
+     * @return "OK"
+     * @see Redis#mset(String[], byte[][])
+     */
+    public String mset(String[] ks, byte[][] vs) {
+        if (ks.length == 0 || ks.length != vs.length) {
+            throw new IllegalArgumentException(
+                    "ERR wrong number of arguments for 'mset' command");
+        }
+        int[] idx = stripesOf(ks);
+        lockAll(idx);
+        try {
+            for (int i = 0; i < ks.length; i++) {
+                stripes[stripeOf(ks[i])].set(ks[i], vs[i]);
+            }
+            return "OK";
+        } finally {
+            unlockAll(idx);
+        }
+    }
+
+    /**
+     * Removes the specified keys atomically.
+     *
+     * The keys are removed while holding the locks of all their stripes, so
+     * no other thread can observe some of the keys removed and others not.
+     *
+     * @param ks keys to remove
+     * @return the number of keys that were removed
+     * @see Redis#del(String...)
+     */
+    public int del(String... ks) {
+        int[] idx = stripesOf(ks);
+        lockAll(idx);
+        try {
+            int n = 0;
+            for (String k : ks) {
+                n += stripes[stripeOf(k)].del(k);
+            }
+            return n;
+        } finally {
+            unlockAll(idx);
+        }
+    }
+
+    /**
+     * @param k key
+     * @param f field
+     * @param v value
+     * @return 1 if field is new, 0 if it was updated
+     * @see Redis#hset(String, String, String)
+     */
+    public int hset(String k, String f, String v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hset(k, f, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k   key
+     * @param fvs the fields each followed by its value
+     * @return the number of fields that were added
+     * @see Redis#hset(String, String...)
+     */
+    public int hset(String k, String... fvs) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hset(k, fvs);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k   key
+     * @param fvs the fields each followed by its value
+     * @return "OK"
+     * @see Redis#hmset(String, String...)
+     */
+    public String hmset(String k, String... fvs) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hmset(k, fvs);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k  key
+     * @param fs fields
+     * @return the values in the order of the fields, null for the missing
+     * ones
+     * @see Redis#hmget(String, String...)
+     */
+    public List<String> hmget(String k, String... fs) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hmget(k, fs);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @param f field
+     * @return the value associated with field, or null
+     * @see Redis#hget(String, String)
+     */
+    public String hget(String k, String f) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hget(k, f);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the fields and values of the hash
+     * @see Redis#hgetall(String)
+     */
+    public List<String> hgetall(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hgetall(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the number of fields of the hash
+     * @see Redis#hlen(String)
+     */
+    public int hlen(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hlen(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Visits the fields and values of the hash while holding the lock of its
+     * stripe, so the visitor should be quick.
+     *
+     * @param k       key
+     * @param visitor the visitor of every field and its value
+     * @return the number of fields visited
+     * @see Redis#hgetall(String, BiConsumer)
+     */
+    public int hgetall(String k, BiConsumer<String, String> visitor) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hgetall(k, visitor);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k      key
+     * @param cursor the cursor, 0 to start
+     * @param count  the number of fields to return per call, a hint only
+     * @return the next cursor and the fields, each followed by its value
+     * @see Redis#hscan(String, long, int)
+     */
+    public ScanResult hscan(String k, long cursor, int count) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].hscan(k, cursor, count);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Incrementally iterates the keys of every stripe, one stripe lock at a
+     * time.
+     *
+     * The low bits of the cursor are the stripe being scanned and the high
+     * bits the cursor within it, so the guarantees of
+     * {@link Redis#scan(long, int)} hold for the whole keyspace.
+     *
+     * @param cursor the cursor, 0 to start
+     * @param count  the number of keys to return per call, a hint only
+     * @return the next cursor and the keys
+     * @see Redis#scan(long, int)
+     */
+    public ScanResult scan(long cursor, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("ERR syntax error");
+        }
+        int bits = Integer.numberOfTrailingZeros(stripes.length);
+        int i = (int) (cursor & mask);
+        long c = cursor >>> bits;
+        List<String> keys = new ArrayList<>();
+        while (true) {
+            ScanResult r;
+            locks[i].lock();
+            try {
+                r = stripes[i].scan(c, count - keys.size());
+            } finally {
+                unlock(i);
+            }
+            keys.addAll(r.items());
+            c = r.cursor();
+            if (c == 0 && ++i == stripes.length) {
+                return new ScanResult(0, keys);
+            }
+            if (keys.size() >= count) {
+                return new ScanResult(c << bits | i, keys);
+            }
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the length of the list at key
+     * @see Redis#llen(String)
+     */
+    public int llen(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].llen(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k  key
+     * @param vs values
+     * @return the length of the list after the push operation
+     * @see Redis#rpush(String, String...)
+     */
+    public int rpush(String k, String... vs) {
+        int i = stripeOf(k);
+        int n;
+        List<BlockedPop> served;
+        locks[i].lock();
+        try {
+            n = stripes[i].rpush(k, vs);
+            served = serveBlocked(i, k);
+        } finally {
+            locks[i].unlock();
+        }
+        try {
+            released();
+        } finally {
+            // the served clients are handed their element even if the feed fails
+            wake(served, k);
+        }
+        return n;
+    }
+
+    /**
+     * @param k  key
+     * @param vs values
+     * @return the length of the list after the push operation
+     * @see Redis#lpush(String, String...)
+     */
+    public int lpush(String k, String... vs) {
+        int i = stripeOf(k);
+        int n;
+        List<BlockedPop> served;
+        locks[i].lock();
+        try {
+            n = stripes[i].lpush(k, vs);
+            served = serveBlocked(i, k);
+        } finally {
+            locks[i].unlock();
+        }
+        try {
+            released();
+        } finally {
+            // the served clients are handed their element even if the feed fails
+            wake(served, k);
+        }
+        return n;
+    }
+
+    /**
+     * @param k the key
+     * @return the value of the first element, or null
+     * @see Redis#lpop(String)
+     */
+    public String lpop(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].lpop(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Removes and returns the first element of the first non-empty list
+     * among the keys, blocking until one of them is pushed to if they are
+     * all empty.
+     *
+     * The clients blocked on a key are served in the order they blocked,
+     * each by the push that gives them an element, without polling: the
+     * thread is parked until then.
+     *
+     * @param timeoutMillis the maximum time to block, 0 to block forever
+     * @param keys          the keys, checked in order
+     * @return the key and the element popped, or null on timeout
+     * @throws InterruptedException if the thread is interrupted while
+     *                              blocked, nothing is popped then
+     * @see <a href="https://redis.io/commands/blpop">BLPOP - Redis</a>
+     */
+    public List<String> blpop(long timeoutMillis, String... keys) throws InterruptedException {
+        return blockingPop(true, timeoutMillis, keys);
+    }
+
+    /**
+     * Removes and returns the last element of the first non-empty list
+     * among the keys, as {@link #blpop(long, String...)}.
+     *
+     * @param timeoutMillis the maximum time to block, 0 to block forever
+     * @param keys          the keys, checked in order
+     * @return the key and the element popped, or null on timeout
+     * @throws InterruptedException if the thread is interrupted while
+     *                              blocked, nothing is popped then
+     * @see <a href="https://redis.io/commands/brpop">BRPOP - Redis</a>
+     */
+    public List<String> brpop(long timeoutMillis, String... keys) throws InterruptedException {
+        return blockingPop(false, timeoutMillis, keys);
+    }
+
+    private List<String> blockingPop(boolean left, long timeoutMillis, String[] keys)
+            throws InterruptedException {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("ERR timeout is negative");
+        }
+        Thread thread = Thread.currentThread();
+        BlockedPop w = block(keys, left, (k, v) -> LockSupport.unpark(thread));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean interrupted = false;
+        while (w.key() == null) {
+            long remaining = deadline - System.nanoTime();
+            if (Thread.interrupted()) {
+                if (unblock(w)) {
+                    throw new InterruptedException();
+                }
+                // served meanwhile, the element must not be lost
+                interrupted = true;
+            } else if (timeoutMillis > 0 && remaining <= 0) {
+                if (unblock(w)) {
+                    return null;
+                }
+                LockSupport.park(this);
+            } else if (timeoutMillis > 0) {
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (interrupted) {
+            thread.interrupt();
+        }
+        return Arrays.asList(w.key(), w.value());
+    }
+
+    /**
+     * Pops an element from the first non-empty list among the keys, or
+     * queues the client on every key until a push serves it or the timeout
+     * expires, without a thread waiting for it.
+     *
+     * @param keys          the keys, checked in order
+     * @param left          whether to pop the head of the list, as BLPOP
+     * @param timeoutMillis the maximum time to block, 0 to block forever
+     * @param callback      called once with the key and the element popped,
+     *                      or with null and null on timeout, from the
+     *                      thread of the push or of the timeout, unless the
+     *                      client is served at once
+     * @return the blocked client, with {@link BlockedPop#key()} set if it was
+     * served at once
+     */
+    BlockedPop block(String[] keys, boolean left, long timeoutMillis,
+                     BiConsumer<String, String> callback) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("ERR timeout is negative");
+        }
+        BlockedPop w = block(keys, left, callback);
+        if (w.key() == null && timeoutMillis > 0) {
+            w.timeout = timeouts().schedule(() -> {
+                if (unblock(w)) {
+                    w.complete();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return w;
+    }
+
+    private BlockedPop block(String[] keys, boolean left, BiConsumer<String, String> callback) {
+        String[] distinct = new LinkedHashSet<>(Arrays.asList(keys)).toArray(new String[0]);
+        BlockedPop w = new BlockedPop(distinct, left, callback);
+        int[] idx = stripesOf(distinct);
+        lockAll(idx);
+        try {
+            for (String k : distinct) {
+                int i = stripeOf(k);
+                String v = left ? stripes[i].lpop(k) : stripes[i].rpop(k);
+                if (v != null) {
+                    w.claim();
+                    w.serve(k, v);
+                    return w;
+                }
+            }
+            for (String k : distinct) {
+                int i = stripeOf(k);
+                if (blocked[i] == null) {
+                    blocked[i] = new HashMap<>();
+                }
+                blocked[i].computeIfAbsent(k, x -> new LinkedHashSet<>()).add(w);
+            }
+            blockedClients.incrementAndGet();
+        } finally {
+            unlockAll(idx);
+        }
+        return w;
+    }
+
+    /**
+     * Cancels a blocked client, e.g. when its connection is closed.
+     *
+     * @param w the client
+     * @return false if it was served or cancelled already
+     */
+    boolean unblock(BlockedPop w) {
+        if (!w.cancel()) {
+            return false;
+        }
+        blockedClients.decrementAndGet();
+        unqueue(w, null);
+        return true;
+    }
+
+    /**
+     * Returns the number of clients blocked on keys.
+     *
+     * @return blocked_clients of INFO
+     */
+    public int blockedClients() {
+        return blockedClients.get();
+    }
+
+    /**
+     * Pops elements of the list at key for the clients blocked on it, in
+     * the order they blocked, while the list is not empty. Called with the
+     * lock of the stripe held, after a push.
+     *
+     * @return the clients served, or null
+     */
+    private List<BlockedPop> serveBlocked(int i, String k) {
+        HashMap<String, LinkedHashSet<BlockedPop>> waiting = blocked[i];
+        if (waiting == null) {
+            return null;
+        }
+        LinkedHashSet<BlockedPop> queue = waiting.get(k);
+        if (queue == null) {
+            return null;
+        }
+        List<BlockedPop> served = new ArrayList<>();
+        Iterator<BlockedPop> it = queue.iterator();
+        while (it.hasNext() && stripes[i].llen(k) > 0) {
+            BlockedPop w = it.next();
+            it.remove();
+            // a client served through another key or timed out is skipped
+            if (w.claim()) {
+                blockedClients.decrementAndGet();
+                w.serve(k, w.left() ? stripes[i].lpop(k) : stripes[i].rpop(k));
+                served.add(w);
+            }
+        }
+        if (queue.isEmpty()) {
+            waiting.remove(k);
+        }
+        return served;
+    }
+
+    /**
+     * Returns a stripe, for a caller holding its lock.
+     *
+     * @param i the stripe
+     * @return the keyspace of the stripe
+     */
+    Redis stripe(int i) {
+        return stripes[i];
+    }
+
+    /**
+     * Serves the clients blocked on a key pushed by a caller holding the
+     * lock of its stripe, e.g. a function; they are woken once the call
+     * releases its locks.
+     *
+     * @param k key
+     */
+    void pushed(String k) {
+        int i = stripeOf(k);
+        wake(serveBlocked(i, k), k);
+    }
+
+    /**
+     * Removes the served clients from the queues of their other keys and
+     * hands them their element, once the lock of the push is released.
+     */
+    private void wake(List<BlockedPop> served, String k) {
+        if (served == null) {
+            return;
+        }
+        List<Runnable> deferred = deferredWakes.get();
+        if (deferred != null) {
+            // unqueue must not take locks out of order while EXEC holds many
+            deferred.add(() -> wake(served, k));
+            return;
+        }
+        for (BlockedPop w : served) {
+            unqueue(w, k);
+            w.complete();
+        }
+    }
+
+    /**
+     * Removes a client from the queues of its keys, one stripe lock at a
+     * time.
+     *
+     * @param w    the client
+     * @param skip the key whose queue it was already removed from, or null
+     */
+    private void unqueue(BlockedPop w, String skip) {
+        for (String k : w.keys()) {
+            if (k.equals(skip)) {
+                continue;
+            }
+            int i = stripeOf(k);
+            locks[i].lock();
+            try {
+                LinkedHashSet<BlockedPop> queue = blocked[i] == null ? null : blocked[i].get(k);
+                if (queue != null && queue.remove(w) && queue.isEmpty()) {
+                    blocked[i].remove(k);
+                }
+            } finally {
+                unlock(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the thread expiring the timeouts of the clients blocked
+     * without a thread, started on first use.
+     */
+    private synchronized ScheduledExecutorService timeouts() {
+        if (blockTimeouts == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "redis-blocking-timeout");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            blockTimeouts = executor;
+        }
+        return blockTimeouts;
+    }
+
+    /**
+     * Returns the publish/subscribe messaging of the keyspace, whose
+     * channels are unrelated to the keys.
+     *
+     * @return the pub/sub
+     */
+    public PubSub pubsub() {
+        return pubsub;
+    }
+
+    /**
+     * Publishes a message to the subscribers of a channel, without taking
+     * any stripe lock nor waiting for the fan-out.
+     *
+     * @param channel the channel
+     * @param message the message
+     * @return the number of receivers
+     * @see PubSub#publish(String, String)
+     */
+    public int publish(String channel, String message) {
+        return pubsub.publish(channel, message);
+    }
+
+    /**
+     * Creates a MULTI/EXEC transaction on this keyspace, for one client.
+     *
+     * @return the transaction
+     */
+    public Transaction transaction() {
+        return new Transaction(this);
+    }
+
+    /**
+     * Watches a key, see {@link Transaction#watch(String...)}.
+     *
+     * @param k key
+     * @return the current version of the key
+     */
+    long watch(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].watch(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Releases one watch of every key, one stripe lock at a time.
+     *
+     * @param ks keys
+     */
+    void unwatch(Iterable<String> ks) {
+        for (String k : ks) {
+            int i = stripeOf(k);
+            locks[i].lock();
+            try {
+                stripes[i].unwatch(k);
+            } finally {
+                unlock(i);
+            }
+        }
+    }
+
+    /**
+     * Runs the commands of a transaction while holding the locks of the
+     * stripes of their keys and of the watched keys only, unless a watched
+     * key changed version, and releases the watches.
+     *
+     * Clients blocked on lists pushed to by the commands are woken once
+     * the locks are released.
+     *
+     * @param commands the queued commands
+     * @param versions the version of every watched key when it was watched
+     * @return the result, or the exception, of every command, or null if a
+     * watched key was written
+     */
+    List<Object> exec(List<Transaction.Command> commands, Map<String, Long> versions) {
+        return atomically(stripesOf(commands, versions.keySet()), () -> {
+            boolean changed = false;
+            for (Map.Entry<String, Long> e : versions.entrySet()) {
+                String k = e.getKey();
+                Redis stripe = stripes[stripeOf(k)];
+                changed |= stripe.version(k) != e.getValue();
+                stripe.unwatch(k);
+            }
+            if (changed) {
+                return null;
+            }
+            List<Object> results = new ArrayList<>(commands.size());
+            for (Transaction.Command c : commands) {
+                try {
+                    results.add(c.body().apply(this));
+                } catch (RuntimeException e) {
+                    results.add(e);
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Runs a body while holding the locks of stripes, and wakes the blocked
+     * clients served by its pushes once they are released.
+     *
+     * @param idx  the sorted, distinct stripes
+     * @param body the body
+     * @return the result of the body
+     */
+    private <T> T atomically(int[] idx, Supplier<T> body) {
+        if (deferredWakes.get() != null) {
+            // nested, e.g. FCALL inside EXEC, the outer call wakes them
+            lockAll(idx);
+            try {
+                return body.get();
+            } finally {
+                unlockAll(idx);
+            }
+        }
+        List<Runnable> deferred = new ArrayList<>();
+        T result;
+        lockAll(idx);
+        deferredWakes.set(deferred);
+        try {
+            result = body.get();
+        } finally {
+            deferredWakes.remove();
+            try {
+                unlockAll(idx);
+            } finally {
+                for (Runnable wake : deferred) {
+                    wake.run();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Registers a function under a name, unless one already has it.
+     *
+     * Throws {@link IllegalStateException} if the name is taken.
+     *
+     * @param name     the name of the function
+     * @param function the function
+     * @see <a href="https://redis.io/commands/function-load">FUNCTION LOAD - Redis</a>
+     */
+    public void functionLoad(String name, RedisFunction function) {
+        functionLoad(name, function, false);
+    }
+
+    /**
+     * Registers a function under a name.
+     *
+     * Throws {@link IllegalStateException} if the name is taken and
+     * replace is false.
+     *
+     * @param name     the name of the function
+     * @param function the function
+     * @param replace  whether a function of the same name is replaced
+     * @see <a href="https://redis.io/commands/function-load">FUNCTION LOAD - Redis</a>
+     */
+    public void functionLoad(String name, RedisFunction function, boolean replace) {
+        if (replace) {
+            functions.put(name, function);
+        } else if (functions.putIfAbsent(name, function) != null) {
+            throw new IllegalStateException("ERR Function " + name + " already exists");
+        }
+    }
+
+    /**
+     * Unregisters a function.
+     *
+     * @param name the name of the function
+     * @return true if the function was registered
+     * @see <a href="https://redis.io/commands/function-delete">FUNCTION DELETE - Redis</a>
+     */
+    public boolean functionDelete(String name) {
+        return functions.remove(name) != null;
+    }
+
+    /**
+     * Unregisters every function.
+     *
+     * @see <a href="https://redis.io/commands/function-flush">FUNCTION FLUSH - Redis</a>
+     */
+    public void functionFlush() {
+        functions.clear();
+    }
+
+    /**
+     * @return the names of the functions, sorted
+     * @see <a href="https://redis.io/commands/function-list">FUNCTION LIST - Redis</a>
+     */
+    public List<String> functionList() {
+        List<String> names = new ArrayList<>(functions.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Calls a function atomically: it runs with the locks of the stripes of
+     * the keys held, so no other client sees a part of its writes, and
+     * calls on keys of other stripes run in parallel. The function sees the
+     * keyspace through a {@link ScopedRedis} limited to the keys.
+     *
+     * Throws {@link IllegalArgumentException} if no function has the name.
+     * An exception of the function is thrown once the locks are released,
+     * its writes before it are kept, as in Redis.
+     *
+     * @param name the name of the function
+     * @param keys the keys the function touches
+     * @param args the other arguments
+     * @return the result of the function
+     * @see <a href="https://redis.io/commands/fcall">FCALL - Redis</a>
+     */
+    public Object fcall(String name, String[] keys, String... args) {
+        RedisFunction function = functions.get(name);
+        if (function == null) {
+            throw new IllegalArgumentException("ERR Function not found");
+        }
+        return atomically(stripesOf(keys),
+                () -> function.call(new ScopedRedis(this, keys), keys, args));
+    }
+
+    /**
+     * Registers the Java equivalent of a Lua script under the SHA1 digest of
+     * its source, so that clients written for Redis run it unchanged with
+     * EVAL or EVALSHA, as there is no Lua interpreter.
+     *
+     * @param script   the source of the script
+     * @param function its equivalent
+     * @return the SHA1 digest of the script, in lowercase hexadecimal
+     * @see <a href="https://redis.io/commands/script-load">SCRIPT LOAD - Redis</a>
+     */
+    public String scriptLoad(String script, RedisFunction function) {
+        String sha = sha1(script);
+        scripts.put(sha, function);
+        return sha;
+    }
+
+    /**
+     * @param sha the SHA1 digest of a script
+     * @return true if a script has the digest
+     * @see <a href="https://redis.io/commands/script-exists">SCRIPT EXISTS - Redis</a>
+     */
+    public boolean scriptExists(String sha) {
+        return scripts.containsKey(sha.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Unregisters every script.
+     *
+     * @see <a href="https://redis.io/commands/script-flush">SCRIPT FLUSH - Redis</a>
+     */
+    public void scriptFlush() {
+        scripts.clear();
+    }
+
+    /**
+     * Runs a registered script atomically, as {@link #fcall(String, String[], String...)}.
+     *
+     * Throws {@link IllegalArgumentException} if no script was registered
+     * with the source.
+     *
+     * @param script the source of the script
+     * @param keys   the keys the script touches
+     * @param args   the other arguments
+     * @return the result of the script
+     * @see <a href="https://redis.io/commands/eval">EVAL - Redis</a>
+     */
+    public Object eval(String script, String[] keys, String... args) {
+        RedisFunction function = scripts.get(sha1(script));
+        if (function == null) {
+            throw new IllegalArgumentException(
+                    "ERR Lua is not supported, register the script with scriptLoad");
+        }
+        return atomically(stripesOf(keys),
+                () -> function.call(new ScopedRedis(this, keys), keys, args));
+    }
+
+    /**
+     * Runs a registered script by its digest, as {@link #eval(String, String[], String...)}.
+     *
+     * Throws {@link IllegalArgumentException} if no script has the digest.
+     *
+     * @param sha  the SHA1 digest of the script
+     * @param keys the keys the script touches
+     * @param args the other arguments
+     * @return the result of the script
+     * @see <a href="https://redis.io/commands/evalsha">EVALSHA - Redis</a>
+     */
+    public Object evalsha(String sha, String[] keys, String... args) {
+        RedisFunction function = scripts.get(sha.toLowerCase(Locale.ROOT));
+        if (function == null) {
+            throw new IllegalArgumentException("NOSCRIPT No matching script. Please use EVAL.");
+        }
+        return atomically(stripesOf(keys),
+                () -> function.call(new ScopedRedis(this, keys), keys, args));
+    }
+
+    /**
+     * @return the SHA1 digest of a script, in lowercase hexadecimal
+     */
+    static String sha1(String script) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1")
+                    .digest(script.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the sorted, distinct stripes owning the keys of the commands
+     * and the watched keys, or every stripe if a command may touch any key.
+     */
+    private int[] stripesOf(List<Transaction.Command> commands, Iterable<String> watched) {
+        List<String> ks = new ArrayList<>();
+        for (Transaction.Command c : commands) {
+            if (c.keys() == null) {
+                int[] all = new int[stripes.length];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = i;
+                }
+                return all;
+            }
+            ks.addAll(Arrays.asList(c.keys()));
+        }
+        for (String k : watched) {
+            ks.add(k);
+        }
+        return stripesOf(ks.toArray(new String[0]));
+    }
+
+    /**
+     * @param k the key
+     * @return the value of the last element, or null
+     * @see Redis#rpop(String)
+     */
+    public String rpop(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].rpop(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k     key
+     * @param index the index
+     * @return the requested element, or null
+     * @see Redis#lindex(String, int)
+     */
+    public String lindex(String k, int index) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].lindex(k, index);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k     key
+     * @param start the first offset
+     * @param stop  the last offset
+     * @return the elements in the specified range
+     * @see Redis#lrange(String, int, int)
+     */
+    public List<String> lrange(String k, int start, int stop) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].lrange(k, start, stop);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Visits the elements while holding the lock of the stripe of the list,
+     * so the visitor should be quick.
+     *
+     * @param k       key
+     * @param start   the first offset
+     * @param stop    the last offset
+     * @param visitor the visitor of the elements
+     * @return the number of elements visited
+     * @see Redis#lrange(String, int, int, Consumer)
+     */
+    public int lrange(String k, int start, int stop, Consumer<String> visitor) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].lrange(k, start, stop, visitor);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k      key
+     * @param score  the score
+     * @param member the member
+     * @return 1 if the member was added, 0 if its score was updated
+     * @see Redis#zadd(String, double, String)
+     */
+    public int zadd(String k, double score, String member) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zadd(k, score, member);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k      key
+     * @param scores the score of every member
+     * @return the number of members added
+     * @see Redis#zadd(String, Map)
+     */
+    public int zadd(String k, Map<String, Double> scores) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zadd(k, scores);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k       key
+     * @param members the members
+     * @return the number of members removed
+     * @see Redis#zrem(String, String...)
+     */
+    public int zrem(String k, String... members) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrem(k, members);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k      key
+     * @param member the member
+     * @return the score, or null
+     * @see Redis#zscore(String, String)
+     */
+    public Double zscore(String k, String member) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zscore(k, member);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the number of members
+     * @see Redis#zcard(String)
+     */
+    public int zcard(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zcard(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k      key
+     * @param member the member
+     * @return the rank from the lowest score, or null
+     * @see Redis#zrank(String, String)
+     */
+    public Integer zrank(String k, String member) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrank(k, member);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k      key
+     * @param member the member
+     * @return the rank from the highest score, or null
+     * @see Redis#zrevrank(String, String)
+     */
+    public Integer zrevrank(String k, String member) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrevrank(k, member);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k     key
+     * @param start the first rank
+     * @param stop  the last rank
+     * @return the members from the lowest score
+     * @see Redis#zrange(String, int, int)
+     */
+    public List<String> zrange(String k, int start, int stop) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrange(k, start, stop);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Visits the members while holding the lock of the stripe of the
+     * sorted set, so the visitor should be quick.
+     *
+     * @param k       key
+     * @param start   the first rank
+     * @param stop    the last rank
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     * @see Redis#zrange(String, int, int, BiConsumer)
+     */
+    public int zrange(String k, int start, int stop,
+                      BiConsumer<String, Double> visitor) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrange(k, start, stop, visitor);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k     key
+     * @param start the first rank
+     * @param stop  the last rank
+     * @return the members from the highest score
+     * @see Redis#zrevrange(String, int, int)
+     */
+    public List<String> zrevrange(String k, int start, int stop) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrevrange(k, start, stop);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Visits the members while holding the lock of the stripe of the
+     * sorted set, so the visitor should be quick.
+     *
+     * @param k       key
+     * @param start   the first rank
+     * @param stop    the last rank
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     * @see Redis#zrevrange(String, int, int, BiConsumer)
+     */
+    public int zrevrange(String k, int start, int stop,
+                         BiConsumer<String, Double> visitor) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrevrange(k, start, stop, visitor);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k   key
+     * @param min the lowest score
+     * @param max the highest score
+     * @return the members with a score in the range
+     * @see Redis#zrangebyscore(String, double, double)
+     */
+    public List<String> zrangebyscore(String k, double min, double max) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrangebyscore(k, min, max);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Visits the members while holding the lock of the stripe of the
+     * sorted set, so the visitor should be quick.
+     *
+     * @param k       key
+     * @param min     the lowest score
+     * @param max     the highest score
+     * @param offset  the number of members in the range to skip
+     * @param count   the maximum number of members visited, negative for all
+     * @param visitor the visitor of the members and their scores
+     * @return the number of members visited
+     * @see Redis#zrangebyscore(String, String, String, int, int, BiConsumer)
+     */
+    public int zrangebyscore(String k, String min, String max, int offset, int count,
+                             BiConsumer<String, Double> visitor) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].zrangebyscore(k, min, max, offset, count, visitor);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k       key
+     * @param seconds the time to live
+     * @param v       string value
+     * @return "OK"
+     * @see Redis#setex(String, long, String)
+     */
+    public String setex(String k, long seconds, String v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].setex(k, seconds, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k       key
+     * @param seconds the time to live
+     * @param v       binary value, not to be modified afterwards
+     * @return "OK"
+     * @see Redis#setex(String, long, byte[])
+     */
+    public String setex(String k, long seconds, byte[] v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].setex(k, seconds, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k  key
+     * @param ms the time to live in milliseconds
+     * @param v  binary value, not to be modified afterwards
+     * @return "OK"
+     * @see Redis#psetex(String, long, byte[])
+     */
+    public String psetex(String k, long ms, byte[] v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].psetex(k, ms, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k  key
+     * @param ms the time to live in milliseconds
+     * @param v  string value
+     * @return "OK"
+     * @see Redis#psetex(String, long, String)
+     */
+    public String psetex(String k, long ms, String v) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].psetex(k, ms, v);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k       key
+     * @param seconds the timeout in seconds
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see Redis#expire(String, long)
+     */
+    public int expire(String k, long seconds) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].expire(k, seconds);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k  key
+     * @param ms the timeout in milliseconds
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see Redis#pexpire(String, long)
+     */
+    public int pexpire(String k, long ms) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].pexpire(k, ms);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k    key
+     * @param when the expire time, in milliseconds since the epoch
+     * @return 1 if the timeout was set, 0 if key does not exist
+     * @see Redis#pexpireat(String, long)
+     */
+    public int pexpireat(String k, long when) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].pexpireat(k, when);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the time to live in seconds, -2 or -1
+     * @see Redis#ttl(String)
+     */
+    public long ttl(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].ttl(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return the time to live in milliseconds, -2 or -1
+     * @see Redis#pttl(String)
+     */
+    public long pttl(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].pttl(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * @param k key
+     * @return 1 if the timeout was removed, 0 otherwise
+     * @see Redis#persist(String)
+     */
+    public int persist(String k) {
+        int i = stripeOf(k);
+        locks[i].lock();
+        try {
+            return stripes[i].persist(k);
+        } finally {
+            unlock(i);
+        }
+    }
+
+    /**
+     * Runs {@link Redis#activeExpireCycle()} on every stripe, one stripe
+     * lock at a time.
+     *
+     * @return the number of keys removed
+     */
+    public int activeExpireCycle() {
+        int[] removed = new int[1];
+        forEachStripe(r -> removed[0] += r.activeExpireCycle());
+        return removed[0];
+    }
+
+    /**
+     * Starts a daemon thread that runs {@link #activeExpireCycle()}
+     * periodically, so expired keys that are never accessed again are
+     * eventually removed.
+     *
+     * Redis runs its active expire cycle 10 times per second, i.e. a period
+     * of 100 ms.
+     *
+     * @param periodMillis the period in milliseconds
+     */
+    public synchronized void startActiveExpire(long periodMillis) {
+        if (expireSweeper != null) {
+            throw new IllegalStateException("active expire already started");
+        }
+        expireSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "redis-active-expire");
+            t.setDaemon(true);
+            return t;
+        });
+        expireSweeper.scheduleWithFixedDelay(this::activeExpireCycle,
+                periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the thread started by {@link #startActiveExpire(long)}, if any.
+     */
+    public synchronized void stopActiveExpire() {
+        if (expireSweeper != null) {
+            expireSweeper.shutdownNow();
+            expireSweeper = null;
+        }
+    }
+}
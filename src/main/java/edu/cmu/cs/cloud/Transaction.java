@@ -0,0 +1,222 @@
+package edu.cmu.cs.cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A MULTI/EXEC transaction of one client on a {@link StripedRedis}, with
+ * the optimistic locking of WATCH.
+ *
+ * After {@link #multi()}, the commands are queued rather than executed, each
+ * with the keys it touches, and {@link #exec()} runs them all while holding
+ * the locks of the stripes of those keys only, so no other client sees a
+ * part of the transaction, and transactions on keys of other stripes run in
+ * parallel.
+ *
+ * {@link #watch(String...)} records the version of keys, which every write
+ * of the key bumps. EXEC aborts, without running any command, if a watched
+ * key was written since it was watched, so a client can read keys, decide
+ * what to write, and write it only if nobody else did meanwhile:
+ * <pre>
+ * Transaction tx = redis.transaction();
+ * do {
+ *     tx.watch("stock");
+ *     int stock = Integer.parseInt(redis.get("stock"));
+ *     tx.multi();
+ *     tx.queue(r -&gt; r.set("stock", Integer.toString(stock - 1)), "stock");
+ *     tx.queue(r -&gt; r.rpush("orders", "order"), "orders");
+ * } while (tx.exec() == null);
+ * </pre>
+ * A conflict costs a retry instead of serializing the clients behind a
+ * lock held across the reads, like {@link RedisLock} would.
+ *
+ * This class is not thread-safe, every client has its own transaction.
+ *
+ * @see <a href="https://redis.io/docs/interact/transactions/">
+ * Transactions - Redis</a>
+ */
+public final class Transaction {
+
+    /**
+     * A queued command with the keys it touches.
+     */
+    static final class Command {
+        private final Function<StripedRedis, ?> body;
+        private final String[] keys;
+
+        private Command(Function<StripedRedis, ?> body, String[] keys) {
+            this.body = body;
+            this.keys = keys;
+        }
+
+        Function<StripedRedis, ?> body() {
+            return body;
+        }
+
+        /**
+         * @return the keys, or null if the command may touch any key
+         */
+        String[] keys() {
+            return keys;
+        }
+    }
+
+    private final StripedRedis redis;
+
+    /**
+     * The version of every watched key when it was watched.
+     */
+    private final Map<String, Long> watched = new LinkedHashMap<>();
+
+    /**
+     * The queued commands, null outside MULTI.
+     */
+    private List<Command> queued;
+
+    /**
+     * @param redis the keyspace
+     */
+    Transaction(StripedRedis redis) {
+        this.redis = redis;
+    }
+
+    /**
+     * Watches keys, so that the next {@link #exec()} aborts if one of them
+     * is written before it.
+     *
+     * Throws {@link IllegalStateException} inside MULTI.
+     *
+     * @param keys the keys
+     * @see <a href="https://redis.io/commands/watch">WATCH - Redis</a>
+     */
+    public void watch(String... keys) {
+        if (queued != null) {
+            throw new IllegalStateException("ERR WATCH inside MULTI is not allowed");
+        }
+        for (String k : keys) {
+            if (!watched.containsKey(k)) {
+                watched.put(k, redis.watch(k));
+            }
+        }
+    }
+
+    /**
+     * Forgets all the watched keys.
+     *
+     * @see <a href="https://redis.io/commands/unwatch">UNWATCH - Redis</a>
+     */
+    public void unwatch() {
+        if (!watched.isEmpty()) {
+            redis.unwatch(watched.keySet());
+            watched.clear();
+        }
+    }
+
+    /**
+     * Starts queuing commands.
+     *
+     * Throws {@link IllegalStateException} inside MULTI.
+     *
+     * @see <a href="https://redis.io/commands/multi">MULTI - Redis</a>
+     */
+    public void multi() {
+        if (queued != null) {
+            throw new IllegalStateException("ERR MULTI calls can not be nested");
+        }
+        queued = new ArrayList<>();
+    }
+
+    /**
+     * Returns whether commands are being queued.
+     *
+     * @return true between {@link #multi()} and {@link #exec()} or
+     * {@link #discard()}
+     */
+    public boolean inMulti() {
+        return queued != null;
+    }
+
+    /**
+     * Queues a command. It is run by {@link #exec()} with the locks of the
+     * stripes of its keys held, and must not touch other keys. Calling the
+     * methods of the keyspace then only re-enters locks already held.
+     *
+     * Throws {@link IllegalStateException} outside MULTI.
+     *
+     * @param command the command, its result is returned by EXEC
+     * @param keys    the keys the command touches
+     */
+    public void queue(Function<StripedRedis, ?> command, String... keys) {
+        queue(new Command(command, keys));
+    }
+
+    /**
+     * Queues a command that may touch any key, so EXEC takes the locks of
+     * all the stripes, e.g. SCAN.
+     *
+     * @param command the command
+     */
+    void queueUnkeyed(Function<StripedRedis, ?> command) {
+        queue(new Command(command, null));
+    }
+
+    private void queue(Command command) {
+        if (queued == null) {
+            throw new IllegalStateException("ERR command queued without MULTI");
+        }
+        queued.add(command);
+    }
+
+    /**
+     * Runs the queued commands atomically, unless a watched key was written
+     * since it was watched, and forgets the watched keys in any case.
+     *
+     * A command that fails does not stop the others, its exception is
+     * returned in place of its result, as Redis replies an error for it.
+     *
+     * Throws {@link IllegalStateException} outside MULTI.
+     *
+     * @return the result of every command in order, or null if the
+     * transaction was aborted
+     * @see <a href="https://redis.io/commands/exec">EXEC - Redis</a>
+     */
+    public List<Object> exec() {
+        if (queued == null) {
+            throw new IllegalStateException("ERR EXEC without MULTI");
+        }
+        List<Command> commands = queued;
+        queued = null;
+        Map<String, Long> versions = new LinkedHashMap<>(watched);
+        watched.clear();
+        List<Object> results = redis.exec(commands, versions);
+        return results == null ? null : Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Drops the queued commands and forgets the watched keys.
+     *
+     * Throws {@link IllegalStateException} outside MULTI.
+     *
+     * @see <a href="https://redis.io/commands/discard">DISCARD - Redis</a>
+     */
+    public void discard() {
+        if (queued == null) {
+            throw new IllegalStateException("ERR DISCARD without MULTI");
+        }
+        queued = null;
+        unwatch();
+    }
+
+    /**
+     * Drops the queued commands, if any, and forgets the watched keys, e.g.
+     * when the client disconnects.
+     */
+    public void reset() {
+        queued = null;
+        unwatch();
+    }
+}
@@ -0,0 +1,322 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the append-only file persistence.
+ */
+class AppendOnlyFileTest {
+
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("aof");
+        file = dir.resolve("appendonly.aof");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Writes keys of every type through the commands that are logged.
+     */
+    private static void populate(StripedRedis redis) {
+        redis.set("string", "value");
+        redis.set("overwritten", "old");
+        redis.set("overwritten", "new");
+        redis.set("deleted", "value");
+        redis.del("deleted", "missing");
+        for (int i = 0; i < 300; i++) {
+            redis.hset("bighash", "field" + i, "value" + i);
+        }
+        redis.hset("smallhash", "f1", "v1");
+        redis.hset("smallhash", "f1", "v2");
+        redis.rpush("list", "a", "b", "c");
+        redis.rpop("list");
+        redis.rpush("popped", "x");
+        redis.rpop("popped");
+        redis.setex("volatile", 100, "value");
+        redis.set("persisted", "value");
+        redis.expire("persisted", 100);
+        redis.persist("persisted");
+        redis.psetex("expiring", 50, "value");
+    }
+
+    private static void verify(StripedRedis redis) {
+        assertEquals("value", redis.get("string"));
+        assertEquals("new", redis.get("overwritten"));
+        assertNull(redis.get("deleted"));
+        assertEquals(600, redis.hgetall("bighash").size());
+        assertEquals("value299", redis.hget("bighash", "field299"));
+        assertEquals("v2", redis.hget("smallhash", "f1"));
+        assertEquals(Arrays.asList("a", "b"), redis.lrange("list", 0, -1));
+        assertEquals("none", redis.type("popped"));
+        assertTrue(redis.ttl("volatile") > 90);
+        assertEquals(-1, redis.ttl("persisted"));
+    }
+
+    @Test
+    void replay() throws IOException, InterruptedException {
+        StripedRedis redis = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file,
+                AppendOnlyFile.Fsync.EVERYSEC)) {
+            assertEquals(0, aof.replayedCommands());
+            populate(redis);
+            verify(redis);
+        }
+        Thread.sleep(100);
+
+        StripedRedis restarted = new StripedRedis(8);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, file,
+                AppendOnlyFile.Fsync.EVERYSEC)) {
+            assertTrue(aof.replayedCommands() > 300);
+            verify(restarted);
+            // the expire time is absolute, so it has passed during the restart
+            assertNull(restarted.get("expiring"));
+            restarted.set("after", "restart");
+        }
+
+        StripedRedis again = new StripedRedis(8);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(again, file,
+                AppendOnlyFile.Fsync.NO)) {
+            verify(again);
+            assertEquals("restart", again.get("after"));
+        }
+    }
+
+    /**
+     * Every policy persists the writes of concurrent clients.
+     */
+    @Test
+    void fsyncPolicies() throws Exception {
+        for (AppendOnlyFile.Fsync fsync : AppendOnlyFile.Fsync.values()) {
+            Files.deleteIfExists(file);
+            StripedRedis redis = new StripedRedis();
+            int threads = 4;
+            int perThread = fsync == AppendOnlyFile.Fsync.ALWAYS ? 500 : 20_000;
+            try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file, fsync)) {
+                List<Thread> writers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int id = t;
+                    writers.add(new Thread(() -> {
+                        for (int i = 0; i < perThread; i++) {
+                            redis.set("key:" + id + ":" + i, "value" + i);
+                        }
+                    }));
+                }
+                writers.forEach(Thread::start);
+                for (Thread w : writers) {
+                    w.join();
+                }
+                if (fsync == AppendOnlyFile.Fsync.ALWAYS) {
+                    // already written when the command returned
+                    assertEquals(aof.size(), Files.size(file));
+                }
+            }
+
+            StripedRedis restarted = new StripedRedis();
+            try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, file, fsync)) {
+                assertEquals(threads * perThread, aof.replayedCommands());
+                assertEquals("value" + (perThread - 1),
+                        restarted.get("key:3:" + (perThread - 1)));
+            }
+        }
+    }
+
+    /**
+     * The feeds wait for the writes once the stripe is unlocked, so with
+     * appendfsync always the other writers of the stripe do not wait on the
+     * disk.
+     */
+    @Test
+    void releasedAfterUnlock() {
+        StripedRedis redis = new StripedRedis(1);
+        CompletableFuture<String> other = new CompletableFuture<>();
+        AtomicBoolean first = new AtomicBoolean(true);
+        redis.addFeed(new CommandFeed() {
+            @Override
+            public void feed(Object... argv) {
+            }
+
+            @Override
+            public void released() {
+                if (first.getAndSet(false)) {
+                    new Thread(() -> other.complete(redis.set("other", "v"))).start();
+                    try {
+                        other.get(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("the stripe is still locked", e);
+                    }
+                }
+            }
+        });
+        assertEquals("OK", redis.set("k", "v"));
+        assertEquals("OK", other.getNow(null));
+    }
+
+    @Test
+    void binaryValues() throws IOException {
+        byte[] binary = {0, (byte) 0xff, '\r', '\n', '*', '$', (byte) 0xc3};
+        byte[] large = new byte[5000];
+        Arrays.fill(large, (byte) 0x80);
+        StripedRedis redis = new StripedRedis(4);
+        redis.setOffHeapThreshold(1024);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file,
+                AppendOnlyFile.Fsync.ALWAYS)) {
+            redis.set("binary", binary);
+            redis.psetex("large", 100_000, large);
+            aof.rewrite();
+            redis.set("after", binary);
+        }
+        StripedRedis restarted = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, file,
+                AppendOnlyFile.Fsync.NO)) {
+            assertArrayEquals(binary, restarted.getBytes("binary"));
+            assertArrayEquals(large, restarted.getBytes("large"));
+            assertArrayEquals(binary, restarted.getBytes("after"));
+            assertTrue(restarted.pttl("large") > 0);
+        }
+    }
+
+    /**
+     * A command cut short by a crash is dropped, the complete ones are kept.
+     */
+    @Test
+    void truncatedTail() throws IOException {
+        StripedRedis redis = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file,
+                AppendOnlyFile.Fsync.ALWAYS)) {
+            redis.set("k1", "v1");
+            redis.rpush("k2", "a", "b");
+        }
+        long complete = Files.size(file);
+        Files.write(file, "*3\r\n$3\r\nSET\r\n$2\r\nk3".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        StripedRedis restarted = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, file,
+                AppendOnlyFile.Fsync.ALWAYS)) {
+            assertEquals(2, aof.replayedCommands());
+            assertEquals("v1", restarted.get("k1"));
+            assertEquals(2, restarted.llen("k2"));
+            assertNull(restarted.get("k3"));
+            assertEquals(complete, Files.size(file));
+        }
+    }
+
+    @Test
+    void corrupted() throws IOException {
+        Files.write(file, "*2\r\n$3\r\nDEL\r\n$1\r\nk\r\ngarbage\r\n"
+                .getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> AppendOnlyFile.open(
+                new StripedRedis(4), file, AppendOnlyFile.Fsync.NO));
+        Files.write(file, "*2\r\n$4\r\nINCR\r\n$1\r\nk\r\n"
+                .getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> AppendOnlyFile.open(
+                new StripedRedis(4), file, AppendOnlyFile.Fsync.NO));
+    }
+
+    /**
+     * The rewrite shrinks the file to the current state, while writes go on.
+     */
+    @Test
+    void rewrite() throws Exception {
+        StripedRedis redis = new StripedRedis(16);
+        List<String> board;
+        try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file,
+                AppendOnlyFile.Fsync.EVERYSEC)) {
+            populate(redis);
+            for (int i = 0; i < 100_000; i++) {
+                redis.set("counter" + (i % 100), Integer.toString(i));
+            }
+            for (int i = 0; i < 1000; i++) {
+                redis.zadd("leaderboard", i % 7, "member" + (i % 200));
+            }
+            redis.zrem("leaderboard", "member0");
+            board = redis.zrange("leaderboard", 0, -1);
+            long before = aof.size();
+
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    redis.rpush("during", Integer.toString(i));
+                }
+            });
+            writer.start();
+            aof.rewrite();
+            writer.join();
+            redis.set("after", "rewrite");
+
+            long after = aof.size();
+            assertTrue(after < before / 4);
+        }
+
+        StripedRedis restarted = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, file,
+                AppendOnlyFile.Fsync.NO)) {
+            verify(restarted);
+            assertEquals("99999", restarted.get("counter99"));
+            assertEquals(20_000, restarted.llen("during"));
+            assertEquals("19999", restarted.lindex("during", -1));
+            assertEquals(199, restarted.zcard("leaderboard"));
+            assertEquals(Double.valueOf(999 % 7), restarted.zscore("leaderboard", "member199"));
+            assertEquals(board, restarted.zrange("leaderboard", 0, -1));
+            assertEquals("rewrite", restarted.get("after"));
+        }
+        assertEquals(1, dir.toFile().list().length);
+    }
+
+    @Test
+    void autoRewrite() throws Exception {
+        StripedRedis redis = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(redis, file,
+                AppendOnlyFile.Fsync.EVERYSEC)) {
+            aof.setAutoRewrite(100, 1024 * 1024);
+            for (int i = 0; i < 100_000; i++) {
+                redis.set("counter", Integer.toString(i));
+            }
+            assertTrue(aof.size() > 1024 * 1024);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (aof.size() > 1024 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(aof.size() < 1024);
+        }
+        StripedRedis restarted = new StripedRedis(4);
+        try (AppendOnlyFile aof = AppendOnlyFile.open(restarted, file,
+                AppendOnlyFile.Fsync.NO)) {
+            assertEquals(1, aof.replayedCommands());
+            assertEquals("99999", restarted.get("counter"));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for CommandStats.
+ */
+class CommandStatsTest {
+
+    @Test
+    void buckets() {
+        for (long v = 0; v < 1_000_000; v += 7) {
+            int b = CommandStats.bucket(v);
+            assertTrue(v <= CommandStats.highestValue(b), "value " + v);
+            assertTrue(b == 0 || v > CommandStats.highestValue(b - 1), "value " + v);
+            // a bucket is at most 1/16 of its values wide
+            assertTrue(CommandStats.highestValue(b) - v <= v / 16, "value " + v);
+        }
+        assertEquals(CommandStats.BUCKETS - 1, CommandStats.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    void percentiles() {
+        CommandStats stats = new CommandStats();
+        String[] argv = {"get", "k"};
+        for (int i = 1; i <= 1000; i++) {
+            stats.record("get", i * 1000L, argv);
+        }
+        assertEquals(1000, stats.calls("get"));
+        assertEquals(1000, stats.totalCommands());
+        assertEquals(500_000, stats.percentile("get", 50), 500_000 / 16);
+        assertEquals(990_000, stats.percentile("get", 99), 990_000 / 16);
+        assertEquals(0, stats.percentile("set", 99));
+
+        StringBuilder info = new StringBuilder();
+        stats.appendInfo(info);
+        assertTrue(info.toString().contains("cmdstat_get:calls=1000,usec=500500,"
+                + "usec_per_call=500.50\r\n"), info.toString());
+        assertTrue(info.toString().contains("latency_percentiles_usec_get:p50="), info.toString());
+    }
+
+    @Test
+    void slowlog() {
+        CommandStats stats = new CommandStats();
+        stats.setSlowlogLogSlowerThan(100);
+        stats.record("get", TimeUnit.MICROSECONDS.toNanos(99), new String[]{"get", "fast"});
+        assertEquals(0, stats.slowlogLen());
+
+        String[] argv = new String[40];
+        Arrays.fill(argv, "x");
+        argv[0] = "mget";
+        argv[1] = new String(new char[200]).replace('\0', 'k');
+        stats.record("mget", TimeUnit.MICROSECONDS.toNanos(150), argv);
+        List<CommandStats.SlowlogEntry> entries = stats.slowlog(-1);
+        assertEquals(1, entries.size());
+        CommandStats.SlowlogEntry e = entries.get(0);
+        assertEquals(150, e.durationMicros());
+        assertEquals(CommandStats.SLOWLOG_MAX_ARGS, e.args().size());
+        assertEquals("... (9 more arguments)", e.args().get(CommandStats.SLOWLOG_MAX_ARGS - 1));
+        assertTrue(e.args().get(1).endsWith("... (72 more bytes)"));
+
+        stats.setSlowlogMaxLen(3);
+        for (int i = 0; i < 5; i++) {
+            stats.record("set", TimeUnit.MILLISECONDS.toNanos(1), new String[]{"set", "k" + i});
+        }
+        assertEquals(3, stats.slowlogLen());
+        entries = stats.slowlog(2);
+        assertEquals(Arrays.asList("set", "k4"), entries.get(0).args());
+        assertEquals(Arrays.asList("set", "k3"), entries.get(1).args());
+        assertTrue(entries.get(0).id() > entries.get(1).id());
+        stats.slowlogReset();
+        assertEquals(0, stats.slowlogLen());
+    }
+
+    /**
+     * Every thread records in its own histogram, the percentiles merge
+     * them all.
+     */
+    @Test
+    void concurrentRecording() throws Exception {
+        CommandStats stats = new CommandStats();
+        String[] argv = {"incr", "k"};
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int t = 0; t < futures.length; t++) {
+                long latency = (t + 1) * 1000L;
+                futures[t] = pool.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        stats.record("incr", latency, argv);
+                    }
+                });
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(400_000, stats.calls("incr"));
+        assertEquals(1000, stats.percentile("incr", 25), 1000 / 16);
+        assertEquals(4000, stats.percentile("incr", 100), 4000 / 16);
+    }
+
+    @Test
+    void mbean() throws Exception {
+        StripedRedis redis = new StripedRedis();
+        redis.set("k", "v");
+        redis.get("k");
+        redis.get("missing");
+        redis.stats().record("get", 1000, new String[]{"get", "k"});
+        ObjectName name = redis.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(1L, server.getAttribute(name, "KeyspaceHits"));
+            assertEquals(1L, server.getAttribute(name, "KeyspaceMisses"));
+            assertEquals(1L, server.getAttribute(name, "TotalCommandsProcessed"));
+            String info = (String) server.getAttribute(name, "Info");
+            assertTrue(info.contains("db0:keys=1,expires=0,string=1,hash=0,list=0,zset=0"), info);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
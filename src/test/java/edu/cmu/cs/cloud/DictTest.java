@@ -0,0 +1,187 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the scannable hash table.
+ */
+class DictTest {
+
+    @Test
+    void matchesHashMap() {
+        Dict<Integer, Integer> dict = new Dict<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int k = random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(k, i), dict.put(k, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(k), dict.remove(k));
+                    break;
+                default:
+                    assertEquals(expected.get(k), dict.get(k));
+                    break;
+            }
+            assertEquals(expected.size(), dict.size());
+        }
+        assertEquals(expected, dict);
+        assertEquals(expected.hashCode(), dict.hashCode());
+    }
+
+    @Test
+    void resize() {
+        Dict<String, String> dict = new Dict<>();
+        assertEquals(Dict.INITIAL_SIZE, dict.buckets());
+        for (int i = 0; i < 1000; i++) {
+            dict.put("k" + i, "v" + i);
+        }
+        assertEquals(1024, dict.buckets());
+        for (int i = 0; i < 990; i++) {
+            assertEquals("v" + i, dict.remove("k" + i));
+        }
+        assertTrue(dict.buckets() <= 128);
+        assertEquals("v999", dict.get("k999"));
+        assertNull(dict.get("k0"));
+        assertFalse(dict.containsKey("k0"));
+
+        dict.clear();
+        assertTrue(dict.isEmpty());
+        assertEquals(Dict.INITIAL_SIZE, dict.buckets());
+    }
+
+    /**
+     * Every entry present for the whole scan is returned, even though the
+     * table grows and shrinks between the calls.
+     */
+    @Test
+    void scanWhileResizing() {
+        Dict<Integer, Integer> dict = new Dict<>();
+        for (int i = 0; i < 1000; i++) {
+            dict.put(i, i);
+        }
+        Set<Integer> seen = new HashSet<>();
+        long cursor = 0;
+        int step = 0;
+        do {
+            cursor = dict.scan(cursor, (k, v) -> seen.add(k));
+            step++;
+            if (step == 100) {
+                // grow to 4096 buckets
+                for (int i = 1000; i < 3000; i++) {
+                    dict.put(i, i);
+                }
+            } else if (step == 1000) {
+                // shrink back below the original size
+                for (int i = 1000; i < 3000; i++) {
+                    dict.remove(i);
+                }
+                for (int i = 500; i < 1000; i++) {
+                    dict.remove(i);
+                }
+            }
+        } while (cursor != 0);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(seen.contains(i), "missing " + i);
+        }
+    }
+
+    /**
+     * A scan started while two tables coexist visits both.
+     */
+    @Test
+    void scanWhileRehashing() {
+        Dict<Integer, Integer> dict = new Dict<>();
+        for (int i = 0; i < 1024; i++) {
+            dict.put(i, i);
+        }
+        assertTrue(dict.isRehashing());
+        for (int i = 0; i < 100; i++) {
+            dict.put(i, -i);
+        }
+        assertTrue(dict.isRehashing());
+        Set<Integer> seen = new HashSet<>();
+        long cursor = 0;
+        do {
+            cursor = dict.scan(cursor, (k, v) -> seen.add(k));
+        } while (cursor != 0);
+        assertEquals(1024, seen.size());
+        assertEquals(-99, (int) dict.get(99));
+        assertEquals(1024, dict.entrySet().size());
+        int n = 0;
+        for (Map.Entry<Integer, Integer> e : dict.entrySet()) {
+            assertEquals(dict.get(e.getKey()), e.getValue());
+            n++;
+        }
+        assertEquals(1024, n);
+    }
+
+    /**
+     * Grows a dict to a million entries. A rehash is always over before the
+     * new table is full, and no write moves the rehash forward by more than
+     * {@link Dict#REHASH_EMPTY_VISITS} buckets, so no write has to move the
+     * whole table.
+     */
+    @Test
+    void incrementalRehash() throws NoSuchFieldException, IllegalAccessException {
+        int n = 1_000_000;
+        Dict<Integer, Integer> dict = new Dict<>();
+        Field field = Dict.class.getDeclaredField("rehashIndex");
+        field.setAccessible(true);
+        int rehashingWrites = 0;
+        int grows = 0;
+        for (int i = 0; i < n; i++) {
+            boolean rehashing = dict.isRehashing();
+            int buckets = dict.buckets();
+            int before = field.getInt(dict);
+            dict.put(i, i);
+            if (!dict.isRehashing()) {
+                continue;
+            }
+            assertTrue(dict.size() < dict.buckets());
+            rehashingWrites++;
+            if (!rehashing || dict.buckets() != buckets) {
+                grows++;
+            } else {
+                int moved = field.getInt(dict) - before;
+                assertTrue(moved >= 1 && moved <= Dict.REHASH_EMPTY_VISITS, moved + " buckets");
+            }
+        }
+        assertTrue(rehashingWrites > n / 4);
+        assertEquals(Integer.numberOfTrailingZeros(dict.buckets())
+                - Integer.numberOfTrailingZeros(Dict.INITIAL_SIZE), grows);
+        assertEquals(n, dict.size());
+        assertEquals(n - 1, (int) dict.get(n - 1));
+    }
+
+    @Test
+    void scanEmpty() {
+        Dict<String, String> dict = new Dict<>();
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        int calls = 0;
+        do {
+            cursor = dict.scan(cursor, (k, v) -> seen.add(k));
+            calls++;
+        } while (cursor != 0);
+        assertEquals(Dict.INITIAL_SIZE, calls);
+        assertTrue(seen.isEmpty());
+    }
+}
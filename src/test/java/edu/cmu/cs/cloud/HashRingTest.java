@@ -0,0 +1,76 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the consistent hash ring.
+ */
+class HashRingTest {
+
+    private static final int KEYS = 100_000;
+
+    private static HashRing<String> ring(int nodes) {
+        HashRing<String> ring = new HashRing<>(HashRing.DEFAULT_POINTS);
+        for (int n = 0; n < nodes; n++) {
+            ring = ring.with("node" + n, "node" + n);
+        }
+        return ring;
+    }
+
+    @Test
+    void lookup() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRing<String>(10));
+        assertThrows(IllegalStateException.class, () -> ring(0).get("key"));
+        HashRing<String> ring = ring(3);
+        assertEquals(3, ring.size());
+        assertEquals(ring.get("key"), ring(3).get("key"));
+        assertSame(ring, ring.without("missing"));
+        assertEquals("node1", ring(1).with("node0", "node1").get("key"));
+        assertTrue(HashRing.hash("key") >= 0 && HashRing.hash("key") < 1L << 32);
+    }
+
+    @Test
+    void distribution() {
+        HashRing<String> ring = ring(10);
+        int[] counts = new int[ring.size()];
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.indexOf("key:" + i)]++;
+        }
+        for (int count : counts) {
+            // 160 points per node keep every share within 25% of 1/N
+            assertTrue(Math.abs(count - KEYS / 10) < KEYS / 40, "share " + count);
+        }
+    }
+
+    @Test
+    void addAndRemove() {
+        HashRing<String> ring = ring(10);
+        HashRing<String> grown = ring.with("node10", "node10");
+        HashRing<String> shrunk = ring.without("node3");
+        int added = 0;
+        int removed = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String k = "key:" + i;
+            String before = ring.get(k);
+            if (!before.equals(grown.get(k))) {
+                // a new node only takes keys, the other ones keep theirs
+                assertEquals("node10", grown.get(k));
+                added++;
+            }
+            if (!before.equals(shrunk.get(k))) {
+                assertEquals("node3", before);
+                removed++;
+            }
+        }
+        assertTrue(Math.abs(added - KEYS / 11) < KEYS / 40, "moved " + added);
+        assertTrue(Math.abs(removed - KEYS / 10) < KEYS / 40, "moved " + removed);
+    }
+}
@@ -0,0 +1,85 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for ListPack.
+ */
+class ListPackTest {
+
+    private static int put(ListPack lp, String f, String v) {
+        return lp.put(ListPack.encode(f), ListPack.encode(v));
+    }
+
+    @Test
+    void putAndGet() {
+        ListPack lp = new ListPack();
+        assertNull(lp.get("name"));
+
+        assertEquals(1, put(lp, "name", "Pizza"));
+        assertEquals(1, put(lp, "stars", "4.5"));
+        assertEquals(1, put(lp, "", ""));
+        assertEquals(3, lp.size());
+        assertEquals("Pizza", lp.get("name"));
+        assertEquals("4.5", lp.get("stars"));
+        assertEquals("", lp.get(""));
+        assertNull(lp.get("nam"));
+        assertNull(lp.get("Pizza"));
+    }
+
+    /**
+     * Updates must grow and shrink the entry in place without corrupting the
+     * entries that follow it.
+     */
+    @Test
+    void update() {
+        ListPack lp = new ListPack();
+        put(lp, "a", "1");
+        put(lp, "b", "2");
+        put(lp, "c", "3");
+        int bytes = lp.bytes();
+
+        char[] longValue = new char[300];
+        Arrays.fill(longValue, 'x');
+        assertEquals(0, put(lp, "b", new String(longValue)));
+        assertEquals(new String(longValue), lp.get("b"));
+        assertEquals("3", lp.get("c"));
+        assertEquals(bytes + 300 - 1 + 1, lp.bytes());
+
+        assertEquals(0, put(lp, "b", "héllo"));
+        assertEquals("héllo", lp.get("b"));
+        assertEquals("1", lp.get("a"));
+        assertEquals("3", lp.get("c"));
+        assertEquals(3, lp.size());
+    }
+
+    @Test
+    void conversions() {
+        ListPack lp = new ListPack();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            put(lp, "field" + i, "value" + i);
+            expected.put("field" + i, "value" + i);
+        }
+        assertEquals(expected, lp.toDict());
+
+        List<String> all = new ArrayList<>();
+        lp.appendTo(all);
+        assertEquals(100, all.size());
+        assertEquals("field0", all.get(0));
+        assertEquals("value0", all.get(1));
+        assertEquals("value49", all.get(99));
+    }
+}
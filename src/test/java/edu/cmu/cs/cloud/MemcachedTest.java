@@ -1,9 +1,20 @@
 package edu.cmu.cs.cloud;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.Test;
 
@@ -42,6 +53,123 @@ class MemcachedTest {
         assertEquals("cool", memcachedClient.get("mykey"));
     }
 
+    @Test
+    void binaryValues() {
+        Memcached memcachedClient = new Memcached();
+        byte[] small = {0, (byte) 0xff, (byte) 0xc3, 10, 13};
+        byte[] large = new byte[100_000];
+        Arrays.fill(large, (byte) 0x80);
+
+        memcachedClient.set("small", small);
+        memcachedClient.set("large", large);
+        assertArrayEquals(small, memcachedClient.getBytes("small"));
+        assertArrayEquals(large, memcachedClient.getBytes("large"));
+
+        long reserved = memcachedClient.offHeapMemory();
+        for (int i = 0; i < 100; i++) {
+            memcachedClient.set("large", large);
+        }
+        assertEquals(reserved, memcachedClient.offHeapMemory());
+        assertEquals("DELETED", memcachedClient.delete("large"));
+        assertNull(memcachedClient.getBytes("large"));
+    }
+
+    @Test
+    void tooLarge() {
+        Memcached memcachedClient = new Memcached();
+        memcachedClient.set("mykey", "cloud");
+        assertEquals(Memcached.TOO_LARGE,
+                memcachedClient.set("mykey", new byte[OffHeapSlab.PAGE_SIZE + 1]));
+        // a failed set does not leave the old value behind
+        assertNull(memcachedClient.get("mykey"));
+    }
+
+    /**
+     * The memory stays within the limit, the oldest items are evicted and
+     * the chunks are reused.
+     */
+    @Test
+    void memoryLimit() {
+        Memcached memcachedClient = new Memcached(4 * OffHeapSlab.PAGE_SIZE);
+        byte[] v = new byte[1000];
+        for (int i = 0; i < 100_000; i++) {
+            assertEquals("STORED", memcachedClient.set("key" + i, v));
+        }
+        assertEquals(4L * OffHeapSlab.PAGE_SIZE, memcachedClient.offHeapMemory());
+        int perPage = OffHeapSlab.PAGE_SIZE / OffHeapSlab.chunkSize(1000);
+        assertEquals(4 * perPage, memcachedClient.size());
+        assertEquals(100_000 - 4 * perPage, memcachedClient.evictions());
+        assertNull(memcachedClient.get("key0"));
+        assertArrayEquals(v, memcachedClient.getBytes("key99999"));
+
+        // another class still gets its first page
+        assertEquals("STORED", memcachedClient.set("small", "value"));
+        assertEquals("value", memcachedClient.get("small"));
+        assertEquals(5L * OffHeapSlab.PAGE_SIZE, memcachedClient.offHeapMemory());
+    }
+
+    /**
+     * Items read repeatedly survive a stream of items read once, which
+     * would push them out of a plain LRU.
+     */
+    @Test
+    void segmentedLru() {
+        Memcached memcachedClient = new Memcached(2 * OffHeapSlab.PAGE_SIZE);
+        byte[] v = new byte[1000];
+        int capacity = 2 * (OffHeapSlab.PAGE_SIZE / OffHeapSlab.chunkSize(1000));
+        for (int i = 0; i < 100; i++) {
+            memcachedClient.set("popular" + i, v);
+        }
+        for (int i = 0; i < 10 * capacity; i++) {
+            memcachedClient.set("once" + i, v);
+            memcachedClient.get("popular" + i % 100);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(memcachedClient.getBytes("popular" + i), "popular" + i);
+        }
+        assertNull(memcachedClient.get("once0"));
+
+        SlabStats stats = memcachedClient.slabStats().get(0);
+        assertEquals(capacity, stats.usedChunks());
+        assertEquals(capacity, stats.hotItems() + stats.warmItems() + stats.coldItems());
+        assertTrue(stats.hotItems() <= capacity * Memcached.HOT_PERCENT / 100 + 1);
+        assertTrue(stats.warmItems() >= 100);
+        assertEquals(10 * capacity + 100 - capacity, stats.evictions());
+        assertTrue(stats.evictedFetchedRatio() < 0.01);
+    }
+
+    @Test
+    void stats() {
+        Memcached memcachedClient = new Memcached();
+        memcachedClient.set("a", new byte[100]);
+        memcachedClient.set("b", new byte[100]);
+        memcachedClient.set("c", new byte[10_000]);
+        memcachedClient.get("a");
+        memcachedClient.get("c");
+        memcachedClient.get("missing");
+        assertEquals(2, memcachedClient.hits());
+        assertEquals(1, memcachedClient.misses());
+        assertEquals(2.0 / 3, memcachedClient.hitRate(), 1e-9);
+
+        List<SlabStats> stats = memcachedClient.slabStats();
+        assertEquals(2, stats.size());
+        SlabStats small = stats.get(0);
+        assertEquals(OffHeapSlab.chunkSize(100), small.chunkSize());
+        assertEquals(1, small.pages());
+        assertEquals(OffHeapSlab.PAGE_SIZE / small.chunkSize(), small.totalChunks());
+        assertEquals(2, small.usedChunks());
+        assertEquals(200, small.requestedBytes());
+        assertEquals(1, small.hits());
+        assertEquals(1 - 100.0 / small.chunkSize(), small.fragmentation(), 1e-9);
+        assertEquals(1, stats.get(1).hits());
+        assertTrue(stats.get(1).id() > small.id());
+
+        memcachedClient.delete("a");
+        memcachedClient.delete("b");
+        assertEquals(0, memcachedClient.slabStats().get(0).usedChunks());
+        assertEquals(0, memcachedClient.slabStats().get(0).fragmentation());
+    }
+
     @Test
     void delete() {
         Memcached memcachedClient = new Memcached();
@@ -53,4 +181,191 @@ class MemcachedTest {
 
         assertNotEquals("DELETED", memcachedClient.delete("mykey"));
     }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void addAndReplace() {
+        Memcached memcachedClient = new Memcached();
+
+        assertEquals("NOT_STORED", memcachedClient.replace("mykey", bytes("cloud"), 0, 0));
+        assertEquals("STORED", memcachedClient.add("mykey", bytes("cloud"), 0, 0));
+        assertEquals("NOT_STORED", memcachedClient.add("mykey", bytes("cool"), 0, 0));
+        assertEquals("cloud", memcachedClient.get("mykey"));
+        assertEquals("STORED", memcachedClient.replace("mykey", bytes("cool"), 7, 0));
+        assertEquals("cool", memcachedClient.get("mykey"));
+        assertEquals(7, memcachedClient.gets("mykey").flags());
+    }
+
+    @Test
+    void appendAndPrepend() {
+        Memcached memcachedClient = new Memcached();
+
+        assertEquals("NOT_STORED", memcachedClient.append("mykey", bytes("x")));
+        memcachedClient.set("mykey", bytes("loud"), 3, 100);
+        assertEquals("STORED", memcachedClient.append("mykey", bytes("!")));
+        assertEquals("STORED", memcachedClient.prepend("mykey", bytes("c")));
+        CasValue v = memcachedClient.gets("mykey");
+        assertEquals("cloud!", v.string());
+        // the flags of the item are kept
+        assertEquals(3, v.flags());
+    }
+
+    @Test
+    void cas() {
+        Memcached memcachedClient = new Memcached();
+
+        assertEquals("NOT_FOUND", memcachedClient.cas("mykey", bytes("v"), 0, 0, 1));
+        memcachedClient.set("mykey", "cloud");
+        CasValue v = memcachedClient.gets("mykey");
+        assertEquals("STORED", memcachedClient.cas("mykey", bytes("cool"), 0, 0, v.cas()));
+        // the unique changed with the store
+        assertEquals("EXISTS", memcachedClient.cas("mykey", bytes("stale"), 0, 0, v.cas()));
+        assertEquals("cool", memcachedClient.get("mykey"));
+        assertNotEquals(v.cas(), memcachedClient.gets("mykey").cas());
+
+        memcachedClient.set("other", "value");
+        Map<String, CasValue> items = memcachedClient.gets(
+                Arrays.asList("mykey", "missing", "other"));
+        assertEquals(Arrays.asList("mykey", "other"), new ArrayList<>(items.keySet()));
+        assertEquals("value", items.get("other").string());
+    }
+
+    @Test
+    void incrAndDecr() {
+        Memcached memcachedClient = new Memcached();
+
+        assertEquals("NOT_FOUND", memcachedClient.incr("counter", 1));
+        memcachedClient.set("counter", "10");
+        assertEquals("15", memcachedClient.incr("counter", 5));
+        assertEquals("0", memcachedClient.decr("counter", 20));
+        memcachedClient.set("counter", "18446744073709551614");
+        assertEquals("18446744073709551615", memcachedClient.incr("counter", 1));
+        // incr wraps around, decr stops at 0
+        assertEquals("0", memcachedClient.incr("counter", 1));
+        assertEquals("0", memcachedClient.decr("counter", 1));
+        memcachedClient.set("text", "cloud");
+        assertEquals(Memcached.NON_NUMERIC, memcachedClient.incr("text", 1));
+    }
+
+    @Test
+    void expiration() throws InterruptedException {
+        Memcached memcachedClient = new Memcached();
+
+        memcachedClient.set("short", bytes("v"), 0, 1);
+        memcachedClient.set("past", bytes("v"), 0, -1);
+        memcachedClient.set("unix", bytes("v"), 0,
+                (int) (System.currentTimeMillis() / 1000) + 1000);
+        memcachedClient.set("touched", bytes("v"), 0, 1);
+        assertNull(memcachedClient.get("past"));
+        assertEquals("TOUCHED", memcachedClient.touch("touched", 0));
+        assertEquals("NOT_FOUND", memcachedClient.touch("missing", 10));
+        Thread.sleep(1100);
+        assertNull(memcachedClient.get("short"));
+        assertEquals("NOT_STORED", memcachedClient.replace("short", bytes("v"), 0, 0));
+        assertEquals("v", memcachedClient.get("unix"));
+        assertEquals("v", memcachedClient.get("touched"));
+        assertEquals("TOUCHED", memcachedClient.touch("touched", -1));
+        assertNull(memcachedClient.get("touched"));
+    }
+
+    /**
+     * Concurrent read-modify-write cycles with gets and cas lose no update,
+     * without any lock in the clients.
+     */
+    @Test
+    void concurrentCas() throws Exception {
+        Memcached memcachedClient = new Memcached();
+        memcachedClient.set("counter", "0");
+        int threads = 4;
+        int updates = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < updates; i++) {
+                    while (true) {
+                        CasValue v = memcachedClient.gets("counter");
+                        byte[] next = bytes(String.valueOf(Long.parseLong(v.string()) + 1));
+                        if ("STORED".equals(memcachedClient.cas("counter", next, 0, 0, v.cas()))) {
+                            break;
+                        }
+                    }
+                    memcachedClient.incr("incremented", 1);
+                    memcachedClient.add("incremented", bytes("0"), 0, 0);
+                }
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        pool.shutdown();
+        assertEquals(String.valueOf(threads * updates), memcachedClient.get("counter"));
+        assertTrue(Long.parseLong(memcachedClient.get("incremented")) >= threads * updates - threads);
+    }
+
+    /**
+     * Threads storing in a full cache evict each other's items without
+     * corrupting the LRUs or the values.
+     */
+    @Test
+    void concurrentEviction() throws Exception {
+        Memcached memcachedClient = new Memcached(2 * OffHeapSlab.PAGE_SIZE, 4);
+        int threads = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    byte[] v = new byte[500 + i % 1000];
+                    Arrays.fill(v, (byte) id);
+                    String k = "key" + (i % 3000);
+                    assertEquals("STORED", memcachedClient.set(k, v));
+                    byte[] read = memcachedClient.getBytes("key" + (i * 7 % 3000));
+                    if (read != null) {
+                        assertEquals(read[0], read[read.length - 1]);
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        pool.shutdown();
+        int items = 0;
+        for (SlabStats stats : memcachedClient.slabStats()) {
+            assertEquals(stats.usedChunks(),
+                    stats.hotItems() + stats.warmItems() + stats.coldItems());
+            items += stats.usedChunks();
+        }
+        assertEquals(memcachedClient.size(), items);
+        assertTrue(memcachedClient.evictions() > 0);
+    }
+
+    @Test
+    void getMulti() {
+        Memcached memcachedClient = new Memcached(Memcached.DEFAULT_MEMORY_LIMIT, 4);
+        for (int i = 0; i < 100; i++) {
+            memcachedClient.set("key" + i, "value" + i);
+        }
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i += 2) {
+            keys.add("key" + i);
+        }
+        List<String> values = memcachedClient.getMulti(keys);
+        assertEquals(100, values.size());
+        assertEquals("value0", values.get(0));
+        assertEquals("value98", values.get(49));
+        assertNull(values.get(50));
+        assertEquals(50, memcachedClient.hits());
+        assertEquals(50, memcachedClient.misses());
+
+        List<String> read = new ArrayList<>();
+        assertEquals(2, memcachedClient.getMulti(new String[] {"key3", "missing", "key1"},
+                (k, v, flags, cas) -> read.add(k)));
+        assertEquals(Arrays.asList("key3", "key1"), read);
+    }
 }
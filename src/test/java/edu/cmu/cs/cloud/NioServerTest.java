@@ -0,0 +1,743 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.resps.Tuple;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the RESP2 and Memcached listeners, on loopback.
+ */
+class NioServerTest {
+
+    private StripedRedis redis;
+    private NioServer resp;
+    private NioServer memcached;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        redis = new StripedRedis();
+        resp = new NioServer("resp-test", new RespHandler(redis),
+                new InetSocketAddress("127.0.0.1", 0), 2);
+        resp.start();
+        memcached = new NioServer("memcached-test",
+                new MemcachedTextHandler(new Memcached()),
+                new InetSocketAddress("127.0.0.1", 0), 2);
+        memcached.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        resp.close();
+        memcached.close();
+    }
+
+    @Test
+    void jedis() {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            assertEquals("PONG", jedis.ping());
+            assertEquals("OK", jedis.set("mykey", "héllo"));
+            assertEquals("héllo", jedis.get("mykey"));
+            assertNull(jedis.get("missing"));
+            assertEquals("string", jedis.type("mykey"));
+
+            assertEquals(2, jedis.hset("myhash", "f1", "v1") + jedis.hset("myhash", "f2", "v2"));
+            assertEquals("v1", jedis.hget("myhash", "f1"));
+            assertEquals(2, jedis.hgetAll("myhash").size());
+            assertEquals(2, jedis.hlen("myhash"));
+            assertEquals("0", jedis.hscan("myhash", "0").getCursor());
+            assertEquals(2, jedis.hscan("myhash", "0").getResult().size());
+
+            assertEquals(3, jedis.rpush("mylist", "a", "b", "c"));
+            assertEquals(Arrays.asList("a", "b", "c"), jedis.lrange("mylist", 0, -1));
+            assertEquals("c", jedis.rpop("mylist"));
+            assertEquals(2, jedis.llen("mylist"));
+
+            assertEquals(1, jedis.expire("mykey", 100));
+            assertEquals(100, jedis.ttl("mykey"));
+            assertEquals(1, jedis.persist("mykey"));
+            assertEquals(2, jedis.del("mykey", "myhash", "nothing"));
+
+            JedisDataException e = assertThrows(JedisDataException.class,
+                    () -> jedis.get("mylist"));
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+    }
+
+    @Test
+    void pipeline() {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            Pipeline p = jedis.pipelined();
+            List<Response<Long>> pushes = new ArrayList<>();
+            for (int i = 0; i < 10_000; i++) {
+                p.set("key" + i, "value" + i);
+                pushes.add(p.rpush("queue", "item" + i));
+            }
+            Response<String> last = p.get("key9999");
+            p.sync();
+            assertEquals("value9999", last.get());
+            assertEquals(10_000L, (long) pushes.get(9_999).get());
+        }
+    }
+
+    /**
+     * Values are stored and replied as sent, whatever the bytes.
+     */
+    @Test
+    void binaryValues() {
+        byte[] binary = {0, (byte) 0xff, '\r', '\n', (byte) 0xc3, (byte) 0x28};
+        byte[] large = new byte[200_000];
+        new Random(42).nextBytes(large);
+        redis.setOffHeapThreshold(1024);
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            byte[] k = "binary".getBytes(StandardCharsets.UTF_8);
+            assertEquals("OK", jedis.set(k, binary));
+            assertArrayEquals(binary, jedis.get(k));
+            assertArrayEquals(binary, redis.getBytes("binary"));
+            byte[] lk = "large".getBytes(StandardCharsets.UTF_8);
+            jedis.setex(lk, 100, large);
+            assertArrayEquals(large, jedis.get(lk));
+        }
+        assertTrue(redis.offHeapMemory() > 0);
+    }
+
+    /**
+     * A page render reads its keys with one MGET and one HMGET, pipelined
+     * in one round trip.
+     */
+    @Test
+    void batchCommands() {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            byte[] binary = {0, (byte) 0xff, '\r', '\n'};
+            assertEquals("OK", jedis.mset("k1", "v1", "k2", "v2"));
+            jedis.mset("b".getBytes(StandardCharsets.UTF_8), binary);
+            assertEquals("OK", jedis.hmset("myhash", Collections.singletonMap("f1", "v1")));
+            assertEquals(1, (long) jedis.hset("myhash", Collections.singletonMap("f2", "v2")));
+
+            Pipeline p = jedis.pipelined();
+            Response<List<String>> values = p.mget("k1", "missing", "myhash", "k2");
+            Response<List<String>> fields = p.hmget("myhash", "f2", "missing", "f1");
+            Response<List<byte[]>> bytes = p.mget("b".getBytes(StandardCharsets.UTF_8));
+            p.sync();
+            assertEquals(Arrays.asList("v1", null, null, "v2"), values.get());
+            assertEquals(Arrays.asList("v2", null, "v1"), fields.get());
+            assertArrayEquals(binary, bytes.get().get(0));
+            assertThrows(JedisDataException.class,
+                    () -> jedis.sendCommand(Protocol.Command.MSET, "k1"));
+        }
+    }
+
+    @Test
+    void sortedSets() {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            assertEquals(1, jedis.zadd("board", 10, "alice"));
+            Map<String, Double> scores = new HashMap<>();
+            scores.put("bob", 20.5);
+            scores.put("carol", 15.0);
+            assertEquals(2, jedis.zadd("board", scores));
+            assertEquals("zset", jedis.type("board"));
+            assertEquals(3, jedis.zcard("board"));
+            assertEquals(Double.valueOf(20.5), jedis.zscore("board", "bob"));
+            assertNull(jedis.zscore("board", "dave"));
+            assertEquals(Long.valueOf(1), jedis.zrank("board", "carol"));
+            assertEquals(Long.valueOf(0), jedis.zrevrank("board", "bob"));
+            assertNull(jedis.zrank("board", "dave"));
+            assertEquals(Arrays.asList("alice", "carol", "bob"), jedis.zrange("board", 0, -1));
+            assertEquals(Arrays.asList("bob", "carol"), jedis.zrevrange("board", 0, 1));
+            List<Tuple> top = jedis.zrevrangeWithScores("board", 0, 0);
+            assertEquals("bob", top.get(0).getElement());
+            assertEquals(20.5, top.get(0).getScore());
+            assertEquals(Arrays.asList("carol", "bob"), jedis.zrangeByScore("board", "(10", "+inf"));
+            assertEquals(Collections.singletonList("carol"),
+                    jedis.zrangeByScore("board", 0, 100, 1, 1));
+            List<Tuple> withScores = jedis.zrangeByScoreWithScores("board", "-inf", "15");
+            assertEquals(2, withScores.size());
+            assertEquals(15.0, withScores.get(1).getScore());
+            assertEquals(1, jedis.zrem("board", "alice", "dave"));
+            assertThrows(JedisDataException.class,
+                    () -> jedis.zrangeByScore("board", "low", "high"));
+            jedis.set("string", "v");
+            assertThrows(JedisDataException.class, () -> jedis.zadd("string", 1, "m"));
+        }
+    }
+
+    @Test
+    void scan() {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            for (int i = 0; i < 500; i++) {
+                jedis.set("user:" + i, "value");
+                jedis.set("order:" + i, "value");
+            }
+            ScanParams params = new ScanParams().match("user:*").count(50);
+            Set<String> users = new HashSet<>();
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                redis.clients.jedis.resps.ScanResult<String> r = jedis.scan(cursor, params);
+                users.addAll(r.getResult());
+                cursor = r.getCursor();
+            } while (!"0".equals(cursor));
+            assertEquals(500, users.size());
+            assertTrue(users.contains("user:499"));
+
+            assertThrows(JedisDataException.class, () -> jedis.scan("0",
+                    new ScanParams().count(0)));
+            assertThrows(JedisDataException.class, () -> jedis.sendCommand(
+                    Protocol.Command.SCAN, "0", "TYPE", "string"));
+        }
+    }
+
+    @Test
+    void glob() {
+        assertTrue(RespHandler.matches("*", 0, "", 0));
+        assertTrue(RespHandler.matches("user:*", 0, "user:42", 0));
+        assertTrue(RespHandler.matches("h?llo", 0, "hallo", 0));
+        assertTrue(RespHandler.matches("h[ae]llo", 0, "hello", 0));
+        assertTrue(RespHandler.matches("h[^e]llo", 0, "hallo", 0));
+        assertTrue(RespHandler.matches("h[a-c]llo", 0, "hbllo", 0));
+        assertTrue(RespHandler.matches("*:*:end", 0, "a:b:c:end", 0));
+        assertTrue(RespHandler.matches("a\\*", 0, "a*", 0));
+        assertTrue(!RespHandler.matches("a\\*", 0, "ab", 0));
+        assertTrue(!RespHandler.matches("h[^e]llo", 0, "hello", 0));
+        assertTrue(!RespHandler.matches("user:?", 0, "user:42", 0));
+        assertTrue(!RespHandler.matches("user:*", 0, "order:1", 0));
+    }
+
+    @Test
+    void transactions() throws Exception {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port());
+             Jedis other = new Jedis("127.0.0.1", resp.port())) {
+            redis.clients.jedis.Transaction tx = jedis.multi();
+            tx.set("a", "1");
+            tx.hget("a", "f");
+            tx.rpush("list", "x");
+            tx.get("a");
+            List<Object> results = tx.exec();
+            assertEquals(4, results.size());
+            assertEquals("OK", results.get(0));
+            // the error of a command does not stop the others
+            assertTrue(results.get(1) instanceof JedisDataException);
+            assertEquals(1L, results.get(2));
+            assertEquals("1", results.get(3));
+
+            jedis.watch("a");
+            other.set("a", "2");
+            tx = jedis.multi();
+            tx.set("b", "1");
+            assertNull(tx.exec());
+            assertNull(jedis.get("b"));
+
+            jedis.watch("a");
+            tx = jedis.multi();
+            tx.set("b", "1");
+            tx.blpop(1, "empty");
+            results = tx.exec();
+            assertEquals("OK", results.get(0));
+            assertNull(results.get(1));
+            assertEquals("1", other.get("b"));
+        }
+        try (Socket socket = new Socket("127.0.0.1", resp.port())) {
+            socket.getOutputStream().write(("MULTI\r\nMULTI\r\nSET k v\r\nWATCH k\r\n"
+                    + "DISCARD\r\nEXEC\r\n").getBytes(StandardCharsets.UTF_8));
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("+OK", reader.readLine());
+            assertEquals("-ERR MULTI calls can not be nested", reader.readLine());
+            assertEquals("+QUEUED", reader.readLine());
+            assertEquals("-ERR WATCH inside MULTI is not allowed", reader.readLine());
+            assertEquals("+OK", reader.readLine());
+            assertEquals("-ERR EXEC without MULTI", reader.readLine());
+        }
+        assertNull(redis.get("k"));
+    }
+
+    @Test
+    void functions() {
+        redis.functionLoad("hgetset", (r, keys, args) -> {
+            String old = r.hget(keys[0], args[0]);
+            r.hset(keys[0], args[0], args[1]);
+            return Arrays.asList(old, r.hlen(keys[0]));
+        });
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            assertEquals(Arrays.asList(null, 1L), jedis.fcall("hgetset",
+                    Collections.singletonList("h"), Arrays.asList("f", "a")));
+            assertEquals(Arrays.asList("a", 1L), jedis.fcall("hgetset",
+                    Collections.singletonList("h"), Arrays.asList("f", "b")));
+            assertEquals("b", jedis.hget("h", "f"));
+
+            redis.clients.jedis.Transaction tx = jedis.multi();
+            tx.fcall("hgetset", Collections.singletonList("h"), Arrays.asList("g", "c"));
+            tx.hlen("h");
+            assertEquals(Arrays.asList(Arrays.asList(null, 2L), 2L), tx.exec());
+
+            JedisDataException e = assertThrows(JedisDataException.class,
+                    () -> jedis.fcall("missing", Collections.emptyList(), Collections.emptyList()));
+            assertEquals("ERR Function not found", e.getMessage());
+            assertThrows(JedisDataException.class, () -> jedis.fcall("hgetset",
+                    Arrays.asList("a", "b"), Collections.emptyList()));
+            assertEquals("OK", jedis.functionDelete("hgetset"));
+            assertTrue(redis.functionList().isEmpty());
+        }
+    }
+
+    @Test
+    void setNxIncrAndScripts() {
+        String script = "return redis.call('incrby', KEYS[1], ARGV[1])";
+        String sha = redis.scriptLoad(script, (r, keys, args) ->
+                r.incrby(keys[0], Long.parseLong(args[0])));
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            assertEquals("OK", jedis.set("lock", "a", SetParams.setParams().nx().px(100_000)));
+            assertNull(jedis.set("lock", "b", SetParams.setParams().nx().ex(100)));
+            assertEquals("a", jedis.get("lock"));
+            assertTrue(jedis.pttl("lock") > 0);
+            assertThrows(JedisDataException.class,
+                    () -> jedis.set("lock", "c", SetParams.setParams().ex(0)));
+
+            assertEquals(1, jedis.incr("n"));
+            assertEquals(6, jedis.incrBy("n", 5));
+            JedisDataException e = assertThrows(JedisDataException.class, () -> jedis.incr("lock"));
+            assertEquals("ERR value is not an integer or out of range", e.getMessage());
+
+            assertEquals(sha, StripedRedis.sha1(script));
+            assertEquals(8L, jedis.eval(script, Collections.singletonList("n"),
+                    Collections.singletonList("2")));
+            assertEquals(10L, jedis.evalsha(sha, Collections.singletonList("n"),
+                    Collections.singletonList("2")));
+            assertTrue(jedis.scriptExists(sha));
+            assertThrows(JedisDataException.class,
+                    () -> jedis.eval("return 1", Collections.emptyList(), Collections.emptyList()));
+            assertEquals("OK", jedis.scriptFlush());
+            e = assertThrows(JedisDataException.class, () -> jedis.evalsha(sha,
+                    Collections.singletonList("n"), Collections.singletonList("2")));
+            assertTrue(e.getMessage().startsWith("NOSCRIPT"), e.getMessage());
+        }
+    }
+
+    @Test
+    void infoAndSlowlog() {
+        try (Jedis jedis = new Jedis("127.0.0.1", resp.port())) {
+            jedis.set("k", "v");
+            jedis.get("k");
+            jedis.get("missing");
+            jedis.hset("h", "f", "v");
+            String stats = jedis.info("stats");
+            assertTrue(stats.startsWith("# Stats\r\n"), stats);
+            assertTrue(stats.contains("keyspace_hits:1\r\n"), stats);
+            assertTrue(stats.contains("keyspace_misses:1\r\n"), stats);
+            assertTrue(stats.contains("total_commands_processed:4\r\n"), stats);
+            String info = jedis.info();
+            assertTrue(info.contains("cmdstat_get:calls=2,"), info);
+            assertTrue(info.contains("latency_percentiles_usec_hset:p50="), info);
+            assertTrue(info.contains("db0:keys=2,expires=0,string=1,hash=1,list=0,zset=0"), info);
+            assertTrue(jedis.info("commandstats").startsWith("# Commandstats"));
+
+            assertEquals("OK", jedis.configSet("slowlog-log-slower-than", "0"));
+            jedis.set("slow", "value");
+            assertEquals(Arrays.asList("SET", "slow", "value"), jedis.slowlogGet(1).get(0).getArgs());
+            // SLOWLOG GET itself is logged
+            assertEquals(3, jedis.slowlogLen());
+            assertEquals("OK", jedis.slowlogReset());
+            // only SLOWLOG RESET itself is left
+            assertEquals(1, jedis.slowlogLen());
+        }
+    }
+
+    @Test
+    void pubsub() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", resp.port());
+             Jedis publisher = new Jedis("127.0.0.1", resp.port())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write("SUBSCRIBE news alerts\r\nPSUBSCRIBE cache:*\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            assertEquals(Arrays.asList("*3", "$9", "subscribe", "$4", "news", ":1"), lines(in, 6));
+            assertEquals(Arrays.asList("*3", "$9", "subscribe", "$6", "alerts", ":2"), lines(in, 6));
+            assertEquals(Arrays.asList("*3", "$10", "psubscribe", "$7", "cache:*", ":3"),
+                    lines(in, 6));
+
+            assertEquals(1, publisher.publish("news", "hello"));
+            assertEquals(Arrays.asList("*3", "$7", "message", "$4", "news", "$5", "hello"),
+                    lines(in, 7));
+            assertEquals(1, publisher.publish("cache:user:1", "stale"));
+            assertEquals(Arrays.asList("*4", "$8", "pmessage", "$7", "cache:*",
+                    "$12", "cache:user:1", "$5", "stale"), lines(in, 9));
+
+            out.write("GET k\r\nPING\r\nUNSUBSCRIBE\r\nGET k\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            assertTrue(in.readLine().startsWith("-ERR Can't execute 'get'"));
+            assertEquals(Arrays.asList("*2", "$4", "pong", "$0", ""), lines(in, 5));
+            // the channels in any order, then the pattern is left
+            Set<String> left = new HashSet<>();
+            for (int i = 0; i < 2; i++) {
+                List<String> reply = lines(in, 6);
+                assertEquals("unsubscribe", reply.get(2));
+                left.add(reply.get(4));
+            }
+            assertEquals(new HashSet<>(Arrays.asList("news", "alerts")), left);
+            // still subscribed to the pattern
+            assertTrue(in.readLine().startsWith("-ERR Can't execute 'get'"));
+            assertEquals(0, publisher.publish("news", "nobody"));
+            assertEquals(1, publisher.publish("cache:x", "still"));
+            assertEquals("*4", in.readLine());
+        }
+        while (redis.pubsub().patterns() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<String> lines(BufferedReader in, int n) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            lines.add(in.readLine());
+        }
+        return lines;
+    }
+
+    /**
+     * Reads the subscriber sockets until the given number of bytes came.
+     */
+    private static long read(Selector selector, ByteBuffer buf, long expected) throws IOException {
+        long received = 0;
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (received < expected) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                int n;
+                while ((n = ((SocketChannel) key.channel()).read(buf)) > 0) {
+                    received += n;
+                    buf.clear();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        return received;
+    }
+
+    /**
+     * A subscriber that does not read is disconnected once its replies
+     * exceed the output buffer limit, and the publisher is not held up.
+     */
+    @Test
+    void slowSubscriberIsDisconnected() throws Exception {
+        resp.close();
+        RespHandler handler = new RespHandler(redis);
+        handler.setPubsubOutputBufferLimit(256 * 1024);
+        resp = new NioServer("resp-test", handler, new InetSocketAddress("127.0.0.1", 0), 2);
+        resp.start();
+        try (Socket slow = new Socket()) {
+            slow.setReceiveBufferSize(4096);
+            slow.connect(new InetSocketAddress("127.0.0.1", resp.port()));
+            slow.getOutputStream().write("SUBSCRIBE feed\r\n".getBytes(StandardCharsets.UTF_8));
+            while (redis.pubsub().channels() == 0) {
+                Thread.sleep(1);
+            }
+            char[] chunk = new char[16 * 1024];
+            Arrays.fill(chunk, 'x');
+            String message = new String(chunk);
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (redis.publish("feed", message) > 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertEquals(0, redis.pubsub().channels());
+        }
+    }
+
+    /**
+     * 1 publisher to 1k subscribers: every subscriber receives every
+     * message, and none of them falls behind.
+     */
+    @Test
+    void pubsubFanOut() throws Exception {
+        int subscribers = 1000;
+        int messages = 2000;
+        List<SocketChannel> channels = new ArrayList<>();
+        try (Selector selector = Selector.open();
+             Jedis publisher = new Jedis("127.0.0.1", resp.port())) {
+            for (int i = 0; i < subscribers; i++) {
+                SocketChannel ch = SocketChannel.open(
+                        new InetSocketAddress("127.0.0.1", resp.port()));
+                channels.add(ch);
+                ch.write(ByteBuffer.wrap("SUBSCRIBE bench\r\n".getBytes(StandardCharsets.UTF_8)));
+                ch.configureBlocking(false);
+                ch.register(selector, SelectionKey.OP_READ);
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+            // every subscriber is subscribed once its reply is read
+            long subscribed = "*3\r\n$9\r\nsubscribe\r\n$5\r\nbench\r\n:1\r\n".length();
+            assertEquals(subscribers * subscribed, read(selector, buf, subscribers * subscribed));
+
+            String payload = "invalidate:user:000000";
+            long frame = ("*3\r\n$7\r\nmessage\r\n$5\r\nbench\r\n$22\r\n" + payload
+                    + "\r\n").length();
+            long expected = subscribers * messages * frame;
+            Pipeline pipeline = publisher.pipelined();
+            for (int i = 0; i < messages; i++) {
+                pipeline.publish("bench", payload);
+            }
+            pipeline.sync();
+            assertEquals(expected, read(selector, buf, expected));
+            assertEquals(0, redis.pubsub().slowConsumers());
+        } finally {
+            for (SocketChannel ch : channels) {
+                ch.close();
+            }
+        }
+    }
+
+    @Test
+    void blockingPop() throws Exception {
+        try (Jedis consumer = new Jedis("127.0.0.1", resp.port());
+             Jedis producer = new Jedis("127.0.0.1", resp.port())) {
+            assertEquals(2, producer.lpush("queue", "a", "b"));
+            assertEquals(Arrays.asList("queue", "b"), consumer.blpop(1, "queue"));
+            assertEquals(Arrays.asList("queue", "a"), consumer.brpop(1, "empty", "queue"));
+            assertNull(consumer.blpop(0.05, "queue"));
+
+            Thread push = new Thread(() -> {
+                while (redis.blockedClients() == 0) {
+                    Thread.yield();
+                }
+                producer.rpush("queue", "job");
+            });
+            push.start();
+            assertEquals(Arrays.asList("queue", "job"), consumer.blpop(0, "queue"));
+            push.join();
+            assertEquals("PONG", consumer.ping());
+            assertThrows(JedisDataException.class, () -> consumer.blpop(-1, "queue"));
+        }
+    }
+
+    /**
+     * The requests pipelined after a blocked BLPOP wait for it, and blocked
+     * connections cost no thread: hundreds of them wait on two event loops.
+     */
+    @Test
+    void blockedConnections() throws IOException, InterruptedException {
+        int clients = 500;
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                Socket socket = new Socket("127.0.0.1", resp.port());
+                sockets.add(socket);
+                socket.getOutputStream().write("BLPOP jobs 0\r\nGET k\r\n"
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            while (redis.blockedClients() < clients) {
+                Thread.sleep(1);
+            }
+            redis.set("k", "v");
+            for (int i = 0; i < clients; i++) {
+                redis.rpush("jobs", "job" + i);
+            }
+            Set<String> jobs = new HashSet<>();
+            for (int i = 0; i < clients; i++) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        sockets.get(i).getInputStream(), StandardCharsets.UTF_8));
+                assertEquals("*2", in.readLine());
+                assertEquals("$4", in.readLine());
+                assertEquals("jobs", in.readLine());
+                in.readLine();
+                assertTrue(jobs.add(in.readLine()));
+                assertEquals("$1", in.readLine());
+                assertEquals("v", in.readLine());
+            }
+            assertEquals(clients, jobs.size());
+            // a closed connection leaves the queue
+            Socket gone = new Socket("127.0.0.1", resp.port());
+            gone.getOutputStream().write("BRPOP jobs 0\r\n".getBytes(StandardCharsets.UTF_8));
+            while (redis.blockedClients() == 0) {
+                Thread.sleep(1);
+            }
+            gone.close();
+            while (redis.blockedClients() > 0) {
+                Thread.sleep(1);
+            }
+            redis.rpush("jobs", "kept");
+            assertEquals(1, redis.llen("jobs"));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * A request split over many small writes, and inline commands, must be
+     * reassembled by the server.
+     */
+    @Test
+    void fragmentedAndInline() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", resp.port())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            byte[] request = "*3\r\n$3\r\nSET\r\n$2\r\nk1\r\n$5\r\nhello\r\n"
+                    .getBytes(StandardCharsets.UTF_8);
+            for (byte b : request) {
+                out.write(b);
+                out.flush();
+            }
+            assertEquals("+OK", in.readLine());
+
+            out.write("GET k1\r\nPING\r\nNOSUCHCOMMAND\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("$5", in.readLine());
+            assertEquals("hello", in.readLine());
+            assertEquals("+PONG", in.readLine());
+            assertTrue(in.readLine().startsWith("-ERR unknown command"));
+
+            out.write("*1\r\n$x\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertTrue(in.readLine().startsWith("-ERR Protocol error"));
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    void memcachedText() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", memcached.port())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write(("set mykey 0 0 5\r\ncloud\r\n"
+                    + "set other 0 0 4 noreply\r\ncool\r\n"
+                    + "get mykey other missing\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("STORED", in.readLine());
+            assertEquals("VALUE mykey 0 5", in.readLine());
+            assertEquals("cloud", in.readLine());
+            assertEquals("VALUE other 0 4", in.readLine());
+            assertEquals("cool", in.readLine());
+            assertEquals("END", in.readLine());
+
+            out.write("set split 0 0 10\r\n01234".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            out.write("56789\r\ndelete split\r\ndelete split\r\nbogus\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("STORED", in.readLine());
+            assertEquals("DELETED", in.readLine());
+            assertEquals("NOT_FOUND", in.readLine());
+            assertEquals("ERROR", in.readLine());
+        }
+    }
+
+    @Test
+    void memcachedStats() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", memcached.port())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write("set k 0 0 1\r\nv\r\nget k missing\r\nbogus\r\nstats\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("STORED", in.readLine());
+            assertEquals("VALUE k 0 1", in.readLine());
+            assertEquals("v", in.readLine());
+            assertEquals("END", in.readLine());
+            assertEquals("ERROR", in.readLine());
+            Map<String, String> stats = new HashMap<>();
+            for (String line = in.readLine(); !line.equals("END"); line = in.readLine()) {
+                String[] stat = line.split(" ");
+                assertEquals("STAT", stat[0]);
+                stats.put(stat[1], stat[2]);
+            }
+            assertEquals("1", stats.get("curr_items"));
+            assertEquals("1", stats.get("get_hits"));
+            assertEquals("1", stats.get("get_misses"));
+            assertEquals("2", stats.get("total_commands_processed"));
+            assertTrue(stats.get("cmdstat_get").startsWith("calls=1,"));
+        }
+    }
+
+    @Test
+    void memcachedCommands() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", memcached.port())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write(("add counter 5 0 2\r\n10\r\n"
+                    + "add counter 5 0 2\r\n20\r\n"
+                    + "incr counter 5\r\n"
+                    + "decr counter 100\r\n"
+                    + "incr counter x\r\n"
+                    + "append counter 0 0 1\r\n7\r\n"
+                    + "gets counter\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("STORED", in.readLine());
+            assertEquals("NOT_STORED", in.readLine());
+            assertEquals("15", in.readLine());
+            assertEquals("0", in.readLine());
+            assertEquals("CLIENT_ERROR invalid numeric delta argument", in.readLine());
+            assertEquals("STORED", in.readLine());
+            String[] value = in.readLine().split(" ");
+            assertEquals(5, value.length);
+            assertEquals("VALUE counter 5 2", String.join(" ", Arrays.copyOf(value, 4)));
+            assertEquals("07", in.readLine());
+            assertEquals("END", in.readLine());
+
+            String cas = value[4];
+            out.write(("cas counter 0 0 1 " + cas + "\r\n8\r\n"
+                    + "cas counter 0 0 1 " + cas + "\r\n9\r\n"
+                    + "cas missing 0 0 1 1\r\n9\r\n"
+                    + "replace missing 0 0 1\r\n9\r\n"
+                    + "prepend counter 0 0 1 noreply\r\n1\r\n"
+                    + "touch counter 100\r\n"
+                    + "touch missing 100\r\n"
+                    + "get counter\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("STORED", in.readLine());
+            assertEquals("EXISTS", in.readLine());
+            assertEquals("NOT_FOUND", in.readLine());
+            assertEquals("NOT_STORED", in.readLine());
+            assertEquals("TOUCHED", in.readLine());
+            assertEquals("NOT_FOUND", in.readLine());
+            assertEquals("VALUE counter 0 2", in.readLine());
+            assertEquals("18", in.readLine());
+            assertEquals("END", in.readLine());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the off-heap slab allocator.
+ */
+class OffHeapSlabTest {
+
+    @Test
+    void chunkSizes() {
+        assertEquals(OffHeapSlab.MIN_CHUNK_SIZE, OffHeapSlab.chunkSize(0));
+        assertEquals(OffHeapSlab.MIN_CHUNK_SIZE, OffHeapSlab.chunkSize(64));
+        assertEquals(80, OffHeapSlab.chunkSize(65));
+        assertEquals(OffHeapSlab.PAGE_SIZE, OffHeapSlab.chunkSize(OffHeapSlab.PAGE_SIZE));
+        for (int n = 1; n < OffHeapSlab.PAGE_SIZE; n = n * 3 / 2 + 1) {
+            int size = OffHeapSlab.chunkSize(n);
+            assertTrue(size >= n);
+            // no more than the growth factor is wasted
+            assertTrue(size <= Math.max(OffHeapSlab.MIN_CHUNK_SIZE, n * 1.25 + 8));
+        }
+    }
+
+    @Test
+    void storeAndRead() {
+        OffHeapSlab slab = new OffHeapSlab();
+        Random random = new Random(42);
+        List<byte[]> values = new ArrayList<>();
+        List<OffHeapSlab.Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] v = new byte[random.nextInt(10_000)];
+            random.nextBytes(v);
+            values.add(v);
+            chunks.add(slab.store(v));
+        }
+        for (int i = 0; i < values.size(); i++) {
+            assertArrayEquals(values.get(i), slab.read(chunks.get(i)));
+        }
+        byte[][] lent = new byte[1][];
+        slab.read(chunks.get(7), b -> {
+            assertTrue(b.isReadOnly());
+            lent[0] = new byte[b.remaining()];
+            b.get(lent[0]);
+        });
+        assertArrayEquals(values.get(7), lent[0]);
+
+        byte[] page = new byte[OffHeapSlab.PAGE_SIZE];
+        Arrays.fill(page, (byte) 1);
+        assertArrayEquals(page, slab.read(slab.store(page)));
+        assertThrows(IllegalArgumentException.class,
+                () -> slab.store(new byte[OffHeapSlab.PAGE_SIZE + 1]));
+    }
+
+    /**
+     * Freed chunks are reused, so overwriting values does not reserve more
+     * pages.
+     */
+    @Test
+    void freeReusesChunks() {
+        OffHeapSlab slab = new OffHeapSlab();
+        OffHeapSlab.Chunk[] chunks = new OffHeapSlab.Chunk[1000];
+        byte[] v = new byte[1000];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = slab.store(v);
+        }
+        long reserved = slab.reserved();
+        assertEquals(1000L * OffHeapSlab.chunkSize(1000), slab.used());
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < chunks.length; i++) {
+                slab.free(chunks[i]);
+                chunks[i] = slab.store(v);
+            }
+        }
+        assertEquals(reserved, slab.reserved());
+        for (OffHeapSlab.Chunk c : chunks) {
+            slab.free(c);
+        }
+        assertEquals(0, slab.used());
+    }
+
+    /**
+     * Past the limit, a class with a page only reuses its freed chunks, and
+     * a class without one still gets its first page.
+     */
+    @Test
+    void limit() {
+        OffHeapSlab slab = new OffHeapSlab(2L * OffHeapSlab.PAGE_SIZE);
+        int size = OffHeapSlab.chunkSize(1000);
+        int perPage = OffHeapSlab.PAGE_SIZE / size;
+        List<Long> addresses = new ArrayList<>();
+        for (int i = 0; i < 2 * perPage; i++) {
+            long address = slab.allocate(1000);
+            assertTrue(address != OffHeapSlab.NO_SPACE);
+            addresses.add(address);
+        }
+        assertEquals(OffHeapSlab.NO_SPACE, slab.allocate(1000));
+        assertEquals(2, slab.pages(OffHeapSlab.classOf(1000)));
+        assertEquals(2 * perPage, slab.usedChunks(OffHeapSlab.classOf(1000)));
+
+        slab.free(addresses.get(0), 1000);
+        assertEquals((long) addresses.get(0), slab.allocate(1000));
+        assertTrue(slab.allocate(10) != OffHeapSlab.NO_SPACE);
+        assertEquals(3L * OffHeapSlab.PAGE_SIZE, slab.reserved());
+        assertThrows(IllegalStateException.class, () -> slab.store(new byte[1000]));
+    }
+}
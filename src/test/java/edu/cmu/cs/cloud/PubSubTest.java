@@ -0,0 +1,107 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for PubSub.
+ */
+class PubSubTest {
+
+    /**
+     * Polls the messages of a subscriber until n arrived.
+     */
+    private static List<String> receive(PubSub.Subscriber s, Semaphore signals, int n)
+            throws InterruptedException {
+        List<String> messages = new ArrayList<>();
+        while (messages.size() < n) {
+            assertTrue(signals.tryAcquire(5, TimeUnit.SECONDS));
+            PubSub.Message m;
+            while ((m = s.poll()) != null) {
+                messages.add(m.toString());
+            }
+        }
+        return messages;
+    }
+
+    @Test
+    void publishAndSubscribe() throws InterruptedException {
+        PubSub pubsub = new PubSub();
+        Semaphore signals = new Semaphore(0);
+        PubSub.Subscriber s = pubsub.subscriber(signals::release, () -> { });
+        assertTrue(s.subscribe("news"));
+        assertFalse(s.subscribe("news"));
+        assertTrue(s.psubscribe("cache:*"));
+        assertEquals(2, s.subscriptions());
+        assertEquals(1, pubsub.channels());
+        assertEquals(1, pubsub.patterns());
+
+        assertEquals(1, pubsub.publish("news", "hello"));
+        assertEquals(0, pubsub.publish("other", "lost"));
+        assertEquals(1, pubsub.publish("cache:user:1", "invalidate"));
+        assertEquals(Arrays.asList("news: hello", "cache:* cache:user:1: invalidate"),
+                receive(s, signals, 2));
+        assertNull(s.poll());
+
+        // the messages of a channel left are dropped, even if buffered
+        PubSub.Subscriber other = pubsub.subscriber(() -> { }, () -> { });
+        other.subscribe("news");
+        assertEquals(2, pubsub.publish("news", "twice"));
+        assertEquals(Arrays.asList("news: twice"), receive(s, signals, 1));
+        pubsub.publish("news", "late");
+        assertTrue(signals.tryAcquire(5, TimeUnit.SECONDS));
+        other.unsubscribe("news");
+        s.unsubscribe("news");
+        assertNull(s.poll());
+        s.close();
+        assertEquals(0, s.subscriptions());
+        assertEquals(0, pubsub.channels());
+        assertEquals(0, pubsub.patterns());
+        assertEquals(0, pubsub.publish("news", "nobody"));
+    }
+
+    /**
+     * A subscriber that does not poll is reported once its buffer is full,
+     * and stops receiving, while the others keep up.
+     */
+    @Test
+    void slowConsumer() throws InterruptedException {
+        PubSub pubsub = new PubSub(8);
+        AtomicInteger overflows = new AtomicInteger();
+        PubSub.Subscriber slow = pubsub.subscriber(() -> { }, overflows::incrementAndGet);
+        slow.subscribe("ticks");
+        PubSub.Subscriber fast = pubsub.subscriber(() -> { }, () -> { });
+        fast.subscribe("ticks");
+        for (int i = 0; i < 100; i++) {
+            pubsub.publish("ticks", Integer.toString(i));
+            PubSub.Message m;
+            while ((m = fast.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(Integer.toString(i), m.message());
+        }
+        assertFalse(fast.overflowed());
+        assertTrue(slow.overflowed());
+        assertEquals(1, overflows.get());
+        assertEquals(1, pubsub.slowConsumers());
+        int buffered = 0;
+        while (slow.poll() != null) {
+            buffered++;
+        }
+        assertEquals(8, buffered);
+    }
+}
@@ -0,0 +1,110 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for QuickList.
+ */
+class QuickListTest {
+
+    @Test
+    void pushAndPopBothEnds() {
+        QuickList<Integer> list = new QuickList<>();
+        assertTrue(list.isEmpty());
+        assertNull(list.pollFirst());
+        assertNull(list.pollLast());
+
+        int n = 10 * QuickList.SEGMENT + 3;
+        for (int i = 0; i < n; i++) {
+            list.addLast(i);
+            list.addFirst(-i - 1);
+        }
+        assertEquals(2 * n, list.size());
+        for (int i = n - 1; i >= 0; i--) {
+            assertEquals(Integer.valueOf(i), list.pollLast());
+            assertEquals(Integer.valueOf(-i - 1), list.pollFirst());
+        }
+        assertTrue(list.isEmpty());
+        assertNull(list.pollLast());
+    }
+
+    /**
+     * Random operations must behave exactly as an {@link ArrayDeque}.
+     */
+    @Test
+    void matchesDeque() {
+        QuickList<Integer> list = new QuickList<>();
+        Deque<Integer> expected = new ArrayDeque<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    list.addFirst(i);
+                    expected.addFirst(i);
+                    break;
+                case 1:
+                    list.addLast(i);
+                    expected.addLast(i);
+                    break;
+                case 2:
+                    assertEquals(expected.pollFirst(), list.pollFirst());
+                    break;
+                default:
+                    assertEquals(expected.pollLast(), list.pollLast());
+                    break;
+            }
+            assertEquals(expected.size(), list.size());
+        }
+        List<Integer> all = new ArrayList<>(expected);
+        assertEquals(all, list.range(0, -1));
+        for (int i = 0; i < all.size(); i += 7) {
+            assertEquals(all.get(i), list.get(i));
+            assertEquals(all.get(i), list.get(i - all.size()));
+        }
+        Iterator<Integer> it = list.iterator();
+        for (Integer e : all) {
+            assertEquals(e, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    void range() {
+        QuickList<Integer> list = new QuickList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.addLast(i);
+            expected.add(i);
+        }
+        assertEquals(expected.subList(100, 701), list.range(100, 700));
+        assertEquals(expected.subList(990, 1000), list.range(-10, -1));
+        assertEquals(expected, list.range(-5000, 5000));
+        assertTrue(list.range(600, 500).isEmpty());
+        assertTrue(list.range(1000, 2000).isEmpty());
+        assertNull(list.get(1000));
+        assertNull(list.get(-1001));
+
+        List<Integer> visited = new ArrayList<>();
+        assertEquals(11, list.forEachInRange(-20, -10, visited::add));
+        assertEquals(expected.subList(980, 991), visited);
+
+        list.clear();
+        assertTrue(list.range(0, -1).isEmpty());
+        assertFalse(list.iterator().hasNext());
+    }
+}
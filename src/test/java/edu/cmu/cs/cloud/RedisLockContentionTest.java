@@ -0,0 +1,185 @@
+package edu.cmu.cs.cloud;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPooled;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for RedisLock, against the embedded server on loopback.
+ */
+class RedisLockContentionTest {
+
+    private static final int THREADS = 200;
+    private static final int ROUNDS = 5;
+
+    private StripedRedis redis;
+    private NioServer resp;
+    private JedisPooled jedis;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        redis = new StripedRedis();
+        RedisLock.registerScripts(redis);
+        resp = new NioServer("resp-test", new RespHandler(redis),
+                new InetSocketAddress("127.0.0.1", 0), 4);
+        resp.start();
+        GenericObjectPoolConfig<Connection> pool = new GenericObjectPoolConfig<>();
+        pool.setMaxTotal(64);
+        jedis = new JedisPooled(pool, "127.0.0.1", resp.port());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        jedis.close();
+        resp.close();
+    }
+
+    @Test
+    void contention() throws InterruptedException {
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+        AtomicReference<String> failure = new AtomicReference<>();
+        long[] lastFence = new long[1];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                try (RedisLock lock = new RedisLock(jedis)) {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        long fence;
+                        while ((fence = lock.acquireLock("lock", 10, TimeUnit.SECONDS, false)) == 0) {
+                            Thread.sleep(1);
+                        }
+                        if (holders.incrementAndGet() != 1) {
+                            failure.compareAndSet(null, "two holders");
+                        }
+                        // written only by the holder, read by the next one
+                        synchronized (lastFence) {
+                            if (fence <= lastFence[0]) {
+                                failure.compareAndSet(null, fence + " after " + lastFence[0]);
+                            }
+                            lastFence[0] = fence;
+                        }
+                        acquired.incrementAndGet();
+                        holders.decrementAndGet();
+                        if (!lock.releaseLock("lock")) {
+                            failure.compareAndSet(null, "release failed");
+                        }
+                    }
+                } catch (InterruptedException | RuntimeException e) {
+                    failure.compareAndSet(null, e.toString());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(THREADS * ROUNDS, acquired.get());
+        assertEquals(THREADS * ROUNDS, lastFence[0]);
+        assertNull(redis.get("lock"));
+    }
+
+    @Test
+    void tokens() throws InterruptedException {
+        try (RedisLock a = new RedisLock(jedis); RedisLock b = new RedisLock(jedis)) {
+            long fence = a.acquireLock("lock", 50, TimeUnit.MILLISECONDS, false);
+            assertEquals(1, fence);
+            assertEquals(1, a.fencingToken("lock"));
+            assertEquals(0, b.acquireLock("lock", 50, TimeUnit.MILLISECONDS, false));
+            assertFalse(b.releaseLock("lock"));
+            assertThrows(IllegalStateException.class, () -> b.fencingToken("lock"));
+
+            // the lease of a expires and b acquires the lock
+            Thread.sleep(100);
+            assertEquals(2, b.acquireLock("lock", 10, TimeUnit.SECONDS, false));
+            assertFalse(a.extendLock("lock", 10, TimeUnit.SECONDS));
+            assertFalse(a.isHeld("lock"));
+            assertFalse(a.releaseLock("lock"));
+            assertTrue(redis.get("lock") != null);
+
+            assertTrue(b.extendLock("lock", 20, TimeUnit.SECONDS));
+            assertTrue(redis.pttl("lock") > 10_000);
+            assertTrue(b.releaseLock("lock"));
+            assertNull(redis.get("lock"));
+            assertEquals(3, a.acquireLock("lock", 10, TimeUnit.SECONDS, false));
+            assertEquals("3", redis.get("{lock}:fence"));
+
+            // a lock key with a hash tag keeps it in the fence key
+            assertEquals(1, a.acquireLock("{user:1}:lock", 10, TimeUnit.SECONDS, false));
+            assertEquals("1", redis.get("{user:1}:lock:fence"));
+            assertTrue(a.releaseLock("{user:1}:lock"));
+        }
+    }
+
+    @Test
+    void expiredLease() throws InterruptedException {
+        try (RedisLock lock = new RedisLock(jedis)) {
+            assertEquals(1, lock.acquireLock("lock", 50, TimeUnit.MILLISECONDS, false));
+            // not reentrant
+            assertEquals(0, lock.acquireLock("lock", 50, TimeUnit.MILLISECONDS, false));
+            assertTrue(lock.isHeld("lock"));
+
+            // the lease expired unnoticed, the same instance acquires again
+            Thread.sleep(100);
+            assertTrue(lock.isHeld("lock"));
+            assertEquals(2, lock.acquireLock("lock", 10, TimeUnit.SECONDS, false));
+            assertEquals(2, lock.fencingToken("lock"));
+            assertTrue(lock.releaseLock("lock"));
+            assertNull(redis.get("lock"));
+        }
+    }
+
+    @Test
+    void watchdog() throws InterruptedException {
+        try (RedisLock lock = new RedisLock(jedis)) {
+            assertTrue(lock.acquireLock("lock", 150, TimeUnit.MILLISECONDS, true) > 0);
+            Thread.sleep(600);
+            assertTrue(lock.isHeld("lock"));
+            assertTrue(redis.pttl("lock") > 0);
+            assertTrue(lock.releaseLock("lock"));
+            assertNull(redis.get("lock"));
+
+            // a lease lost to another owner is not renewed any more
+            assertTrue(lock.acquireLock("lock", 150, TimeUnit.MILLISECONDS, true) > 0);
+            redis.set("lock", "other");
+            Thread.sleep(200);
+            assertFalse(lock.isHeld("lock"));
+            assertEquals("other", redis.get("lock"));
+        }
+        try (Jedis single = new Jedis("127.0.0.1", resp.port());
+             RedisLock lock = new RedisLock(single)) {
+            assertThrows(IllegalStateException.class,
+                    () -> lock.acquireLock("other", 1, TimeUnit.SECONDS, true));
+            assertTrue(lock.acquireLock("other", 1L));
+            assertTrue(lock.releaseLock("other"));
+        }
+    }
+}
@@ -12,6 +12,8 @@ import redis.clients.jedis.HostAndPort;
 import java.io.IOException;
 import java.nio.file.Paths;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 
@@ -74,37 +76,108 @@ class RedisLockTest {
 
     @Test
     void acquireLockFailure() {
-        throw new RuntimeException("add test cases on your own");
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        RedisLock other = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertTrue(redisLock.acquireLock("lockKey", 1000L));
+
+        assertFalse(other.acquireLock("lockKey", 1000L));
+
+        assertFalse(redisLock.acquireLock("lockKey", 1000L));
     }
 
     @Test
     void acquireLockMultipleFailure() {
-        throw new RuntimeException("add test cases on your own");
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        RedisLock other = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertTrue(redisLock.acquireLock("lockKey", 1000L));
+        assertTrue(redisLock.acquireLock("lockKey2", 1000L));
+
+        assertFalse(other.acquireLock("lockKey", 1000L));
+        assertFalse(other.acquireLock("lockKey2", 1000L));
+
+        assertTrue(other.acquireLock("lockKey3", 1000L));
     }
 
     @Test
     void releaseLockSuccess() {
-        throw new RuntimeException("add test cases on your own");
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertTrue(redisLock.acquireLock("lockKey", 1000L));
+
+        assertTrue(redisLock.releaseLock("lockKey"));
+        assertNull(jedis.get("lockKey"));
     }
 
     @Test
     void releaseLockFailure() {
-        throw new RuntimeException("add test cases on your own");
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        RedisLock other = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertFalse(redisLock.releaseLock("lockKey"));
+
+        assertTrue(redisLock.acquireLock("lockKey", 1000L));
+        assertFalse(other.releaseLock("lockKey"));
+
+        assertTrue(redisLock.releaseLock("lockKey"));
+        assertFalse(redisLock.releaseLock("lockKey"));
     }
 
     @Test
-    void lockExpiration() {
-        throw new RuntimeException("add test cases on your own");
+    void lockExpiration() throws InterruptedException {
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        RedisLock other = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertTrue(redisLock.acquireLock("lockKey", 1L));
+        assertFalse(other.acquireLock("lockKey", 1L));
+
+        Thread.sleep(1500);
+        assertTrue(other.acquireLock("lockKey", 1000L));
     }
 
     @Test
     void aquireAndRelease() {
-        throw new RuntimeException("add test cases on your own");
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        RedisLock other = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertTrue(redisLock.acquireLock("lockKey", 1000L));
+        assertTrue(redisLock.releaseLock("lockKey"));
+
+        assertTrue(other.acquireLock("lockKey", 1000L));
+        assertTrue(other.releaseLock("lockKey"));
+
+        assertTrue(redisLock.acquireLock("lockKey", 1000L));
     }
 
     @Test
-    void releaseAfterTimeout() {
-        throw new RuntimeException("add test cases on your own");
+    void releaseAfterTimeout() throws InterruptedException {
+        Jedis jedis = jedisPool.getResource();
+        RedisLock redisLock = new RedisLock(jedis);
+        RedisLock other = new RedisLock(jedis);
+        jedis.flushAll();
+
+        assertTrue(redisLock.acquireLock("lockKey", 1L));
+
+        Thread.sleep(1500);
+        assertTrue(other.acquireLock("lockKey", 1000L));
+
+        // the expired owner does not free the lock of the new one
+        assertFalse(redisLock.releaseLock("lockKey"));
+        assertFalse(redisLock.acquireLock("lockKey", 1000L));
+        assertTrue(other.releaseLock("lockKey"));
     }
 }
 
@@ -4,12 +4,21 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Usage:
@@ -37,8 +46,8 @@ class RedisTest {
         // use reflection to access the private field
         Field field = redisClient.getClass().getDeclaredField("store");
         field.setAccessible(true);
-        HashMap<String, Object> store = new HashMap<>();
-        store.put("unknown", new Object());
+        Dict<String, Evictor.Entry> store = new Dict<>();
+        store.put("unknown", new Evictor.Entry("unknown", new Object(), 0, 0));
         field.set(redisClient, store);
 
         assertEquals("OK", redisClient.set("mykey", "cloud"));
@@ -50,6 +59,9 @@ class RedisTest {
         redisClient.rpush("list", "myvalue1", "myvalue2", "myvalue3");
         assertEquals("list", redisClient.type("list"));
 
+        redisClient.zadd("zset", 1, "member");
+        assertEquals("zset", redisClient.type("zset"));
+
         assertEquals("none", redisClient.type("the key does not exist"));
         assertEquals("unknown", redisClient.type("unknown"));
 
@@ -103,31 +115,639 @@ class RedisTest {
 
     @Test
     void hset() {
-        throw new RuntimeException("add test cases on your own");
+        Redis redisClient = new Redis();
+
+        assertEquals(1, redisClient.hset("myhash", "field1", "Hello"));
+        assertEquals(0, redisClient.hset("myhash", "field1", "World"));
+        assertEquals(1, redisClient.hset("myhash", "field2", "Cloud"));
+        assertEquals("World", redisClient.hget("myhash", "field1"));
+
+        redisClient.set("mykey", "cloud");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.hset("mykey", "field1", "Hello"));
     }
 
     @Test
     void hget() {
-        throw new RuntimeException("add test cases on your own");
+        Redis redisClient = new Redis();
+
+        assertNull(redisClient.hget("myhash", "field1"));
+        redisClient.hset("myhash", "field1", "foo");
+        assertEquals("foo", redisClient.hget("myhash", "field1"));
+        assertNull(redisClient.hget("myhash", "field2"));
+
+        redisClient.rpush("mylist", "a");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.hget("mylist", "field1"));
     }
 
     @Test
     void hgetall() {
-        throw new RuntimeException("add test cases on your own");
+        Redis redisClient = new Redis();
+
+        assertEquals(Collections.emptyList(), redisClient.hgetall("myhash"));
+        redisClient.hset("myhash", "field1", "Hello");
+        redisClient.hset("myhash", "field2", "World");
+        List<String> all = redisClient.hgetall("myhash");
+        assertEquals(4, all.size());
+        Map<String, String> pairs = new HashMap<>();
+        for (int i = 0; i < all.size(); i += 2) {
+            pairs.put(all.get(i), all.get(i + 1));
+        }
+        assertEquals("Hello", pairs.get("field1"));
+        assertEquals("World", pairs.get("field2"));
+    }
+
+    @Test
+    void mgetAndMset() {
+        Redis redisClient = new Redis();
+
+        assertEquals("OK", redisClient.mset("k1", "v1", "k2", "v2"));
+        redisClient.hset("myhash", "field1", "Hello");
+        // a missing key and a key of another type are both null
+        assertEquals(Arrays.asList("v1", null, "v2", null),
+                redisClient.mget("k1", "missing", "k2", "myhash"));
+        List<String> lent = new ArrayList<>();
+        assertEquals(2, redisClient.mget(new String[] {"k2", "myhash", "k1"}, b -> lent.add(
+                b == null ? null : StandardCharsets.UTF_8.decode(b).toString())));
+        assertEquals(Arrays.asList("v2", null, "v1"), lent);
+
+        byte[] binary = {0, (byte) 0xff};
+        redisClient.mset(new String[] {"b1", "k1"}, new byte[][] {binary, binary});
+        assertArrayEquals(binary, redisClient.getBytes("k1"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redisClient.mset("k1", "v1", "k2"));
+    }
+
+    @Test
+    void hmgetAndHmset() {
+        Redis redisClient = new Redis();
+
+        assertEquals(Arrays.asList(null, null), redisClient.hmget("myhash", "f1", "f2"));
+        assertEquals("OK", redisClient.hmset("myhash", "f1", "v1", "f2", "v2"));
+        assertEquals(1, redisClient.hset("myhash", "f2", "changed", "f3", "v3"));
+        assertEquals(Arrays.asList("v1", null, "changed", "v3"),
+                redisClient.hmget("myhash", "f1", "missing", "f2", "f3"));
+        // the same for a hash table
+        for (int i = 0; i < 200; i++) {
+            redisClient.hset("bighash", "field" + i, "value" + i);
+        }
+        assertEquals(Arrays.asList("value7", null, "value199"),
+                redisClient.hmget("bighash", "field7", "missing", "field199"));
+
+        redisClient.set("string", "value");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.hmget("string", "f1"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redisClient.hmset("myhash", "f1"));
     }
 
     @Test
     void llen() {
-        throw new RuntimeException("add test cases on your own");
+        Redis redisClient = new Redis();
+
+        assertEquals(0, redisClient.llen("mylist"));
+        redisClient.rpush("mylist", "World");
+        redisClient.rpush("mylist", "Hello");
+        assertEquals(2, redisClient.llen("mylist"));
+
+        redisClient.set("mykey", "cloud");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.llen("mykey"));
     }
 
     @Test
     void rpush() {
-        throw new RuntimeException("add test cases on your own");
+        Redis redisClient = new Redis();
+
+        assertEquals(1, redisClient.rpush("mylist", "hello"));
+        assertEquals(3, redisClient.rpush("mylist", "world", "cloud"));
+        assertEquals("cloud", redisClient.rpop("mylist"));
+
+        redisClient.hset("myhash", "field1", "foo");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.rpush("myhash", "a"));
     }
 
     @Test
     void rpop() {
-        throw new RuntimeException("add test cases on your own");
+        Redis redisClient = new Redis();
+
+        assertNull(redisClient.rpop("mylist"));
+        redisClient.rpush("mylist", "one", "two", "three");
+        assertEquals("three", redisClient.rpop("mylist"));
+        assertEquals("two", redisClient.rpop("mylist"));
+        assertEquals("one", redisClient.rpop("mylist"));
+        assertNull(redisClient.rpop("mylist"));
+        assertEquals("none", redisClient.type("mylist"));
+    }
+
+    @Test
+    void lpushAndLpop() {
+        Redis redisClient = new Redis();
+
+        assertNull(redisClient.lpop("mylist"));
+        assertEquals(3, redisClient.lpush("mylist", "one", "two", "three"));
+        assertEquals(4, redisClient.rpush("mylist", "four"));
+        assertEquals(Arrays.asList("three", "two", "one", "four"),
+                redisClient.lrange("mylist", 0, -1));
+        assertEquals("three", redisClient.lpop("mylist"));
+        assertEquals("four", redisClient.rpop("mylist"));
+        assertEquals("two", redisClient.lpop("mylist"));
+        assertEquals("one", redisClient.lpop("mylist"));
+        assertEquals("none", redisClient.type("mylist"));
+
+        redisClient.set("string", "value");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.lpush("string", "a"));
+    }
+
+    @Test
+    void lindex() {
+        Redis redisClient = new Redis();
+
+        assertNull(redisClient.lindex("mylist", 0));
+        redisClient.rpush("mylist", "Hello", "World");
+        assertEquals("Hello", redisClient.lindex("mylist", 0));
+        assertEquals("World", redisClient.lindex("mylist", -1));
+        assertNull(redisClient.lindex("mylist", 3));
+    }
+
+    @Test
+    void lrange() {
+        Redis redisClient = new Redis();
+
+        assertEquals(Collections.emptyList(), redisClient.lrange("mylist", 0, -1));
+        redisClient.rpush("mylist", "one", "two", "three");
+        assertEquals(Collections.singletonList("one"),
+                redisClient.lrange("mylist", 0, 0));
+        assertEquals(Arrays.asList("one", "two", "three"),
+                redisClient.lrange("mylist", -3, 2));
+        assertEquals(Arrays.asList("one", "two", "three"),
+                redisClient.lrange("mylist", -100, 100));
+        assertEquals(Collections.emptyList(), redisClient.lrange("mylist", 5, 10));
+    }
+
+    @Test
+    void binaryValues() {
+        Redis redisClient = new Redis();
+        byte[] v = {0, (byte) 0xff, (byte) 0xfe, '\r', '\n', (byte) 0xc3};
+        assertEquals("OK", redisClient.set("binary", v));
+        assertEquals("string", redisClient.type("binary"));
+        assertArrayEquals(v, redisClient.getBytes("binary"));
+        assertNull(redisClient.getBytes("missing"));
+
+        redisClient.set("text", "héllo");
+        assertArrayEquals("héllo".getBytes(StandardCharsets.UTF_8),
+                redisClient.getBytes("text"));
+        List<ByteBuffer> lent = new ArrayList<>();
+        assertTrue(redisClient.get("text", lent::add));
+        assertEquals(6, lent.get(0).remaining());
+        Assertions.assertFalse(redisClient.get("missing", lent::add));
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.hgetall("binary"));
+    }
+
+    /**
+     * Large values live in the slab, and the chunks of overwritten, deleted
+     * and expired values are reused.
+     */
+    @Test
+    void offHeapValues() throws InterruptedException {
+        Redis redisClient = new Redis();
+        redisClient.setOffHeapThreshold(1024);
+        byte[] large = new byte[10_000];
+        Arrays.fill(large, (byte) 'x');
+
+        redisClient.set("small", "value");
+        assertEquals(0, redisClient.offHeapMemory());
+        for (int i = 0; i < 100; i++) {
+            redisClient.set("large" + i, large);
+        }
+        long reserved = redisClient.offHeapMemory();
+        assertTrue(reserved >= 100 * 10_000);
+        assertTrue(redisClient.usedMemory() > 100 * 10_000);
+        assertArrayEquals(large, redisClient.getBytes("large99"));
+        assertEquals(new String(large, StandardCharsets.UTF_8), redisClient.get("large0"));
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                if (i % 3 == 0) {
+                    redisClient.del("large" + i);
+                }
+                if (i % 3 == 1) {
+                    redisClient.psetex("large" + i, 1, large);
+                } else {
+                    redisClient.set("large" + i, large);
+                }
+            }
+            Thread.sleep(2);
+            for (int i = 0; i < 100; i++) {
+                redisClient.type("large" + i);
+            }
+        }
+        assertEquals(reserved, redisClient.offHeapMemory());
+
+        // disabling keeps the values already stored readable
+        redisClient.setOffHeapThreshold(0);
+        redisClient.set("new", large);
+        assertArrayEquals(large, redisClient.getBytes("large2"));
+        assertArrayEquals(large, redisClient.getBytes("new"));
+    }
+
+    @Test
+    void hlenAndHscan() {
+        Redis redisClient = new Redis();
+        assertEquals(0, redisClient.hlen("myhash"));
+        assertEquals(0, redisClient.hscan("myhash", 0, 10).cursor());
+
+        redisClient.hset("small", "f", "v");
+        assertEquals(1, redisClient.hlen("small"));
+        assertEquals(Arrays.asList("f", "v"), redisClient.hscan("small", 0, 10).items());
+
+        for (int i = 0; i < 1000; i++) {
+            redisClient.hset("myhash", "field" + i, "value" + i);
+        }
+        assertEquals(1000, redisClient.hlen("myhash"));
+        Map<String, String> seen = new HashMap<>();
+        long cursor = 0;
+        do {
+            ScanResult r = redisClient.hscan("myhash", cursor, 100);
+            for (int i = 0; i < r.items().size(); i += 2) {
+                seen.put(r.items().get(i), r.items().get(i + 1));
+            }
+            cursor = r.cursor();
+        } while (cursor != 0);
+        assertEquals(1000, seen.size());
+        assertEquals("value999", seen.get("field999"));
+
+        List<String> fields = new ArrayList<>();
+        assertEquals(1000, redisClient.hgetall("myhash", (f, v) -> fields.add(f)));
+        assertEquals(1000, fields.size());
+    }
+
+    @Test
+    void scanSkipsExpiredKeys() throws InterruptedException {
+        Redis redisClient = new Redis();
+        for (int i = 0; i < 100; i++) {
+            redisClient.set("key" + i, "value");
+        }
+        redisClient.psetex("expiring", 1, "value");
+        Thread.sleep(5);
+        List<String> keys = new ArrayList<>();
+        long cursor = 0;
+        do {
+            ScanResult r = redisClient.scan(cursor, 7);
+            keys.addAll(r.items());
+            cursor = r.cursor();
+        } while (cursor != 0);
+        assertEquals(100, keys.size());
+        assertEquals("none", redisClient.type("expiring"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redisClient.scan(0, 0));
+    }
+
+    @Test
+    void hashEncodingConversion() throws NoSuchFieldException, IllegalAccessException {
+        Redis redisClient = new Redis();
+        redisClient.setHashMaxListpackEntries(2);
+        redisClient.setHashMaxListpackValue(8);
+
+        Field field = redisClient.getClass().getDeclaredField("store");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        Map<String, Evictor.Entry> store = (Map<String, Evictor.Entry>) field.get(redisClient);
+
+        redisClient.hset("small", "f1", "v1");
+        redisClient.hset("small", "f2", "v2");
+        assertTrue(store.get("small").value instanceof ListPack);
+        redisClient.hset("small", "f3", "v3");
+        assertTrue(store.get("small").value instanceof Dict);
+        assertEquals("v1", redisClient.hget("small", "f1"));
+        assertEquals(6, redisClient.hgetall("small").size());
+
+        redisClient.hset("long", "f1", "v1");
+        redisClient.hset("long", "f2", "a value over 8 bytes");
+        assertTrue(store.get("long").value instanceof Dict);
+        assertEquals("v1", redisClient.hget("long", "f1"));
+        assertEquals("hash", redisClient.type("long"));
+
+        redisClient.setHashMaxListpackEntries(0);
+        redisClient.hset("table", "f1", "v1");
+        assertTrue(store.get("table").value instanceof Dict);
+    }
+
+    /**
+     * A hash is a listpack up to the default number of fields and length of
+     * the values, and a hash table once either is exceeded.
+     */
+    @Test
+    void hashEncodingThresholds() throws NoSuchFieldException, IllegalAccessException {
+        Redis redisClient = new Redis();
+
+        Field field = redisClient.getClass().getDeclaredField("store");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        Map<String, Evictor.Entry> store = (Map<String, Evictor.Entry>) field.get(redisClient);
+
+        for (int i = 0; i < Redis.DEFAULT_HASH_MAX_LISTPACK_ENTRIES; i++) {
+            redisClient.hset("entries", "f" + i, "v" + i);
+        }
+        assertTrue(store.get("entries").value instanceof ListPack);
+        redisClient.hset("entries", "f0", "updated");
+        assertTrue(store.get("entries").value instanceof ListPack);
+        redisClient.hset("entries", "one more", "v");
+        assertTrue(store.get("entries").value instanceof Dict);
+        assertEquals(Redis.DEFAULT_HASH_MAX_LISTPACK_ENTRIES + 1, redisClient.hlen("entries"));
+        assertEquals("updated", redisClient.hget("entries", "f0"));
+
+        char[] value = new char[Redis.DEFAULT_HASH_MAX_LISTPACK_VALUE];
+        Arrays.fill(value, 'v');
+        redisClient.hset("value", "f1", new String(value));
+        assertTrue(store.get("value").value instanceof ListPack);
+        redisClient.hset("value", "f2", new String(value) + "v");
+        assertTrue(store.get("value").value instanceof Dict);
+        assertEquals(new String(value), redisClient.hget("value", "f1"));
+
+        char[] name = new char[Redis.DEFAULT_HASH_MAX_LISTPACK_VALUE + 1];
+        Arrays.fill(name, 'f');
+        redisClient.hset("field", "f1", "v1");
+        redisClient.hset("field", new String(name), "v2");
+        assertTrue(store.get("field").value instanceof Dict);
+        assertEquals("v2", redisClient.hget("field", new String(name)));
+    }
+
+    @Test
+    void expire() throws InterruptedException {
+        Redis redisClient = new Redis();
+
+        assertEquals(0, redisClient.expire("mykey", 10));
+        redisClient.set("mykey", "Hello");
+        assertEquals(1, redisClient.expire("mykey", 10));
+        assertEquals(10, redisClient.ttl("mykey"));
+        redisClient.set("mykey", "Hello World");
+        assertEquals(-1, redisClient.ttl("mykey"));
+
+        redisClient.rpush("mylist", "a", "b");
+        assertEquals(1, redisClient.pexpire("mylist", 20));
+        redisClient.rpush("mylist", "c");
+        assertTrue(redisClient.pttl("mylist") > 0);
+        Thread.sleep(40);
+        assertEquals(0, redisClient.llen("mylist"));
+        assertEquals("none", redisClient.type("mylist"));
+        assertEquals(-2, redisClient.ttl("mylist"));
+
+        redisClient.hset("myhash", "f", "v");
+        assertEquals(1, redisClient.expire("myhash", 0));
+        assertNull(redisClient.hget("myhash", "f"));
+    }
+
+    @Test
+    void persist() throws InterruptedException {
+        Redis redisClient = new Redis();
+
+        assertEquals(0, redisClient.persist("mykey"));
+        redisClient.set("mykey", "Hello");
+        assertEquals(0, redisClient.persist("mykey"));
+        redisClient.pexpire("mykey", 20);
+        assertEquals(1, redisClient.persist("mykey"));
+        Thread.sleep(40);
+        assertEquals("Hello", redisClient.get("mykey"));
+        assertEquals(-1, redisClient.pttl("mykey"));
+    }
+
+    @Test
+    void setex() throws InterruptedException {
+        Redis redisClient = new Redis();
+
+        assertEquals("OK", redisClient.setex("mykey", 10, "Hello"));
+        assertEquals(10, redisClient.ttl("mykey"));
+        assertEquals("OK", redisClient.psetex("other", 20, "Hello"));
+        assertEquals("Hello", redisClient.get("other"));
+        Thread.sleep(40);
+        assertNull(redisClient.get("other"));
+        assertEquals(0, redisClient.del("other"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redisClient.setex("mykey", 0, "Hello"));
+    }
+
+    @Test
+    void activeExpireCycle() throws InterruptedException {
+        Redis redisClient = new Redis();
+        for (int i = 0; i < 1000; i++) {
+            redisClient.set("volatile" + i, "v");
+            // long enough not to expire before the loop ends on a cold JVM
+            redisClient.pexpire("volatile" + i, 100);
+            redisClient.set("persistent" + i, "v");
+        }
+        assertEquals(2000, redisClient.dbsize());
+        Thread.sleep(150);
+        int removed = 0;
+        for (int i = 0; i < 1000 && removed < 1000; i++) {
+            removed += redisClient.activeExpireCycle();
+        }
+        assertEquals(1000, removed);
+        assertEquals(0, redisClient.activeExpireCycle());
+        assertEquals("v", redisClient.get("persistent999"));
+    }
+
+    @Test
+    void usedMemory() {
+        Redis redisClient = new Redis();
+        assertEquals(0, redisClient.usedMemory());
+
+        redisClient.set("mykey", "cloud");
+        long oneString = redisClient.usedMemory();
+        assertTrue(oneString > 0);
+        redisClient.set("mykey", "a much longer value than before");
+        assertTrue(redisClient.usedMemory() > oneString);
+
+        redisClient.setHashMaxListpackEntries(4);
+        for (int i = 0; i < 10; i++) {
+            redisClient.hset("myhash", "field" + i, "value" + i);
+            redisClient.rpush("mylist", "value" + i);
+        }
+        redisClient.rpop("mylist");
+        assertTrue(redisClient.usedMemory() > oneString);
+
+        redisClient.del("mykey", "myhash", "mylist");
+        assertEquals(0, redisClient.usedMemory());
+    }
+
+    @Test
+    void noeviction() {
+        Redis redisClient = new Redis();
+        redisClient.setMaxmemory(1);
+        redisClient.set("mykey", "cloud");
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> redisClient.set("other", "cool"));
+        // reads and deletes are still allowed
+        assertEquals("cloud", redisClient.get("mykey"));
+        assertEquals(1, redisClient.del("mykey"));
+        assertEquals("OK", redisClient.set("other", "cool"));
+    }
+
+    @Test
+    void allkeysLru() throws InterruptedException {
+        Redis redisClient = new Redis();
+        redisClient.setMaxmemoryPolicy("allkeys-lru");
+        redisClient.setMaxmemorySamples(10);
+        for (int i = 0; i < 100; i++) {
+            redisClient.set("key" + i, "value");
+        }
+        redisClient.setMaxmemory(redisClient.usedMemory());
+        Thread.sleep(5);
+        for (int i = 0; i < 10; i++) {
+            redisClient.get("key" + i);
+        }
+        for (int i = 100; i < 150; i++) {
+            redisClient.set("key" + i, "value");
+        }
+        // keys are evicted before a write, so the last write is over the limit
+        assertEquals(49, redisClient.evictedKeys());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value", redisClient.get("key" + i));
+        }
+    }
+
+    @Test
+    void allkeysLfu() {
+        Redis redisClient = new Redis();
+        redisClient.setMaxmemoryPolicy("allkeys-lfu");
+        redisClient.setMaxmemorySamples(10);
+        for (int i = 0; i < 100; i++) {
+            redisClient.set("key" + i, "value");
+        }
+        redisClient.setMaxmemory(redisClient.usedMemory());
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 10; i++) {
+                redisClient.get("key" + i);
+            }
+        }
+        for (int i = 100; i < 150; i++) {
+            redisClient.set("key" + i, "value");
+        }
+        assertEquals(49, redisClient.evictedKeys());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value", redisClient.get("key" + i));
+        }
+    }
+
+    @Test
+    void volatileLru() {
+        Redis redisClient = new Redis();
+        redisClient.setMaxmemoryPolicy("volatile-lru");
+        for (int i = 0; i < 10; i++) {
+            redisClient.set("persistent" + i, "value");
+            redisClient.setex("volatile" + i, 100, "value");
+        }
+        redisClient.setMaxmemory(redisClient.usedMemory());
+        for (int i = 0; i <= 10; i++) {
+            redisClient.set("new" + i, "value");
+        }
+        assertEquals(10, redisClient.evictedKeys());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value", redisClient.get("persistent" + i));
+            assertEquals(-2, redisClient.ttl("volatile" + i));
+        }
+        // only persistent keys are left, nothing can be evicted
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> redisClient.set("another", "value"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redisClient.setMaxmemoryPolicy("volatile-lfu-typo"));
+    }
+
+    @Test
+    void sortedSet() {
+        Redis redisClient = new Redis();
+        assertEquals(1, redisClient.zadd("zset", 2, "b"));
+        Map<String, Double> scores = new HashMap<>();
+        scores.put("a", 2.0);
+        scores.put("c", 1.5);
+        scores.put("b", 3.0);
+        assertEquals(2, redisClient.zadd("zset", scores));
+        assertEquals(3, redisClient.zcard("zset"));
+        assertEquals(Double.valueOf(3), redisClient.zscore("zset", "b"));
+        assertNull(redisClient.zscore("zset", "d"));
+        assertEquals(Arrays.asList("c", "a", "b"), redisClient.zrange("zset", 0, -1));
+        assertEquals(Arrays.asList("b", "a"), redisClient.zrevrange("zset", 0, 1));
+        assertEquals(Integer.valueOf(1), redisClient.zrank("zset", "a"));
+        assertEquals(Integer.valueOf(0), redisClient.zrevrank("zset", "b"));
+        assertNull(redisClient.zrank("zset", "d"));
+        assertNull(redisClient.zrank("nokey", "d"));
+        assertEquals(Arrays.asList("c", "a"), redisClient.zrangebyscore("zset", 1, 2));
+
+        List<String> withScores = new ArrayList<>();
+        assertEquals(1, redisClient.zrangebyscore("zset", "(1.5", "+inf", 1, 5,
+                (m, score) -> withScores.add(m + "=" + score)));
+        assertEquals(Collections.singletonList("b=3.0"), withScores);
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redisClient.zrangebyscore("zset", "one", "2", 0, -1, (m, score) -> { }));
+
+        assertEquals(2, redisClient.zrem("zset", "a", "c", "d"));
+        assertEquals(0, redisClient.zrem("zset", "a"));
+        assertEquals(1, redisClient.zrem("zset", "b"));
+        // the key goes with its last member
+        assertEquals("none", redisClient.type("zset"));
+        assertEquals(0, redisClient.zcard("zset"));
+
+        redisClient.set("string", "value");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.zadd("string", 1, "member"));
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.zrange("string", 0, -1));
+    }
+
+    /**
+     * Leaderboards of businesses by stars and review count, the sorts of
+     * MySQL q7 and YelpApp answered by the sorted sets.
+     */
+    @Test
+    void leaderboard() {
+        Redis redisClient = new Redis();
+        for (int i = 0; i < 10_000; i++) {
+            redisClient.zadd("business:stars", (i % 9 + 2) / 2.0, "business:" + i);
+            redisClient.zadd("business:review_count", i, "business:" + i);
+        }
+        assertEquals(Arrays.asList("business:9999", "business:9998", "business:9997"),
+                redisClient.zrevrange("business:review_count", 0, 2));
+        assertEquals(Integer.valueOf(0), redisClient.zrevrank("business:review_count",
+                "business:9999"));
+        // ties are ordered by member, the last of the top rated comes first
+        List<String> top = redisClient.zrevrange("business:stars", 0, 0);
+        assertEquals(Collections.singletonList("business:9998"), top);
+        assertEquals(Double.valueOf(5), redisClient.zscore("business:stars", "business:9998"));
+        assertEquals(1111, redisClient.zrangebyscore("business:stars", 5, 5).size());
+
+        redisClient.zadd("business:review_count", 1e6, "business:0");
+        assertEquals(Integer.valueOf(0), redisClient.zrevrank("business:review_count",
+                "business:0"));
+        assertTrue(redisClient.usedMemory() > 20_000 * Evictor.ZSET_ELEMENT_OVERHEAD);
+    }
+
+    @Test
+    void incrAndSetNx() {
+        Redis redisClient = new Redis();
+        assertEquals(1, redisClient.incr("counter"));
+        assertEquals(11, redisClient.incrby("counter", 10));
+        assertEquals("11", redisClient.get("counter"));
+        redisClient.pexpire("counter", 100_000);
+        assertEquals(12, redisClient.incr("counter"));
+        assertTrue(redisClient.pttl("counter") > 0);
+
+        redisClient.set("text", "abc");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> redisClient.incr("text"));
+        redisClient.set("max", Long.toString(Long.MAX_VALUE));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> redisClient.incr("max"));
+        redisClient.hset("hash", "f", "1");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redisClient.incr("hash"));
+
+        byte[] v = "owner".getBytes(StandardCharsets.UTF_8);
+        assertTrue(redisClient.set("lock", v, true, 100_000));
+        assertTrue(!redisClient.set("lock", v, true, 100_000));
+        assertTrue(redisClient.pttl("lock") > 0);
+        assertTrue(redisClient.set("lock", v, false, 0));
+        assertEquals(-1, redisClient.pttl("lock"));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,268 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the primary/replica replication, with every instance
+ * listening on loopback.
+ */
+class ReplicationTest {
+
+    private StripedRedis primary;
+    private Replication replication;
+    private NioServer primaryServer;
+    private final List<AutoCloseable> closeables = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        primary = new StripedRedis();
+        startPrimary(Replication.DEFAULT_BACKLOG_SIZE);
+    }
+
+    private void startPrimary(int backlogSize) throws IOException {
+        replication = new Replication(primary, backlogSize);
+        RespHandler handler = new RespHandler(primary);
+        handler.setReplication(replication);
+        primaryServer = new NioServer("primary", handler,
+                new InetSocketAddress("127.0.0.1", 0), 2);
+        primaryServer.start();
+        closeables.add(primaryServer);
+        closeables.add(replication);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (int i = closeables.size() - 1; i >= 0; i--) {
+            closeables.get(i).close();
+        }
+    }
+
+    private Replica replicaOf(StripedRedis redis) {
+        Replica replica = Replica.start(redis, "127.0.0.1", primaryServer.port(), 0);
+        closeables.add(replica);
+        return replica;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitInSync(Replica replica) throws InterruptedException {
+        await(() -> replica.state() == Replica.State.CONNECTED
+                && replica.offset() == replication.offset());
+    }
+
+    @Test
+    void backlog() {
+        ReplicationBacklog backlog = new ReplicationBacklog(8);
+        OutputBuffer in = new OutputBuffer();
+        backlog.append(in.writeAscii("abcdef"));
+        assertEquals(6, backlog.offset());
+        OutputBuffer out = new OutputBuffer();
+        assertTrue(backlog.copy(2, out));
+        assertEquals("cdef", drain(out));
+        backlog.append(in.writeAscii("ghij"));
+        assertEquals(2, backlog.firstOffset());
+        assertTrue(backlog.copy(4, out));
+        assertEquals("efghij", drain(out));
+        assertFalse(backlog.copy(1, out));
+        assertFalse(backlog.copy(11, out));
+        assertTrue(backlog.copy(10, out));
+        assertEquals("", drain(out));
+        // longer than the ring, only the tail is kept
+        backlog.append(in.writeAscii("0123456789"));
+        assertEquals(20, backlog.offset());
+        assertTrue(backlog.copy(12, out));
+        assertEquals("23456789", drain(out));
+    }
+
+    private static String drain(OutputBuffer out) {
+        byte[] b = new byte[out.readable()];
+        out.drainTo(ByteBuffer.wrap(b));
+        out.consume(b.length);
+        return new String(b);
+    }
+
+    @Test
+    void fullSyncThenStream() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            primary.set("key:" + i, "value" + i);
+        }
+        primary.hset("hash", "f", "v");
+        primary.rpush("list", "a", "b", "c");
+        primary.pexpireat("key:0", System.currentTimeMillis() + 60_000);
+
+        StripedRedis redis = new StripedRedis();
+        redis.set("stale", "gone after the sync");
+        Replica replica = replicaOf(redis);
+        awaitInSync(replica);
+        assertEquals(1, replica.fullSyncs());
+        assertEquals(replication.replicationId(), replica.replicationId());
+        assertEquals("value999", redis.get("key:999"));
+        assertEquals("v", redis.hget("hash", "f"));
+        assertEquals(3, redis.llen("list"));
+        assertTrue(redis.pttl("key:0") > 0);
+        assertNull(redis.get("stale"));
+
+        // the writes after the sync are streamed
+        primary.set("key:0", "changed");
+        primary.del("key:1");
+        primary.hset("hash", "g", "w");
+        primary.rpop("list");
+        primary.mset("m1", "x", "m2", "y");
+        primary.set("binary", new byte[]{0, (byte) 0xFF, '\r', '\n'});
+        awaitInSync(replica);
+        assertEquals("changed", redis.get("key:0"));
+        assertEquals(-1, redis.pttl("key:0"));
+        assertNull(redis.get("key:1"));
+        assertEquals("w", redis.hget("hash", "g"));
+        assertEquals(2, redis.llen("list"));
+        assertEquals(Arrays.asList("x", "y"), redis.mget("m1", "m2"));
+        int[] length = new int[1];
+        assertTrue(redis.get("binary", v -> length[0] = v.remaining()));
+        assertEquals(4, length[0]);
+    }
+
+    @Test
+    void partialResync() throws InterruptedException {
+        primary.set("before", "1");
+        StripedRedis redis = new StripedRedis();
+        Replica replica = replicaOf(redis);
+        awaitInSync(replica);
+
+        replica.disconnect();
+        for (int i = 0; i < 100; i++) {
+            primary.set("during:" + i, "2");
+        }
+        awaitInSync(replica);
+        assertEquals(1, replica.fullSyncs());
+        assertEquals(1, replica.partialSyncs());
+        assertEquals("2", redis.get("during:99"));
+    }
+
+    @Test
+    void backlogOverflowForcesFullResync() throws Exception {
+        primaryServer.close();
+        replication.close();
+        startPrimary(1024);
+        StripedRedis redis = new StripedRedis();
+        Replica replica = replicaOf(redis);
+        awaitInSync(replica);
+
+        // the stream missed while disconnected is larger than the backlog
+        replica.disconnect();
+        for (int i = 0; i < 100; i++) {
+            primary.set("during:" + i, "0123456789");
+        }
+        awaitInSync(replica);
+        assertEquals(2, replica.fullSyncs());
+        assertEquals(0, replica.partialSyncs());
+        assertEquals("0123456789", redis.get("during:0"));
+    }
+
+    @Test
+    void lagAndReadOnlyReplicas() throws Exception {
+        List<Replica> replicas = new ArrayList<>();
+        List<NioServer> servers = new ArrayList<>();
+        for (int n = 0; n < 2; n++) {
+            StripedRedis redis = new StripedRedis();
+            Replica replica = replicaOf(redis);
+            RespHandler handler = new RespHandler(redis);
+            handler.setReplica(replica);
+            NioServer server = new NioServer("replica-" + n, handler,
+                    new InetSocketAddress("127.0.0.1", 0), 1);
+            server.start();
+            closeables.add(server);
+            replicas.add(replica);
+            servers.add(server);
+        }
+        try (JedisPooled writer = new JedisPooled("127.0.0.1", primaryServer.port());
+             JedisPooled reader0 = new JedisPooled("127.0.0.1", servers.get(0).port());
+             JedisPooled reader1 = new JedisPooled("127.0.0.1", servers.get(1).port())) {
+            ShardedCache.Node node = ShardedCache.replicated(ShardedCache.redis(writer),
+                    ShardedCache.redis(reader0), ShardedCache.redis(reader1));
+            node.set("key", "value");
+            for (Replica replica : replicas) {
+                awaitInSync(replica);
+            }
+            assertEquals("value", node.get("key"));
+            assertEquals("value", node.get("key"));
+            JedisDataException e = assertThrows(JedisDataException.class,
+                    () -> reader0.set("key", "other"));
+            assertTrue(e.getMessage().startsWith("READONLY"));
+        }
+        // the acknowledgments catch up with the stream
+        await(() -> {
+            List<Replication.ReplicaInfo> infos = replication.replicas();
+            return infos.size() == 2 && infos.stream().allMatch(
+                    r -> r.online() && r.lagBytes() == 0);
+        });
+        Replication.ReplicaInfo info = replication.replicas().get(0);
+        assertEquals(replication.offset(), info.ackedOffset());
+        assertTrue(info.lagMillis() <= 2 * Replica.ACK_PERIOD_MILLIS, info.toString());
+        try (Jedis jedis = new Jedis("127.0.0.1", primaryServer.port())) {
+            List<Object> role = jedis.role();
+            assertEquals("master", role.get(0));
+            assertEquals(2, ((List<?>) role.get(2)).size());
+        }
+        try (Jedis jedis = new Jedis("127.0.0.1", servers.get(1).port())) {
+            List<Object> role = jedis.role();
+            assertEquals("slave", role.get(0));
+            assertEquals("connected", role.get(3));
+        }
+    }
+
+    /**
+     * Under a steady write load, the replica catches up with every burst of
+     * 1000 writes within a second, and ends with the data of the primary.
+     */
+    @Test
+    void replicaKeepsUp() throws InterruptedException {
+        StripedRedis redis = new StripedRedis();
+        Replica replica = replicaOf(redis);
+        awaitInSync(replica);
+        int writes = 20_000;
+        for (int i = 0; i < writes; i++) {
+            primary.set("key:" + (i % 1000), Long.toString(i));
+            if (i % 1000 == 999) {
+                long deadline = System.nanoTime() + 1_000_000_000L;
+                long target = replication.offset();
+                while (replica.offset() < target) {
+                    assertTrue(System.nanoTime() < deadline, "lag over 1 s");
+                    Thread.yield();
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(primary.get("key:" + i), redis.get("key:" + i));
+        }
+        assertEquals(Long.toString(writes - 1), redis.get("key:999"));
+    }
+}
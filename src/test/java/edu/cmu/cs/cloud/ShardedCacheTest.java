@@ -0,0 +1,192 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.JedisPooled;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the sharding front end, over in-process nodes and a
+ * RESP listener on loopback.
+ */
+class ShardedCacheTest {
+
+    private ShardedCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new ShardedCache();
+    }
+
+    @AfterEach
+    void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    void singleKeyCommands() {
+        assertThrows(IllegalStateException.class, () -> cache.get("key"));
+        Memcached m = new Memcached();
+        StripedRedis r = new StripedRedis();
+        cache.addNode("memcached", ShardedCache.memcached(m));
+        cache.addNode("redis", ShardedCache.redis(r));
+        for (int i = 0; i < 1000; i++) {
+            cache.set("key:" + i, "value" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i, cache.get("key:" + i));
+        }
+        // every key is on its node only
+        int onMemcached = 0;
+        for (int i = 0; i < 1000; i++) {
+            String k = "key:" + i;
+            boolean mine = m.get(k) != null;
+            assertTrue(mine != (r.get(k) != null));
+            onMemcached += mine ? 1 : 0;
+        }
+        assertTrue(onMemcached > 300 && onMemcached < 700, "on memcached " + onMemcached);
+        assertTrue(cache.delete("key:0"));
+        assertFalse(cache.delete("key:0"));
+        assertNull(cache.get("key:0"));
+    }
+
+    @Test
+    void scatterGather() {
+        for (int n = 0; n < 4; n++) {
+            cache.addNode("node" + n, n % 2 == 0
+                    ? ShardedCache.memcached(new Memcached())
+                    : ShardedCache.redis(new StripedRedis()));
+        }
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 500; i++) {
+            entries.put("key:" + i, "value" + i);
+        }
+        cache.setMulti(entries);
+        List<String> keys = new ArrayList<>(entries.keySet());
+        keys.add(1, "missing");
+        List<String> values = cache.getMulti(keys);
+        assertEquals(keys.size(), values.size());
+        assertEquals("value0", values.get(0));
+        assertNull(values.get(1));
+        for (int i = 2; i < keys.size(); i++) {
+            assertEquals(entries.get(keys.get(i)), values.get(i));
+        }
+        assertEquals(Arrays.asList(null, "value7"), cache.getMulti(Arrays.asList("x", "key:7")));
+        assertTrue(cache.getMulti(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    void failingNode() {
+        cache.addNode("memcached", ShardedCache.memcached(new Memcached()));
+        cache.addNode("broken", new ShardedCache.Node() {
+            @Override
+            public String get(String k) {
+                throw new IllegalStateException("down");
+            }
+
+            @Override
+            public void set(String k, String v) {
+                throw new IllegalStateException("down");
+            }
+
+            @Override
+            public boolean delete(String k) {
+                throw new IllegalStateException("down");
+            }
+        });
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add("key:" + i);
+        }
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> cache.getMulti(keys));
+        assertEquals("down", e.getMessage());
+    }
+
+    @Test
+    void remoteNodes() throws IOException {
+        List<NioServer> servers = new ArrayList<>();
+        List<JedisPooled> clients = new ArrayList<>();
+        try {
+            for (int n = 0; n < 3; n++) {
+                NioServer server = new NioServer("shard-" + n, new RespHandler(new StripedRedis()),
+                        new InetSocketAddress("127.0.0.1", 0), 1);
+                server.start();
+                servers.add(server);
+                JedisPooled jedis = new JedisPooled("127.0.0.1", server.port());
+                clients.add(jedis);
+                cache.addNode("127.0.0.1:" + server.port(), ShardedCache.redis(jedis));
+            }
+            Map<String, String> entries = new LinkedHashMap<>();
+            for (int i = 0; i < 300; i++) {
+                entries.put("key:" + i, "value" + i);
+            }
+            cache.setMulti(entries);
+            assertEquals(new ArrayList<>(entries.values()), cache.getMulti(entries.keySet()));
+            assertEquals("value42", cache.get("key:42"));
+            // every key is on one server only
+            for (String k : entries.keySet()) {
+                int copies = 0;
+                for (JedisPooled jedis : clients) {
+                    copies += jedis.exists(k) ? 1 : 0;
+                }
+                assertEquals(1, copies);
+            }
+        } finally {
+            for (JedisPooled jedis : clients) {
+                jedis.close();
+            }
+            for (NioServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Fills 10 nodes, adds an 11th and reads every key again: with the ring
+     * only the keys taken by the new node, about 1/11, miss, while
+     * {@code hash % N} would move almost every key.
+     */
+    @Test
+    void rebalance() {
+        int keys = 100_000;
+        for (int n = 0; n < 10; n++) {
+            cache.addNode("node" + n, ShardedCache.memcached(new Memcached()));
+        }
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < keys; i++) {
+            entries.put("key:" + i, "value" + i);
+        }
+        cache.setMulti(entries);
+
+        cache.addNode("node10", ShardedCache.memcached(new Memcached()));
+        int moved = 0;
+        for (String v : cache.getMulti(entries.keySet())) {
+            moved += v == null ? 1 : 0;
+        }
+        assertTrue(Math.abs((double) moved / keys - 1.0 / 11) < 0.03, moved + " keys moved");
+        int stayed = 0;
+        for (String k : entries.keySet()) {
+            long h = HashRing.hash(k);
+            stayed += h % 10 == h % 11 ? 1 : 0;
+        }
+        assertTrue(stayed < keys / 5);
+    }
+}
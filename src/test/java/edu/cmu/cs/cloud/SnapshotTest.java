@@ -0,0 +1,200 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the binary snapshots.
+ */
+class SnapshotTest {
+
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("snapshot");
+        file = dir.resolve("dump.rdb");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static void populate(StripedRedis redis) {
+        for (int i = 0; i < 1000; i++) {
+            redis.set("string" + i, "value" + i);
+        }
+        redis.set("unicode", "héllo wörld");
+        for (int i = 0; i < 300; i++) {
+            redis.hset("bighash", "field" + i, "value" + i);
+            redis.rpush("list", "item" + i);
+        }
+        redis.hset("smallhash", "f1", "v1");
+        redis.hset("smallhash", "f2", "v2");
+        redis.setex("volatile", 100, "value");
+        redis.psetex("expiring", 1, "value");
+    }
+
+    private static void verify(StripedRedis redis) {
+        assertEquals("value999", redis.get("string999"));
+        assertEquals("héllo wörld", redis.get("unicode"));
+        assertEquals(600, redis.hgetall("bighash").size());
+        assertEquals("value299", redis.hget("bighash", "field299"));
+        assertEquals(Arrays.asList("f1", "v1", "f2", "v2"), redis.hgetall("smallhash"));
+        assertEquals(300, redis.llen("list"));
+        assertEquals("item299", redis.lindex("list", -1));
+        assertTrue(redis.ttl("volatile") > 90);
+    }
+
+    @Test
+    void saveAndLoad() throws Exception {
+        StripedRedis redis = new StripedRedis(8);
+        populate(redis);
+        Thread.sleep(5);
+        assertEquals(1005, Snapshot.save(redis, file));
+        verify(redis);
+
+        StripedRedis restarted = new StripedRedis(4);
+        assertEquals(1005, Snapshot.load(restarted, file));
+        verify(restarted);
+        assertNull(restarted.get("expiring"));
+        // the small hash is still a listpack and keeps growing as one
+        restarted.hset("smallhash", "f3", "v3");
+        assertEquals("v3", restarted.hget("smallhash", "f3"));
+        assertEquals(1, dir.toFile().list().length);
+    }
+
+    @Test
+    void sortedSets() throws Exception {
+        StripedRedis redis = new StripedRedis(8);
+        for (int i = 0; i < 300; i++) {
+            redis.zadd("leaderboard", i / 3.0, "member" + i);
+        }
+        redis.zadd("infinite", Double.NEGATIVE_INFINITY, "low");
+        redis.zadd("infinite", Double.POSITIVE_INFINITY, "high");
+        assertEquals(2, Snapshot.save(redis, file));
+
+        StripedRedis restarted = new StripedRedis(4);
+        assertEquals(2, Snapshot.load(restarted, file));
+        assertEquals(300, restarted.zcard("leaderboard"));
+        assertEquals(redis.zrange("leaderboard", 0, -1), restarted.zrange("leaderboard", 0, -1));
+        assertEquals(Double.valueOf(299 / 3.0), restarted.zscore("leaderboard", "member299"));
+        assertEquals(Arrays.asList("high", "low"), restarted.zrevrange("infinite", 0, -1));
+    }
+
+    /**
+     * Writes after the snapshot began, even while it is being dumped, are
+     * not in the file.
+     */
+    @Test
+    void pointInTime() throws Exception {
+        StripedRedis redis = new StripedRedis(64);
+        populate(redis);
+        CompletableFuture<Long> saved = Snapshot.saveInBackground(redis, file);
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                redis.set("string" + i, "changed");
+            } else {
+                redis.del("string" + i);
+            }
+            redis.set("new" + i, "value");
+        }
+        redis.rpush("list", "appended");
+        redis.rpop("list");
+        redis.rpop("list");
+        redis.hset("bighash", "field0", "changed");
+        redis.hset("smallhash", "f1", "changed");
+        redis.persist("volatile");
+        assertTrue(saved.get() >= 1004);
+
+        StripedRedis restarted = new StripedRedis(4);
+        Snapshot.load(restarted, file);
+        verify(restarted);
+        assertEquals("value0", restarted.get("string0"));
+        assertEquals("value1", restarted.get("string1"));
+        assertNull(restarted.get("new0"));
+        assertEquals("value0", restarted.hget("bighash", "field0"));
+    }
+
+    /**
+     * Binary values, and values stored off the heap that are overwritten
+     * while the snapshot is dumped, are saved as they were.
+     */
+    @Test
+    void binaryAndOffHeapValues() throws Exception {
+        StripedRedis redis = new StripedRedis(8);
+        redis.setOffHeapThreshold(256);
+        byte[] binary = {0, (byte) 0xff, '\r', '\n', (byte) 0xc3};
+        byte[] large = new byte[4096];
+        Arrays.fill(large, (byte) 0xfe);
+        redis.set("binary", binary);
+        for (int i = 0; i < 500; i++) {
+            redis.set("large" + i, large);
+        }
+        byte[] changed = new byte[4096];
+        CompletableFuture<Long> saved = Snapshot.saveInBackground(redis, file);
+        for (int i = 0; i < 500; i++) {
+            redis.set("large" + i, changed);
+        }
+        assertEquals(501, (long) saved.get());
+
+        StripedRedis restarted = new StripedRedis(4);
+        restarted.setOffHeapThreshold(256);
+        Snapshot.load(restarted, file);
+        assertArrayEquals(binary, restarted.getBytes("binary"));
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(large, restarted.getBytes("large" + i));
+        }
+        assertTrue(restarted.offHeapMemory() > 0);
+    }
+
+    @Test
+    void oneSaveAtATime() throws IOException {
+        StripedRedis redis = new StripedRedis(4);
+        redis.set("k", "v");
+        redis.beginSnapshot();
+        assertThrows(IllegalStateException.class, () -> Snapshot.save(redis, file));
+        redis.endSnapshot();
+        assertEquals(1, Snapshot.save(redis, file));
+    }
+
+    @Test
+    void corrupted() throws IOException {
+        StripedRedis redis = new StripedRedis(4);
+        populate(redis);
+        Snapshot.save(redis, file);
+        byte[] bytes = Files.readAllBytes(file);
+
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> Snapshot.load(new StripedRedis(4), file));
+
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+        assertThrows(IOException.class, () -> Snapshot.load(new StripedRedis(4), file));
+
+        Files.write(file, "not a snapshot".getBytes());
+        assertThrows(IOException.class, () -> Snapshot.load(new StripedRedis(4), file));
+    }
+}
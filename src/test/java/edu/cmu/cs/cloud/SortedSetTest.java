@@ -0,0 +1,188 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for SortedSet.
+ */
+class SortedSetTest {
+
+    /**
+     * A member with its score, ordered as in the skip list.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        private final double score;
+        private final String member;
+
+        private Entry(double score, String member) {
+            this.score = score;
+            this.member = member;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Double.compare(score, o.score);
+            return c != 0 ? c : member.compareTo(o.member);
+        }
+    }
+
+    @Test
+    void addAndOrder() {
+        SortedSet zset = new SortedSet();
+        assertTrue(zset.add(2, "b"));
+        assertTrue(zset.add(1, "c"));
+        assertTrue(zset.add(2, "a"));
+        assertFalse(zset.add(3, "c"));
+        assertEquals(3, zset.size());
+        assertEquals("[a, 2, b, 2, c, 3]", zset.toString());
+        assertEquals(Double.valueOf(3), zset.score("c"));
+        assertNull(zset.score("d"));
+        assertEquals(0, zset.rank("a", false));
+        assertEquals(2, zset.rank("a", true));
+        assertEquals(-1, zset.rank("d", false));
+        assertTrue(zset.remove("b"));
+        assertFalse(zset.remove("b"));
+        assertEquals("[a, 2, c, 3]", zset.toString());
+        assertThrows(IllegalArgumentException.class, () -> zset.add(Double.NaN, "x"));
+    }
+
+    @Test
+    void parseAndFormatScores() {
+        assertEquals(Double.POSITIVE_INFINITY, SortedSet.parseScore("+inf"));
+        assertEquals(Double.NEGATIVE_INFINITY, SortedSet.parseScore("-INF"));
+        assertEquals(1.5, SortedSet.parseScore("1.5"));
+        assertThrows(IllegalArgumentException.class, () -> SortedSet.parseScore("abc"));
+        assertThrows(IllegalArgumentException.class, () -> SortedSet.parseScore("nan"));
+        assertEquals("3", SortedSet.formatScore(3));
+        assertEquals("-0.25", SortedSet.formatScore(-0.25));
+        assertEquals("inf", SortedSet.formatScore(Double.POSITIVE_INFINITY));
+        assertEquals("-inf", SortedSet.formatScore(Double.NEGATIVE_INFINITY));
+        assertThrows(IllegalArgumentException.class,
+                () -> SortedSet.Range.parse("(x", "1"));
+    }
+
+    @Test
+    void rangeByScore() {
+        SortedSet zset = new SortedSet();
+        for (int i = 0; i < 10; i++) {
+            zset.add(i, "m" + i);
+        }
+        assertEquals(Arrays.asList("m2", "m3", "m4"), byScore(zset, "2", "4", 0, -1));
+        assertEquals(Arrays.asList("m3"), byScore(zset, "(2", "(4", 0, -1));
+        assertEquals(Arrays.asList("m0", "m1"), byScore(zset, "-inf", "+inf", 0, 2));
+        assertEquals(Arrays.asList("m8", "m9"), byScore(zset, "-inf", "+inf", 8, 5));
+        assertEquals(Collections.emptyList(), byScore(zset, "5", "4", 0, -1));
+        assertEquals(Collections.emptyList(), byScore(zset, "(5", "5", 0, -1));
+        assertEquals(Collections.emptyList(), byScore(zset, "10", "+inf", 0, -1));
+    }
+
+    private static List<String> byScore(SortedSet zset, String min, String max,
+                                        int offset, int count) {
+        List<String> members = new ArrayList<>();
+        zset.rangeByScore(SortedSet.Range.parse(min, max), offset, count,
+                (m, score) -> members.add(m));
+        return members;
+    }
+
+    private static List<String> byRank(SortedSet zset, int start, int stop, boolean reverse) {
+        List<String> members = new ArrayList<>();
+        zset.range(start, stop, reverse, (m, score) -> members.add(m));
+        return members;
+    }
+
+    /**
+     * Random operations must keep the ranks and ranges of a {@link TreeSet},
+     * which exercises the spans of the skip list.
+     */
+    @Test
+    void matchesTreeSet() {
+        SortedSet zset = new SortedSet();
+        TreeSet<Entry> expected = new TreeSet<>();
+        Map<String, Double> scores = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            String member = "m" + random.nextInt(2000);
+            Double old = scores.get(member);
+            if (random.nextInt(4) == 0) {
+                assertEquals(old != null, zset.remove(member));
+                if (old != null) {
+                    expected.remove(new Entry(old, member));
+                    scores.remove(member);
+                }
+            } else {
+                double score = random.nextInt(100);
+                assertEquals(old == null, zset.add(score, member));
+                if (old != null) {
+                    expected.remove(new Entry(old, member));
+                }
+                expected.add(new Entry(score, member));
+                scores.put(member, score);
+            }
+            if (i % 1000 == 0) {
+                check(zset, expected, random);
+            }
+        }
+        check(zset, expected, random);
+        SortedSet copy = zset.copy();
+        zset.add(-1, "new");
+        check(copy, expected, random);
+    }
+
+    private static void check(SortedSet zset, TreeSet<Entry> expected, Random random) {
+        assertEquals(expected.size(), zset.size());
+        List<String> members = new ArrayList<>();
+        for (Entry e : expected) {
+            members.add(e.member);
+        }
+        for (int rank = 0; rank < members.size(); rank++) {
+            assertEquals(rank, zset.rank(members.get(rank), false));
+            assertEquals(members.size() - 1 - rank, zset.rank(members.get(rank), true));
+        }
+        for (int n = 0; n < 20; n++) {
+            int start = random.nextInt(members.size() + 10) - 5;
+            int stop = random.nextInt(members.size() + 10) - 5;
+            assertEquals(slice(members, start, stop), byRank(zset, start, stop, false));
+            List<String> reversed = new ArrayList<>(members);
+            Collections.reverse(reversed);
+            assertEquals(slice(reversed, start, stop), byRank(zset, start, stop, true));
+
+            int min = random.nextInt(100);
+            int max = min + random.nextInt(10);
+            List<String> inRange = new ArrayList<>();
+            for (Entry e : expected.subSet(new Entry(min, ""), true,
+                    new Entry(max, "\uffff"), true)) {
+                inRange.add(e.member);
+            }
+            assertEquals(inRange, byScore(zset, Integer.toString(min),
+                    Integer.toString(max), 0, -1));
+        }
+    }
+
+    /**
+     * The elements between two offsets as LRANGE clamps them.
+     */
+    private static List<String> slice(List<String> items, int start, int stop) {
+        int n = items.size();
+        start = start < 0 ? Math.max(0, start + n) : start;
+        stop = Math.min(stop < 0 ? stop + n : stop, n - 1);
+        return start > stop ? Collections.emptyList() : items.subList(start, stop + 1);
+    }
+}
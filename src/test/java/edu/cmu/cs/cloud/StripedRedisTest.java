@@ -0,0 +1,594 @@
+package edu.cmu.cs.cloud;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Usage:
+ * mvn test
+ *
+ * Test cases for the thread-safe mode of Redis.
+ */
+class StripedRedisTest {
+
+    @Test
+    void stripes() {
+        assertEquals(64, new StripedRedis().stripes());
+        assertEquals(8, new StripedRedis(5).stripes());
+        assertEquals(1, new StripedRedis(1).stripes());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new StripedRedis(0));
+    }
+
+    /**
+     * The memory limit bounds the whole keyspace, even when all the keys
+     * are in one stripe.
+     */
+    @Test
+    void maxmemoryIsShared() {
+        StripedRedis redis = new StripedRedis(4);
+        List<String> first = keysOfStripe(redis, 0, 200);
+        for (String k : first.subList(0, 100)) {
+            redis.set(k, "value");
+        }
+        long limit = redis.usedMemory();
+        redis.setMaxmemory(limit);
+        assertEquals(100, redis.dbsize());
+
+        // noeviction refuses the writes over the limit, whatever the stripe
+        redis.set(first.get(100), "value");
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> redis.set(keysOfStripe(redis, 1, 1).get(0), "value"));
+
+        redis.setMaxmemoryPolicy("allkeys-lru");
+        for (String k : first.subList(101, 200)) {
+            redis.set(k, "value");
+        }
+        assertTrue(redis.dbsize() > 90 && redis.dbsize() <= 101, "" + redis.dbsize());
+        // a stripe with nothing to evict evicts the keys of another
+        for (String k : keysOfStripe(redis, 1, 50)) {
+            redis.set(k, "value");
+        }
+        assertTrue(redis.usedMemory() <= limit + limit / 50, redis.usedMemory() + " > " + limit);
+        assertTrue(redis.evictedKeys() >= 100);
+
+        redis.setMaxmemory(0);
+        redis.set("unlimited", "value");
+        assertTrue(redis.usedMemory() > limit);
+    }
+
+    private static List<String> keysOfStripe(StripedRedis redis, int stripe, int n) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < n; i++) {
+            if (redis.stripeOf("key:" + i) == stripe) {
+                keys.add("key:" + i);
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    void singleKeyCommands() {
+        StripedRedis redis = new StripedRedis(4);
+
+        assertEquals("OK", redis.set("mykey", "cloud"));
+        assertEquals("cloud", redis.get("mykey"));
+        assertEquals("string", redis.type("mykey"));
+
+        assertEquals(1, redis.hset("myhash", "field1", "Hello"));
+        assertEquals("Hello", redis.hget("myhash", "field1"));
+        assertEquals(2, redis.hgetall("myhash").size());
+
+        assertEquals(2, redis.rpush("mylist", "a", "b"));
+        assertEquals(2, redis.llen("mylist"));
+        assertEquals("b", redis.rpop("mylist"));
+
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redis.get("myhash"));
+    }
+
+    /**
+     * The cursor walks every stripe, and the keys present for the whole
+     * iteration are all returned while others come and go.
+     */
+    @Test
+    void scan() {
+        StripedRedis redis = new StripedRedis(8);
+        for (int i = 0; i < 1000; i++) {
+            redis.set("key" + i, "value");
+        }
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        int calls = 0;
+        do {
+            ScanResult r = redis.scan(cursor, 10);
+            // a bucket is returned whole, so COUNT can be exceeded a little
+            assertTrue(r.items().size() < 30);
+            seen.addAll(r.items());
+            cursor = r.cursor();
+            redis.set("added" + calls, "value");
+            redis.del("key" + (500 + calls));
+            calls++;
+        } while (cursor != 0);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(seen.contains("key" + i));
+        }
+        assertTrue(calls >= 50);
+    }
+
+    @Test
+    void del() {
+        StripedRedis redis = new StripedRedis(4);
+
+        assertEquals(0, redis.del("mykey"));
+        for (int i = 0; i < 100; i++) {
+            redis.set("key" + i, "v");
+        }
+        String[] ks = new String[101];
+        for (int i = 0; i < 100; i++) {
+            ks[i] = "key" + i;
+        }
+        ks[100] = "key0";
+        assertEquals(100, redis.del(ks));
+        assertNull(redis.get("key42"));
+    }
+
+    @Test
+    void activeExpire() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(4);
+        for (int i = 0; i < 100; i++) {
+            redis.psetex("key" + i, 10, "v");
+        }
+        assertTrue(redis.pttl("key0") <= 10);
+        redis.startActiveExpire(5);
+        try {
+            Assertions.assertThrows(IllegalStateException.class,
+                    () -> redis.startActiveExpire(5));
+            Thread.sleep(200);
+            // the background thread has already removed every expired key
+            assertEquals(0, redis.activeExpireCycle());
+        } finally {
+            redis.stopActiveExpire();
+        }
+        assertEquals(-2, redis.ttl("key42"));
+    }
+
+    /**
+     * Concurrent deletes of overlapping key sets must never remove a key
+     * twice.
+     */
+    @Test
+    void delIsAtomic() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(16);
+        int threads = 4;
+        for (int round = 0; round < 200; round++) {
+            String[] ks = new String[32];
+            for (int i = 0; i < ks.length; i++) {
+                ks[i] = "round" + round + "-" + i;
+                redis.set(ks[i], "v");
+            }
+            AtomicInteger removed = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread w = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    removed.addAndGet(redis.del(ks));
+                });
+                w.start();
+                workers.add(w);
+            }
+            start.countDown();
+            for (Thread w : workers) {
+                w.join();
+            }
+            assertEquals(ks.length, removed.get());
+        }
+    }
+
+    /**
+     * MSET writes and MGET reads all their keys at once, so a reader never
+     * sees the keys of two different writes.
+     */
+    @Test
+    void msetAndMgetAreAtomic() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(16);
+        String[] ks = new String[50];
+        for (int i = 0; i < ks.length; i++) {
+            ks[i] = "page:" + i;
+        }
+        redis.mset(ks, values(ks.length, "0"));
+        AtomicInteger torn = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            for (int round = 1; round <= 2000; round++) {
+                redis.mset(ks, values(ks.length, Integer.toString(round)));
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            if (new HashSet<>(redis.mget(ks)).size() != 1) {
+                torn.incrementAndGet();
+            }
+        }
+        writer.join();
+        assertEquals(0, torn.get());
+        assertEquals("2000", redis.mget(ks).get(49));
+
+        assertEquals("OK", redis.hmset("myhash", "f1", "v1", "f2", "v2"));
+        assertEquals(Arrays.asList("v1", null, "v2"), redis.hmget("myhash", "f1", "f3", "f2"));
+    }
+
+    private static byte[][] values(int n, String v) {
+        byte[][] vs = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            vs[i] = v.getBytes(StandardCharsets.UTF_8);
+        }
+        return vs;
+    }
+
+    @Test
+    void concurrentPushAndPop() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(8);
+        int threads = 4;
+        int perThread = 10_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    redis.rpush("queue", "x");
+                    redis.hset("counters", Thread.currentThread().getName()
+                            + i, "1");
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertEquals(threads * perThread, redis.llen("queue"));
+        assertEquals(2 * threads * perThread,
+                redis.hgetall("counters").size());
+    }
+
+    @Test
+    void blockingPop() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(8);
+        redis.rpush("ready", "a", "b");
+        assertEquals(Arrays.asList("ready", "a"), redis.blpop(0, "empty", "ready"));
+        assertEquals(Arrays.asList("ready", "b"), redis.brpop(0, "ready"));
+        assertEquals("none", redis.type("ready"));
+
+        long start = System.nanoTime();
+        assertNull(redis.blpop(50, "empty", "other"));
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+        assertEquals(0, redis.blockedClients());
+
+        redis.set("string", "value");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redis.blpop(10, "empty", "string"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redis.blpop(-1, "empty"));
+    }
+
+    /**
+     * Clients blocked on a key are served one element each, in the order
+     * they blocked, and a client blocked on two keys is served once.
+     */
+    @Test
+    void blockedClientsAreServedInOrder() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(8);
+        int clients = 20;
+        List<List<String>> results = new ArrayList<>(Collections.nCopies(clients, null));
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int n = c;
+            Thread t = new Thread(() -> {
+                try {
+                    results.set(n, redis.blpop(0, "other" + n, "queue"));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+            // wait until it is queued, so the order is known
+            while (redis.blockedClients() <= n) {
+                Thread.sleep(1);
+            }
+        }
+        for (int c = 0; c < clients; c++) {
+            // the length before the blocked client pops the element
+            assertEquals(1, redis.rpush("queue", "job" + c));
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int c = 0; c < clients; c++) {
+            assertEquals(Arrays.asList("queue", "job" + c), results.get(c));
+        }
+        assertEquals(0, redis.llen("queue"));
+        assertEquals(0, redis.blockedClients());
+        // the clients left the queues of their other keys
+        redis.rpush("other0", "x");
+        assertEquals(1, redis.llen("other0"));
+    }
+
+    @Test
+    void interruptedBlockingPop() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(4);
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread t = new Thread(() -> {
+            try {
+                redis.brpop(0, "queue");
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+        });
+        t.start();
+        while (redis.blockedClients() == 0) {
+            Thread.sleep(1);
+        }
+        t.interrupt();
+        t.join();
+        assertEquals(1, interrupted.get());
+        assertEquals(0, redis.blockedClients());
+        redis.rpush("queue", "kept");
+        assertEquals(1, redis.llen("queue"));
+    }
+
+    /**
+     * Many consumers blocked on work queues: every job pushed by the
+     * producers is popped exactly once, and idle consumers do not spin.
+     */
+    @Test
+    void workQueue() throws InterruptedException {
+        StripedRedis redis = new StripedRedis();
+        int consumers = 1000;
+        int jobs = 20_000;
+        Set<String> popped = Collections.synchronizedSet(new HashSet<>());
+        CountDownLatch done = new CountDownLatch(jobs);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            String queue = "queue:" + (c % 10);
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        List<String> job = redis.blpop(0, queue);
+                        assertTrue(popped.add(job.get(1)));
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        while (redis.blockedClients() < consumers) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < jobs; i++) {
+            redis.rpush("queue:" + (i % 10), "job" + i);
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(jobs, popped.size());
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, redis.blockedClients());
+    }
+
+    @Test
+    void transaction() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(16);
+        Transaction tx = redis.transaction();
+        tx.multi();
+        Assertions.assertThrows(IllegalStateException.class, tx::multi);
+        Assertions.assertThrows(IllegalStateException.class, () -> tx.watch("a"));
+        tx.queue(r -> r.set("a", "1"), "a");
+        tx.queue(r -> r.rpush("list", "x", "y"), "list");
+        tx.queue(r -> r.hset("a", "f", "v"), "a");
+        tx.queue(r -> r.mget("a", "list"), "a", "list");
+        List<Object> results = tx.exec();
+        assertEquals(4, results.size());
+        assertEquals("OK", results.get(0));
+        assertEquals(2, results.get(1));
+        assertTrue(results.get(2) instanceof UnsupportedOperationException);
+        assertEquals(Arrays.asList("1", null), results.get(3));
+        Assertions.assertThrows(IllegalStateException.class, tx::exec);
+
+        tx.multi();
+        tx.queue(r -> r.set("a", "2"), "a");
+        tx.discard();
+        assertEquals("1", redis.get("a"));
+
+        // a write of a watched key aborts the transaction
+        tx.watch("a", "b");
+        redis.set("a", "3");
+        tx.multi();
+        tx.queue(r -> r.set("b", "1"), "b");
+        assertNull(tx.exec());
+        assertNull(redis.get("b"));
+
+        // the watches were released, the next transaction runs
+        tx.watch("b");
+        redis.set("a", "4");
+        tx.multi();
+        tx.queue(r -> r.set("b", "1"), "b");
+        assertEquals(Collections.singletonList("OK"), tx.exec());
+
+        // a PERSIST that removes no timeout is no write
+        tx.watch("a");
+        assertEquals(0, redis.persist("a"));
+        tx.multi();
+        tx.queue(r -> r.set("b", "2"), "b");
+        assertEquals(Collections.singletonList("OK"), tx.exec());
+
+        // expiring counts as a write
+        redis.psetex("c", 10, "v");
+        tx.watch("c");
+        Thread.sleep(20);
+        tx.multi();
+        assertNull(tx.exec());
+
+        // the pushes of EXEC serve blocked clients once its locks are released
+        List<List<String>> popped = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                popped.add(redis.blpop(0, "queue", "other"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        while (redis.blockedClients() == 0) {
+            Thread.yield();
+        }
+        tx.multi();
+        tx.queue(r -> r.rpush("queue", "job"), "queue");
+        tx.queue(r -> r.rpush("other", "job"), "other");
+        assertEquals(Arrays.asList(1, 1), tx.exec());
+        consumer.join();
+        assertEquals(Collections.singletonList(Arrays.asList("queue", "job")), popped);
+        assertEquals(1, redis.llen("other"));
+    }
+
+    /**
+     * Threads incrementing a counter with WATCH and a retry never lose an
+     * increment, and a transaction on keys of other stripes is not held
+     * up by them.
+     */
+    @Test
+    void optimisticIncrements() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(16);
+        redis.set("counter", "0");
+        int threads = 4;
+        int perThread = 2000;
+        AtomicInteger aborts = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                Transaction tx = redis.transaction();
+                for (int i = 0; i < perThread; i++) {
+                    while (true) {
+                        tx.watch("counter");
+                        int n = Integer.parseInt(redis.get("counter"));
+                        tx.multi();
+                        tx.queue(r -> r.set("counter", Integer.toString(n + 1)), "counter");
+                        if (tx.exec() != null) {
+                            break;
+                        }
+                        aborts.incrementAndGet();
+                    }
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        Transaction other = redis.transaction();
+        for (int i = 0; i < 1000; i++) {
+            other.multi();
+            other.queue(r -> r.rpush("log", "entry"), "log");
+            other.exec();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertEquals(Integer.toString(threads * perThread), redis.get("counter"));
+        assertEquals(1000, redis.llen("log"));
+    }
+
+    /**
+     * A function reads and writes its keys atomically, so concurrent calls
+     * never lose an update, without the retries of WATCH.
+     */
+    @Test
+    void functions() throws InterruptedException {
+        StripedRedis redis = new StripedRedis(16);
+        redis.functionLoad("checkout", (r, keys, args) -> {
+            String stock = r.hget(keys[0], args[0]);
+            if (stock == null || Integer.parseInt(stock) == 0) {
+                return 0;
+            }
+            r.hset(keys[0], args[0], Integer.toString(Integer.parseInt(stock) - 1));
+            return r.rpush(keys[1], args[0]);
+        });
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> redis.functionLoad("checkout", (r, keys, args) -> null));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redis.fcall("missing", new String[0]));
+        assertEquals(Arrays.asList("checkout"), redis.functionList());
+
+        redis.hset("stock", "book", "5000");
+        int threads = 4;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    redis.fcall("checkout", new String[]{"stock", "orders"}, "book");
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertEquals("0", redis.hget("stock", "book"));
+        assertEquals(5000, redis.llen("orders"));
+        assertEquals(0, redis.fcall("checkout", new String[]{"stock", "orders"}, "book"));
+
+        redis.set("string", "x");
+        Assertions.assertThrows(UnsupportedOperationException.class,
+                () -> redis.fcall("checkout", new String[]{"string", "orders"}, "book"));
+        assertTrue(redis.functionDelete("checkout"));
+        Assertions.assertFalse(redis.functionDelete("checkout"));
+
+        // a key that was not declared is refused, its stripe is not locked
+        redis.functionLoad("undeclared", (r, keys, args) -> r.get("other"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> redis.fcall("undeclared", new String[]{"stock"}));
+
+        // the pushes of a function serve the blocked clients
+        redis.functionLoad("push", (r, keys, args) -> r.rpush(keys[0], args));
+        List<List<String>> popped = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                popped.add(redis.blpop(0, "jobs"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        while (redis.blockedClients() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, redis.fcall("push", new String[]{"jobs"}, "job"));
+        consumer.join(5000);
+        assertEquals(Collections.singletonList(Arrays.asList("jobs", "job")), popped);
+    }
+}